@@ -1,238 +1,1476 @@
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import org.json.JSONObject;
 
 public class AggregationServer {
     // Define data structures to store server IDs, last active server times, and recent weather data
     private static Map<Socket, String> serverIds = new ConcurrentHashMap<>();
     private static Map<Socket, Long> serverLastActiveTime = new ConcurrentHashMap<>();
-    private static List<String> recentWeatherData = new ArrayList<>();
+    // Open connections of every content server that names itself with a Source-Id header
+    private static final Map<String, AtomicInteger> connectionsBySource = new ConcurrentHashMap<>();
+    private static final WeatherStore weatherStore = new WeatherStore();
+    private static final ResponseCache responseCache = new ResponseCache();
+    private static volatile WriteAheadLog writeAheadLog;
     private static final long CONNECTION_TIMEOUT = 30000; // Set connectin timeout to 30 seconds
+    private static final long DATA_FRESHNESS = 30000; // Weather data is only served for 30 seconds
+
+    // Merges the clocks received with updates, and is returned to clients so they can advance theirs
+    private static final LamportClock lamportClock = new LamportClock();
+
+    // Deadlines for stale stations and idle connections, plus the index used to expire them
+    private static final ExpiryScheduler expiryScheduler = new ExpiryScheduler();
+    private static final Map<String, Set<String>> stationsByServer = new ConcurrentHashMap<>();
+
+    // Replication: the publisher streams logged updates to replicas, the follower is set while this is a replica
+    private static volatile ReplicationPublisher replicationPublisher;
+    private static volatile ReplicaFollower replicaFollower;
+    private static final SubscriptionHub subscriptionHub = new SubscriptionHub();
+
+    // Counters and latency histograms of the request path, served at GET /metrics
+    private static final Metrics metrics = new Metrics();
+
+    // Written by a background thread, so request handlers never wait for the console
+    private static final Log logger = Log.get();
+    public static final String READ_ONLY_RESPONSE =
+            "HTTP/1.1 503 Service Unavailable\r\n\r\nReplica is read-only, send updates to the primary.";
+
+    // The most recent updates, a station is dropped once its latest update falls out of this window. A batch PUT
+    // counts as one update, so a batch never pushes its own records out.
+    public static final int DEFAULT_RETAINED_UPDATES = 20;
+    private static volatile AtomicReferenceArray<List<WeatherStore.StationRecord>> recentUpdates =
+            new AtomicReferenceArray<>(DEFAULT_RETAINED_UPDATES);
+    private static final AtomicLong updateCount = new AtomicLong();
+
+    // Execution modes for handling accepted client connections
+    public static final String MODE_THREAD = "thread";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_POOL = "pool";
+
+    // Response sent to clients that are turned away because the worker pool is full
+    public static final String BUSY_RESPONSE = "HTTP/1.1 503 Service Unavailable\r\n\r\nServer is busy, try again later.";
+
+    // Response sent when a response would not fit in a single frame
+    private static final String TOO_LARGE_RESPONSE = "HTTP/1.1 500 Internal Server Error\r\n\r\nResponse too large.";
+    private static final byte[] TOO_LARGE_FRAME = FrameCodec.encodeShort(TOO_LARGE_RESPONSE);
 
     public static void main(String args[]) {
         // Take in the port number from the user input. If not defualt to 4567.
-        int port;
-        if (args.length != 0) {
-            port = Integer.parseInt(args[0]);
+        // Any further arguments are options in the form --name=value.
+        Map<String, String> options = parseOptions(args);
+        int port = Integer.parseInt(options.getOrDefault("port", "4567"));
+
+        // Per-request events are only logged at debug level, for one in --log-sample requests
+        logger.setLevel(Log.Level.valueOf(options.getOrDefault("log-level", "info").toUpperCase()));
+        logger.setSampleRate(Integer.parseInt(options.getOrDefault("log-sample", "1")));
+
+        // Build the executor used to run client handlers
+        String mode = options.getOrDefault("executor", MODE_THREAD);
+        int poolSize = Integer.parseInt(
+                options.getOrDefault("pool-size", String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+        int queueSize = Integer.parseInt(options.getOrDefault("queue-size", "256"));
+        Executor clientExecutor = createClientExecutor(mode, poolSize, queueSize);
+
+        // Only keep stations whose latest update is among the most recent updates
+        setRetainedUpdates(Integer.parseInt(
+                options.getOrDefault("retained-updates", String.valueOf(DEFAULT_RETAINED_UPDATES))));
+
+        // Open the write-ahead log that persists every update
+        try {
+            openStorage(new File(options.getOrDefault("data-dir", "data/")),
+                    WriteAheadLog.Durability.valueOf(options.getOrDefault("durability", "batch").toUpperCase()),
+                    Long.parseLong(options.getOrDefault("segment-size",
+                            String.valueOf(WriteAheadLog.DEFAULT_SEGMENT_BYTES))));
+            // Rebuild the in-memory state from what was persisted before a restart or crash
+            recoverState();
+        } catch (IOException e) {
+            logger.error("Failed to open data directory: " + e.getMessage());
+            return;
+        }
+
+        // Stream updates to replicas, and follow a primary when started as a replica
+        try {
+            if (options.containsKey("replication-port")) {
+                startReplicationPublisher(Integer.parseInt(options.get("replication-port")));
+            }
+            if (options.containsKey("replica-of")) {
+                startReplicaFollower(ReplicaFollower.parseEndpoints(options.get("replica-of")),
+                        Long.parseLong(options.getOrDefault("promote-after", "0")));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to open replication port: " + e.getMessage());
+            return;
+        }
+
+        // Start the thread for:
+        // - expiring stale data and idle client connections
+        // - create a new server socket and handle client connections
+        expiryScheduler.start();
+        if (options.getOrDefault("core", "blocking").equals("nio")) {
+            // Non-blocking core: one selector thread and a small pool of request workers
+            int workerCount = Integer.parseInt(
+                    options.getOrDefault("workers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            try (NioAggregationServer server = new NioAggregationServer(port, workerCount)) {
+                server.run();
+            } catch (IOException e) {
+                logger.error("Failed to run the server", e);
+            }
+        } else {
+            createAndHandleClientConnections(port, clientExecutor);
+        }
+    }
+
+    /**
+     * Parses the command line arguments. The first argument may be a bare port
+     * number, every other argument must be of the form --name=value (or --flag).
+     *
+     * @param args The command line arguments.
+     * @return A map of option names to values. The port is stored under "port".
+     */
+    public static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equalsIndex = arg.indexOf('=');
+                if (equalsIndex == -1) {
+                    options.put(arg.substring(2), "true");
+                } else {
+                    options.put(arg.substring(2, equalsIndex), arg.substring(equalsIndex + 1));
+                }
+            } else if (!options.containsKey("port")) {
+                options.put("port", arg);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Creates the executor that runs a handler for every accepted connection.
+     *
+     * - thread:  a new platform thread per connection (the original behaviour).
+     * - virtual: a new virtual thread per connection, when the JVM supports it.
+     * - pool:    a fixed number of workers with a bounded admission queue. When
+     *            the queue is full the connection is rejected with a 503.
+     *
+     * @param mode      The execution mode (thread, virtual or pool).
+     * @param poolSize  The number of worker threads used in pool mode.
+     * @param queueSize The number of connections that may wait for a worker in
+     *                  pool mode.
+     * @return The executor for client handlers.
+     */
+    public static Executor createClientExecutor(String mode, int poolSize, int queueSize) {
+        switch (mode) {
+            case MODE_THREAD:
+                return command -> new Thread(command).start();
+            case MODE_VIRTUAL:
+                try {
+                    // Looked up reflectively so the server still builds and runs on JDKs without
+                    // virtual threads (they became final in Java 21)
+                    return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    logger.warn("Virtual threads are not supported by this JVM, using a thread per connection.");
+                    return createClientExecutor(MODE_THREAD, poolSize, queueSize);
+                }
+            case MODE_POOL:
+                BlockingQueue<Runnable> admissionQueue = queueSize > 0
+                        ? new ArrayBlockingQueue<>(queueSize)
+                        : new SynchronousQueue<>();
+                // The default abort policy throws RejectedExecutionException once the queue is full
+                return new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, admissionQueue);
+            default:
+                throw new IllegalArgumentException("Unknown executor mode: " + mode);
+        }
+    }
+
+    /**
+     * Opens the write-ahead log used to persist updates, replacing any log that
+     * is already open.
+     *
+     * @param dataDirectory The directory holding the log segments.
+     * @param durability    When appended records are forced to disk.
+     * @param segmentBytes  The size after which a new log segment is started.
+     * @throws IOException If the log could not be opened.
+     */
+    public static synchronized void openStorage(File dataDirectory, WriteAheadLog.Durability durability,
+            long segmentBytes) throws IOException {
+        WriteAheadLog previous = writeAheadLog;
+        writeAheadLog = new WriteAheadLog(dataDirectory, durability, segmentBytes);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Returns the write-ahead log, opening it in the default data directory if
+     * the server was not started through main.
+     *
+     * @return The write-ahead log.
+     * @throws IOException If the log could not be opened.
+     */
+    public static WriteAheadLog getWriteAheadLog() throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (log == null) {
+            synchronized (AggregationServer.class) {
+                if (writeAheadLog == null) {
+                    writeAheadLog = new WriteAheadLog(new File("data/"), WriteAheadLog.Durability.BATCH,
+                            WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+                }
+                log = writeAheadLog;
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Rebuilds the weather store from the write-ahead log. The log is compacted
+     * first, so recovery reads roughly one record per station no matter how
+     * long the server has been running. JSON files left by older versions of the
+     * server are imported into the log the first time it is opened.
+     *
+     * @return The number of records replayed.
+     * @throws IOException If the log could not be read.
+     */
+    public static int recoverState() throws IOException {
+        long startTime = System.nanoTime();
+        WriteAheadLog log = getWriteAheadLog();
+        if (log.isEmpty()) {
+            importLegacyFiles(log.getDirectory());
+        }
+        log.compact();
+
+        int[] replayed = new int[1];
+        int segments = log.replay(record -> {
+            replayed[0]++;
+            if (record.getType() == WriteAheadLog.TYPE_DELETE) {
+                weatherStore.remove(record.getStationId());
+            } else {
+                weatherStore.restore(new WeatherStore.StationRecord(record.getStationId(), record.getJson(),
+                        record.getServerId(), record.getTimestamp(), record.getSequence(), record.getLamportTime()));
+                lamportClock.update(record.getLamportTime());
+            }
+        });
+
+        // A replica leaves expiry to its primary, which replicates the removals
+        if (replicaFollower == null) {
+            trackStoredStations();
+        }
+
+        long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+        logger.info("Recovered " + weatherStore.size() + " stations from " + replayed[0] + " records in "
+                + segments + " segments in " + elapsedMillis + " ms");
+        return replayed[0];
+    }
+
+    /**
+     * Gives every station in the store its deadlines, in update order for the
+     * recent updates window. Consecutive records of the same content server
+     * and Lamport time were stored by one batch PUT, so they are taken as one
+     * update again.
+     */
+    private static void trackStoredStations() {
+        List<WeatherStore.StationRecord> stored = new ArrayList<>();
+        for (WeatherStore.StationHistory station : weatherStore.stations()) {
+            stored.add(station.latest());
+        }
+        stored.sort((record1, record2) -> Long.compare(record1.getSequence(), record2.getSequence()));
+        List<WeatherStore.StationRecord> update = new ArrayList<>();
+        for (WeatherStore.StationRecord record : stored) {
+            if (!update.isEmpty() && (record.getLamportTime() != update.get(0).getLamportTime()
+                    || !record.getServerId().equals(update.get(0).getServerId()))) {
+                trackUpdate(update);
+                update = new ArrayList<>();
+            }
+            update.add(record);
+        }
+        if (!update.isEmpty()) {
+            trackUpdate(update);
+        }
+    }
+
+    /**
+     * Starts streaming every logged update to replicas that connect to a port.
+     *
+     * @param port The replication port.
+     * @return The publisher.
+     * @throws IOException If the port could not be opened.
+     */
+    public static ReplicationPublisher startReplicationPublisher(int port) throws IOException {
+        replicationPublisher = new ReplicationPublisher(port, weatherStore);
+        return replicationPublisher;
+    }
+
+    /**
+     * Turns this server into a read-only replica that follows a primary. The
+     * replica logs what it applies, so it can be restarted or promoted without
+     * losing data.
+     *
+     * @param endpoints    The replication endpoints to follow, tried in order.
+     * @param promoteAfter Milliseconds without a reachable endpoint after which
+     *                     the replica promotes itself, or 0 to wait for POST
+     *                     /promote.
+     */
+    public static void startReplicaFollower(List<InetSocketAddress> endpoints, long promoteAfter) {
+        ReplicaFollower follower = new ReplicaFollower(endpoints, promoteAfter, weatherStore,
+                AggregationServer::applyReplicated, AggregationServer::promote);
+        replicaFollower = follower;
+        Thread followerThread = new Thread(follower, "replica-follower");
+        followerThread.setDaemon(true);
+        followerThread.start();
+    }
+
+    /**
+     * Applies records received from the primary. PUTs are resolved in Lamport
+     * order, so a record received twice or out of order cannot overwrite a
+     * newer one, and DELETEs only remove a station not updated since. What
+     * was applied is logged and passed on to this server's own replicas.
+     *
+     * @param records The received records.
+     */
+    private static void applyReplicated(List<WriteAheadLog.Record> records) {
+        List<WriteAheadLog.Record> applied = new ArrayList<>(records.size());
+        for (WriteAheadLog.Record record : records) {
+            if (record.getType() == WriteAheadLog.TYPE_DELETE) {
+                if (weatherStore.removeUpTo(record.getStationId(), record.getSequence())) {
+                    applied.add(record);
+                }
+            } else {
+                lamportClock.update(record.getLamportTime());
+                if (weatherStore.restoreIfNewer(new WeatherStore.StationRecord(record.getStationId(),
+                        record.getJson(), record.getServerId(), record.getTimestamp(), record.getSequence(),
+                        record.getLamportTime()))) {
+                    applied.add(record);
+                }
+            }
+        }
+        if (applied.isEmpty()) {
+            return;
+        }
+
+        try {
+            getWriteAheadLog().appendAll(applied);
+        } catch (IOException e) {
+            logger.error("Failed to log replicated records: " + e.getMessage());
+        }
+        publish(applied);
+    }
+
+    /**
+     * Promotes a replica to primary: it stops following, starts accepting
+     * updates and takes over expiring the stations it holds.
+     *
+     * @return true if the server was a replica.
+     */
+    public static boolean promote() {
+        ReplicaFollower follower;
+        synchronized (AggregationServer.class) {
+            follower = replicaFollower;
+            if (follower == null) {
+                return false;
+            }
+            replicaFollower = null;
+        }
+        follower.close();
+        trackStoredStations();
+        logger.info("Promoted to primary.");
+        return true;
+    }
+
+    /**
+     * Checks whether this server is a read-only replica.
+     *
+     * @return true while following a primary.
+     */
+    public static boolean isReplica() {
+        return replicaFollower != null;
+    }
+
+    /**
+     * Passes logged records on to the subscribers and to the connected replicas,
+     * if replication is on.
+     */
+    private static void publish(List<WriteAheadLog.Record> records) {
+        subscriptionHub.publish(records);
+        ReplicationPublisher publisher = replicationPublisher;
+        if (publisher != null) {
+            publisher.publish(records);
+        }
+    }
+
+    /**
+     * Builds the replication status: the role of this server and, on a
+     * replica, how far it is behind its primary.
+     *
+     * @return The response.
+     */
+    private static String buildReplicationResponse() {
+        ReplicaFollower follower = replicaFollower;
+        String body;
+        if (follower != null) {
+            body = follower.status();
         } else {
-            port = 4567;
+            ReplicationPublisher publisher = replicationPublisher;
+            body = "{\"role\":\"primary\",\"replicas\":" + (publisher == null ? 0 : publisher.replicaCount())
+                    + ",\"sequence\":" + weatherStore.lastSequence() + "}";
         }
+        return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length()
+                + "\r\n\r\n" + body;
+    }
+
+    /**
+     * Builds the metrics response: the request counters and latency histograms
+     * together with the current size of the store, the log, the subscriptions
+     * and, on a replica, the replication lag.
+     *
+     * @return The response.
+     */
+    private static String buildMetricsResponse() {
+        Map<String, Number> gauges = new LinkedHashMap<>();
+        gauges.put("aggregation_store_stations", weatherStore.size());
+        gauges.put("aggregation_store_sequence", weatherStore.lastSequence());
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            gauges.put("aggregation_wal_bytes", log.sizeBytes());
+        }
+        gauges.put("aggregation_subscribers", subscriptionHub.size());
+        gauges.put("aggregation_lamport_clock", lamportClock.getValue());
+        gauges.put("aggregation_log_dropped", logger.getDropped());
+        ReplicaFollower follower = replicaFollower;
+        ReplicationPublisher publisher = replicationPublisher;
+        if (follower != null) {
+            gauges.put("aggregation_replication_connected", follower.isConnected() ? 1 : 0);
+            gauges.put("aggregation_replication_lag_seconds", follower.getLagMillis() / 1000.0);
+        } else if (publisher != null) {
+            gauges.put("aggregation_replicas", publisher.replicaCount());
+        }
+        Metrics.addProcessGauges(gauges);
+        String body = metrics.render(gauges);
+        return "HTTP/1.1 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: " + body.length()
+                + "\r\n\r\n" + body;
+    }
+
+    /**
+     * Returns the metrics of this server.
+     *
+     * @return The metrics.
+     */
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Imports the one-file-per-update JSON files written by older versions of the
+     * server into the write-ahead log, oldest first. The files are left in place.
+     *
+     * @param dataDirectory The directory holding the JSON files.
+     */
+    private static void importLegacyFiles(File dataDirectory) {
+        File[] files = dataDirectory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files, (file1, file2) -> Long.compare(file1.lastModified(), file2.lastModified()));
+
+        long sequence = 0;
+        for (File file : files) {
+            try {
+                String data = new String(Files.readAllBytes(file.toPath()));
+                StationJson stationJson = StationJson.parse(data);
+                if (stationJson == null || stationJson.getId().isEmpty()) {
+                    continue;
+                }
+
+                // Legacy files are named <serverId>_<timestamp>.json
+                String serverId = file.getName().substring(0, Math.max(0, file.getName().indexOf('_')));
+                storeRecord(new WeatherStore.StationRecord(stationJson.getId(), stationJson.getJson(), serverId,
+                        file.lastModified(), ++sequence));
+            } catch (IOException e) {
+                logger.error("Failed to import legacy data file " + file.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sets how many of the most recent updates are retained. A station whose
+     * latest update is older than that is dropped. A batch PUT is one update,
+     * however many records it holds.
+     *
+     * @param retainedUpdates The number of updates, or 0 to keep every station
+     *                        until its data goes stale.
+     */
+    public static void setRetainedUpdates(int retainedUpdates) {
+        recentUpdates = retainedUpdates > 0 ? new AtomicReferenceArray<>(retainedUpdates) : null;
+    }
+
+    /**
+     * Registers the records stored by one update with the expiry subsystem:
+     * every station is indexed under the content server that sent it and
+     * given a freshness deadline, and the update is entered into the window
+     * of recent updates.
+     *
+     * @param records The records that were just stored, all from the same
+     *                content server.
+     */
+    private static void trackUpdate(List<WeatherStore.StationRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        for (WeatherStore.StationRecord record : records) {
+            stationsByServer.computeIfAbsent(record.getServerId(), id -> ConcurrentHashMap.newKeySet())
+                    .add(record.getStationId());
+            expiryScheduler.schedule(record.getStationId(), record.getReceivedTime() + DATA_FRESHNESS,
+                    AggregationServer::expireStation);
+        }
+
+        // The slot of this update held the update N updates ago, which has now left the window
+        AtomicReferenceArray<List<WeatherStore.StationRecord>> window = recentUpdates;
+        if (window != null) {
+            int slot = (int) (updateCount.getAndIncrement() % window.length());
+            List<WeatherStore.StationRecord> displaced = window.getAndSet(slot, records);
+            if (displaced != null && displaced.get(0).getSequence() > records.get(0).getSequence()) {
+                // A newer update claimed the slot first, so this one is the one outside the window
+                window.compareAndSet(slot, records, displaced);
+                displaced = records;
+            }
+            if (displaced != null) {
+                evictRecords(displaced);
+            }
+        }
+    }
+
+    /**
+     * Called by the expiry scheduler once a station's freshness deadline has
+     * passed.
+     *
+     * @return The station's new deadline if it was updated in the meantime, or 0
+     *         once it has been removed.
+     */
+    private static long expireStation(Object key, long currentTime) {
+        while (true) {
+            WeatherStore.StationHistory station = weatherStore.get((String) key);
+            if (station == null) {
+                return 0;
+            }
+            WeatherStore.StationRecord latestRecord = station.latest();
+            long deadline = latestRecord.getReceivedTime() + DATA_FRESHNESS;
+            if (deadline > currentTime) {
+                return deadline;
+            }
+            if (!evictRecords(Collections.singletonList(latestRecord)).isEmpty()) {
+                return 0;
+            }
+            // A new update raced with the expiry, look at the station again
+        }
+    }
+
+    /**
+     * Called by the expiry scheduler once a client connection's idle deadline
+     * has passed. Closes the connection and removes the data it sent.
+     *
+     * @return The connection's new deadline if it was active in the meantime, or
+     *         0 once it has been closed.
+     */
+    static long expireConnection(Object key, long currentTime) {
+        Socket socketToClose = (Socket) key;
+        Long lastActiveTime = serverLastActiveTime.get(socketToClose);
+        if (lastActiveTime == null) {
+            return 0;
+        }
+        if (lastActiveTime + CONNECTION_TIMEOUT > currentTime) {
+            return lastActiveTime + CONNECTION_TIMEOUT;
+        }
+
+        // The client connection is idle for too long, close it and perform cleanup
+        try {
+            String serverId = serverIds.get(socketToClose);
+
+            logger.info("Closing idle connection with client: " + socketToClose.getRemoteSocketAddress());
+            serverIds.remove(socketToClose);
+            serverLastActiveTime.remove(socketToClose);
+            socketToClose.close();
+
+            // A content server that reconnected still owns its data through the newer connection
+            if (serverId != null && releaseSource(serverId) == 0) {
+                cleanupClientFiles(serverId);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to close idle connection", e);
+        }
+        return 0;
+    }
+
+    /**
+     * Removes stations from the store, provided the given records are still
+     * their latest, and logs a delete for each one removed.
+     *
+     * @param records The records to evict.
+     * @return The records that were actually evicted.
+     */
+    private static List<WeatherStore.StationRecord> evictRecords(List<WeatherStore.StationRecord> records) {
+        long start = System.nanoTime();
+        List<WeatherStore.StationRecord> evicted = new ArrayList<>();
+        List<WriteAheadLog.Record> deletes = new ArrayList<>();
+        long currentTime = System.currentTimeMillis();
+        for (WeatherStore.StationRecord record : records) {
+            if (weatherStore.removeIfLatest(record)) {
+                evicted.add(record);
+                deletes.add(new WriteAheadLog.Record(WriteAheadLog.TYPE_DELETE, record.getSequence(), currentTime,
+                        record.getStationId(), record.getServerId(), ""));
+                Set<String> serverStations = stationsByServer.get(record.getServerId());
+                if (serverStations != null) {
+                    serverStations.remove(record.getStationId());
+                }
+            }
+        }
+
+        if (!deletes.isEmpty()) {
+            try {
+                getWriteAheadLog().appendAll(deletes);
+                publish(deletes);
+            } catch (IOException e) {
+                logger.error("Failed to log removed stations: " + e.getMessage());
+            }
+        }
+        metrics.getCleanupTime().recordSince(start);
+        return evicted;
+    }
+
+    /**
+     * Creates a new server socket and handles incoming client connections, using
+     * a new thread for every connection.
+     *
+     * @param port The port number on which the server socket listens for incoming
+     *             connections.
+     */
+    public static void createAndHandleClientConnections(int port) {
+        createAndHandleClientConnections(port, createClientExecutor(MODE_THREAD, 0, 0));
+    }
+
+    /**
+     * Creates a new server socket and handles incoming client connections.
+     *
+     * @param port           The port number on which the server socket listens for
+     *                       incoming connections.
+     * @param clientExecutor The executor used to run the handler for each
+     *                       connection.
+     */
+    public static void createAndHandleClientConnections(int port, Executor clientExecutor) {
+        try (ServerSocket socket = new ServerSocket(port)) {
+            logger.info("Aggregation Server started on port " + port);
+
+            while (true) {
+                // Accept incoming client connections
+                Socket clientSocket = socket.accept();
+                if (logger.isRequestSampled()) {
+                    logger.debug("Received connection from client: " + clientSocket.getRemoteSocketAddress());
+                }
+
+                // Generate a unique ID for the server and store data
+                String serverId = registerConnection(clientSocket);
+
+                // Hand the client connection to the executor, shedding load if it is full
+                try {
+                    clientExecutor.execute(() -> handleClient(clientSocket, serverId));
+                } catch (RejectedExecutionException e) {
+                    rejectClient(clientSocket);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to accept connections on port " + port, e);
+        }
+    }
+
+    /**
+     * Registers a newly accepted client connection under a unique server ID.
+     *
+     * @param clientSocket The socket representing the client connection.
+     * @return The unique ID assigned to the connection.
+     */
+    public static String registerConnection(Socket clientSocket) {
+        metrics.connectionAccepted();
+        String serverId = generateUniqueId();
+        serverIds.put(clientSocket, serverId);
+        return serverId;
+    }
+
+    /**
+     * Forgets a client connection that has been closed. Connections that have
+     * sent data stay registered until they expire and their data is cleaned up.
+     *
+     * @param clientSocket The socket representing the client connection.
+     */
+    public static void unregisterConnection(Socket clientSocket) {
+        metrics.connectionClosed();
+        if (!serverLastActiveTime.containsKey(clientSocket)) {
+            String serverId = serverIds.remove(clientSocket);
+            if (serverId != null) {
+                releaseSource(serverId);
+            }
+        }
+    }
+
+    /**
+     * Counts a connection over which a content server has identified itself.
+     *
+     * @param sourceId The Source-Id the content server sent.
+     */
+    private static void acquireSource(String sourceId) {
+        connectionsBySource.compute(sourceId, (id, count) -> {
+            AtomicInteger connections = count != null ? count : new AtomicInteger();
+            connections.incrementAndGet();
+            return connections;
+        });
+    }
+
+    /**
+     * Stops counting a connection of a server ID, and forgets the ID once it
+     * has no connections left.
+     *
+     * @param serverId The server ID of the connection.
+     * @return The connections the ID still has, 0 also for an ID that was
+     *         generated for a single connection.
+     */
+    private static int releaseSource(String serverId) {
+        AtomicInteger connections = connectionsBySource.computeIfPresent(serverId,
+                (id, count) -> count.decrementAndGet() > 0 ? count : null);
+        return connections != null ? connections.get() : 0;
+    }
+
+    /**
+     * Turns away a client connection that could not be admitted by sending a 503
+     * (Service Unavailable) response and closing the socket.
+     *
+     * @param clientSocket The socket representing the client connection.
+     */
+    public static void rejectClient(Socket clientSocket) {
+        metrics.connectionRejected();
+        unregisterConnection(clientSocket);
+        try (DataOutputStream outputData = new DataOutputStream(clientSocket.getOutputStream())) {
+            outputData.writeUTF(BUSY_RESPONSE);
+            outputData.flush();
+        } catch (IOException e) {
+            // The client may already have gone away, there is nothing left to do
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                logger.error("Failed to close rejected connection", e);
+            }
+        }
+    }
+
+    /**
+     * Cleans up stale data by compacting the write-ahead log, so only the latest
+     * record of each station is kept in sealed segments.
+     * 
+     */
+    public static void cleanupStaleData() {
+        long start = System.nanoTime();
+        try {
+            int droppedRecords = getWriteAheadLog().compact();
+            metrics.getCleanupTime().recordSince(start);
+            if (droppedRecords > 0) {
+                logger.info("Compacted write-ahead log, dropped " + droppedRecords + " stale records.");
+            }
+        } catch (Exception e) {
+            logger.error("Failed to compact the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Handles incoming client connections, processes requests, and sends responses.
+     *
+     * @param clientSocket The socket representing the client connection.
+     * @param serverId     The unique ID of the server handling the client
+     *                     connection.
+     */
+    public static void handleClient(Socket clientSocket, String serverId) {
+        try (
+                BufferedInputStream input = new BufferedInputStream(clientSocket.getInputStream());
+                DataInputStream inputData = new DataInputStream(input);
+                DataOutputStream outputData = new DataOutputStream(clientSocket.getOutputStream())) {
 
-        // Start the thread for:
-        // - cleaning up stale data
-        // - managing client connections
-        // - create a new server socket and handle client connections
-        startDataCleanupThread();
-        startConnectionManagerThread();
-        createAndHandleClientConnections(port);
+            // Set a timeout for 15 seconds before reading, so an idle client cannot hold a
+            // worker forever
+            clientSocket.setSoTimeout(15000);
+
+            // One request structure is reused for every request on the connection
+            HttpRequest request = new HttpRequest();
+
+            // Clients that send raw HTTP instead of writeUTF frames are told apart by their first bytes
+            if (HttpCodec.detect(input)) {
+                handleHttpClient(input, outputData, request, serverId, clientSocket);
+                clientSocket.close();
+                return;
+            }
+            String message = inputData.readUTF();
+
+            while (message != null) {
+                // A subscription keeps the connection to itself until the client goes away
+                if (message.startsWith("GET /subscribe") && request.parseMessage(message)) {
+                    streamUpdates(outputData, clientSocket, request.getTarget(), false);
+                    break;
+                }
+
+                // Process the request and send the response back to the client. Requests are
+                // handled one at a time, so pipelined requests are answered in order.
+                outputData.write(respond(message, request, serverId, clientSocket));
+                outputData.flush();
+
+                // Keep-alive clients may send further requests on the same connection
+                if (!request.isKeepAlive()) {
+                    break;
+                }
+                message = readNextMessage(inputData);
+            }
+            clientSocket.close();
+        } catch (IOException e) {
+            logger.error("Connection with " + clientSocket.getRemoteSocketAddress() + " failed", e);
+        } finally {
+            unregisterConnection(clientSocket);
+        }
     }
 
     /**
-     * Starts a dedicated thread for cleaning up stale data.
+     * Serves a connection that speaks raw HTTP. Requests and responses are not
+     * limited to the 64KB of a writeUTF frame, and bodies are plain UTF-8. The
+     * connection stays open for further requests unless the client asks to
+     * close it, as usual for HTTP/1.1.
+     *
+     * @param input        The buffered input stream of the connection.
+     * @param output       The output stream of the connection.
+     * @param request      The request structure reused for every request.
+     * @param serverId     The unique ID of the server handling the client
+     *                     connection.
+     * @param clientSocket The socket representing the client connection.
+     * @throws IOException If writing a response fails.
      */
-    private static void startDataCleanupThread() {
-        Thread dataCleanupThread = new Thread(() -> {
-            while (true) {
-                cleanupStaleData();
-                try {
-                    Thread.sleep(1000); // Sleep for 1 second before the next cleanup cycle.
-                } catch (InterruptedException e) {
-                    e.printStackTrace(); // Handle any interruption and print an error message.
+    private static void handleHttpClient(InputStream input, OutputStream output, HttpRequest request,
+            String serverId, Socket clientSocket) throws IOException {
+        while (true) {
+            try {
+                if (!HttpCodec.readRequest(input, request)) {
+                    return;
                 }
+            } catch (HttpCodec.RequestTooLargeException e) {
+                output.write(HttpCodec.encodeResponse("HTTP/1.1 413 Payload Too Large\r\n\r\n" + e.getMessage()));
+                output.flush();
+                return;
+            } catch (ProtocolException e) {
+                output.write(HttpCodec.encodeResponse("HTTP/1.1 400 Bad Request\r\n\r\n" + e.getMessage()));
+                output.flush();
+                return;
+            } catch (EOFException | SocketTimeoutException e) {
+                return;
             }
-        });
-        dataCleanupThread.start();
+
+            if (request.getMethod() == HttpRequest.GET && request.getTarget().startsWith("/subscribe")) {
+                streamUpdates(output, clientSocket, request.getTarget(), true);
+                return;
+            }
+            output.write(respondHttp(request, serverId, clientSocket));
+            output.flush();
+            if (!request.isPersistent()) {
+                return;
+            }
+        }
     }
 
     /**
-     * Starts a dedicated thread for managing client connections.
+     * Pushes updates to a subscriber until it disconnects. "/subscribe" follows
+     * every station and "/subscribe?id=IDS60901" a single one; the current data
+     * of the followed stations is sent first. A frame connection is answered
+     * with a 200 frame followed by one frame per update, a raw HTTP connection
+     * with a text/event-stream of "data:" events. An idle subscription is sent
+     * a heartbeat (a "Heartbeat" frame or a ": heartbeat" comment) every
+     * HEARTBEAT_INTERVAL, so both sides notice a dead connection. A subscriber
+     * that cannot keep up skips the intermediate updates of a station, and is
+     * disconnected once MAX_PENDING stations are waiting or a write takes
+     * longer than WRITE_TIMEOUT. A removed station is pushed as
+     * {"id":...,"deleted":true}.
+     *
+     * @param connectionOutput The output stream of the connection.
+     * @param clientSocket     The connection, closed when the subscriber is
+     *                         disconnected.
+     * @param target           The request target.
+     * @param http             Whether the connection speaks raw HTTP.
+     * @throws IOException If writing to the subscriber fails.
      */
-    public static void startConnectionManagerThread() {
-        Thread connectionManagerThread = new Thread(() -> {
+    private static void streamUpdates(OutputStream connectionOutput, Socket clientSocket, String target,
+            boolean http) throws IOException {
+        OutputStream output = new BufferedOutputStream(connectionOutput, 8192);
+        WeatherQuery query = WeatherQuery.parse(target);
+        if (query == null) {
+            String response = "HTTP/1.1 400 Bad Request\r\n\r\nInvalid query.";
+            output.write(http ? HttpCodec.encodeResponse(response) : FrameCodec.encodeShort(response));
+            output.flush();
+            return;
+        }
+
+        SubscriptionHub.Subscriber subscriber = subscriptionHub.subscribe(query.getId(), clientSocket);
+        try {
+            if (query.getId() != null) {
+                WeatherStore.StationHistory station = weatherStore.get(query.getId());
+                if (station != null) {
+                    subscriptionHub.offerCurrent(subscriber, station.latest());
+                }
+            } else {
+                for (WeatherStore.StationHistory station : weatherStore.stations()) {
+                    subscriptionHub.offerCurrent(subscriber, station.latest());
+                }
+            }
+
+            if (http) {
+                output.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+                        + "Lamport-Clock: " + lamportClock.getValue() + "\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+            } else {
+                output.write(FrameCodec.encodeShort("HTTP/1.1 200 OK\r\nLamport-Clock: " + lamportClock.getValue()
+                        + "\r\n\r\nSubscribed."));
+            }
+            output.flush();
+
             while (true) {
-                manageConnections();
+                List<SubscriptionHub.Update> updates = subscriber.take(SubscriptionHub.HEARTBEAT_INTERVAL);
+                if (subscriber.isClosed()) {
+                    logger.warn("Disconnecting subscriber that fell behind.");
+                    return;
+                }
+
+                // A client that stops reading without closing would block the write for good, so it has a deadline
+                ScheduledFuture<?> writeDeadline = subscriptionHub.startWrite(subscriber, SubscriptionHub.WRITE_TIMEOUT);
                 try {
-                    Thread.sleep(1000); // Sleep for 1 second before the next check connections cycle.
-                } catch (InterruptedException e) {
-                    e.printStackTrace(); // Handle any interruption and print an error message.
+                    if (updates.isEmpty()) {
+                        output.write(http ? ": heartbeat\n\n".getBytes(StandardCharsets.ISO_8859_1)
+                                : FrameCodec.encodeShort("Heartbeat"));
+                    }
+                    for (SubscriptionHub.Update update : updates) {
+                        // Only an HTTP subscriber can receive an update larger than a frame
+                        byte[] encoded = http ? update.getEvent() : update.getFrame();
+                        if (encoded != null) {
+                            output.write(encoded);
+                        }
+                    }
+                    output.flush();
+                } finally {
+                    writeDeadline.cancel(false);
                 }
             }
-        });
-        connectionManagerThread.start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscriptionHub.unsubscribe(subscriber);
+        }
     }
 
     /**
-     * Creates a new server socket and handles incoming client connections.
+     * Returns the number of connected subscribers.
      *
-     * @param port The port number on which the server socket listens for incoming
-     *             connections.
+     * @return The subscriber count.
      */
-    public static void createAndHandleClientConnections(int port) {
-        try (ServerSocket socket = new ServerSocket(port)) {
-            System.out.println("Aggregation Server started on port " + port);
-
-            while (true) {
-                // Accept incoming client connections
-                Socket clientSocket = socket.accept();
-                System.out.println("Received connection from client: " + clientSocket.getRemoteSocketAddress());
+    public static int subscriberCount() {
+        return subscriptionHub.size();
+    }
 
-                // Generate a unique ID for the server and store data
-                String serverId = generateUniqueId();
-                serverIds.put(clientSocket, serverId);
+    /**
+     * Processes a single raw HTTP request and returns the encoded response. GET
+     * responses come straight from the response cache.
+     *
+     * @param request      The parsed request.
+     * @param serverId     The unique ID of the server handling the client
+     *                     connection.
+     * @param clientSocket The socket representing the client connection.
+     * @return The encoded response. The array may be shared and must not be
+     *         modified.
+     */
+    public static byte[] respondHttp(HttpRequest request, String serverId, Socket clientSocket) {
+        long start = System.nanoTime();
+        String method = request.getMethod();
+        if (method == HttpRequest.GET || method == HttpRequest.HEAD) {
+            ResponseCache.CachedResponse response = buildGetResponse(request);
+            metrics.response(method, response.getText(), start);
+            return method == HttpRequest.GET ? response.getHttp() : HttpCodec.headOnly(response.getHttp());
+        }
+        String response = handleRequest(method + " " + request.getTarget(), request, serverId, clientSocket);
+        metrics.response(method, response, start);
+        return HttpCodec.encodeResponse(response);
+    }
 
-                // Create a new thread to handle each client connection
-                Thread clientHandlerThread = new Thread(() -> handleClient(clientSocket, serverId));
-                clientHandlerThread.start();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Reads the next request on a keep-alive connection.
+     *
+     * @param inputData The input stream of the client connection.
+     * @return The next request, or null if the client closed the connection or
+     *         stayed idle past the socket timeout.
+     * @throws IOException If the connection failed for any other reason.
+     */
+    private static String readNextMessage(DataInputStream inputData) throws IOException {
+        try {
+            return inputData.readUTF();
+        } catch (EOFException | SocketTimeoutException e) {
+            return null;
         }
     }
 
     /**
-     * Cleans up stale data by deleting the oldest data files.
-     * 
+     * Checks whether a request asks for the connection to be kept open with a
+     * "Connection: keep-alive" header.
+     *
+     * @param message The request message.
+     * @return true if the connection should stay open after the response.
      */
-    public static void cleanupStaleData() {
+    public static boolean isKeepAlive(String message) {
+        HttpRequest request = new HttpRequest();
+        return request.parseMessage(message) && request.isKeepAlive();
+    }
+
+    /**
+     * Processes a single request message and returns the response already
+     * encoded as a writeUTF frame.
+     *
+     * @param message      The request message received from the client.
+     * @param serverId     The unique ID of the server handling the client
+     *                     connection.
+     * @param clientSocket The socket representing the client connection.
+     * @return The encoded response frame. The array may be shared and must not
+     *         be modified.
+     */
+    public static byte[] respond(String message, String serverId, Socket clientSocket) {
+        return respond(message, new HttpRequest(), serverId, clientSocket);
+    }
+
+    /**
+     * Processes a single request message and returns the response already
+     * encoded as a writeUTF frame. GET responses come straight from the
+     * response cache, so repeated GETs do not build or encode anything.
+     *
+     * @param message      The request message received from the client.
+     * @param request      The connection's request structure, which is reused
+     *                     for every request and afterwards holds the parsed one.
+     * @param serverId     The unique ID of the server handling the client
+     *                     connection.
+     * @param clientSocket The socket representing the client connection.
+     * @return The encoded response frame. The array may be shared and must not
+     *         be modified.
+     */
+    public static byte[] respond(String message, HttpRequest request, String serverId, Socket clientSocket) {
+        long start = System.nanoTime();
         try {
-            // Define the directory where data files are stored
-            String dataDirectory = "data/";
+            if (request.parseMessage(message) && request.getMethod() == HttpRequest.GET) {
+                ResponseCache.CachedResponse response = buildGetResponse(request);
+                metrics.response(HttpRequest.GET, response.getText(), start);
+                byte[] frame = response.getFrame();
+                return frame != null ? frame : TOO_LARGE_FRAME;
+            }
+            String response = handleRequest(message, request, serverId, clientSocket);
+            metrics.response(request.getMethod(), response, start);
+            return FrameCodec.encode(response);
+        } catch (UTFDataFormatException e) {
+            // The response does not fit in a single frame
+            return TOO_LARGE_FRAME;
+        }
+    }
 
-            // List all files in the data directory
-            File[] files = new File(dataDirectory).listFiles();
+    /**
+     * Processes a single request message and builds the response for it.
+     *
+     * @param message      The request message received from the client.
+     * @param serverId     The unique ID of the server handling the client
+     *                     connection.
+     * @param clientSocket The socket representing the client connection.
+     * @return The response to send back to the client.
+     */
+    public static String handleRequest(String message, String serverId, Socket clientSocket) {
+        HttpRequest request = new HttpRequest();
+        request.parseMessage(message);
+        return handleRequest(message, request, serverId, clientSocket);
+    }
 
-            if (files != null) {
-                // Maximum number of recent updates retained
-                int maxUpdatesToRetain = 20;
+    /**
+     * Processes a single request and builds the response for it. This is
+     * shared by the blocking and the non-blocking (NIO) server cores.
+     *
+     * @param message      The request message received from the client.
+     * @param request      The parsed request, empty if the message is not an
+     *                     HTTP request.
+     * @param serverId     The unique ID of the server handling the client
+     *                     connection. Updates that carry a Source-Id header
+     *                     are attributed to that id instead.
+     * @param clientSocket The socket representing the client connection.
+     * @return The response to send back to the client.
+     */
+    public static String handleRequest(String message, HttpRequest request, String serverId, Socket clientSocket) {
+        if (message.equals("Heartbeat")) {
+            // This is a heartbeat message (empty line), ignore it
+            if (logger.isRequestSampled()) {
+                logger.debug("Received heartbeat message.");
+            }
+            return "Heartbeat acknowledged.";
+        }
 
-                // Sort files by last modified timestamp in ascending order (oldest first)
-                Arrays.sort(files, (file1, file2) -> Long.compare(file1.lastModified(), file2.lastModified()));
+        // Handle non-heartbeat message
+        if (logger.isRequestSampled()) {
+            logger.debug("Received message from client: " + message);
+        }
 
-                // Determine the number of files to delete to retain the most recent updates
-                int filesToDelete = Math.max(0, files.length - maxUpdatesToRetain);
+        // Route HTTP requests by method, anything else is taken as a bare record
+        StationJson stationJson;
+        long lamportTime;
+        String method = request.getMethod();
+        if (method == null && HttpRequest.startsLikeRequest(message)) {
+            // A request that does not parse, e.g. one whose body is shorter than its Content-Length
+            return "HTTP/1.1 400 Bad Request\r\n\r\nInvalid request received.";
+        }
+        if (method == HttpRequest.POST && "/promote".equals(request.getTarget())) {
+            return promote() ? "HTTP/1.1 200 OK\r\n\r\nPromoted to primary."
+                    : "HTTP/1.1 409 Conflict\r\n\r\nServer is already the primary.";
+        } else if (method != HttpRequest.GET && isReplica()) {
+            return READ_ONLY_RESPONSE;
+        } else if (method == null) {
+            long parseStart = System.nanoTime();
+            stationJson = StationJson.parse(message);
+            metrics.getParseTime().recordSince(parseStart);
+            lamportTime = receiveClock(legacyClock(message));
+        } else if (method == HttpRequest.GET) {
+            // The request is for the latest weather data, or for the stations matching a query
+            return buildGetResponse(request).getText();
+        } else if (method == HttpRequest.PUT || method == HttpRequest.POST) {
+            try {
+                long received = request.getLongHeader("Lamport-Clock", -1);
+                if (received < -1 || received == Long.MAX_VALUE) {
+                    throw new NumberFormatException("Lamport-Clock out of range: " + received);
+                }
+                lamportTime = receiveClock(received);
+            } catch (NumberFormatException e) {
+                return "HTTP/1.1 400 Bad Request\r\n\r\nInvalid Lamport-Clock header.";
+            }
 
-                // Delete the oldest files (stale data)
-                for (int i = 0; i < filesToDelete; i++) {
-                    if (files[i].delete()) {
-                        System.out.println("Deleted stale data file: " + files[i].getName());
-                    } else {
-                        System.err.println("Failed to delete stale data file: " + files[i].getName());
-                    }
+            // Updates belong to the content server that sent them, whichever connection they came over
+            String sourceId = request.getHeader("Source-Id");
+            if (sourceId != null && !sourceId.isEmpty()) {
+                serverId = sourceId;
+                String previousId = serverIds.replace(clientSocket, sourceId);
+                if (previousId != null && !previousId.equals(sourceId)) {
+                    acquireSource(sourceId);
+                    releaseSource(previousId);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (isBatch(request)) {
+                return handleBatch(request, lamportTime, serverId, clientSocket);
+            }
+            long parseStart = System.nanoTime();
+            stationJson = StationJson.parse(request.getSource(), request.getBodyStart(), request.getBodyEnd());
+            metrics.getParseTime().recordSince(parseStart);
+        } else {
+            return "HTTP/1.1 501 Not Implemented\r\n\r\nMethod not supported.";
+        }
+
+        // Processing data submission from content servers
+        if (stationJson == null) {
+            // Empty JSON data received, send HTTP 204 No Content response
+            return "HTTP/1.1 204 No Content\r\n\r\nNo data received.";
+        }
+
+        // Every record is stored under its station id
+        String stationId = stationJson.getId();
+        if (stationId.isEmpty()) {
+            // Request is not a valid GET or PUT, send HTTP 400 Bad Request response
+            return "HTTP/1.1 400 Bad Request\r\n\r\nInvalid request received.";
+        }
+
+        // Process the received data and determine the response outcome
+        String response;
+        boolean dataIsValid = true;
+
+        if (dataIsValid) {
+            // Store the received record as the station's latest unless a newer update already arrived
+            WeatherStore.StationRecord record = weatherStore.putIfNewer(stationId, stationJson.getJson(), serverId,
+                    lamportTime);
+
+            // Only acknowledge the update once the log has accepted it
+            String clockHeader = "Lamport-Clock: " + lamportClock.getValue() + "\r\n";
+            if (record == null) {
+                response = "HTTP/1.1 200 OK\r\n" + clockHeader + "\r\nStale update ignored.";
+            } else if (!storeRecord(record)) {
+                // The update is not durable, so it must not be served either
+                weatherStore.rollback(record);
+                response = "HTTP/1.1 500 Internal Server Error\r\n\r\nInternal server error occurred.";
+            } else if (!serverLastActiveTime.containsKey(clientSocket)) {
+                trackUpdate(Collections.singletonList(record));
+                response = "HTTP/1.1 201 Created\r\n" + clockHeader + "\r\nData received and stored.";
+            } else {
+                trackUpdate(Collections.singletonList(record));
+                response = "HTTP/1.1 200 OK\r\n" + clockHeader + "\r\nData received and processed successfully.";
+            }
+        } else {
+            // Invalid data or JSON parsing error, send HTTP 500 Internal Server Error
+            // response
+            response = "HTTP/1.1 500 Internal Server Error\r\n\r\nInternal server error occurred.";
         }
+        markActive(clientSocket);
+        return response;
     }
 
     /**
-     * Handles incoming client connections, processes requests, and sends responses.
+     * Checks whether a PUT carries a batch of records, i.e. a JSON array.
+     */
+    private static boolean isBatch(HttpRequest request) {
+        String body = request.getSource();
+        for (int i = request.getBodyStart(); i < request.getBodyEnd(); i++) {
+            if (!Character.isWhitespace(body.charAt(i))) {
+                return body.charAt(i) == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores a batch of station records sent as a JSON array in one PUT. Every
+     * valid record is stored and the whole batch is written to the log at once,
+     * then acknowledged with a single response that reports the status of each
+     * record in order.
      *
-     * @param clientSocket The socket representing the client connection.
+     * @param request      The PUT request holding the batch.
+     * @param lamportTime  The Lamport time the batch was sent at.
      * @param serverId     The unique ID of the server handling the client
      *                     connection.
+     * @param clientSocket The socket representing the client connection.
+     * @return The response to send back to the client.
      */
-    public static void handleClient(Socket clientSocket, String serverId) {
-        try (
-                DataInputStream inputData = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream outputData = new DataOutputStream(clientSocket.getOutputStream())) {
+    private static String handleBatch(HttpRequest request, long lamportTime, String serverId, Socket clientSocket) {
+        long parseStart = System.nanoTime();
+        List<StationJson> batch = StationJson.parseArray(request.getSource(), request.getBodyStart(),
+                request.getBodyEnd());
+        metrics.getParseTime().recordSince(parseStart);
+        if (batch == null) {
+            return "HTTP/1.1 400 Bad Request\r\n\r\nInvalid batch received.";
+        }
+        if (batch.isEmpty()) {
+            return "HTTP/1.1 204 No Content\r\n\r\nNo data received.";
+        }
 
-            String message = inputData.readUTF();
-            clientSocket.setSoTimeout(15000); // Set a timeout for 15 seconds
-
-            if (message != null) {
-                if (message.equals("Heartbeat")) {
-                    // This is a heartbeat message (empty line), ignore it
-                    System.out.println("Received heartbeat message.");
-                    String response = "Heartbeat acknowledged.";
-                    outputData.writeUTF(response);
-                    outputData.flush();
+        // Store every record that has a station id and is not superseded, then log them with one write
+        List<WeatherStore.StationRecord> records = new ArrayList<>(batch.size());
+        boolean[] stale = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            StationJson stationJson = batch.get(i);
+            if (stationJson != null && !stationJson.getId().isEmpty()) {
+                WeatherStore.StationRecord record = weatherStore.putIfNewer(stationJson.getId(), stationJson.getJson(),
+                        serverId, lamportTime);
+                if (record != null) {
+                    records.add(record);
                 } else {
-                    // Handle non-heartbeat message
-                    System.out.println("Received message from client: " + message);
-
-                    // Check if the request is for the latest weather data
-                    if (message.startsWith("GET")) {
-                        // Send the latest data as a response to the GET client
-                        if (!recentWeatherData.isEmpty()) {
-                            String latestData = recentWeatherData.get(recentWeatherData.size() - 1);
-
-                            // Construct an HTTP response
-                            StringBuilder responseBuilder = new StringBuilder();
-                            responseBuilder.append("HTTP/1.1 200 OK\r\n");
-                            responseBuilder.append("Content-Type: application/json\r\n");
-                            responseBuilder.append("Content-Length: ").append(latestData.length()).append("\r\n");
-                            responseBuilder.append("\r\n");
-                            responseBuilder.append(latestData);
-
-                            String response = responseBuilder.toString();
-                            outputData.writeUTF(response);
-                            outputData.flush();
-                        } else {
-                            // If there's no data available, return a 404 (Not Found) response
-                            String response = "HTTP/1.1 404 Not Found\r\n\r\nNo weather data available.";
-                            outputData.writeUTF(response);
-                            outputData.flush();
-                        }
-                    } else {
-                        // Processing data submission from content servers
-                        StringBuilder jsonDataBuilder = new StringBuilder();
-                        boolean parsingSuccessful = processData(message, jsonDataBuilder);
-
-                        String jsonData = jsonDataBuilder.toString();
-
-                        if (jsonData.trim().isEmpty()) {
-                            // Empty JSON data received, send HTTP 204 No Content response
-                            outputData.writeUTF("HTTP/1.1 204 No Content\r\n\r\nNo data received.");
-                            outputData.flush();
-                        } else {
-                            // Process the received data and determine the response outcome
-                            if (parsingSuccessful) {
-                                boolean dataIsValid = true;
-
-                                if (dataIsValid) {
-                                    // Store the received data in recentWeatherData
-                                    recentWeatherData.add(message);
-
-                                    // Limit the number of stored data to a certain maximum
-                                    int maxRecentDataCount = 10; // Adjust this value as needed
-                                    if (recentWeatherData.size() > maxRecentDataCount) {
-                                        recentWeatherData.remove(0); // Remove the oldest data if the list exceeds the
-                                                                     // limit
-                                    }
-
-                                    storeData(message, serverId);
-                                    if (!serverLastActiveTime.containsKey(clientSocket)) {
-                                        outputData.writeUTF("HTTP/1.1 201 Created\r\n\r\nData received and stored.");
-                                        outputData.flush();
-                                    } else {
-                                        outputData.writeUTF(
-                                                "HTTP/1.1 200 OK\r\n\r\nData received and processed successfully.");
-                                        outputData.flush();
-                                    }
-                                } else {
-                                    // Invalid data or JSON parsing error, send HTTP 500 Internal Server Error
-                                    // response
-                                    outputData.writeUTF(
-                                            "HTTP/1.1 500 Internal Server Error\r\n\r\nInternal server error occurred.");
-                                    outputData.flush();
-                                }
-                                serverLastActiveTime.put(clientSocket, System.currentTimeMillis());
-                            } else {
-                                // Request is not a valid GET or PUT, send HTTP 400 Bad Request response
-                                outputData.writeUTF("HTTP/1.1 400 Bad Request\r\n\r\nInvalid request received.");
-                                outputData.flush();
-                            }
-                        }
-                        clientSocket.close();
-                    }
+                    stale[i] = true;
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } 
+        }
+        boolean stored = records.isEmpty() || storeRecords(records);
+        if (stored) {
+            trackUpdate(records);
+        } else {
+            // The batch is not durable, so it must not be served either. Later records of a station go first.
+            for (int i = records.size() - 1; i >= 0; i--) {
+                weatherStore.rollback(records.get(i));
+            }
+        }
+
+        // Report the outcome of each record in the order they were sent
+        int storedStatus = !stored ? 500 : serverLastActiveTime.containsKey(clientSocket) ? 200 : 201;
+        int rejected = 0;
+        int superseded = 0;
+        StringBuilder results = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            StationJson stationJson = batch.get(i);
+            boolean valid = stationJson != null && !stationJson.getId().isEmpty();
+            int status = !valid ? 400 : stale[i] ? 409 : storedStatus;
+            rejected += valid ? 0 : 1;
+            superseded += stale[i] ? 1 : 0;
+            results.append(results.length() == 0 ? "" : ",")
+                    .append("{\"id\":").append(valid ? JSONObject.quote(stationJson.getId()) : "null")
+                    .append(",\"status\":").append(status).append('}');
+        }
+        String body = "{\"stored\":" + (stored ? records.size() : 0) + ",\"rejected\":" + rejected
+                + ",\"superseded\":" + superseded + ",\"results\":[" + results + "]}";
+
+        // A batch whose valid records were all superseded is acknowledged, like a single stale update
+        String statusLine;
+        if (!stored) {
+            statusLine = "HTTP/1.1 500 Internal Server Error";
+        } else if (records.isEmpty() && superseded == 0) {
+            statusLine = "HTTP/1.1 400 Bad Request";
+        } else if (records.isEmpty()) {
+            statusLine = "HTTP/1.1 200 OK";
+        } else if (storedStatus == 201) {
+            statusLine = "HTTP/1.1 201 Created";
+        } else {
+            statusLine = "HTTP/1.1 200 OK";
+        }
+        markActive(clientSocket);
+        return statusLine + "\r\nContent-Type: application/json\r\nLamport-Clock: " + lamportClock.getValue()
+                + "\r\n\r\n" + body;
+    }
+
+    /**
+     * Merges the Lamport time received with an update into the server's clock
+     * and returns the time the update is ordered by. An update sent without a
+     * clock, or at time 0 by a content server that has not heard from the
+     * server yet, is stamped with the server's own time when it arrives, so it
+     * is ordered after everything the server has seen so far.
+     *
+     * @param received The received Lamport time, or -1 if none was sent.
+     * @return The Lamport time of the update.
+     */
+    private static long receiveClock(long received) {
+        if (received <= 0) {
+            return lamportClock.tick();
+        }
+        lamportClock.update(received);
+        return received;
+    }
+
+    /**
+     * Reads the Lamport-Clock value from a message that is not an HTTP request,
+     * e.g. "Lamport-Clock: 3 {...}" as sent by older content servers.
+     *
+     * @param message The message.
+     * @return The clock value, or -1 if the message carries none.
+     */
+    private static long legacyClock(String message) {
+        int start = message.indexOf("Lamport-Clock:");
+        if (start == -1) {
+            return -1;
+        }
+        int position = start + "Lamport-Clock:".length();
+        while (position < message.length() && message.charAt(position) == ' ') {
+            position++;
+        }
+        int end = position;
+        while (end < message.length() && end - position < 18 && Character.isDigit(message.charAt(end))) {
+            end++;
+        }
+        if (end == position) {
+            return -1;
+        }
+        return Long.parseLong(message.substring(position, end));
+    }
+
+    /**
+     * Records that a content server connection has sent data, which keeps it
+     * from expiring for another CONNECTION_TIMEOUT.
+     */
+    private static void markActive(Socket clientSocket) {
+        long currentTime = System.currentTimeMillis();
+        serverLastActiveTime.put(clientSocket, currentTime);
+        expiryScheduler.schedule(clientSocket, currentTime + CONNECTION_TIMEOUT, AggregationServer::expireConnection);
+    }
+
+    /**
+     * Returns the response to a GET, or a 304 Not Modified if its
+     * If-None-Match header names the ETag of the current response.
+     *
+     * @param request The GET request.
+     * @return The response.
+     */
+    private static ResponseCache.CachedResponse buildGetResponse(HttpRequest request) {
+        return buildGetResponse(request.getTarget()).conditional(request.getHeader("If-None-Match"));
+    }
+
+    /**
+     * Returns the response to a GET. A target without a query asks for the
+     * latest weather data, "?id=", "?bbox=" and "?since=" ask for the stations
+     * matching them. Each view is cached separately and rebuilt only if the
+     * store has changed since it was last built.
+     *
+     * @param target The request target, e.g. /weather?id=IDS60901.
+     * @return The response.
+     */
+    private static ResponseCache.CachedResponse buildGetResponse(String target) {
+        if ("/replication".equals(target)) {
+            return new ResponseCache.CachedResponse(weatherStore.version(), buildReplicationResponse());
+        }
+        if ("/metrics".equals(target)) {
+            return new ResponseCache.CachedResponse(weatherStore.version(), buildMetricsResponse());
+        }
+        if (target != null && target.startsWith("/subscribe")) {
+            // Only the blocking core hands a connection over to a subscription
+            return new ResponseCache.CachedResponse(weatherStore.version(),
+                    "HTTP/1.1 501 Not Implemented\r\n\r\nSubscriptions need the blocking server core.");
+        }
+        WeatherQuery query = WeatherQuery.parse(target);
+        if (query == null) {
+            return new ResponseCache.CachedResponse(weatherStore.version(),
+                    "HTTP/1.1 400 Bad Request\r\n\r\nInvalid query.");
+        }
+        if (query.isLatest()) {
+            return buildGetResponse();
+        }
+        return responseCache.get(query.viewKey(), weatherStore.version(), () -> {
+            List<WeatherStore.StationRecord> matches = weatherStore.find(query);
+            if (query.getId() != null && matches.isEmpty()) {
+                return "HTTP/1.1 404 Not Found\r\n\r\nNo weather data available for station.";
+            }
+            long clock = lamportClock.getValue();
+
+            // A single station is returned as an object, anything else as an array
+            StringBuilder body = new StringBuilder();
+            if (query.getId() != null) {
+                body.append(matches.get(0).getJson());
+            } else {
+                body.append('[');
+                for (WeatherStore.StationRecord record : matches) {
+                    body.append(body.length() == 1 ? "" : ",").append(record.getJson());
+                }
+                body.append(']');
+            }
+            return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nLamport-Clock: " + clock
+                    + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        });
+    }
+
+    /**
+     * Returns the response to a GET for the latest weather data, rebuilding it
+     * only if the store has changed since it was last built.
+     *
+     * @return The cached response.
+     */
+    private static ResponseCache.CachedResponse buildGetResponse() {
+        return responseCache.get("latest", weatherStore.version(), () -> {
+            // Send the latest data as a response to the GET client
+            WeatherStore.StationRecord latestRecord = weatherStore.latest();
+            if (latestRecord != null) {
+                String latestData = latestRecord.getJson();
+
+                // Construct an HTTP response
+                StringBuilder responseBuilder = new StringBuilder();
+                responseBuilder.append("HTTP/1.1 200 OK\r\n");
+                responseBuilder.append("Content-Type: application/json\r\n");
+                responseBuilder.append("Lamport-Clock: ").append(lamportClock.getValue()).append("\r\n");
+                responseBuilder.append("Content-Length: ").append(latestData.length()).append("\r\n");
+                responseBuilder.append("\r\n");
+                responseBuilder.append(latestData);
+
+                return responseBuilder.toString();
+            } else {
+                // If there's no data available, return a 404 (Not Found) response
+                return "HTTP/1.1 404 Not Found\r\n\r\nNo weather data available.";
+            }
+        });
     }
 
     /**
@@ -252,111 +1490,102 @@ public class AggregationServer {
      * @return true if the data is valid, false otherwise.
      */
     public static boolean processData(String data, StringBuilder jsonDataBuilder) {
-        try {
-            int jsonStartIndex = data.indexOf("{", data.indexOf("Lamport-Clock:"));
-            if (jsonStartIndex == -1) {
-                return false;
-            }
-
-            String jsonData = data.substring(jsonStartIndex);
-            JSONObject jsonObject = new JSONObject(jsonData);
-            jsonDataBuilder.append(jsonObject.toString());
-
-            return true;
-        } catch (Exception e) {
+        StationJson stationJson = StationJson.parse(data);
+        if (stationJson == null) {
             return false;
         }
+
+        jsonDataBuilder.append(stationJson.getJson());
+        return true;
+    }
+
+    /**
+     * Returns the in-memory store holding the latest record of every station.
+     *
+     * @return The weather store.
+     */
+    public static WeatherStore getWeatherStore() {
+        return weatherStore;
     }
 
     /**
-     * Stores received data in a data directory with a unique filename based on the
-     * server ID and timestamp.
+     * Stores received data from a content server in the write-ahead log.
      *
      * @param data     The data to be stored.
      * @param serverId The unique identifier of the server associated with the data.
      */
     public static void storeData(String data, String serverId) {
-        String dataDirectory = "data/";
-
-        // Create the data directory if it doesn't exist
-        File directory = new File(dataDirectory);
-        if (!directory.exists()) {
-            if (directory.mkdirs()) {
-                System.out.println("Data directory created: " + dataDirectory);
-            } else {
-                System.err.println("Failed to create data directory: " + dataDirectory);
-                return;
-            }
+        StationJson stationJson = StationJson.parse(data);
+        if (stationJson == null || stationJson.getId().isEmpty()) {
+            logger.error("Error storing data: no station id found.");
+            return;
         }
 
-        // Store the data in a file with a unique filename based on the server ID and
-        // timestamp
-        try {
-            String fileName = dataDirectory + serverId + "_" + System.currentTimeMillis() + ".json";
-            FileWriter fileWriter = new FileWriter(fileName);
-            fileWriter.write(data);
-            fileWriter.close();
-        } catch (IOException e) {
-            System.err.println("Error storing data: " + e.getMessage());
-        }
+        storeRecord(new WeatherStore.StationRecord(stationJson.getId(), stationJson.getJson(), serverId,
+                System.currentTimeMillis(), 0));
     }
 
     /**
-     * Manages client connections by checking for idle connections and cleaning up
-     * stale data.
+     * Appends a station record to the write-ahead log. Depending on the
+     * durability mode this waits until the record is on disk.
+     *
+     * @param record The record to be stored.
+     * @return true if the record was stored, false otherwise.
      */
-    public static void manageConnections() {
-        long currentTime = System.currentTimeMillis();
-        List<Socket> socketsToClose = new ArrayList<>();
+    public static boolean storeRecord(WeatherStore.StationRecord record) {
+        return storeRecords(Collections.singletonList(record));
+    }
 
-        // The client connection is idle for too long, mark it for closure
-        for (Socket clientSocket : serverLastActiveTime.keySet()) {
-            long lastActiveTime = serverLastActiveTime.get(clientSocket);
-            if (currentTime - lastActiveTime > CONNECTION_TIMEOUT) {
-                socketsToClose.add(clientSocket);
-            }
+    /**
+     * Appends several station records to the write-ahead log as one write.
+     * Depending on the durability mode this waits until they are on disk.
+     *
+     * @param records The records to be stored.
+     * @return true if the records were stored, false otherwise.
+     */
+    public static boolean storeRecords(List<WeatherStore.StationRecord> records) {
+        List<WriteAheadLog.Record> logRecords = new ArrayList<>(records.size());
+        for (WeatherStore.StationRecord record : records) {
+            logRecords.add(new WriteAheadLog.Record(WriteAheadLog.TYPE_PUT, record.getSequence(),
+                    record.getReceivedTime(), record.getStationId(), record.getServerId(), record.getJson(),
+                    record.getLamportTime()));
         }
-
-        // Close idle connections and perform cleanup
-        for (Socket socketToClose : socketsToClose) {
-            try {
-                String serverId = serverIds.get(socketToClose);
-
-                System.out.println("Closing idle connection with client: " + socketToClose.getRemoteSocketAddress());
-                serverIds.remove(socketToClose);
-                serverLastActiveTime.remove(socketToClose);
-                socketToClose.close();
-
-                cleanupClientFiles(serverId);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        try {
+            long start = System.nanoTime();
+            getWriteAheadLog().appendAll(logRecords);
+            metrics.getStorageWriteTime().recordSince(start);
+            publish(logRecords);
+            return true;
+        } catch (IOException e) {
+            logger.error("Error storing data: " + e.getMessage());
+            return false;
         }
     }
 
     /**
-     * Perform cleanup of files generated or related to the closed client here.
+     * Perform cleanup of the stored data of the closed client here, by removing
+     * every station whose latest record came from it. Stations are found through
+     * the per-connection index, without scanning the store.
      *
      * @param serverId The unique identifier of the closed client server.
      */
     public static void cleanupClientFiles(String serverId) {
-        // Define the data directory where client files are stored
-        String dataDirectory = "data/";
-
-        // List all files in the data directory
-        File[] files = new File(dataDirectory).listFiles();
-
-        if (files != null) {
-            for (File file : files) {
-                // Check if the file's name contains the serverId
-                if (file.getName().contains(serverId)) {
-                    if (file.delete()) {
-                        System.out.println("Deleted client-specific data file: " + file.getName());
-                    } else {
-                        System.err.println("Failed to delete client-specific data file: " + file.getName());
-                    }
-                }
+        Set<String> serverStations = stationsByServer.remove(serverId);
+        if (serverStations == null) {
+            return;
+        }
+
+        List<WeatherStore.StationRecord> owned = new ArrayList<>();
+        for (String stationId : serverStations) {
+            WeatherStore.StationHistory station = weatherStore.get(stationId);
+            if (station != null && station.latest().getServerId().equals(serverId)) {
+                owned.add(station.latest());
             }
         }
+
+        List<WeatherStore.StationRecord> evicted = evictRecords(owned);
+        if (!evicted.isEmpty()) {
+            logger.info("Deleted " + evicted.size() + " client-specific records of " + serverId);
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,8 +1,17 @@
 import java.io.*;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import static org.junit.Assert.*;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.skyscreamer.jsonassert.JSONAssert;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -10,14 +19,28 @@ public class AggregationServerTest {
     private MockSocket mockSocket;
     private ByteArrayOutputStream mockOutputData;
 
+    private File dataDirectory;
+
+    // Log to a fresh directory, so the tests leave nothing behind in the data directory of the repository
     @Before
-    public void setUp() {
+    public void setUp() throws IOException {
         mockSocket = new MockSocket();
         mockOutputData = new ByteArrayOutputStream();
-        File dataDirectory = new File("data");
-        if (!dataDirectory.exists()) {
-            dataDirectory.mkdir();
+        dataDirectory = java.nio.file.Files.createTempDirectory("aggregation-server-test").toFile();
+        AggregationServer.openStorage(dataDirectory, WriteAheadLog.Durability.BATCH,
+                WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+    }
+
+    // Remove the log directory after each test
+    @After
+    public void tearDown() {
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
         }
+        dataDirectory.delete();
     }
 
     // Test the processing of valid JSON data
@@ -46,31 +69,29 @@ public class AggregationServerTest {
         assertEquals("", jsonDataBuilder.toString());
     }
 
-    // Test data storage and file creation
-    // Ensure that data is stored correctly and files are created
+    // Test data storage in the write-ahead log
+    // Ensure that stored data can be read back from the log
     @Test
     public void testStoreData() throws IOException  {
         String serverId = "TestServer";
         String jsonData = "{\"id\":\"123\",\"name\":\"Test\"}";
 
         // Store the data
-        AggregationServer.storeData(jsonData, serverId);
+        AggregationServer.storeData("Lamport-Clock: 0\r\n" + jsonData, serverId);
 
-        // Define the file path based on the server ID
-        String filePath = "data/" + serverId + "_*.json";
-
-        // Get a list of files matching the pattern (in case there are multiple)
-        File[] files = new File("data/").listFiles((dir, name) -> name.matches(filePath));
-
-        // Check if at least one file was found
-        assertNotNull("No file was created", files);
-        assertTrue("At least one file was created", files.length > 0);
-
-        // Read the contents of the first matching file
-        String fileContents = readFirstFileContents(files[0]);
+        // Read the log back and find the stored record
+        List<WriteAheadLog.Record> stored = new ArrayList<>();
+        AggregationServer.getWriteAheadLog().replay(record -> {
+            if (record.getServerId().equals(serverId)) {
+                stored.add(record);
+            }
+        });
 
-        // Assert that the file contents match the stored JSON data
-        assertEquals(jsonData, fileContents);
+        // Assert that the logged record matches the stored JSON data
+        assertFalse("No record was stored", stored.isEmpty());
+        WriteAheadLog.Record last = stored.get(stored.size() - 1);
+        assertEquals("123", last.getStationId());
+        assertEquals(jsonData, last.getJson());
     }
 
     // Test handling of a valid client request
@@ -110,18 +131,439 @@ public class AggregationServerTest {
         assertEquals(expectedOutput, response);
     }
 
-    // Method to read the contents of a file
-    private String readFirstFileContents(File file) throws IOException {
-        // Read the contents of a file and return as a string
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            StringBuilder contents = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                contents.append(line);
+    // Test parsing of the port and --name=value options
+    // Ensure the first bare argument is the port and flags default to true
+    @Test
+    public void testParseOptions() {
+        Map<String, String> options = AggregationServer.parseOptions(
+                new String[] { "4567", "--executor=pool", "--queue-size=8", "--verbose" });
+
+        assertEquals("4567", options.get("port"));
+        assertEquals("pool", options.get("executor"));
+        assertEquals("8", options.get("queue-size"));
+        assertEquals("true", options.get("verbose"));
+    }
+
+    // Test handling of pipelined requests on a keep-alive connection
+    // Ensure every request is answered, in order, on the same connection
+    @Test
+    public void testHandleClientKeepAlive() throws Exception {
+        List<String> feedFilePaths = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            File tempFile = File.createTempFile("temp-feed", ".txt");
+            tempFile.deleteOnExit();
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+                writer.write("id: PIPE" + i + "\n");
+            }
+            feedFilePaths.add(tempFile.getAbsolutePath());
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            // Serve exactly one connection with the aggregation server's handler
+            Thread serverThread = new Thread(() -> {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    AggregationServer.handleClient(clientSocket, "PipelineTest");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serverThread.start();
+
+            try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                List<String> responses = ContentServer.sendPipelined(socket, feedFilePaths, new LamportClock());
+
+                assertEquals(5, responses.size());
+                assertTrue(responses.get(0).startsWith("HTTP/1.1 201"));
+                for (int i = 1; i < responses.size(); i++) {
+                    assertTrue(responses.get(i).startsWith("HTTP/1.1 200"));
+                }
+            }
+            serverThread.join(5000);
+        }
+    }
+
+    // Test a content server sending raw HTTP instead of writeUTF frames
+    // Ensure the blocking handler detects it and answers every pipelined request
+    @Test
+    public void testHandleClientRawHttp() throws Exception {
+        List<String> feedFilePaths = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            File tempFile = File.createTempFile("temp-feed", ".txt");
+            tempFile.deleteOnExit();
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+                writer.write("id: RAW" + i + "\n");
+            }
+            feedFilePaths.add(tempFile.getAbsolutePath());
+        }
+
+        ContentServer.setRawHttp(true);
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread serverThread = new Thread(() -> {
+                try {
+                    AggregationServer.handleClient(serverSocket.accept(), "RawHttpTest");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serverThread.start();
+
+            try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                List<String> responses = ContentServer.sendPipelined(socket, feedFilePaths, new LamportClock());
+
+                assertEquals(3, responses.size());
+                for (String response : responses) {
+                    assertTrue(response, response.startsWith("HTTP/1.1 20"));
+                    assertTrue(response, response.contains("Content-Length: "));
+                }
+            }
+            serverThread.join(5000);
+        } finally {
+            ContentServer.setRawHttp(false);
+        }
+        assertNotNull(AggregationServer.getWeatherStore().get("RAW2"));
+    }
+
+    // Test that repeated GETs are served from the response cache
+    // Ensure a PUT invalidates the cached response
+    @Test
+    public void testGetResponseIsCachedUntilPut() throws IOException {
+        String getRequest = "GET /weather HTTP/1.1\r\n\r\n";
+        byte[] first = AggregationServer.respond(getRequest, "TestServer", mockSocket);
+        assertSame(first, AggregationServer.respond(getRequest, "TestServer", mockSocket));
+
+        AggregationServer.handleRequest(ContentServer.buildPutRequest("{\"id\":\"CACHE1\"}", 0, false),
+                "TestServer", mockSocket);
+        byte[] afterPut = AggregationServer.respond(getRequest, "TestServer", mockSocket);
+        assertNotSame(first, afterPut);
+
+        String response = new DataInputStream(new ByteArrayInputStream(afterPut)).readUTF();
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response.endsWith("{\"id\":\"CACHE1\"}"));
+    }
+
+    // Test the window of recently retained updates
+    // Ensure a station is dropped once its latest update leaves the window
+    @Test
+    public void testRetainedUpdates() {
+        AggregationServer.setRetainedUpdates(3);
+        try {
+            for (int i = 0; i < 5; i++) {
+                AggregationServer.handleRequest(ContentServer.buildPutRequest("{\"id\":\"RETAIN" + i + "\"}", 0, false),
+                        "RetainTest", mockSocket);
+            }
+
+            WeatherStore store = AggregationServer.getWeatherStore();
+            assertNull(store.get("RETAIN0"));
+            assertNull(store.get("RETAIN1"));
+            for (int i = 2; i < 5; i++) {
+                assertNotNull(store.get("RETAIN" + i));
+            }
+        } finally {
+            AggregationServer.setRetainedUpdates(AggregationServer.DEFAULT_RETAINED_UPDATES);
+        }
+    }
+
+    // Test that a batch PUT counts as one update in the window of retained updates
+    // Ensure a large batch is retained whole until later updates push it out
+    @Test
+    public void testRetainedUpdatesCountBatchOnce() {
+        AggregationServer.setRetainedUpdates(3);
+        try {
+            StringBuilder batch = new StringBuilder("[");
+            for (int i = 0; i < 10; i++) {
+                batch.append(i == 0 ? "" : ",").append("{\"id\":\"WINDOW").append(i).append("\"}");
+            }
+            String response = AggregationServer.handleRequest(ContentServer.buildPutRequest(batch + "]", 0, false),
+                    "WindowBatch", mockSocket);
+            assertTrue(response, response.contains("\"stored\":10"));
+
+            // The batch stays while it is among the 3 most recent updates
+            WeatherStore store = AggregationServer.getWeatherStore();
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 10; j++) {
+                    assertNotNull(store.get("WINDOW" + j));
+                }
+                AggregationServer.handleRequest(ContentServer.buildPutRequest("{\"id\":\"OTHER" + i + "\"}", 0,
+                        false), "WindowOther", mockSocket);
+            }
+            for (int j = 0; j < 10; j++) {
+                assertNull(store.get("WINDOW" + j));
+            }
+            assertNotNull(store.get("OTHER0"));
+        } finally {
+            AggregationServer.setRetainedUpdates(AggregationServer.DEFAULT_RETAINED_UPDATES);
+        }
+    }
+
+    // Test recovery after the server is killed part way through a stream of PUTs
+    // Ensure a GET after the restart returns the latest data from before the crash
+    @Test
+    public void testRecoveryAfterCrash() throws Exception {
+        File recoveryDirectory = java.nio.file.Files.createTempDirectory("recovery-test").toFile();
+        String[] options = { "--data-dir=" + recoveryDirectory.getAbsolutePath(), "--durability=sync" };
+        int port = ServerProcess.freePort();
+
+        int lastAcknowledged = -1;
+        try (ServerProcess server = ServerProcess.start(port, options)) {
+            for (int i = 0; i < 1000; i++) {
+                // Kill the server without warning while updates are still arriving
+                if (i == 50) {
+                    server.kill();
+                }
+                try {
+                    String json = "{\"id\":\"CRASH\",\"n\":" + i + "}";
+                    String response = exchange(port, ContentServer.buildPutRequest(json, i, false));
+                    if (response.startsWith("HTTP/1.1 20")) {
+                        lastAcknowledged = i;
+                    }
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        }
+        assertEquals(49, lastAcknowledged);
+
+        try (ServerProcess server = ServerProcess.start(port, options)) {
+            String response = exchange(server.getPort(), "GET /weather HTTP/1.1\r\nLamport-Clock: 0\r\n\r\n");
+            assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response, response.endsWith("{\"id\":\"CRASH\",\"n\":49}"));
+        } finally {
+            for (File file : recoveryDirectory.listFiles()) {
+                file.delete();
+            }
+            recoveryDirectory.delete();
+        }
+    }
+
+    // Send one request on a new connection and return the response
+    private static String exchange(int port, String request) throws IOException {
+        try (Socket socket = new Socket("localhost", port);
+                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
+            outputData.writeUTF(request);
+            outputData.flush();
+            return inputData.readUTF();
+        }
+    }
+
+    // Test routing of requests by their HTTP method
+    // Ensure unsupported methods and malformed headers are rejected without storing anything
+    @Test
+    public void testRoutesByMethod() {
+        String json = "{\"id\":\"ROUTE1\"}";
+        assertTrue(AggregationServer.handleRequest("DELETE /weather_data.txt HTTP/1.1\r\n\r\n", "RouteTest", mockSocket)
+                .startsWith("HTTP/1.1 501"));
+        assertTrue(AggregationServer.handleRequest("PUT /weather_data.txt HTTP/1.1\r\nLamport-Clock: soon\r\n\r\n"
+                + json, "RouteTest", mockSocket).startsWith("HTTP/1.1 400"));
+        assertNull(AggregationServer.getWeatherStore().get("ROUTE1"));
+
+        String response = AggregationServer.handleRequest("POST /weather_data.txt HTTP/1.1\r\nContent-Length: "
+                + json.length() + "\r\n\r\n" + json, "RouteTest", mockSocket);
+        assertTrue(response.startsWith("HTTP/1.1 20"));
+        assertEquals(json, AggregationServer.getWeatherStore().get("ROUTE1").latest().getJson());
+    }
+
+    // Test storing a batch of records sent as a JSON array in one PUT
+    // Ensure every record gets its own status and invalid ones are rejected alone
+    @Test
+    public void testHandleBatch() {
+        String batch = "[{\"id\":\"BATCH1\",\"air_temp\":\"10\"},{\"name\":\"no id\"},{\"id\":\"BATCH2\"}]";
+        String response = AggregationServer.handleRequest(ContentServer.buildPutRequest(batch, 0, false), "BatchTest",
+                mockSocket);
+
+        assertTrue(response.startsWith("HTTP/1.1 20"));
+        JSONObject body = new JSONObject(response.substring(response.indexOf("\r\n\r\n") + 4));
+        assertEquals(2, body.getInt("stored"));
+        assertEquals(1, body.getInt("rejected"));
+        assertEquals("BATCH1", body.getJSONArray("results").getJSONObject(0).getString("id"));
+        assertEquals(400, body.getJSONArray("results").getJSONObject(1).getInt("status"));
+        assertTrue(body.getJSONArray("results").getJSONObject(2).getInt("status") < 300);
+        assertEquals("{\"id\":\"BATCH1\",\"air_temp\":\"10\"}",
+                AggregationServer.getWeatherStore().get("BATCH1").latest().getJson());
+        assertNotNull(AggregationServer.getWeatherStore().get("BATCH2"));
+
+        assertTrue(AggregationServer.handleRequest(ContentServer.buildPutRequest("[{\"id\":", 0, false),
+                "BatchTest", mockSocket).startsWith("HTTP/1.1 400"));
+    }
+
+    // Test GET queries by station id, bounding box and time
+    // Ensure each view is answered from the indexes and a bad query is rejected
+    @Test
+    public void testGetQueries() {
+        String json = "{\"id\":\"QUERY1\",\"lat\":\"-80.5\",\"lon\":\"-170.5\","
+                + "\"local_date_time_full\":\"29991231235959\"}";
+        assertTrue(AggregationServer.handleRequest(ContentServer.buildPutRequest(json, 0, false), "QueryTest",
+                mockSocket).startsWith("HTTP/1.1 20"));
+
+        String response = AggregationServer.handleRequest("GET /weather?id=QUERY1 HTTP/1.1\r\n\r\n", "QueryTest",
+                mockSocket);
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.endsWith(json));
+
+        response = AggregationServer.handleRequest("GET /weather?bbox=-81,-171,-80,-170 HTTP/1.1\r\n\r\n",
+                "QueryTest", mockSocket);
+        assertTrue(response.endsWith("[" + json + "]"));
+        response = AggregationServer.handleRequest("GET /weather?since=29991231 HTTP/1.1\r\n\r\n", "QueryTest",
+                mockSocket);
+        assertTrue(response.endsWith("[" + json + "]"));
+
+        assertTrue(AggregationServer.handleRequest("GET /weather?id=MISSING HTTP/1.1\r\n\r\n", "QueryTest",
+                mockSocket).startsWith("HTTP/1.1 404"));
+        assertTrue(AggregationServer.handleRequest("GET /weather?bbox=1,2 HTTP/1.1\r\n\r\n", "QueryTest",
+                mockSocket).startsWith("HTTP/1.1 400"));
+    }
+
+    // Test that a delayed PUT with an older Lamport time does not overwrite a newer one
+    // Ensure the server returns a clock past every clock it has received
+    @Test
+    public void testStalePutIgnored() {
+        String newer = "{\"id\":\"LAMPORT1\",\"air_temp\":\"20\"}";
+        String older = "{\"id\":\"LAMPORT1\",\"air_temp\":\"10\"}";
+        String response = AggregationServer.handleRequest(ContentServer.buildPutRequest(newer, 1000, false),
+                "LamportA", mockSocket);
+        assertTrue(response.startsWith("HTTP/1.1 20"));
+        assertTrue(Integer.parseInt(HttpCodec.responseHeader(response, "Lamport-Clock")) > 1000);
+
+        response = AggregationServer.handleRequest(ContentServer.buildPutRequest(older, 999, false), "LamportB",
+                mockSocket);
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.endsWith("Stale update ignored."));
+        assertEquals(newer, AggregationServer.getWeatherStore().get("LAMPORT1").latest().getJson());
+
+        String get = AggregationServer.handleRequest("GET /weather?id=LAMPORT1 HTTP/1.1\r\n\r\n", "LamportB",
+                mockSocket);
+        assertTrue(Integer.parseInt(HttpCodec.responseHeader(get, "Lamport-Clock")) > 1000);
+    }
+
+    // Test that an update the log could not accept is not served
+    // Ensure the station keeps its previous, durable update
+    @Test
+    public void testFailedLogWriteIsRolledBack() throws IOException {
+        String durable = "{\"id\":\"ROLLBACK1\",\"n\":1}";
+        assertTrue(AggregationServer.handleRequest(ContentServer.buildPutRequest(durable, 0, false), "RollbackTest",
+                mockSocket).startsWith("HTTP/1.1 20"));
+
+        AggregationServer.getWriteAheadLog().close();
+        String single = AggregationServer.handleRequest(
+                ContentServer.buildPutRequest("{\"id\":\"ROLLBACK1\",\"n\":2}", 0, false), "RollbackTest", mockSocket);
+        assertTrue(single, single.startsWith("HTTP/1.1 500"));
+        String batch = AggregationServer.handleRequest(ContentServer.buildPutRequest(
+                "[{\"id\":\"ROLLBACK1\",\"n\":3},{\"id\":\"ROLLBACK2\"}]", 0, false), "RollbackTest", mockSocket);
+        assertTrue(batch, batch.startsWith("HTTP/1.1 500"));
+
+        assertEquals(durable, AggregationServer.getWeatherStore().get("ROLLBACK1").latest().getJson());
+        assertNull(AggregationServer.getWeatherStore().get("ROLLBACK2"));
+    }
+
+    // Test that two content servers that have not heard from the server yet are ordered by arrival
+    // Ensure the later update is stored even though both were sent at Lamport time 0
+    @Test
+    public void testFreshClientsOrderedByArrival() {
+        String first = "{\"id\":\"FRESH1\",\"air_temp\":\"10\"}";
+        String second = "{\"id\":\"FRESH1\",\"air_temp\":\"20\"}";
+        assertTrue(AggregationServer.handleRequest(ContentServer.buildPutRequest(first, 0, false), "FreshB",
+                mockSocket).startsWith("HTTP/1.1 20"));
+
+        String response = AggregationServer.handleRequest(ContentServer.buildPutRequest(second, 0, false), "FreshA",
+                mockSocket);
+        assertTrue(response.startsWith("HTTP/1.1 20"));
+        assertFalse(response.endsWith("Stale update ignored."));
+        assertEquals(second, AggregationServer.getWeatherStore().get("FRESH1").latest().getJson());
+    }
+
+    // Test that updates are attributed to the Source-Id header rather than to the connection
+    // Ensure a content server's resend over a new connection replaces its own update of the same time
+    @Test
+    public void testSourceIdOrdersUpdates() {
+        String first = "{\"id\":\"SOURCE1\",\"air_temp\":\"10\"}";
+        String second = "{\"id\":\"SOURCE1\",\"air_temp\":\"20\"}";
+        try {
+            ContentServer.setSourceId("feed-host-1");
+            assertTrue(AggregationServer.handleRequest(ContentServer.buildPutRequest(first, 5000, false),
+                    "ConnectionZ", mockSocket).startsWith("HTTP/1.1 20"));
+            String response = AggregationServer.handleRequest(ContentServer.buildPutRequest(second, 5000, false),
+                    "ConnectionA", mockSocket);
+            assertFalse(response.endsWith("Stale update ignored."));
+        } finally {
+            ContentServer.setSourceId(null);
+        }
+        WeatherStore.StationRecord latest = AggregationServer.getWeatherStore().get("SOURCE1").latest();
+        assertEquals(second, latest.getJson());
+        assertEquals("feed-host-1", latest.getServerId());
+    }
+
+    // Test that a content server's data outlives an expired connection while another of its connections is open
+    @Test
+    public void testSourceDataKeptUntilLastConnectionExpires() {
+        Socket first = new MockSocket();
+        Socket second = new MockSocket();
+        String json = "{\"id\":\"SOURCE2\",\"air_temp\":\"10\"}";
+        try {
+            ContentServer.setSourceId("feed-host-2");
+            AggregationServer.handleRequest(ContentServer.buildPutRequest(json, 0, false),
+                    AggregationServer.registerConnection(first), first);
+            AggregationServer.handleRequest(ContentServer.buildPutRequest(json, 0, false),
+                    AggregationServer.registerConnection(second), second);
+        } finally {
+            ContentServer.setSourceId(null);
+        }
+
+        long later = System.currentTimeMillis() + 60000;
+        AggregationServer.expireConnection(first, later);
+        assertNotNull(AggregationServer.getWeatherStore().get("SOURCE2"));
+        AggregationServer.expireConnection(second, later);
+        assertNull(AggregationServer.getWeatherStore().get("SOURCE2"));
+    }
+
+    // Test that a frame PUT whose body is shorter than its Content-Length is rejected, not stored as a bare record
+    @Test
+    public void testTruncatedPutRejected() {
+        String request = ContentServer.buildPutRequest("{\"id\":\"TRUNCATED1\"}", 0, false)
+                .replaceFirst("Content-Length: \\d+", "Content-Length: 1000");
+        String response = AggregationServer.handleRequest(request, "TestServer", mockSocket);
+        assertTrue(response, response.startsWith("HTTP/1.1 400 Bad Request"));
+        assertNull(AggregationServer.getWeatherStore().get("TRUNCATED1"));
+    }
+
+    // Test detection of the keep-alive header
+    // Ensure the JSON body is not mistaken for a header
+    @Test
+    public void testIsKeepAlive() {
+        assertTrue(AggregationServer.isKeepAlive(ContentServer.buildPutRequest("{\"id\":\"1\"}", 0, true)));
+        assertFalse(AggregationServer.isKeepAlive(ContentServer.buildPutRequest("{\"id\":\"1\"}", 0, false)));
+        assertFalse(AggregationServer.isKeepAlive(
+                ContentServer.buildPutRequest("{\"note\":\"\nConnection: keep-alive\"}", 0, false)));
+        assertFalse(AggregationServer.isKeepAlive("Heartbeat"));
+    }
+
+    // Test that the bounded pool sheds load once its admission queue is full
+    // Ensure a rejected connection is reported so a 503 can be sent
+    @Test
+    public void testPoolExecutorRejectsWhenFull() throws InterruptedException {
+        Executor executor = AggregationServer.createClientExecutor(AggregationServer.MODE_POOL, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blockingTask = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            return contents.toString();
+        };
+
+        // One task occupies the worker and one waits in the queue
+        executor.execute(blockingTask);
+        executor.execute(blockingTask);
+        try {
+            executor.execute(blockingTask);
+            fail("Expected the third task to be rejected");
+        } catch (RejectedExecutionException e) {
+            // Expected, the server answers this connection with a 503
+        } finally {
+            release.countDown();
         }
     }
+
     // MockSocket class to simulate Socket behavior for testing
     private class MockSocket extends Socket {
         private InputStream input;
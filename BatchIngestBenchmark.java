@@ -0,0 +1,83 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class BatchIngestBenchmark {
+    /**
+     * Sends the same set of station records to an AggregationServer once per
+     * batch size, over one pipelined keep-alive connection, and prints the
+     * records stored per second. A batch size of 1 is the single-record PUT
+     * path, every other size sends the records as JSON array batches.
+     *
+     * Usage: java BatchIngestBenchmark [records] [rounds]
+     */
+    public static void main(String args[]) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int[] batchSizes = { 1, 10, 100 };
+
+        List<String> jsonRecords = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            jsonRecords.add(String.format("{\"id\":\"BENCH%05d\",\"name\":\"Benchmark\",\"state\":\"SA\","
+                    + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"%d.5\",\"rel_hum\":\"60\"}",
+                    i % 1000, i % 40));
+        }
+
+        System.out.println("records=" + records + " rounds=" + rounds);
+        System.out.printf("%-10s %10s %14s%n", "batch", "requests", "records/s");
+
+        for (int batchSize : batchSizes) {
+            List<String> bodies = batchSize == 1 ? jsonRecords
+                    : ContentServer.buildBatches(jsonRecords, batchSize, 60000);
+
+            // Every batch size gets its own server and data directory, so the log starts empty
+            Path dataDir = Files.createTempDirectory("batch-benchmark");
+            try (ServerProcess server = ServerProcess.start(ServerProcess.freePort(),
+                    "--data-dir=" + dataDir, "--retained-updates=1000")) {
+                // Warm up the server before the timed rounds
+                send(server.getPort(), bodies);
+
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < rounds; round++) {
+                    long start = System.nanoTime();
+                    send(server.getPort(), bodies);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%-10d %10d %14.0f%n", batchSize, bodies.size(), records / (best / 1e9));
+            } finally {
+                deleteRecursively(dataDir);
+            }
+        }
+    }
+
+    /**
+     * Sends every body as a pipelined PUT and checks that each was acknowledged.
+     */
+    private static void send(int port, List<String> bodies) throws IOException {
+        // The content server prints every response, which would dominate the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<String> responses;
+        try (Socket s = new Socket("localhost", port)) {
+            responses = ContentServer.sendPipelinedBodies(s, bodies, new LamportClock());
+        } finally {
+            System.setOut(console);
+        }
+
+        if (responses.size() != bodies.size()) {
+            throw new IOException("Only " + responses.size() + " of " + bodies.size() + " requests answered");
+        }
+        for (String response : responses) {
+            if (!response.startsWith("HTTP/1.1 200") && !response.startsWith("HTTP/1.1 201")) {
+                throw new IOException("Request failed: " + response);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
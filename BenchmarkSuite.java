@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class BenchmarkSuite {
+    // Two-sided 99.9% Student t quantiles for 1 to 10 degrees of freedom, as JMH reports its errors
+    private static final double[] T_QUANTILES = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59 };
+
+    private static final String STATION_JSON = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\","
+            + "\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,\"local_date_time\":\"15/04:00pm\","
+            + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":13.3,\"apparent_t\":9.5,\"cloud\":\"Partly cloudy\","
+            + "\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationMillis;
+    private final Pattern filter;
+    private final JSONArray results = new JSONArray();
+
+    // Results of the last operations, kept so the JIT cannot drop the work that produced them
+    private static volatile Object sink;
+
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    private interface Setup {
+        void run() throws Exception;
+    }
+
+    private BenchmarkSuite(int warmupIterations, int iterations, long iterationMillis, Pattern filter) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+        this.filter = filter;
+    }
+
+    /**
+     * Runs the benchmarks of the aggregation and content server hot paths and
+     * writes the results as JSON, in the layout of JMH's JSON output, so runs
+     * of different releases can be compared by tools. Every benchmark runs a
+     * number of warm-up iterations that are discarded, then the measured
+     * iterations; the score is their mean and the error the 99.9% confidence
+     * interval around it.
+     *
+     * Usage: java BenchmarkSuite [--out=bench-results.json] [--filter=regex]
+     *        [--warmup=3] [--iterations=5] [--time=1000]
+     */
+    public static void main(String args[]) throws Exception {
+        Map<String, String> options = AggregationServer.parseOptions(args);
+        BenchmarkSuite suite = new BenchmarkSuite(Integer.parseInt(options.getOrDefault("warmup", "3")),
+                Integer.parseInt(options.getOrDefault("iterations", "5")),
+                Long.parseLong(options.getOrDefault("time", "1000")),
+                Pattern.compile(options.getOrDefault("filter", ".*")));
+        File output = new File(options.getOrDefault("out", "bench-results.json"));
+
+        System.out.printf("%-52s %-8s %14s %12s  %s%n", "benchmark", "threads", "score", "error", "unit");
+        Path dataDir = Files.createTempDirectory("benchmark-suite");
+        Log.get().setLevel(Log.Level.WARN);
+        try {
+            suite.runAll(dataDir);
+        } finally {
+            AggregationServer.getWriteAheadLog().close();
+            deleteRecursively(dataDir);
+        }
+
+        Files.write(output.toPath(), suite.results.toString(2).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + output);
+    }
+
+    private void runAll(Path dataDir) throws Exception {
+        // Parsing and validating a PUT body
+        throughput("AggregationServer.processData", 1, Collections.emptyMap(), () -> {
+            StringBuilder json = new StringBuilder();
+            AggregationServer.processData(STATION_JSON, json);
+            return json;
+        });
+
+        // Converting a feed file, read from the page cache
+        File feedFile = new File(dataDir.toFile(), "feed.txt");
+        Files.write(feedFile.toPath(), Arrays.asList("id:IDS60901", "name:Adelaide (West Terrace /  ngayirdapira)",
+                "state: SA", "time_zone:CST", "lat:-34.9", "lon:138.6", "local_date_time:15/04:00pm",
+                "local_date_time_full:20230715160000", "air_temp:13.3", "apparent_t:9.5", "cloud:Partly cloudy",
+                "dewpt:5.7", "press:1023.9", "rel_hum:60", "wind_dir:S", "wind_spd_kmh:15", "wind_spd_kt:8"));
+        throughput("ContentServer.convertToJson", 1, Collections.emptyMap(),
+                () -> ContentServer.convertToJson(feedFile.getPath()));
+
+        // Storing records in the write-ahead log without waiting for fsync
+        AggregationServer.openStorage(new File(dataDir.toFile(), "store"), WriteAheadLog.Durability.ASYNC,
+                WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        AggregationServer.setRetainedUpdates(0);
+        throughput("AggregationServer.storeData", 1, Collections.emptyMap(), () -> {
+            AggregationServer.storeData(STATION_JSON, "benchmark");
+            return null;
+        });
+
+        // Handling requests: a PUT, a GET served from the cache, and a GET whose view a PUT has invalidated
+        Socket clientSocket = new Socket();
+        HttpRequest request = new HttpRequest();
+        for (int i = 0; i < 1000; i++) {
+            AggregationServer.respond(ContentServer.buildPutRequest(STATION_JSON.replace("IDS60901", "BENCH" + i),
+                    -1, true), request, "benchmark", clientSocket);
+        }
+        String put = ContentServer.buildPutRequest(STATION_JSON.replace("IDS60901", "BENCH0"), -1, true);
+        throughput("AggregationServer.respond.put", 1, Collections.singletonMap("stations", "1000"),
+                () -> AggregationServer.respond(put, request, "benchmark", clientSocket));
+        throughput("AggregationServer.respond.getCached", 1, Collections.singletonMap("stations", "1000"),
+                () -> AggregationServer.respond("GET /weather HTTP/1.1\r\n\r\n", request, "benchmark", clientSocket));
+        throughput("AggregationServer.respond.putThenGetQuery", 1, Collections.singletonMap("stations", "1000"),
+                () -> {
+                    AggregationServer.respond(put, request, "benchmark", clientSocket);
+                    return AggregationServer.respond("GET /weather?id=BENCH0 HTTP/1.1\r\n\r\n", request,
+                            "benchmark", clientSocket);
+                });
+
+        // Compacting a log of N sealed segments, each holding updates of the same 200 stations
+        for (int files : new int[] { 10, 100 }) {
+            singleShot("AggregationServer.cleanupStaleData", Collections.singletonMap("files", String.valueOf(files)),
+                    () -> {
+                        File compactDir = Files.createTempDirectory(dataDir, "compact").toFile();
+                        writeSegments(compactDir, files, 50);
+                        AggregationServer.openStorage(compactDir, WriteAheadLog.Durability.ASYNC,
+                                WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+                    }, () -> {
+                        AggregationServer.cleanupStaleData();
+                        return null;
+                    });
+        }
+
+        // The Lamport clock as every handler thread stamps and merges times
+        for (int threads : new int[] { 1, 4 }) {
+            LamportClock clock = new LamportClock();
+            throughput("LamportClock.tickAndUpdate", threads, Collections.emptyMap(), () -> {
+                long time = clock.tick();
+                return clock.update(time - 1);
+            });
+        }
+    }
+
+    /**
+     * Writes a log of the given number of sealed segments by opening and
+     * closing a write-ahead log once per segment.
+     */
+    private static void writeSegments(File directory, int segments, int recordsPerSegment) throws IOException {
+        long sequence = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.ASYNC,
+                    WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+            List<WriteAheadLog.Record> records = new ArrayList<>();
+            for (int i = 0; i < recordsPerSegment; i++) {
+                sequence++;
+                String stationId = "BENCH" + (sequence % 200);
+                records.add(new WriteAheadLog.Record(WriteAheadLog.TYPE_PUT, sequence, System.currentTimeMillis(),
+                        stationId, "benchmark", STATION_JSON.replace("IDS60901", stationId), sequence));
+            }
+            log.appendAll(records);
+            log.close();
+        }
+    }
+
+    /**
+     * Measures how many times per second an operation runs, on the given
+     * number of threads at once.
+     */
+    private void throughput(String name, int threads, Map<String, String> params, Operation operation)
+            throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(threads, operation);
+        }
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = runIteration(threads, operation);
+        }
+        record(name, "thrpt", threads, params, scores, "ops/s");
+    }
+
+    private double runIteration(int threads, Operation operation) throws Exception {
+        LongAdder operations = new LongAdder();
+        List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                Object result = null;
+                try {
+                    start.await();
+                    // The clock is read every 64 operations, so reading it does not dominate fast operations
+                    while ((count & 63) != 0 || System.nanoTime() < deadline[0]) {
+                        result = operation.run();
+                        count++;
+                    }
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+                sink = result;
+                operations.add(count);
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + iterationMillis * 1_000_000;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        return operations.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * Measures an operation that can only run once per setup, e.g. because it
+     * consumes its input. Only the operation is timed.
+     */
+    private void singleShot(String name, Map<String, String> params, Setup setup, Operation operation)
+            throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        double[] scores = new double[iterations];
+        for (int i = -warmupIterations; i < iterations; i++) {
+            setup.run();
+            long start = System.nanoTime();
+            sink = operation.run();
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                scores[i] = elapsed / 1e6;
+            }
+        }
+        record(name, "ss", 1, params, scores, "ms/op");
+    }
+
+    private void record(String name, String mode, int threads, Map<String, String> params, double[] scores,
+            String unit) {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = Double.NaN;
+        if (scores.length > 1) {
+            int degrees = scores.length - 1;
+            double t = degrees <= T_QUANTILES.length ? T_QUANTILES[degrees - 1] : 3.29;
+            error = t * Math.sqrt(variance / degrees) / Math.sqrt(scores.length);
+        }
+
+        JSONObject primaryMetric = new JSONObject();
+        primaryMetric.put("score", mean);
+        primaryMetric.put("scoreError", Double.isNaN(error) ? "NaN" : error);
+        primaryMetric.put("scoreUnit", unit);
+        primaryMetric.put("rawData", new JSONArray().put(new JSONArray(scores)));
+        JSONObject result = new JSONObject();
+        result.put("benchmark", name);
+        result.put("mode", mode);
+        result.put("threads", threads);
+        result.put("warmupIterations", warmupIterations);
+        result.put("measurementIterations", iterations);
+        result.put("measurementTime", mode.equals("ss") ? "single-shot" : iterationMillis + " ms");
+        result.put("jdkVersion", System.getProperty("java.version"));
+        result.put("vmName", System.getProperty("java.vm.name"));
+        result.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        result.put("params", new JSONObject(params));
+        result.put("primaryMetric", primaryMetric);
+        results.put(result);
+
+        String label = params.isEmpty() ? name : name + " " + params;
+        System.out.printf("%-52s %-8d %14.3f %12.3f  %s%n", label, threads, mean, error, unit);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -1,16 +1,110 @@
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 
 public class ContentServer {
     // Variable to store LamportClock instance
     private static LamportClock lamportClock = new LamportClock();
 
+    // Send raw HTTP instead of writeUTF frames, which lifts the 64KB limit on a request
+    private static boolean rawHttp = false;
+
+    // Sent with every PUT, the server orders updates of the same Lamport time by it
+    private static volatile String sourceId;
+
+    // Largest batch body sent in a writeUTF frame, leaving room for the headers
+    static final int MAX_FRAME_BATCH_CHARS = 60000;
+
+    // How long watch mode waits before sending records that failed to send again
+    private static final long WATCH_RETRY_MILLIS = 5000;
+
+    // The server serves a station for 30 seconds after its last update, so every record is sent again well before
+    static final long REFRESH_MILLIS = 15000;
+
     public static void main(String args[]) {
-        // Spilt up the URL and file path from input
+        // Spilt up the URL and file paths from input. With --keep-alive all feed files
+        // are sent back to back over one connection, with --watch the feed files are
+        // watched and only new or changed records are sent. --daemon keeps running
+        // and uploads changes over a warm connection, see ContentServerDaemon.
         String serverUrl = args[0];
-        String feedFilePath = args[1];
+        List<String> feedFilePaths = new ArrayList<>();
+        boolean keepAlive = false;
+        int batchSize = 0;
+        boolean watch = false;
+        boolean daemon = false;
+        long interval = 0;
+        int outboxCapacity = ContentServerDaemon.DEFAULT_OUTBOX_CAPACITY;
+        long retryBase = ContentServerDaemon.DEFAULT_RETRY_BASE_MILLIS;
+        long retryMax = ContentServerDaemon.DEFAULT_RETRY_MAX_MILLIS;
+        String source = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--keep-alive")) {
+                keepAlive = true;
+            } else if (args[i].startsWith("--batch=")) {
+                batchSize = Integer.parseInt(args[i].substring("--batch=".length()));
+            } else if (args[i].equals("--http")) {
+                rawHttp = true;
+            } else if (args[i].equals("--watch")) {
+                watch = true;
+            } else if (args[i].equals("--daemon")) {
+                daemon = true;
+            } else if (args[i].startsWith("--interval=")) {
+                interval = Long.parseLong(args[i].substring("--interval=".length()));
+            } else if (args[i].startsWith("--outbox=")) {
+                outboxCapacity = Integer.parseInt(args[i].substring("--outbox=".length()));
+            } else if (args[i].startsWith("--retry-base=")) {
+                retryBase = Long.parseLong(args[i].substring("--retry-base=".length()));
+            } else if (args[i].startsWith("--retry-max=")) {
+                retryMax = Long.parseLong(args[i].substring("--retry-max=".length()));
+            } else if (args[i].startsWith("--source-id=")) {
+                source = args[i].substring("--source-id=".length());
+            } else {
+                feedFilePaths.add(args[i]);
+            }
+        }
+        sourceId = source != null ? source : defaultSourceId(feedFilePaths);
 
-        boolean sentSuccessfully = sendDataToServer(serverUrl, feedFilePath, lamportClock);
+        if (daemon) {
+            if (serverUrl.contains(",")) {
+                System.out.println("Daemon mode sends to a single server, not to shards.");
+                return;
+            }
+            // The daemon's threads keep the JVM running after main returns
+            try {
+                new ContentServerDaemon(serverUrl, feedFilePaths, batchSize > 0 ? batchSize : 100, outboxCapacity,
+                        retryBase, retryMax, lamportClock).start(interval);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (watch) {
+            try {
+                watchFeeds(serverUrl, feedFilePaths, batchSize, lamportClock);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        boolean sentSuccessfully;
+        if (serverUrl.contains(",")) {
+            // Several shards: every record goes to the shard that holds its station
+            sentSuccessfully = sendDataToShards(ShardRouter.parse(serverUrl), feedFilePaths, batchSize, lamportClock);
+        } else if (batchSize > 0) {
+            sentSuccessfully = sendDataToServerBatched(serverUrl, feedFilePaths, batchSize, lamportClock);
+        } else if (keepAlive) {
+            sentSuccessfully = sendDataToServerPipelined(serverUrl, feedFilePaths, lamportClock);
+        } else {
+            sentSuccessfully = true;
+            for (String feedFilePath : feedFilePaths) {
+                sentSuccessfully &= sendDataToServer(serverUrl, feedFilePath, lamportClock);
+            }
+        }
 
         if (!sentSuccessfully) {
             System.out.println("Failed to send data after retries.");
@@ -33,7 +127,7 @@ public class ContentServer {
         while (maxRetries > 0) {
             try (Socket s = createSocket(serverUrl)) {
                 // Get the current Lamport clock value
-                int currentClockValue = lamportClock.getValue();
+                long currentClockValue = lamportClock.getValue();
 
                 // Attempt to send weather data to the server
                 boolean success = sendWeatherData(s, feedFilePath, currentClockValue);
@@ -65,7 +159,10 @@ public class ContentServer {
      * @return True if the data was sent successfully, false otherwise.
      * @throws IOException If there is an issue with input/output operations.
      */
-    public static boolean sendWeatherData(Socket s, String feedFilePath, int lamportClockValue) throws IOException {
+    public static boolean sendWeatherData(Socket s, String feedFilePath, long lamportClockValue) throws IOException {
+        if (rawHttp) {
+            return sendWeatherDataHttp(s, feedFilePath, lamportClockValue);
+        }
         DataInputStream inputData = new DataInputStream(s.getInputStream());
         DataOutputStream outputData = new DataOutputStream(s.getOutputStream());
 
@@ -79,8 +176,7 @@ public class ContentServer {
         }
 
         // Constriction of PUT request for aggregation server
-        String requestData = "\r\nPUT /weather_data.txt HTTP/1.1\r\nUser-Agent: // ATOMClient/1/0\r\nContent-Type: text/Json\r\nContent-Length: "
-                + jsonData.length() + "\r\nLamport-Clock: " + lamportClockValue + "\r\n" + jsonData;
+        String requestData = buildPutRequest(jsonData, lamportClockValue, false);
 
         // Write the request to the output stream and flush it to ensure data is sent
         // immediately
@@ -93,11 +189,532 @@ public class ContentServer {
         // Read the response from the server and print to the console
         String serverResponse = inputData.readUTF();
         System.out.println("Server Response: " + serverResponse);
+        receiveClock(serverResponse, lamportClock);
 
         // Check if the server response indicates success
         return serverResponse.startsWith("HTTP/1.1 200") || serverResponse.startsWith("HTTP/1.1 201");
     }
 
+    /**
+     * Sends weather data to the server over the given socket as a raw HTTP
+     * request.
+     *
+     * @param s                 The socket to communicate with the server.
+     * @param feedFilePath      The path to the feed file.
+     * @param lamportClockValue The current Lamport clock value.
+     * @return True if the data was sent successfully, false otherwise.
+     * @throws IOException If there is an issue with input/output operations.
+     */
+    private static boolean sendWeatherDataHttp(Socket s, String feedFilePath, long lamportClockValue)
+            throws IOException {
+        String jsonData = convertToJson(feedFilePath);
+        if (jsonData == null) {
+            System.out.println("Failed to convert feed to JSON.");
+            return false;
+        }
+
+        OutputStream output = s.getOutputStream();
+        output.write(buildHttpPutRequest(jsonData, lamportClockValue, false));
+        output.flush();
+        lamportClock.increment();
+
+        String serverResponse = HttpCodec.readResponse(new BufferedInputStream(s.getInputStream()));
+        System.out.println("Server Response: " + serverResponse);
+        receiveClock(serverResponse, lamportClock);
+        return isSuccess(serverResponse);
+    }
+
+    /**
+     * Builds the PUT request for a JSON weather record as raw HTTP bytes. Unlike
+     * a writeUTF frame the body is plain UTF-8 and may be of any size, so
+     * Content-Length counts bytes.
+     *
+     * @param jsonData          The weather record in JSON format.
+     * @param lamportClockValue The current Lamport clock value.
+     * @param keepAlive         Whether to keep the connection open for further
+     *                          requests.
+     * @return The encoded request.
+     */
+    public static byte[] buildHttpPutRequest(String jsonData, long lamportClockValue, boolean keepAlive) {
+        byte[] body = jsonData.getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("PUT /weather_data.txt HTTP/1.1\r\nUser-Agent: ATOMClient/1/0\r\n"
+                + "Content-Type: application/json\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "Content-Length: " + body.length + "\r\n" + sourceIdHeader() + "Lamport-Clock: " + lamportClockValue
+                + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        byte[] request = Arrays.copyOf(head, head.length + body.length);
+        System.arraycopy(body, 0, request, head.length, body.length);
+        return request;
+    }
+
+    /**
+     * Builds the PUT request for a JSON weather record.
+     *
+     * @param jsonData          The weather record in JSON format.
+     * @param lamportClockValue The current Lamport clock value.
+     * @param keepAlive         Whether to ask the server to keep the connection
+     *                          open for further requests.
+     * @return The request message.
+     */
+    public static String buildPutRequest(String jsonData, long lamportClockValue, boolean keepAlive) {
+        return "\r\nPUT /weather_data.txt HTTP/1.1\r\nUser-Agent: // ATOMClient/1/0\r\nContent-Type: text/Json\r\n"
+                + (keepAlive ? "Connection: keep-alive\r\n" : "")
+                + "Content-Length: " + jsonData.length() + "\r\n" + sourceIdHeader() + "Lamport-Clock: "
+                + lamportClockValue + "\r\n\r\n" + jsonData;
+    }
+
+    private static String sourceIdHeader() {
+        String id = sourceId;
+        return id == null ? "" : "Source-Id: " + id + "\r\n";
+    }
+
+    /**
+     * Sets the id sent with every PUT. The server attributes the updates to it
+     * and orders updates of the same Lamport time by it, so it should stay the
+     * same when the content server is restarted.
+     *
+     * @param id The source id, or null to send none.
+     */
+    public static void setSourceId(String id) {
+        sourceId = id;
+    }
+
+    /**
+     * Derives a source id from the host name and the feed files, so a content
+     * server restarted with the same feed files keeps its id.
+     *
+     * @param feedFilePaths The paths to the feed files.
+     * @return The source id.
+     */
+    static String defaultSourceId(List<String> feedFilePaths) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        StringBuilder source = new StringBuilder(host);
+        for (String feedFilePath : feedFilePaths) {
+            source.append('\n').append(new File(feedFilePath).getAbsolutePath());
+        }
+        return UUID.nameUUIDFromBytes(source.toString().getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Reserves the Lamport times of requests about to be sent. A content server
+     * that has not heard from a server yet has nothing to order its updates
+     * after, so it sends time 0 and the server stamps each update with its own
+     * clock as it arrives. Otherwise a fresh content server could send a newer
+     * reading at a time the server already holds, and have it ignored as stale.
+     *
+     * @param lamportClock The Lamport clock used to timestamp the requests.
+     * @param count        The number of requests, at least 1.
+     * @return The time of the first request, the others follow it. 0 if every
+     *         request is to be sent at time 0.
+     */
+    static long reserveSendTimes(LamportClock lamportClock, int count) {
+        return lamportClock.getValue() == 0 ? 0 : lamportClock.reserve(count);
+    }
+
+    /**
+     * Sends several feed files over one keep-alive connection, with retries in
+     * case of failure. Feed files that were not acknowledged are sent again on a
+     * new connection.
+     *
+     * @param serverUrl     The URL of the server.
+     * @param feedFilePaths The paths to the feed files, sent in this order.
+     * @param lamportClock  The Lamport clock used to timestamp the requests.
+     * @return True if every feed file was sent successfully, false otherwise.
+     */
+    public static boolean sendDataToServerPipelined(String serverUrl, List<String> feedFilePaths,
+            LamportClock lamportClock) {
+        // Set max number or retries
+        int maxRetries = 3;
+        List<String> remaining = new ArrayList<>(feedFilePaths);
+
+        while (maxRetries > 0) {
+            try (Socket s = createSocket(serverUrl)) {
+                List<String> responses = sendPipelined(s, remaining, lamportClock);
+
+                // Responses arrive in request order, drop every feed file that was acknowledged
+                int acknowledged = 0;
+                while (acknowledged < responses.size() && isSuccess(responses.get(acknowledged))) {
+                    acknowledged++;
+                }
+                remaining = new ArrayList<>(remaining.subList(acknowledged, remaining.size()));
+                if (remaining.isEmpty()) {
+                    return true;
+                }
+
+                // In case of failure, retry the rest after 5 seconds.
+                System.out.println("Failed to send " + remaining.size() + " feed files to server.");
+                maxRetries--;
+                System.out.println("Retrying... " + maxRetries + " retries left.");
+                Thread.sleep(5000);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                maxRetries--;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the records of several multi-record feed files in batches, each
+     * batch a JSON array in one PUT, over one keep-alive connection. Batches that
+     * were not acknowledged are sent again on a new connection.
+     *
+     * @param serverUrl     The URL of the server.
+     * @param feedFilePaths The paths to the feed files.
+     * @param batchSize     The largest number of records sent in one request.
+     * @param lamportClock  The Lamport clock used to timestamp the requests.
+     * @return True if every batch was sent successfully, false otherwise.
+     */
+    public static boolean sendDataToServerBatched(String serverUrl, List<String> feedFilePaths, int batchSize,
+            LamportClock lamportClock) {
+        List<String> records = convertToJsonRecords(feedFilePaths);
+        return records != null && sendRecordsBatched(serverUrl, records, batchSize, lamportClock);
+    }
+
+    /**
+     * Sends the records of several multi-record feed files to a set of
+     * AggregationServer shards. Every record goes to the shard that holds its
+     * station, and the shards are sent to in parallel, each over its own
+     * keep-alive connection.
+     *
+     * @param router        The router that maps stations to shards.
+     * @param feedFilePaths The paths to the feed files.
+     * @param batchSize     The largest number of records sent in one request,
+     *                      at least 1.
+     * @param lamportClock  The Lamport clock used to timestamp the requests.
+     * @return True if every record was sent successfully, false otherwise.
+     */
+    public static boolean sendDataToShards(ShardRouter router, List<String> feedFilePaths, int batchSize,
+            LamportClock lamportClock) {
+        List<String> records = convertToJsonRecords(feedFilePaths);
+        return records != null && sendRecordsToShards(router, records, batchSize, lamportClock);
+    }
+
+    /**
+     * Sends JSON records to a set of AggregationServer shards. Every record goes
+     * to the shard that holds its station, and the shards are sent to in
+     * parallel, each over its own keep-alive connection.
+     *
+     * @param router       The router that maps stations to shards.
+     * @param records      The JSON records.
+     * @param batchSize    The largest number of records sent in one request,
+     *                     at least 1.
+     * @param lamportClock The Lamport clock used to timestamp the requests.
+     * @return True if every record was sent successfully, false otherwise.
+     */
+    public static boolean sendRecordsToShards(ShardRouter router, List<String> records, int batchSize,
+            LamportClock lamportClock) {
+        Map<String, List<String>> partitions = router.partition(records);
+        List<Thread> senders = new ArrayList<>();
+        List<String> failedShards = Collections.synchronizedList(new ArrayList<>());
+        for (Map.Entry<String, List<String>> partition : partitions.entrySet()) {
+            Thread sender = new Thread(() -> {
+                if (!sendRecordsBatched(partition.getKey(), partition.getValue(), Math.max(batchSize, 1),
+                        lamportClock)) {
+                    failedShards.add(partition.getKey());
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        if (!failedShards.isEmpty()) {
+            System.out.println("Failed to send data to shards: " + failedShards);
+        }
+        return failedShards.isEmpty();
+    }
+
+    /**
+     * Sends the records of the feed files, then watches the files and sends
+     * only the records that are new or have changed each time a file is
+     * written, instead of sending every record again. Every REFRESH_MILLIS all
+     * records are sent again, so the server keeps serving stations whose data
+     * did not change. Records that could not be sent are tried again after
+     * WATCH_RETRY_MILLIS, or sooner if their file changes. Runs until the
+     * thread is interrupted.
+     *
+     * @param serverUrl     The URL of the server, or several comma separated
+     *                      shards.
+     * @param feedFilePaths The paths to the multi-record feed files.
+     * @param batchSize     The largest number of records sent in one request.
+     * @param lamportClock  The Lamport clock used to timestamp the requests.
+     * @throws IOException          If the feed files could not be watched.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public static void watchFeeds(String serverUrl, List<String> feedFilePaths, int batchSize,
+            LamportClock lamportClock) throws IOException, InterruptedException {
+        try (FeedWatcher watcher = new FeedWatcher(feedFilePaths)) {
+            // Every file is read once at the start, after that only when it changes
+            Set<Path> pending = new LinkedHashSet<>(watcher.getFeedFiles());
+            long refreshAt = System.currentTimeMillis() + REFRESH_MILLIS;
+            while (true) {
+                if (System.currentTimeMillis() >= refreshAt) {
+                    for (Path feedFile : watcher.getFeedFiles()) {
+                        watcher.refresh(feedFile);
+                    }
+                    pending.addAll(watcher.getFeedFiles());
+                    refreshAt = System.currentTimeMillis() + REFRESH_MILLIS;
+                }
+
+                for (Iterator<Path> it = pending.iterator(); it.hasNext();) {
+                    Path feedFile = it.next();
+                    List<String> changed;
+                    try {
+                        changed = watcher.changedRecords(feedFile);
+                    } catch (IOException e) {
+                        System.out.println("Failed to read feed file: " + feedFile);
+                        continue;
+                    }
+
+                    boolean sent = changed.isEmpty() || (serverUrl.contains(",")
+                            ? sendRecordsToShards(ShardRouter.parse(serverUrl), changed, Math.max(batchSize, 1),
+                                    lamportClock)
+                            : sendRecordsBatched(serverUrl, changed, Math.max(batchSize, 1), lamportClock));
+                    if (sent) {
+                        System.out.println("Sent " + changed.size() + " records from " + feedFile);
+                        watcher.acknowledge(feedFile);
+                        it.remove();
+                    }
+                }
+                long untilRefresh = Math.max(1, refreshAt - System.currentTimeMillis());
+                pending.addAll(watcher.awaitChanges(
+                        pending.isEmpty() ? untilRefresh : Math.min(WATCH_RETRY_MILLIS, untilRefresh)));
+            }
+        }
+    }
+
+    /**
+     * Converts several multi-record feed files into their JSON records.
+     *
+     * @return The records in file order, or null if a file could not be
+     *         converted.
+     */
+    private static List<String> convertToJsonRecords(List<String> feedFilePaths) {
+        List<String> records = new ArrayList<>();
+        for (String feedFilePath : feedFilePaths) {
+            List<String> fileRecords = convertToJsonRecords(feedFilePath);
+            if (fileRecords == null) {
+                System.out.println("Failed to convert feed to JSON: " + feedFilePath);
+                return null;
+            }
+            records.addAll(fileRecords);
+        }
+        return records;
+    }
+
+    /**
+     * Sends JSON records in batches over one keep-alive connection. Batches
+     * that were not acknowledged are sent again on a new connection.
+     *
+     * @param serverUrl    The URL of the server.
+     * @param records      The JSON records.
+     * @param batchSize    The largest number of records sent in one request.
+     * @param lamportClock The Lamport clock used to timestamp the requests.
+     * @return True if every batch was sent successfully, false otherwise.
+     */
+    public static boolean sendRecordsBatched(String serverUrl, List<String> records, int batchSize,
+            LamportClock lamportClock) {
+        // Set max number or retries
+        int maxRetries = 3;
+        List<String> remaining = buildBatches(records, batchSize, rawHttp ? Integer.MAX_VALUE : MAX_FRAME_BATCH_CHARS);
+
+        while (maxRetries > 0) {
+            try (Socket s = createSocket(serverUrl)) {
+                List<String> responses = sendPipelinedBodies(s, remaining, lamportClock);
+
+                // Responses arrive in request order, drop every batch that was acknowledged
+                int acknowledged = 0;
+                while (acknowledged < responses.size() && isSuccess(responses.get(acknowledged))) {
+                    acknowledged++;
+                }
+                remaining = new ArrayList<>(remaining.subList(acknowledged, remaining.size()));
+                if (remaining.isEmpty()) {
+                    return true;
+                }
+
+                // In case of failure, retry the rest after 5 seconds.
+                System.out.println("Failed to send " + remaining.size() + " batches to server.");
+                maxRetries--;
+                System.out.println("Retrying... " + maxRetries + " retries left.");
+                Thread.sleep(5000);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                maxRetries--;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Groups JSON records into batch bodies, each a JSON array.
+     *
+     * @param records    The JSON records, kept in this order.
+     * @param batchSize  The largest number of records in a batch.
+     * @param maxChars   The largest length of a batch body. A single record
+     *                   longer than this is still sent on its own.
+     * @return The batch bodies.
+     */
+    public static List<String> buildBatches(List<String> records, int batchSize, int maxChars) {
+        List<String> batches = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+        int count = 0;
+        for (String record : records) {
+            if (count > 0 && (count == batchSize || batch.length() + record.length() + 2 > maxChars)) {
+                batches.add(batch.append(']').toString());
+                batch.setLength(0);
+                count = 0;
+            }
+            batch.append(count == 0 ? '[' : ',').append(record);
+            count++;
+        }
+        if (count > 0) {
+            batches.add(batch.append(']').toString());
+        }
+        return batches;
+    }
+
+    /**
+     * Sends one PUT request per feed file back to back over the given socket
+     * without waiting for each response. Responses are read on a separate thread
+     * so neither side can stall on a full socket buffer.
+     *
+     * @param s             The socket to communicate with the server.
+     * @param feedFilePaths The paths to the feed files.
+     * @param lamportClock  The Lamport clock used to timestamp the requests.
+     * @return The responses received, in request order. If the connection
+     *         failed part way this holds fewer responses than requests sent.
+     * @throws IOException If a feed file could not be converted or the requests
+     *                     could not be written.
+     */
+    public static List<String> sendPipelined(Socket s, List<String> feedFilePaths, LamportClock lamportClock)
+            throws IOException {
+        // Convert every feed file up front so a bad file cannot leave the stream half written
+        List<String> jsonRecords = new ArrayList<>();
+        for (String feedFilePath : feedFilePaths) {
+            String jsonData = convertToJson(feedFilePath);
+            if (jsonData == null) {
+                throw new IOException("Failed to convert feed to JSON: " + feedFilePath);
+            }
+            jsonRecords.add(jsonData);
+        }
+        return sendPipelinedBodies(s, jsonRecords, lamportClock);
+    }
+
+    /**
+     * Sends one PUT request per JSON body back to back over the given socket
+     * without waiting for each response. A body is a single record or a batch.
+     *
+     * @param s            The socket to communicate with the server.
+     * @param jsonRecords  The JSON bodies, sent in this order.
+     * @param lamportClock The Lamport clock used to timestamp the requests.
+     * @return The responses received, in request order.
+     * @throws IOException If the requests could not be written.
+     */
+    public static List<String> sendPipelinedBodies(Socket s, List<String> jsonRecords, LamportClock lamportClock)
+            throws IOException {
+        InputStream input = new BufferedInputStream(s.getInputStream());
+        DataInputStream inputData = new DataInputStream(input);
+        DataOutputStream outputData = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+        // Read the responses while the requests are still being written
+        int requestCount = jsonRecords.size();
+        List<String> responses = Collections.synchronizedList(new ArrayList<>());
+        Thread responseReader = new Thread(() -> {
+            try {
+                while (responses.size() < requestCount) {
+                    String serverResponse = rawHttp ? HttpCodec.readResponse(input) : inputData.readUTF();
+                    System.out.println("Server Response: " + serverResponse);
+                    receiveClock(serverResponse, lamportClock);
+                    responses.add(serverResponse);
+                }
+            } catch (IOException e) {
+                // The connection was lost, the caller resends whatever was not acknowledged
+            }
+        });
+        responseReader.start();
+
+        try {
+            // Reserve one Lamport time per request up front rather than ticking the clock for each
+            long lamportTime = jsonRecords.isEmpty() ? 0 : reserveSendTimes(lamportClock, jsonRecords.size());
+            for (String jsonData : jsonRecords) {
+                if (rawHttp) {
+                    outputData.write(buildHttpPutRequest(jsonData, lamportTime, true));
+                } else {
+                    outputData.writeUTF(buildPutRequest(jsonData, lamportTime, true));
+                }
+                lamportTime += lamportTime > 0 ? 1 : 0;
+            }
+            outputData.flush();
+        } catch (IOException e) {
+            // Unblock the response reader before giving up on this connection
+            s.close();
+            throw e;
+        } finally {
+            try {
+                responseReader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return new ArrayList<>(responses);
+    }
+
+    /**
+     * Chooses between raw HTTP and writeUTF frames for the requests sent by
+     * this content server.
+     *
+     * @param enabled True to send raw HTTP.
+     */
+    public static void setRawHttp(boolean enabled) {
+        rawHttp = enabled;
+    }
+
+    static boolean isRawHttp() {
+        return rawHttp;
+    }
+
+    /**
+     * Advances a Lamport clock past the server's clock, which the server
+     * returns in a Lamport-Clock header. Responses without one are ignored.
+     *
+     * @param serverResponse The response received from the server.
+     * @param lamportClock   The clock to advance.
+     */
+    static void receiveClock(String serverResponse, LamportClock lamportClock) {
+        String value = HttpCodec.responseHeader(serverResponse, "Lamport-Clock");
+        try {
+            if (value != null) {
+                lamportClock.update(Long.parseLong(value));
+            }
+        } catch (IllegalArgumentException e) {
+            // A malformed clock cannot be merged, the response itself is still valid
+        }
+    }
+
+    /**
+     * Checks whether a server response indicates success.
+     *
+     * @param serverResponse The response received from the server.
+     * @return True for a 200 or 201 response.
+     */
+    private static boolean isSuccess(String serverResponse) {
+        return serverResponse.startsWith("HTTP/1.1 200") || serverResponse.startsWith("HTTP/1.1 201");
+    }
+
     /**
      * Creates a socket and connects to the server.
      * 
@@ -125,55 +742,42 @@ public class ContentServer {
      *         issue.
      */
     public static String convertToJson(String feedFilePath) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(feedFilePath))) {
-            StringBuilder jsonDataBuilder = new StringBuilder(); // Initialize a StringBuilder to build the JSON data
-            String line;
-            boolean firstEntry = true;
-            boolean validID = false;
-
-            // Read a line from the input file, and continue while there are more lines
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    // Extract the key and value parts
-                    String key = parts[0].trim();
-                    String value = parts[1].trim();
-
-                    // Add a comma to separate JSON entries, if needed
-                    if (jsonDataBuilder.length() > 0) {
-                        jsonDataBuilder.append(",");
-                    }
-
-                    // Add the opening brace for the JSON object
-                    if (firstEntry) {
-                        jsonDataBuilder.append("{");
-                        firstEntry = false;
-                    }
-
-                    // Indicate that the 'id' key exists in the input
-                    if (!validID && key.equals("id")) {
-                        validID = true;
-                    }
-                    // Build a JSON key-value pair
-                    jsonDataBuilder.append("\"").append(key).append("\":\"").append(value).append("\"");
-                }
-            }
+        try {
+            String jsonData = FeedParser.toJson(FeedParser.read(feedFilePath));
 
             // Print an error message if 'id' key is missing
-            if (!validID) {
+            if (jsonData == null) {
                 System.err.println("Error: The first key is not 'id'.");
-                return null;
             }
+            return jsonData;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            // Add the closing brace for the JSON object
-            if (!firstEntry) {
-                jsonDataBuilder.append("}");
-            }
+    /**
+     * Converts a feed file holding several station records to JSON, one object
+     * per record. A record ends at a blank line or where another "id" line
+     * starts the next one, and records without an id are skipped.
+     *
+     * @param feedFilePath The path to the feed file.
+     * @return The JSON records in file order, or null if the file could not be
+     *         read or holds no record with an id.
+     */
+    public static List<String> convertToJsonRecords(String feedFilePath) {
+        try {
+            List<String> records = FeedParser.toJsonRecords(FeedParser.read(feedFilePath));
 
-            return jsonDataBuilder.toString();
+            // Print an error message if no record had an 'id' key
+            if (records.isEmpty()) {
+                System.err.println("Error: No record with an 'id' key.");
+                return null;
+            }
+            return records;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
-}
\ No newline at end of file
+}
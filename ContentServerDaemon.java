@@ -0,0 +1,319 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ContentServerDaemon implements Closeable {
+    private static final Log logger = Log.get();
+
+    // Stations that may wait in the outbox while the server cannot be reached
+    public static final int DEFAULT_OUTBOX_CAPACITY = 10000;
+
+    // The first and the longest wait before a failed upload is tried again
+    public static final long DEFAULT_RETRY_BASE_MILLIS = 500;
+    public static final long DEFAULT_RETRY_MAX_MILLIS = 30_000;
+
+    // How long an upload waits for the server's response
+    private static final int READ_TIMEOUT_MILLIS = 15000;
+
+    private final String serverUrl;
+    private final FeedWatcher watcher;
+    private final Outbox outbox;
+    private final int batchSize;
+    private final long retryBaseMillis;
+    private final long retryMaxMillis;
+    private final LamportClock lamportClock;
+
+    // A single thread scans the feed files and uploads, so the state below is only used on it
+    private final ScheduledExecutorService executor;
+    private final Thread watchThread;
+
+    private Socket socket;
+    private InputStream input;
+    private OutputStream output;
+    private int failures;
+    private ScheduledFuture<?> retry;
+
+    // When every record of the feed files was last put into the outbox, whether it had changed or not
+    private long refreshedAt;
+    private volatile long refreshMillis = ContentServer.REFRESH_MILLIS;
+
+    // Feed files with records that did not fit in the outbox, read again once it has room
+    private final Set<Path> overflowed = new LinkedHashSet<>();
+
+    /**
+     * Creates a daemon that uploads the records of feed files to an
+     * AggregationServer. Nothing is read or sent until start() is called.
+     *
+     * @param serverUrl       The URL of the server, host:port.
+     * @param feedFilePaths   The paths to the multi-record feed files.
+     * @param batchSize       The largest number of records sent in one PUT.
+     * @param outboxCapacity  The number of stations that may wait to be sent.
+     * @param retryBaseMillis The wait before the first retry of a failed
+     *                        upload, doubled for every further failure.
+     * @param retryMaxMillis  The longest wait between retries.
+     * @param lamportClock    The Lamport clock used to timestamp the requests.
+     * @throws IOException If the feed files could not be watched.
+     */
+    public ContentServerDaemon(String serverUrl, List<String> feedFilePaths, int batchSize, int outboxCapacity,
+            long retryBaseMillis, long retryMaxMillis, LamportClock lamportClock) throws IOException {
+        this.serverUrl = serverUrl;
+        this.watcher = new FeedWatcher(feedFilePaths);
+        this.outbox = new Outbox(outboxCapacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.retryBaseMillis = Math.max(1, retryBaseMillis);
+        this.retryMaxMillis = Math.max(this.retryBaseMillis, retryMaxMillis);
+        this.lamportClock = lamportClock;
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "content-server-daemon"));
+        this.watchThread = new Thread(this::watchFeeds, "content-server-watch");
+        watchThread.setDaemon(true);
+    }
+
+    /**
+     * Reads every feed file and uploads its records, then uploads the records
+     * that are new or have changed whenever a file is written and, with an
+     * interval, every interval as well. Every ContentServer.REFRESH_MILLIS all
+     * records are uploaded again, so the server keeps serving stations whose
+     * data did not change.
+     *
+     * @param intervalMillis How often every feed file is read again, or 0 to
+     *                       read them only when they change.
+     */
+    public void start(long intervalMillis) {
+        start(intervalMillis, ContentServer.REFRESH_MILLIS);
+    }
+
+    /**
+     * Reads every feed file and uploads its records, then uploads the records
+     * that are new or have changed whenever a file is written and, with an
+     * interval, every interval as well.
+     *
+     * @param intervalMillis How often every feed file is read again, or 0 to
+     *                       read them only when they change.
+     * @param refreshMillis  How often all records are uploaded again, changed
+     *                       or not. Must be well below the time the server
+     *                       serves a station without an update.
+     */
+    public void start(long intervalMillis, long refreshMillis) {
+        this.refreshMillis = Math.max(1, refreshMillis);
+        executor.execute(() -> {
+            refreshedAt = System.currentTimeMillis();
+            scan(watcher.getFeedFiles());
+        });
+        long period = intervalMillis > 0 ? Math.min(intervalMillis, this.refreshMillis) : this.refreshMillis;
+        executor.scheduleWithFixedDelay(this::scanAll, period, period, TimeUnit.MILLISECONDS);
+        watchThread.start();
+    }
+
+    /**
+     * Scheduled task: reads every feed file, and once the last refresh is
+     * refreshMillis ago puts every record into the outbox, changed or not.
+     */
+    private void scanAll() {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - refreshedAt >= refreshMillis) {
+            for (Path feedFile : watcher.getFeedFiles()) {
+                watcher.refresh(feedFile);
+            }
+            refreshedAt = currentTime;
+        }
+        scan(watcher.getFeedFiles());
+    }
+
+    /**
+     * Watch thread: hands every change of a feed file to the upload thread.
+     */
+    private void watchFeeds() {
+        try {
+            while (true) {
+                Set<Path> changed = watcher.awaitChanges(Long.MAX_VALUE);
+                if (!changed.isEmpty()) {
+                    executor.execute(() -> scan(changed));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException | RejectedExecutionException e) {
+            // The daemon was closed
+        }
+    }
+
+    /**
+     * Puts the new and changed records of feed files into the outbox and
+     * uploads them, unless a retry is already scheduled.
+     *
+     * @param feedFiles The feed files to read.
+     */
+    private void scan(Collection<Path> feedFiles) {
+        try {
+            for (Path feedFile : feedFiles) {
+                boolean offered = true;
+                for (String record : watcher.changedRecords(feedFile)) {
+                    StationJson stationJson = StationJson.parse(record);
+                    if (stationJson == null) {
+                        continue;
+                    }
+                    // Once in the outbox a record is its to deliver, records left out are read again later
+                    if (outbox.offer(stationJson.getId(), record)) {
+                        watcher.acknowledge(feedFile, stationJson.getId());
+                    } else {
+                        offered = false;
+                    }
+                }
+                if (offered) {
+                    watcher.acknowledge(feedFile);
+                } else {
+                    overflowed.add(feedFile);
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            logger.warn("Failed to read feed file: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // A scheduled task that throws is never run again
+            logger.error("Failed to upload feed records", e);
+        }
+    }
+
+    /**
+     * Uploads the outbox in batches over the warm connection until it is
+     * empty. If the server cannot be reached the connection is dropped and
+     * the upload is tried again after an exponential backoff with jitter,
+     * while the outbox keeps collecting updates.
+     */
+    private void flush() {
+        if (retry != null) {
+            return;
+        }
+        int maxChars = ContentServer.isRawHttp() ? Integer.MAX_VALUE : ContentServer.MAX_FRAME_BATCH_CHARS;
+        Map<String, String> batch;
+        while (!(batch = outbox.peek(batchSize, maxChars)).isEmpty()) {
+            String response;
+            try {
+                response = send(batch);
+            } catch (IOException e) {
+                closeConnection();
+                scheduleRetry(e.getMessage());
+                return;
+            }
+
+            int status = Metrics.statusOf(response);
+            if (status >= 500 || status == 0) {
+                // The server is busy or broken, its connection is not reused
+                closeConnection();
+                scheduleRetry(response.split("\r?\n", 2)[0]);
+                return;
+            }
+            if (status >= 400) {
+                // Sending the same records again would be rejected again
+                logger.warn("Server rejected " + batch.size() + " records: " + response.split("\r?\n", 2)[0]);
+            }
+
+            // Records superseded by a newer update of their station are done with, like stored ones
+            outbox.acknowledge(batch);
+            failures = 0;
+        }
+
+        // The outbox has room again for records that did not fit before
+        if (!overflowed.isEmpty()) {
+            List<Path> feedFiles = new ArrayList<>(overflowed);
+            overflowed.clear();
+            executor.execute(() -> scan(feedFiles));
+        }
+    }
+
+    /**
+     * Sends one batch as a JSON array in a PUT. A warm connection the server
+     * has closed in the meantime is replaced once before giving up.
+     *
+     * @param batch The records by station id.
+     * @return The server's response.
+     * @throws IOException If the server could not be reached.
+     */
+    private String send(Map<String, String> batch) throws IOException {
+        String body = "[" + String.join(",", batch.values()) + "]";
+        long lamportTime = ContentServer.reserveSendTimes(lamportClock, 1);
+        byte[] request = ContentServer.isRawHttp() ? ContentServer.buildHttpPutRequest(body, lamportTime, true)
+                : FrameCodec.encode(ContentServer.buildPutRequest(body, lamportTime, true));
+
+        boolean warm = socket != null;
+        try {
+            return exchange(request);
+        } catch (IOException e) {
+            closeConnection();
+            if (!warm) {
+                throw e;
+            }
+            // The server closes connections that stay idle, so a warm one may be gone
+            return exchange(request);
+        }
+    }
+
+    private String exchange(byte[] request) throws IOException {
+        if (socket == null) {
+            socket = ContentServer.createSocket(serverUrl);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            input = new BufferedInputStream(socket.getInputStream());
+            output = new BufferedOutputStream(socket.getOutputStream());
+        }
+        output.write(request);
+        output.flush();
+        String response = ContentServer.isRawHttp() ? HttpCodec.readResponse(input)
+                : new DataInputStream(input).readUTF();
+        ContentServer.receiveClock(response, lamportClock);
+        return response;
+    }
+
+    /**
+     * Schedules the next upload attempt. The wait doubles with every failure in
+     * a row, up to retryMaxMillis, and is spread between half and all of that
+     * so that content servers cut off at the same time do not all come back at
+     * once.
+     */
+    private void scheduleRetry(String reason) {
+        long ceiling = Math.min(retryMaxMillis, retryBaseMillis << Math.min(failures, 30));
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        failures++;
+        logger.warn("Upload to " + serverUrl + " failed (" + reason + "), " + outbox.size()
+                + " stations waiting, retrying in " + delay + "ms");
+        retry = executor.schedule(() -> {
+            retry = null;
+            flush();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeConnection() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * Returns the outbox of records waiting to be uploaded.
+     *
+     * @return The outbox.
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Stops watching and uploading. Records still in the outbox are lost.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        watcher.close();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnection();
+    }
+}
@@ -0,0 +1,153 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+
+public class ContentServerDaemonTest {
+    private static final String OK_RESPONSE = "HTTP/1.1 200 OK\r\nLamport-Clock: 7\r\n\r\nData received and processed.";
+
+    // Test that updates made while the server is down are coalesced, then sent in one batch over a warm connection
+    @Test
+    public void testUploadsAfterServerComesBack() throws Exception {
+        int port = ServerProcess.freePort();
+        Path directory = Files.createTempDirectory("daemon");
+        Path feed = directory.resolve("feed.txt");
+        write(feed, "id:A\nair_temp:1\n\nid:B\nair_temp:1\n");
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger connections = new AtomicInteger();
+        ServerSocket serverSocket = null;
+        try (ContentServerDaemon daemon = new ContentServerDaemon("localhost:" + port,
+                Collections.singletonList(feed.toString()), 100, 100, 50, 200, new LamportClock())) {
+            daemon.start(0);
+
+            // The server is down: the records wait in the outbox and a change to A replaces its record
+            awaitTrue(() -> daemon.getOutbox().size() == 2);
+            write(feed, "id:A\nair_temp:2\n\nid:B\nair_temp:1\n");
+            awaitTrue(() -> daemon.getOutbox().getCoalesced() == 1);
+            assertEquals(2, daemon.getOutbox().size());
+
+            serverSocket = new ServerSocket(port);
+            ServerSocket listening = serverSocket;
+            Thread server = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = listening.accept();
+                        connections.incrementAndGet();
+                        new Thread(() -> serve(socket, received, OK_RESPONSE)).start();
+                    }
+                } catch (IOException e) {
+                    // The test closed the server socket
+                }
+            });
+            server.start();
+
+            awaitTrue(() -> received.size() == 1 && daemon.getOutbox().size() == 0);
+            assertTrue(received.get(0), received.get(0).contains("[{\"id\":\"A\",\"air_temp\":\"2\"},"
+                    + "{\"id\":\"B\",\"air_temp\":\"1\"}]"));
+
+            // Only the changed station is sent next, over the same connection
+            write(feed, "id:A\nair_temp:2\n\nid:B\nair_temp:3\n");
+            awaitTrue(() -> received.size() == 2);
+            assertTrue(received.get(1), received.get(1).contains("[{\"id\":\"B\",\"air_temp\":\"3\"}]"));
+            assertEquals(1, connections.get());
+        } finally {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            Files.deleteIfExists(feed);
+            Files.delete(directory);
+        }
+    }
+
+    // Test that every record is uploaded again on the refresh schedule, although the feed did not change
+    @Test
+    public void testRefreshesUnchangedRecords() throws Exception {
+        Path directory = Files.createTempDirectory("daemon");
+        Path feed = directory.resolve("feed.txt");
+        write(feed, "id:A\nair_temp:1\n\nid:B\nair_temp:1\n");
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                ContentServerDaemon daemon = new ContentServerDaemon("localhost:" + serverSocket.getLocalPort(),
+                        Collections.singletonList(feed.toString()), 100, 100, 50, 200, new LamportClock())) {
+            Thread server = new Thread(() -> {
+                try {
+                    serve(serverSocket.accept(), received, OK_RESPONSE);
+                } catch (IOException e) {
+                    // The test closed the server socket
+                }
+            });
+            server.start();
+            daemon.start(0, 200);
+
+            awaitTrue(() -> received.size() >= 3);
+            for (String request : received) {
+                assertTrue(request, request.contains("[{\"id\":\"A\",\"air_temp\":\"1\"},"
+                        + "{\"id\":\"B\",\"air_temp\":\"1\"}]"));
+            }
+        } finally {
+            Files.deleteIfExists(feed);
+            Files.delete(directory);
+        }
+    }
+
+    // Test that records the server ignored as superseded are not sent again, so the newer update is kept
+    @Test
+    public void testSupersededRecordsNotResent() throws Exception {
+        Path directory = Files.createTempDirectory("daemon");
+        Path feed = directory.resolve("feed.txt");
+        write(feed, "id:A\nair_temp:1\n");
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                ContentServerDaemon daemon = new ContentServerDaemon("localhost:" + serverSocket.getLocalPort(),
+                        Collections.singletonList(feed.toString()), 100, 100, 50, 200, new LamportClock())) {
+            Thread server = new Thread(() -> {
+                try {
+                    serve(serverSocket.accept(), received,
+                            "HTTP/1.1 200 OK\r\nLamport-Clock: 9\r\n\r\nStale update ignored.");
+                } catch (IOException e) {
+                    // The test closed the server socket
+                }
+            });
+            server.start();
+            daemon.start(0);
+
+            awaitTrue(() -> received.size() == 1 && daemon.getOutbox().size() == 0);
+            Thread.sleep(500);
+            assertEquals(1, received.size());
+        } finally {
+            Files.deleteIfExists(feed);
+            Files.delete(directory);
+        }
+    }
+
+    private static void serve(Socket socket, List<String> received, String response) {
+        try (DataInputStream input = new DataInputStream(socket.getInputStream());
+                DataOutputStream output = new DataOutputStream(socket.getOutputStream())) {
+            while (true) {
+                received.add(input.readUTF());
+                output.writeUTF(response);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The daemon closed the connection
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
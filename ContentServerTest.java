@@ -28,7 +28,7 @@ public class ContentServerTest {
         Mockito.when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
         Mockito.when(socket.getInputStream()).thenReturn(new ByteArrayInputStream("HTTP/1.1 201 Created".getBytes()));
 
-        Mockito.when(lamportClock.getValue()).thenReturn(1);
+        Mockito.when(lamportClock.getValue()).thenReturn(1L);
 
         // Create a temporary file with some data
         File tempFile = File.createTempFile("temp-feed", ".txt");
@@ -54,7 +54,7 @@ public class ContentServerTest {
         Mockito.when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
         Mockito.when(socket.getInputStream()).thenReturn(new ByteArrayInputStream("HTTP/1.1 500 Internal Server Error".getBytes()));
 
-        Mockito.when(lamportClock.getValue()).thenReturn(1);
+        Mockito.when(lamportClock.getValue()).thenReturn(1L);
 
         // Create a temporary file with some data
         File tempFile = File.createTempFile("temp-feed", ".txt");
@@ -74,7 +74,7 @@ public class ContentServerTest {
         Mockito.when(socket.getOutputStream()).thenReturn(outputStream);
         Mockito.when(socket.getInputStream()).thenReturn(inputStream);
 
-        Mockito.when(lamportClock.getValue()).thenReturn(1);
+        Mockito.when(lamportClock.getValue()).thenReturn(1L);
 
         // Create a temporary file with some data
         File tempFile = File.createTempFile("temp-feed", ".txt");
@@ -94,7 +94,7 @@ public class ContentServerTest {
         Mockito.when(socket.getOutputStream()).thenReturn(outputStream);
         Mockito.when(socket.getInputStream()).thenReturn(inputStream);
 
-        Mockito.when(lamportClock.getValue()).thenReturn(1);
+        Mockito.when(lamportClock.getValue()).thenReturn(1L);
 
         // Create a temporary file with some data
         File tempFile = File.createTempFile("temp-feed", ".txt");
@@ -111,7 +111,7 @@ public class ContentServerTest {
         createTestFile(testFilePath);
 
         // Mock the behavior of LamportClock
-        Mockito.when(lamportClock.getValue()).thenReturn(1);
+        Mockito.when(lamportClock.getValue()).thenReturn(1L);
 
         // Test the convertToJson method
         String jsonData = ContentServer.convertToJson(testFilePath);
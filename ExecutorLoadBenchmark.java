@@ -0,0 +1,96 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ExecutorLoadBenchmark {
+    /**
+     * Runs the same burst of GET clients against an AggregationServer started in
+     * each execution mode and prints accepted connections per second, rejected
+     * (503) connections and latency percentiles.
+     *
+     * Usage: java ExecutorLoadBenchmark [clients] [seconds]
+     */
+    public static void main(String args[]) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        String[][] modes = {
+                { AggregationServer.MODE_THREAD },
+                { AggregationServer.MODE_VIRTUAL },
+                { AggregationServer.MODE_POOL, "--pool-size=32", "--queue-size=256" },
+        };
+
+        System.out.println("clients=" + clients + " duration=" + seconds + "s");
+        System.out.printf("%-10s %12s %10s %10s %10s %10s%n", "mode", "accepted/s", "rejected", "errors",
+                "p50(ms)", "p99(ms)");
+
+        for (String[] mode : modes) {
+            String[] options = new String[mode.length];
+            options[0] = "--executor=" + mode[0];
+            System.arraycopy(mode, 1, options, 1, mode.length - 1);
+
+            try (ServerProcess server = ServerProcess.start(ServerProcess.freePort(), options)) {
+                runMode(mode[0], server.getPort(), clients, seconds);
+            }
+        }
+    }
+
+    /**
+     * Runs the given number of closed-loop GET clients against the server for the
+     * given duration and prints the results for one mode.
+     */
+    private static void runMode(String mode, int port, int clients, int seconds) throws InterruptedException {
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        LatencyRecorder[] recorders = new LatencyRecorder[clients];
+        Thread[] threads = new Thread[clients];
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int i = 0; i < clients; i++) {
+            LatencyRecorder recorder = new LatencyRecorder();
+            recorders[i] = recorder;
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try {
+                        String response = sendGet(port);
+                        recorder.record(System.nanoTime() - start);
+                        if (response.startsWith("HTTP/1.1 503")) {
+                            rejected.incrementAndGet();
+                        } else {
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        // Merge the per client recorders once every client has finished
+        LatencyRecorder all = new LatencyRecorder();
+        for (int i = 0; i < clients; i++) {
+            threads[i].join();
+            all.merge(recorders[i]);
+        }
+
+        System.out.printf("%-10s %12.1f %10d %10d %10.2f %10.2f%n", mode, accepted.get() / (double) seconds,
+                rejected.get(), errors.get(), all.percentile(50) / 1e6, all.percentile(99) / 1e6);
+    }
+
+    /**
+     * Sends a single GET request on a new connection and returns the response.
+     */
+    private static String sendGet(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port);
+                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
+            outputData.writeUTF("GET /weather HTTP/1.1\r\nHost: localhost:" + port + "\r\nLamport-Clock: 0\r\n\r\n");
+            outputData.flush();
+            return inputData.readUTF();
+        }
+    }
+}
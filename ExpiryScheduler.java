@@ -0,0 +1,136 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+public class ExpiryScheduler implements Runnable {
+    /**
+     * Decides what happens to a key once its deadline has passed.
+     */
+    public interface Handler {
+        /**
+         * Called on the expiry thread when the deadline of a key has passed.
+         *
+         * @param key         The key whose deadline passed.
+         * @param currentTime The current time in milliseconds.
+         * @return A later deadline to wait for if the key was refreshed in the
+         *         meantime, or 0 if the key has expired and was dealt with.
+         */
+        long onDeadline(Object key, long currentTime);
+    }
+
+    /**
+     * A deadline waiting in the queue.
+     */
+    private static final class Deadline implements Delayed {
+        final Object key;
+        final long deadline;
+        final Handler handler;
+
+        Deadline(Object key, long deadline, Handler handler) {
+            this.key = key;
+            this.deadline = deadline;
+            this.handler = handler;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline, ((Deadline) other).deadline);
+        }
+    }
+
+    private final DelayQueue<Deadline> queue = new DelayQueue<>();
+
+    // Keys with a deadline in the queue, so each key is queued at most once
+    private final Set<Object> scheduled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Schedules a deadline for a key, unless the key already has one. Callers
+     * refresh a key by recording its new activity where the handler can see it;
+     * when the old deadline fires, the handler returns the new one instead of
+     * expiring the key. Every key therefore costs one queue entry, however
+     * often it is refreshed.
+     *
+     * @param key      The key to watch, e.g. a station id or a socket.
+     * @param deadline The time in milliseconds at which the key expires.
+     * @param handler  Called once the deadline has passed.
+     */
+    public void schedule(Object key, long deadline, Handler handler) {
+        if (scheduled.add(key)) {
+            queue.add(new Deadline(key, deadline, handler));
+        }
+    }
+
+    /**
+     * Runs every deadline that has already passed.
+     *
+     * @return The number of deadlines processed.
+     */
+    public int runDue() {
+        int processed = 0;
+        Deadline due;
+        while ((due = queue.poll()) != null) {
+            process(due);
+            processed++;
+        }
+        return processed;
+    }
+
+    /**
+     * Expiry thread: sleeps until the earliest deadline, so the cost is
+     * proportional to the number of deadlines reached rather than the number of
+     * keys being tracked.
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                process(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                Log.get().error("Expiry handler failed", e);
+            }
+        }
+    }
+
+    /**
+     * Starts the expiry thread.
+     *
+     * @return The started thread.
+     */
+    public Thread start() {
+        Thread expiryThread = new Thread(this, "expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+        return expiryThread;
+    }
+
+    /**
+     * Runs the handler of a deadline and queues the key again if it was
+     * refreshed. The key is unmarked before the handler runs, so a refresh that
+     * races with the expiry schedules a new deadline rather than being lost.
+     */
+    private void process(Deadline due) {
+        scheduled.remove(due.key);
+        long nextDeadline = due.handler.onDeadline(due.key, System.currentTimeMillis());
+        if (nextDeadline > 0) {
+            schedule(due.key, nextDeadline, due.handler);
+        }
+    }
+
+    /**
+     * Returns the number of keys waiting for their deadline.
+     *
+     * @return The number of scheduled keys.
+     */
+    public int pending() {
+        return queue.size();
+    }
+}
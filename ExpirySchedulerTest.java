@@ -0,0 +1,76 @@
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ExpirySchedulerTest {
+
+    // Test that a key is handed to its handler once its deadline has passed
+    @Test
+    public void testDueKeyExpires() {
+        ExpiryScheduler scheduler = new ExpiryScheduler();
+        List<Object> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        scheduler.schedule("past", now - 1, (key, currentTime) -> {
+            expired.add(key);
+            return 0;
+        });
+        scheduler.schedule("future", now + 60000, (key, currentTime) -> {
+            expired.add(key);
+            return 0;
+        });
+
+        assertEquals(1, scheduler.runDue());
+        assertEquals(List.of("past"), expired);
+        assertEquals(1, scheduler.pending());
+    }
+
+    // Test that a key refreshed before its deadline is queued again instead of expiring
+    @Test
+    public void testRefreshedKeyIsRescheduled() {
+        ExpiryScheduler scheduler = new ExpiryScheduler();
+        long now = System.currentTimeMillis();
+
+        scheduler.schedule("station", now - 1, (key, currentTime) -> currentTime + 60000);
+
+        assertEquals(1, scheduler.runDue());
+        assertEquals(1, scheduler.pending());
+        assertEquals(0, scheduler.runDue());
+    }
+
+    // Test that scheduling a key twice only queues one deadline
+    @Test
+    public void testKeyIsQueuedOnce() {
+        ExpiryScheduler scheduler = new ExpiryScheduler();
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < 100; i++) {
+            scheduler.schedule("station", now + 60000 + i, (key, currentTime) -> 0);
+        }
+        assertEquals(1, scheduler.pending());
+    }
+
+    // Test that the expiry thread wakes up at the deadline
+    @Test
+    public void testExpiryThread() throws InterruptedException {
+        ExpiryScheduler scheduler = new ExpiryScheduler();
+        CountDownLatch expired = new CountDownLatch(1);
+        ConcurrentHashMap<Object, Long> expiredAt = new ConcurrentHashMap<>();
+        long deadline = System.currentTimeMillis() + 100;
+
+        scheduler.schedule("station", deadline, (key, currentTime) -> {
+            expiredAt.put(key, currentTime);
+            expired.countDown();
+            return 0;
+        });
+        Thread expiryThread = scheduler.start();
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertTrue(expiredAt.get("station") >= deadline);
+        expiryThread.interrupt();
+    }
+}
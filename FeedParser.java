@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FeedParser {
+    /**
+     * Reads a feed file as UTF-8. Malformed bytes are replaced rather than
+     * failing the whole file.
+     *
+     * @param feedFilePath The path to the feed file.
+     * @return The text of the file.
+     * @throws IOException If the file could not be read.
+     */
+    public static String read(String feedFilePath) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(feedFilePath)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Converts feed text holding one station record to a JSON object. Every
+     * "key:value" line becomes a string field; the key ends at the first colon,
+     * so values may contain colons (e.g. 15/04:00pm). Keys and values are
+     * trimmed and escaped, and lines without a colon or key are skipped.
+     *
+     * @param feed The feed text.
+     * @return The JSON object, or null if the feed has no "id" field.
+     */
+    public static String toJson(String feed) {
+        List<String> records = parse(feed, false);
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * Converts feed text holding several station records to JSON, one object
+     * per record. A record ends at a blank line or where another "id" line
+     * starts the next one, and records without an id are skipped.
+     *
+     * @param feed The feed text.
+     * @return The JSON records in feed order, empty if no record has an id.
+     */
+    public static List<String> toJsonRecords(String feed) {
+        return parse(feed, true);
+    }
+
+    /**
+     * Scans the feed once, line by line, without regular expressions or
+     * intermediate strings for lines, keys and values.
+     *
+     * @param feed         The feed text.
+     * @param splitRecords Whether blank lines and repeated ids start a new
+     *                     record, or the whole feed is one record.
+     * @return The JSON records that have an id.
+     */
+    private static List<String> parse(String feed, boolean splitRecords) {
+        List<String> records = new ArrayList<>();
+        StringBuilder record = new StringBuilder(256);
+        boolean hasId = false;
+        int length = feed.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            // Find the end of the line and its first colon
+            int colon = -1;
+            int lineEnd = lineStart;
+            while (lineEnd < length) {
+                char c = feed.charAt(lineEnd);
+                if (c == '\n') {
+                    break;
+                }
+                if (c == ':' && colon == -1) {
+                    colon = lineEnd;
+                }
+                lineEnd++;
+            }
+
+            int keyStart = skipSpace(feed, lineStart, colon == -1 ? lineEnd : colon);
+            int keyEnd = colon == -1 ? keyStart : trimEnd(feed, keyStart, colon);
+            boolean isId = keyEnd - keyStart == 2 && feed.startsWith("id", keyStart);
+
+            // Close the current record at a blank line or the start of the next one
+            if (splitRecords && (keyStart == lineEnd || isId && hasId)) {
+                if (hasId) {
+                    records.add(record.append('}').toString());
+                }
+                record.setLength(0);
+                hasId = false;
+            }
+
+            if (keyEnd > keyStart) {
+                int valueStart = skipSpace(feed, colon + 1, lineEnd);
+                int valueEnd = trimEnd(feed, valueStart, lineEnd);
+                record.append(record.length() == 0 ? '{' : ',');
+                appendString(record, feed, keyStart, keyEnd);
+                record.append(':');
+                appendString(record, feed, valueStart, valueEnd);
+                hasId |= isId;
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (hasId) {
+            records.add(record.append('}').toString());
+        }
+        return records;
+    }
+
+    /**
+     * Appends part of a string as a quoted JSON string, escaping quotes,
+     * backslashes and control characters.
+     *
+     * @param json  The JSON being built.
+     * @param text  The text holding the string.
+     * @param start The index of the first character.
+     * @param end   The index after the last character.
+     */
+    static void appendString(StringBuilder json, String text, int start, int end) {
+        json.append('"');
+        int plainStart = start;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                continue;
+            }
+            // Copy the run of plain characters before the one that needs escaping
+            json.append(text, plainStart, i);
+            plainStart = i + 1;
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                case '\b':
+                    json.append("\\b");
+                    break;
+                case '\f':
+                    json.append("\\f");
+                    break;
+                default:
+                    json.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            }
+        }
+        json.append(text, plainStart, end).append('"');
+    }
+
+    // Whitespace as String.trim() sees it, which also drops the \r of CRLF line endings
+    private static int skipSpace(String text, int start, int end) {
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(String text, int start, int end) {
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,55 @@
+import static org.junit.Assert.*;
+import java.util.*;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class FeedParserTest {
+
+    // Test that a value is everything after the first colon, so times survive
+    @Test
+    public void testValuesWithColons() {
+        String json = FeedParser.toJson("id: IDS60901\nlocal_date_time:15/04:00pm\nurl: http://example.com:80/x\n");
+        assertEquals("{\"id\":\"IDS60901\",\"local_date_time\":\"15/04:00pm\",\"url\":\"http://example.com:80/x\"}",
+                json);
+    }
+
+    // Test that quotes, backslashes and control characters are escaped into valid JSON
+    @Test
+    public void testEscapesStrings() {
+        String json = FeedParser.toJson("id:A\"1\nname: West \"Terrace\" \\ Park\tnorth\nnote:bell\u0007ring\n");
+        JSONObject object = new JSONObject(json);
+        assertEquals("A\"1", object.getString("id"));
+        assertEquals("West \"Terrace\" \\ Park\tnorth", object.getString("name"));
+        assertEquals("bell\u0007ring", object.getString("note"));
+        assertTrue(json, json.contains("\\u0007"));
+    }
+
+    // Test trimming, CRLF line endings, empty values and lines that are not fields
+    @Test
+    public void testSkipsMalformedLines() {
+        String json = FeedParser.toJson("  id :  X1  \r\nnot a field\r\n: no key\r\ncloud:\r\nair_temp:13.3");
+        assertEquals("{\"id\":\"X1\",\"cloud\":\"\",\"air_temp\":\"13.3\"}", json);
+        assertNull(FeedParser.toJson("name: no id\nair_temp: 1\n"));
+        assertNull(FeedParser.toJson(""));
+    }
+
+    // Test that records end at blank lines or repeated ids, and records without an id are dropped
+    @Test
+    public void testSplitsRecords() {
+        List<String> records = FeedParser.toJsonRecords(
+                "id:A\nair_temp:1\n\nid:B\nair_temp:2\nid:C\n  \nname:orphan\n\nid:D\n");
+        assertEquals(Arrays.asList("{\"id\":\"A\",\"air_temp\":\"1\"}", "{\"id\":\"B\",\"air_temp\":\"2\"}",
+                "{\"id\":\"C\"}", "{\"id\":\"D\"}"), records);
+        assertTrue(FeedParser.toJsonRecords("name:orphan\n").isEmpty());
+    }
+
+    // Test that records are accepted by the server's parser
+    @Test
+    public void testRecordsParseOnServer() {
+        String json = FeedParser.toJson("id:IDS60901\nname:Adelaide (West Terrace /  ngayirdapira)\n"
+                + "local_date_time:15/04:00pm\nair_temp:13.3\n");
+        StationJson stationJson = StationJson.parse(ContentServer.buildPutRequest(json, 1, false));
+        assertNotNull(stationJson);
+        assertEquals("IDS60901", stationJson.getId());
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class FeedWatcher implements Closeable {
+    // Further events within this time of a change are taken as part of the same write
+    private static final long SETTLE_MILLIS = 50;
+
+    private final List<Path> feedFiles = new ArrayList<>();
+    private final WatchService watchService;
+
+    // The records last acknowledged by the server, by feed file and station id
+    private final Map<Path, Map<String, String>> sent = new HashMap<>();
+
+    // The records read by changedRecords(), which become the sent ones once acknowledged
+    private final Map<Path, Map<String, String>> read = new HashMap<>();
+
+    /**
+     * Starts watching the directories of the given feed files. The files do
+     * not have to exist yet.
+     *
+     * @param feedFilePaths The paths to the feed files.
+     * @throws IOException If a directory could not be watched.
+     */
+    public FeedWatcher(List<String> feedFilePaths) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<>();
+        for (String feedFilePath : feedFilePaths) {
+            Path feedFile = Paths.get(feedFilePath).toAbsolutePath().normalize();
+            feedFiles.add(feedFile);
+            sent.put(feedFile, new HashMap<>());
+            if (directories.add(feedFile.getParent())) {
+                // Editors often replace a file rather than write it in place, so creation counts as a change
+                feedFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+    }
+
+    /**
+     * Returns the watched feed files.
+     *
+     * @return The absolute paths of the feed files.
+     */
+    public List<Path> getFeedFiles() {
+        return Collections.unmodifiableList(feedFiles);
+    }
+
+    /**
+     * Reads a feed file and returns the records that are new or differ from
+     * the ones last acknowledged for the same station. Records of stations
+     * that have left the file are forgotten once acknowledged, so they are
+     * sent again if they come back.
+     *
+     * @param feedFile A watched feed file.
+     * @return The JSON records to send, in file order. Empty if nothing
+     *         changed or the file does not exist.
+     * @throws IOException If the file could not be read.
+     */
+    public List<String> changedRecords(Path feedFile) throws IOException {
+        List<String> records;
+        try {
+            records = FeedParser.toJsonRecords(FeedParser.read(feedFile.toString()));
+        } catch (NoSuchFileException e) {
+            records = Collections.emptyList();
+        }
+
+        // A station listed twice in a file is sent as it was last listed
+        Map<String, String> current = new LinkedHashMap<>();
+        for (String record : records) {
+            StationJson stationJson = StationJson.parse(record);
+            if (stationJson != null) {
+                current.put(stationJson.getId(), record);
+            }
+        }
+        read.put(feedFile, current);
+
+        Map<String, String> previous = sent.get(feedFile);
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> record : current.entrySet()) {
+            if (!record.getValue().equals(previous.get(record.getKey()))) {
+                changed.add(record.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Records that the changes last returned for a feed file reached the
+     * server.
+     *
+     * @param feedFile A watched feed file.
+     */
+    public void acknowledge(Path feedFile) {
+        Map<String, String> current = read.remove(feedFile);
+        if (current != null) {
+            sent.put(feedFile, current);
+        }
+    }
+
+    /**
+     * Records that the record last returned for one station of a feed file
+     * was taken care of, when the rest of the file's changes were not.
+     *
+     * @param feedFile  A watched feed file.
+     * @param stationId The id of the station.
+     */
+    public void acknowledge(Path feedFile, String stationId) {
+        Map<String, String> current = read.get(feedFile);
+        if (current != null && current.containsKey(stationId)) {
+            sent.get(feedFile).put(stationId, current.get(stationId));
+        }
+    }
+
+    /**
+     * Forgets which records of a feed file the server acknowledged, so the next
+     * call of changedRecords() returns every record of the file. The server
+     * drops a station that has not been updated for a while, so records that
+     * never change still have to be sent again from time to time.
+     *
+     * @param feedFile A watched feed file.
+     */
+    public void refresh(Path feedFile) {
+        sent.get(feedFile).clear();
+    }
+
+    /**
+     * Waits until feed files change. Once one does, events that follow within
+     * SETTLE_MILLIS are gathered too, so a file written in several steps is
+     * read once.
+     *
+     * @param timeoutMillis The longest time to wait.
+     * @return The feed files that changed, empty if none did in time.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public Set<Path> awaitChanges(long timeoutMillis) throws InterruptedException {
+        Set<Path> changed = new LinkedHashSet<>();
+        WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        while (key != null) {
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost, any file in the directory may have changed
+                    for (Path feedFile : feedFiles) {
+                        if (feedFile.getParent().equals(directory)) {
+                            changed.add(feedFile);
+                        }
+                    }
+                } else {
+                    Path file = directory.resolve((Path) event.context());
+                    if (feedFiles.contains(file)) {
+                        changed.add(file);
+                    }
+                }
+            }
+            key.reset();
+            key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,76 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.Test;
+
+public class FeedWatcherTest {
+
+    // Test that only new or changed records are returned once earlier ones were acknowledged
+    @Test
+    public void testChangedRecords() throws IOException {
+        Path directory = Files.createTempDirectory("feed-watcher");
+        Path feed = directory.resolve("feed.txt");
+        try (FeedWatcher watcher = new FeedWatcher(Collections.singletonList(feed.toString()))) {
+            Path feedFile = watcher.getFeedFiles().get(0);
+            assertTrue(watcher.changedRecords(feedFile).isEmpty());
+
+            write(feed, "id:A\nair_temp:1\n\nid:B\nair_temp:2\n");
+            assertEquals(2, watcher.changedRecords(feedFile).size());
+            watcher.acknowledge(feedFile);
+            assertTrue(watcher.changedRecords(feedFile).isEmpty());
+
+            // B changes and C is added
+            write(feed, "id:A\nair_temp:1\n\nid:B\nair_temp:3\n\nid:C\nair_temp:4\n");
+            assertEquals(Arrays.asList("{\"id\":\"B\",\"air_temp\":\"3\"}", "{\"id\":\"C\",\"air_temp\":\"4\"}"),
+                    watcher.changedRecords(feedFile));
+
+            // Changes that were not acknowledged are returned again
+            assertEquals(2, watcher.changedRecords(feedFile).size());
+            watcher.acknowledge(feedFile);
+
+            // A station that left the file is sent again when it comes back
+            write(feed, "id:B\nair_temp:3\n\nid:C\nair_temp:4\n");
+            assertTrue(watcher.changedRecords(feedFile).isEmpty());
+            watcher.acknowledge(feedFile);
+            write(feed, "id:A\nair_temp:1\n\nid:B\nair_temp:3\n\nid:C\nair_temp:4\n");
+            assertEquals(Collections.singletonList("{\"id\":\"A\",\"air_temp\":\"1\"}"),
+                    watcher.changedRecords(feedFile));
+            watcher.acknowledge(feedFile);
+
+            // After a refresh every record is returned again, changed or not
+            watcher.refresh(feedFile);
+            assertEquals(3, watcher.changedRecords(feedFile).size());
+        } finally {
+            Files.deleteIfExists(feed);
+            Files.delete(directory);
+        }
+    }
+
+    // Test that writing a watched file is noticed, and other files in its directory are not reported
+    @Test
+    public void testAwaitChanges() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("feed-watcher");
+        Path feed = directory.resolve("feed.txt");
+        Path other = directory.resolve("other.txt");
+        try (FeedWatcher watcher = new FeedWatcher(Collections.singletonList(feed.toString()))) {
+            write(other, "id:X\n");
+            write(feed, "id:A\n");
+            Set<Path> changed = new HashSet<>();
+            long deadline = System.currentTimeMillis() + 20000;
+            while (changed.isEmpty() && System.currentTimeMillis() < deadline) {
+                changed.addAll(watcher.awaitChanges(1000));
+            }
+            assertEquals(Collections.singleton(watcher.getFeedFiles().get(0)), changed);
+        } finally {
+            Files.deleteIfExists(feed);
+            Files.deleteIfExists(other);
+            Files.delete(directory);
+        }
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public class FrameCodec {
+    // writeUTF frames carry an unsigned 16 bit length before the encoded string
+    public static final int LENGTH_PREFIX_BYTES = 2;
+    public static final int MAX_FRAME_BYTES = LENGTH_PREFIX_BYTES + 65535;
+
+    /**
+     * Encodes a message exactly as DataOutputStream.writeUTF would write it,
+     * including the two byte length prefix.
+     *
+     * @param message The message to encode.
+     * @return The encoded frame.
+     * @throws UTFDataFormatException If the encoded message is longer than
+     *                                65535 bytes.
+     */
+    public static byte[] encode(String message) throws UTFDataFormatException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(message.length() + LENGTH_PREFIX_BYTES);
+        try (DataOutputStream outputData = new DataOutputStream(frame)) {
+            outputData.writeUTF(message);
+        } catch (UTFDataFormatException e) {
+            throw e;
+        } catch (IOException e) {
+            // Writing to a byte array cannot fail for any other reason
+            throw new UncheckedIOException(e);
+        }
+        return frame.toByteArray();
+    }
+
+    /**
+     * Encodes a message that is known to fit in a frame, such as a fixed status
+     * response.
+     *
+     * @param message The message to encode.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeShort(String message) {
+        try {
+            return encode(message);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalArgumentException("Message too long for a frame", e);
+        }
+    }
+
+    /**
+     * Decodes the next complete frame from a buffer that is in read mode. If the
+     * buffer does not yet hold a complete frame its position is left unchanged
+     * so more bytes can be appended and the call repeated.
+     *
+     * @param buffer The buffer holding the received bytes.
+     * @return The decoded message, or null if the frame is not yet complete.
+     * @throws UTFDataFormatException If the frame is not valid modified UTF-8.
+     */
+    public static String nextFrame(ByteBuffer buffer) throws UTFDataFormatException {
+        if (buffer.remaining() < LENGTH_PREFIX_BYTES) {
+            return null;
+        }
+
+        // Peek at the length without consuming it
+        int start = buffer.position();
+        int length = buffer.getShort(start) & 0xFFFF;
+        if (buffer.remaining() < LENGTH_PREFIX_BYTES + length) {
+            return null;
+        }
+
+        byte[] frame = new byte[LENGTH_PREFIX_BYTES + length];
+        buffer.get(frame);
+        try {
+            return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(frame)));
+        } catch (UTFDataFormatException e) {
+            throw e;
+        } catch (IOException e) {
+            // The frame is complete, so reading it from memory cannot fail otherwise
+            throw new UncheckedIOException(e);
+        }
+    }
+}
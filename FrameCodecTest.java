@@ -0,0 +1,50 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class FrameCodecTest {
+
+    // Test that encoded frames match what DataOutputStream.writeUTF produces
+    @Test
+    public void testEncodeMatchesWriteUTF() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new DataOutputStream(expected).writeUTF("GET /weather HTTP/1.1\r\n\r\n");
+
+        assertArrayEquals(expected.toByteArray(), FrameCodec.encode("GET /weather HTTP/1.1\r\n\r\n"));
+    }
+
+    // Test decoding a frame that arrives in several pieces
+    // Ensure nothing is consumed until the whole frame is available
+    @Test
+    public void testNextFrameWaitsForCompleteFrame() throws IOException {
+        byte[] frame = FrameCodec.encode("Heartbeat");
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        // Only the length prefix and part of the body have arrived
+        buffer.put(frame, 0, 5);
+        buffer.flip();
+        assertNull(FrameCodec.nextFrame(buffer));
+        assertEquals(0, buffer.position());
+        buffer.compact();
+
+        // The rest of the frame arrives
+        buffer.put(frame, 5, frame.length - 5);
+        buffer.flip();
+        assertEquals("Heartbeat", FrameCodec.nextFrame(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    // Test decoding two frames received back to back
+    @Test
+    public void testNextFrameDecodesConsecutiveFrames() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(FrameCodec.encode("first"));
+        buffer.put(FrameCodec.encode("second"));
+        buffer.flip();
+
+        assertEquals("first", FrameCodec.nextFrame(buffer));
+        assertEquals("second", FrameCodec.nextFrame(buffer));
+        assertNull(FrameCodec.nextFrame(buffer));
+    }
+}
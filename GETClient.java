@@ -1,34 +1,250 @@
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class GETClient {
     // Create a Lamport clock instance
     private static LamportClock lamportClock = new LamportClock();
+
+    // The last 200 response per server and target. Its ETag is sent back as If-None-Match, so the
+    // server can answer with a bodiless 304 while the data is unchanged.
+    private static final Map<String, String> lastResponses = new ConcurrentHashMap<>();
     public static void main(String args[]) {
         if (args.length < 1) {
             System.exit(1);
         }
 
-        // Extract the server URL from command line arguments
-        String clientUrl = args[0];
-        String host = clientUrl.split(":")[0];
-        int port = Integer.parseInt(clientUrl.split(":")[1]);
+        // Extract the server URL from command line arguments, --http sends raw HTTP
+        // instead of a writeUTF frame, --subscribe keeps receiving updates and
+        // --poll=<ms> repeats the GET. The URL may end in a path with a query, e.g.
+        // localhost:4567/weather?id=IDS60901
+        String clientUrl = args[0].startsWith("http://") ? args[0].substring(7) : args[0];
+        List<String> flags = Arrays.asList(args).subList(1, args.length);
+        boolean rawHttp = flags.contains("--http");
+        int pathStart = clientUrl.indexOf('/');
+        String target = pathStart == -1 ? "/weather" : clientUrl.substring(pathStart);
+        String address = pathStart == -1 ? clientUrl : clientUrl.substring(0, pathStart);
 
-        // Open a socket connection to the server
-        try (Socket socket = new Socket(host, port);
-                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
-                BufferedReader inputReader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        // Several comma separated addresses are shards: the query is routed, or scattered and gathered
+        if (address.contains(",")) {
+            try {
+                String response = ShardRouter.parse(address).get(target, lamportClock);
+                processServerResponse(new BufferedReader(new StringReader(response)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        String host = address.split(":")[0];
+        int port = Integer.parseInt(address.split(":")[1]);
 
-            // Heartbeat has been commented out as was causing issues. 
-            // startHeartbeatThread(outputData);
-            // Send a GET request to the server
-            sendGetRequest(outputData, host, port, lamportClock);
+        if (flags.contains("--subscribe")) {
+            int queryStart = target.indexOf('?');
+            subscribe(host, port, "/subscribe" + (queryStart == -1 ? "" : target.substring(queryStart)), rawHttp);
+            return;
+        }
 
-            // Process the server's response
-            processServerResponse(inputReader);
-        } catch (IOException e) {
-            e.printStackTrace();
+        long pollInterval = 0;
+        for (String flag : flags) {
+            if (flag.startsWith("--poll=")) {
+                pollInterval = Long.parseLong(flag.substring("--poll=".length()));
+            }
         }
+
+        while (true) {
+            // Open a socket connection to the server
+            try (Socket socket = new Socket(host, port);
+                    DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                    BufferedReader inputReader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+
+                // Heartbeat has been commented out as was causing issues. 
+                // startHeartbeatThread(outputData);
+                // Send a GET request to the server
+                if (rawHttp) {
+                    sendHttpGetRequest(outputData, host, port, target, lamportClock);
+                } else {
+                    sendGetRequest(outputData, host, port, target, lamportClock);
+                }
+
+                // Process the server's response
+                processServerResponse(inputReader, cacheKey(host, port, target));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            if (pollInterval <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static String cacheKey(String host, int port, String target) {
+        return host + ":" + port + target;
+    }
+
+    /**
+     * Returns the If-None-Match header for a GET, naming the ETag of the last
+     * response received for the same server and target.
+     *
+     * @return The header line, or an empty string if nothing is cached.
+     */
+    private static String conditionHeader(String host, int port, String target) {
+        String cached = lastResponses.get(cacheKey(host, port, target));
+        String etag = cached == null ? null : HttpCodec.responseHeader(cached, "ETag");
+        return etag == null ? "" : "If-None-Match: " + etag + "\r\n";
+    }
+
+    /**
+     * Resolves a response against the cache of last responses: a 304 Not
+     * Modified is replaced by the cached response it refers to, and a 200 with
+     * an ETag is cached for the next request.
+     *
+     * @param cacheKey The server and target the response answers.
+     * @param response The response received.
+     * @return The response to use.
+     */
+    public static String resolveCached(String cacheKey, String response) {
+        // A response read from a frame connection starts with the frame's length bytes
+        int statusStart = response.indexOf("HTTP/1.1 ");
+        if (cacheKey == null || statusStart == -1) {
+            return response;
+        }
+        response = response.substring(statusStart);
+        if (response.startsWith("HTTP/1.1 304")) {
+            String cached = lastResponses.get(cacheKey);
+            if (cached != null) {
+                System.out.println("Not modified since the last request, using the cached response.");
+                return cached;
+            }
+        } else if (response.startsWith("HTTP/1.1 200") && HttpCodec.responseHeader(response, "ETag") != null) {
+            lastResponses.put(cacheKey, response);
+        }
+        return response;
+    }
+
+    /**
+     * Holds a subscription open and prints every update the server pushes,
+     * instead of polling with repeated GETs. The server sends a heartbeat while
+     * there are no updates; if neither arrives for three heartbeat intervals,
+     * or the connection drops, the client reconnects and subscribes again.
+     *
+     * @param host    The host address of the server.
+     * @param port    The port number of the server.
+     * @param target  The subscription target, e.g. /subscribe?id=IDS60901.
+     * @param rawHttp Whether to subscribe over raw HTTP (an event stream)
+     *                rather than writeUTF frames.
+     */
+    public static void subscribe(String host, int port, String target, boolean rawHttp) {
+        while (true) {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setSoTimeout((int) SubscriptionHub.HEARTBEAT_INTERVAL * 3);
+                boolean subscribed;
+                if (rawHttp) {
+                    sendHttpGetRequest(socket.getOutputStream(), host, port, target, lamportClock);
+                    subscribed = readEventStream(new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)), System.out::println);
+                } else {
+                    sendGetRequest(new DataOutputStream(socket.getOutputStream()), host, port, target, lamportClock);
+                    subscribed = readUpdateFrames(new DataInputStream(
+                            new BufferedInputStream(socket.getInputStream())), System.out::println);
+                }
+                if (!subscribed) {
+                    return;
+                }
+                System.out.println("Subscription closed by the server, reconnecting...");
+            } catch (IOException e) {
+                System.out.println("Subscription lost (" + e.getMessage() + "), reconnecting...");
+            }
+
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a subscription sent as writeUTF frames: a response, then one frame
+     * per update, with "Heartbeat" frames in between.
+     *
+     * @param inputData The input stream of the connection.
+     * @param consumer  Receives the JSON of every update.
+     * @return false if the server refused the subscription, true once an
+     *         accepted subscription has ended.
+     * @throws IOException If the connection fails or stays silent too long.
+     */
+    public static boolean readUpdateFrames(DataInputStream inputData, Consumer<String> consumer)
+            throws IOException {
+        String response = inputData.readUTF();
+        if (!acceptSubscription(response)) {
+            return false;
+        }
+        try {
+            while (true) {
+                String frame = inputData.readUTF();
+                if (!frame.equals("Heartbeat")) {
+                    consumer.accept(frame);
+                }
+            }
+        } catch (EOFException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Reads a subscription sent as raw HTTP: a response head, then a
+     * text/event-stream whose "data:" lines carry the updates and whose comment
+     * lines are heartbeats.
+     *
+     * @param inputReader The reader of the connection.
+     * @param consumer    Receives the JSON of every update.
+     * @return false if the server refused the subscription, true once an
+     *         accepted subscription has ended.
+     * @throws IOException If the connection fails or stays silent too long.
+     */
+    public static boolean readEventStream(BufferedReader inputReader, Consumer<String> consumer)
+            throws IOException {
+        StringBuilder head = new StringBuilder();
+        String line;
+        while ((line = inputReader.readLine()) != null && !line.isEmpty()) {
+            head.append(line).append("\r\n");
+        }
+        if (!acceptSubscription(head.toString())) {
+            return false;
+        }
+        while ((line = inputReader.readLine()) != null) {
+            if (line.startsWith("data:")) {
+                consumer.accept(line.substring(5).trim());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the server's answer to a subscription and merges its clock.
+     */
+    private static boolean acceptSubscription(String response) {
+        String clock = HttpCodec.responseHeader(response, "Lamport-Clock");
+        if (clock != null && clock.matches("\\d{1,18}")) {
+            lamportClock.update(Long.parseLong(clock));
+        }
+        if (!response.startsWith("HTTP/1.1 200")) {
+            System.out.println("Subscription refused:\n" + response);
+            return false;
+        }
+        System.out.println("Subscribed, waiting for updates...");
+        return true;
     }
 
     /**
@@ -72,10 +288,27 @@ public class GETClient {
 
     public static void sendGetRequest(DataOutputStream outputData, String host, int port, LamportClock lamportClock)
         throws IOException {
+        sendGetRequest(outputData, host, port, "/weather", lamportClock);
+    }
+
+    /**
+     * Send a GET request for the given target, e.g. /weather?id=IDS60901, to the
+     * server with Lamport clock information.
+     *
+     * @param outputData   The output stream to send the GET request.
+     * @param host         The host address of the server.
+     * @param port         The port number of the server.
+     * @param target       The request target, a path with an optional query.
+     * @param lamportClock The Lamport clock used to timestamp the request.
+     * @throws IOException If an I/O error occurs while sending the request.
+     */
+    public static void sendGetRequest(DataOutputStream outputData, String host, int port, String target,
+            LamportClock lamportClock) throws IOException {
 
         // Construct the request message
-        String requestData = "GET /weather HTTP/1.1\r\n" + "Host: " + host + ":" + port + "\r\n" +
-                            "Lamport-Clock: " + lamportClock.getValue() + "\r\n\r\n";
+        String requestData = "GET " + target + " HTTP/1.1\r\n" + "Host: " + host + ":" + port + "\r\n" +
+                            "Lamport-Clock: " + lamportClock.getValue() + "\r\n" +
+                            conditionHeader(host, port, target) + "\r\n";
 
         // Write the request to the output stream and flush it
         outputData.writeUTF(requestData);
@@ -88,6 +321,31 @@ public class GETClient {
         System.out.println("Request sent:\r\n" + requestData);
     }
 
+    /**
+     * Send a GET request to the server as raw HTTP rather than a writeUTF frame,
+     * so the response is not limited to 64KB. The server closes the connection
+     * after the response.
+     *
+     * @param outputData   The output stream to send the GET request.
+     * @param host         The host address of the server.
+     * @param port         The port number of the server.
+     * @param target       The request target, a path with an optional query.
+     * @param lamportClock The Lamport clock used to timestamp the request.
+     * @throws IOException If an I/O error occurs while sending the request.
+     */
+    public static void sendHttpGetRequest(OutputStream outputData, String host, int port, String target,
+            LamportClock lamportClock) throws IOException {
+        String requestData = "GET " + target + " HTTP/1.1\r\n" + "Host: " + host + ":" + port + "\r\n" +
+                "Lamport-Clock: " + lamportClock.getValue() + "\r\n" + conditionHeader(host, port, target) +
+                "Connection: close\r\n\r\n";
+
+        outputData.write(requestData.getBytes(StandardCharsets.ISO_8859_1));
+        outputData.flush();
+        lamportClock.increment();
+
+        System.out.println("Request sent:\r\n" + requestData);
+    }
+
     /**
      * Process and print the server's response.
      * 
@@ -95,6 +353,19 @@ public class GETClient {
      * @throws IOException If an I/O error occurs while reading the response.
      */
     public static void processServerResponse(BufferedReader inputReader) throws IOException {
+        processServerResponse(inputReader, null);
+    }
+
+    /**
+     * Process and print the server's response, answering a 304 Not Modified
+     * from the last response cached for the same server and target.
+     *
+     * @param inputReader The input reader to read the server's response.
+     * @param cacheKey    The server and target the response answers, or null to
+     *                    bypass the cache.
+     * @throws IOException If an I/O error occurs while reading the response.
+     */
+    public static void processServerResponse(BufferedReader inputReader, String cacheKey) throws IOException {
         StringBuilder responseBuilder = new StringBuilder();
         String line;
     
@@ -103,7 +374,13 @@ public class GETClient {
             responseBuilder.append(line).append("\n");
         }
     
-        String serverResponse = responseBuilder.toString();
+        String serverResponse = resolveCached(cacheKey, responseBuilder.toString());
+
+        // Advance the clock past the server's, which it returns with the response
+        String clock = HttpCodec.responseHeader(serverResponse, "Lamport-Clock");
+        if (clock != null && clock.matches("\\d{1,18}")) {
+            lamportClock.update(Long.parseLong(clock));
+        }
 
         // Find the content within the curly braces {}
         int startIndex = serverResponse.indexOf("{");
@@ -0,0 +1,322 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpCodec {
+    // Raw HTTP connections are told apart from writeUTF frames by their first bytes
+    public static final int DETECT_BYTES = 4;
+    private static final String[] REQUEST_PREFIXES = { "GET ", "PUT ", "POST", "HEAD" };
+
+    // Limits on a single raw request, which unlike a frame is not capped at 64KB
+    public static final int MAX_HEAD_BYTES = 64 * 1024;
+    public static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    public static final int MAX_REQUEST_BYTES = MAX_HEAD_BYTES + MAX_BODY_BYTES;
+
+    /**
+     * Thrown when a request is larger than the server accepts.
+     */
+    public static class RequestTooLargeException extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Checks whether the first bytes of a connection could start a raw HTTP
+     * request. A writeUTF frame starts with its length, and a frame whose
+     * length happens to spell two of these letters is followed by content that
+     * does not spell the rest, so the two cannot be confused.
+     *
+     * @param bytes  The first bytes received.
+     * @param length How many bytes are available, at most DETECT_BYTES are
+     *               looked at.
+     * @return true if the bytes match the start of a raw request. With fewer
+     *         than DETECT_BYTES bytes this only says the request is still
+     *         possible.
+     */
+    public static boolean isHttp(byte[] bytes, int length) {
+        for (String prefix : REQUEST_PREFIXES) {
+            boolean matches = true;
+            for (int i = 0; i < Math.min(length, DETECT_BYTES) && matches; i++) {
+                matches = bytes[i] == prefix.charAt(i);
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the first bytes of a blocking connection without consuming them and
+     * tells whether it speaks raw HTTP. Only two bytes are needed to rule HTTP
+     * out, so a short frame is never waited on.
+     *
+     * @param input A stream that supports mark and reset.
+     * @return true for raw HTTP, false for writeUTF frames or an empty stream.
+     * @throws IOException If reading fails.
+     */
+    public static boolean detect(InputStream input) throws IOException {
+        input.mark(DETECT_BYTES);
+        try {
+            byte[] first = new byte[DETECT_BYTES];
+            int length = input.readNBytes(first, 0, 2);
+            if (length < 2 || !isHttp(first, length)) {
+                return false;
+            }
+            length += input.readNBytes(first, 2, DETECT_BYTES - 2);
+            return length == DETECT_BYTES && isHttp(first, length);
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * Reads the next raw request from a blocking stream. The headers are read
+     * up to the blank line and the body is read by Content-Length and decoded
+     * as UTF-8.
+     *
+     * @param input   A buffered stream positioned at the start of a request.
+     * @param request The request structure to fill in.
+     * @return true if a request was read, false if the stream ended before one
+     *         started.
+     * @throws ProtocolException If the request is malformed or too large.
+     * @throws IOException       If reading fails or the stream ends part way.
+     */
+    public static boolean readRequest(InputStream input, HttpRequest request) throws IOException {
+        byte[] head = new byte[256];
+        int length = 0;
+        while (!endsHead(head, length)) {
+            int next = input.read();
+            if (next == -1) {
+                if (length == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+            if (length == 0 && (next == '\r' || next == '\n')) {
+                continue; // Blank lines between requests are ignored
+            }
+            if (length == MAX_HEAD_BYTES) {
+                throw new RequestTooLargeException("Request headers larger than " + MAX_HEAD_BYTES + " bytes");
+            }
+            if (length == head.length) {
+                head = Arrays.copyOf(head, head.length * 2);
+            }
+            head[length++] = (byte) next;
+        }
+
+        int bodyLength = parseHead(new String(head, 0, length, StandardCharsets.ISO_8859_1), request);
+        byte[] body = input.readNBytes(bodyLength);
+        if (body.length < bodyLength) {
+            throw new EOFException("Connection closed in the middle of a request body");
+        }
+        request.setBody(new String(body, StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /**
+     * Takes the next complete raw request from a buffer in read mode. If the
+     * buffer does not hold a whole request yet its position is left unchanged
+     * so more bytes can be appended and the call repeated.
+     *
+     * @param buffer  The buffer holding the received bytes.
+     * @param request The request structure to fill in.
+     * @return true if a request was taken from the buffer.
+     * @throws ProtocolException If the request is malformed or too large.
+     */
+    public static boolean nextRequest(ByteBuffer buffer, HttpRequest request) throws ProtocolException {
+        // Blank lines between requests are ignored
+        while (buffer.hasRemaining() && (buffer.get(buffer.position()) == '\r' || buffer.get(buffer.position()) == '\n')) {
+            buffer.get();
+        }
+
+        byte[] bytes = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int limit = buffer.arrayOffset() + buffer.limit();
+
+        int bodyStart = headEnd(bytes, start, limit);
+        if (bodyStart == -1) {
+            if (limit - start > MAX_HEAD_BYTES) {
+                throw new RequestTooLargeException("Request headers larger than " + MAX_HEAD_BYTES + " bytes");
+            }
+            return false;
+        }
+
+        int bodyLength = parseHead(new String(bytes, start, bodyStart - start, StandardCharsets.ISO_8859_1), request);
+        if (limit - bodyStart < bodyLength) {
+            return false;
+        }
+        request.setBody(new String(bytes, bodyStart, bodyLength, StandardCharsets.UTF_8));
+        buffer.position(bodyStart + bodyLength - buffer.arrayOffset());
+        return true;
+    }
+
+    /**
+     * Parses a complete header block.
+     *
+     * @return The length of the body that follows.
+     */
+    private static int parseHead(String head, HttpRequest request) throws ProtocolException {
+        if (request.parseHead(head, 0, true) < 0) {
+            throw new ProtocolException("Malformed request");
+        }
+        long bodyLength;
+        try {
+            bodyLength = Math.max(request.getContentLength(), 0);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid Content-Length");
+        }
+        if (bodyLength > MAX_BODY_BYTES) {
+            throw new RequestTooLargeException("Request body larger than " + MAX_BODY_BYTES + " bytes");
+        }
+        return (int) bodyLength;
+    }
+
+    /**
+     * Finds the blank line that ends a header block, accepting CRLF or bare LF
+     * line endings.
+     *
+     * @return The index after the blank line, or -1 if it has not arrived yet.
+     */
+    private static int headEnd(byte[] bytes, int start, int limit) {
+        for (int i = start; i < limit; i++) {
+            if (bytes[i] == '\n') {
+                if (i + 1 < limit && bytes[i + 1] == '\n') {
+                    return i + 2;
+                }
+                if (i + 2 < limit && bytes[i + 1] == '\r' && bytes[i + 2] == '\n') {
+                    return i + 3;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether the bytes read so far end with the blank line that ends a
+     * header block.
+     */
+    private static boolean endsHead(byte[] bytes, int length) {
+        return length >= 2 && bytes[length - 1] == '\n'
+                && (bytes[length - 2] == '\n' || length >= 3 && bytes[length - 2] == '\r' && bytes[length - 3] == '\n');
+    }
+
+    /**
+     * Encodes a response built by the server, such as
+     * "HTTP/1.1 201 Created\r\n\r\nData received and stored.", as raw HTTP. The
+     * Content-Length header is set to the length of the UTF-8 encoded body, so
+     * the client can find the end of the response on a persistent connection.
+     *
+     * @param response The response text.
+     * @return The encoded response.
+     */
+    public static byte[] encodeResponse(String response) {
+        int separator = response.indexOf("\r\n\r\n");
+        String head = separator == -1 ? response : response.substring(0, separator);
+        byte[] body = separator == -1 ? new byte[0]
+                : response.substring(separator + 4).getBytes(StandardCharsets.UTF_8);
+
+        StringBuilder headBuilder = new StringBuilder(head.length() + 32);
+        for (String line : head.split("\r\n")) {
+            if (!line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                headBuilder.append(line).append("\r\n");
+            }
+        }
+        headBuilder.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+
+        byte[] headBytes = headBuilder.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] encoded = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, encoded, 0, headBytes.length);
+        System.arraycopy(body, 0, encoded, headBytes.length, body.length);
+        return encoded;
+    }
+
+    /**
+     * Strips the body from an encoded response, for answering HEAD requests.
+     * The Content-Length header still gives the length the body would have.
+     *
+     * @param response The encoded response.
+     * @return The status line and headers of the response.
+     */
+    public static byte[] headOnly(byte[] response) {
+        int end = headEnd(response, 0, response.length);
+        return Arrays.copyOf(response, end == -1 ? response.length : end);
+    }
+
+    /**
+     * Reads a raw HTTP response from a blocking stream. The body is read by
+     * Content-Length, or up to the end of the stream without one.
+     *
+     * @param input The stream of the connection.
+     * @return The response as text, headers and body separated by a blank line.
+     * @throws IOException If the connection ends before a response arrives.
+     */
+    public static String readResponse(InputStream input) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int previous = -1;
+        int lineLength = 0;
+        while (true) {
+            int next = input.read();
+            if (next == -1) {
+                throw new EOFException("Connection closed before a complete response");
+            }
+            head.write(next);
+            if (next == '\n') {
+                if (lineLength == 0 || lineLength == 1 && previous == '\r') {
+                    break;
+                }
+                lineLength = 0;
+            } else {
+                lineLength++;
+            }
+            previous = next;
+        }
+
+        String headText = head.toString(StandardCharsets.ISO_8859_1);
+        long contentLength = -1;
+        for (String line : headText.split("\r?\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(line.substring(15).trim());
+            }
+        }
+        byte[] body = contentLength < 0 ? input.readAllBytes() : input.readNBytes((int) contentLength);
+        if (contentLength >= 0 && body.length < contentLength) {
+            throw new EOFException("Connection closed in the middle of a response body");
+        }
+        return headText + new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value of a header of a response given as text. Header names
+     * are case-insensitive and lines may end in CRLF or a bare LF.
+     *
+     * @param response The response, headers and body separated by a blank line.
+     * @param name     The header name.
+     * @return The trimmed value of the first header with that name, or null if
+     *         there is none.
+     */
+    public static String responseHeader(String response, String name) {
+        int lineStart = response.indexOf('\n') + 1; // Skip the status line
+        while (lineStart > 0 && lineStart < response.length()) {
+            int lineEnd = response.indexOf('\n', lineStart);
+            if (lineEnd == -1) {
+                lineEnd = response.length();
+            }
+            String line = response.substring(lineStart, lineEnd).trim();
+            if (line.isEmpty()) {
+                break; // The blank line that ends the headers
+            }
+            int colon = line.indexOf(':');
+            if (colon == name.length() && line.regionMatches(true, 0, name, 0, colon)) {
+                return line.substring(colon + 1).trim();
+            }
+            lineStart = lineEnd + 1;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,115 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class HttpCodecTest {
+
+    // Test that raw HTTP is told apart from writeUTF frames, including frames whose length looks like text
+    @Test
+    public void testDetect() throws IOException {
+        assertTrue(HttpCodec.detect(new BufferedInputStream(new ByteArrayInputStream("GET / HTTP/1.1\r\n\r\n".getBytes()))));
+        assertTrue(HttpCodec.detect(new BufferedInputStream(new ByteArrayInputStream("PUT / HTTP/1.1\r\n\r\n".getBytes()))));
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        new DataOutputStream(frame).writeUTF("GET /weather HTTP/1.1\r\n\r\n");
+        BufferedInputStream input = new BufferedInputStream(new ByteArrayInputStream(frame.toByteArray()));
+        assertFalse(HttpCodec.detect(input));
+
+        // Detection does not consume anything
+        assertEquals("GET /weather HTTP/1.1\r\n\r\n", new DataInputStream(input).readUTF());
+
+        // A frame whose length bytes spell "GE" is followed by its content, not "T "
+        byte[] lookalike = new byte[] { 'G', 'E', '\r', '\n' };
+        assertFalse(HttpCodec.detect(new BufferedInputStream(new ByteArrayInputStream(lookalike))));
+    }
+
+    // Test reading pipelined raw requests from a stream
+    @Test
+    public void testReadRequest() throws IOException {
+        String body = "{\"id\":\"Z\u00fcrich\"}";
+        byte[] put = ContentServer.buildHttpPutRequest(body, 4, true);
+        byte[] get = "\r\nGET /weather HTTP/1.1\nHost: x\n\n".getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(put);
+        stream.write(get);
+        InputStream input = new BufferedInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        HttpRequest request = new HttpRequest();
+
+        assertTrue(HttpCodec.readRequest(input, request));
+        assertSame(HttpRequest.PUT, request.getMethod());
+        assertEquals(4, request.getLongHeader("Lamport-Clock", -1));
+        assertEquals(body, request.getBody());
+        assertTrue(request.isPersistent());
+
+        assertTrue(HttpCodec.readRequest(input, request));
+        assertSame(HttpRequest.GET, request.getMethod());
+        assertEquals("x", request.getHeader("Host"));
+
+        assertFalse(HttpCodec.readRequest(input, request));
+    }
+
+    // Test taking requests from a buffer as their bytes trickle in
+    @Test
+    public void testNextRequestIncrementally() throws ProtocolException {
+        byte[] put = ContentServer.buildHttpPutRequest("{\"id\":\"1\"}", 0, false);
+        ByteBuffer buffer = ByteBuffer.allocate(put.length);
+        HttpRequest request = new HttpRequest();
+
+        for (byte b : put) {
+            buffer.flip();
+            assertFalse(HttpCodec.nextRequest(buffer, request));
+            buffer.compact();
+            buffer.put(b);
+        }
+        buffer.flip();
+        assertTrue(HttpCodec.nextRequest(buffer, request));
+        assertEquals("{\"id\":\"1\"}", request.getBody());
+        assertFalse(request.isPersistent());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    // Test rejection of malformed and oversized requests
+    @Test
+    public void testRejects() {
+        HttpRequest request = new HttpRequest();
+        try {
+            HttpCodec.readRequest(new ByteArrayInputStream("PUT / HTTP/1.1\r\nContent-Length: x\r\n\r\n".getBytes()), request);
+            fail("Expected a ProtocolException");
+        } catch (IOException e) {
+            assertTrue(e instanceof ProtocolException);
+        }
+        try {
+            HttpCodec.readRequest(new ByteArrayInputStream(("PUT / HTTP/1.1\r\nContent-Length: "
+                    + (HttpCodec.MAX_BODY_BYTES + 1) + "\r\n\r\n").getBytes()), request);
+            fail("Expected a RequestTooLargeException");
+        } catch (IOException e) {
+            assertTrue(e instanceof HttpCodec.RequestTooLargeException);
+        }
+    }
+
+    // Test encoding a server response, with Content-Length counting UTF-8 bytes
+    @Test
+    public void testEncodeResponse() throws IOException {
+        byte[] encoded = HttpCodec.encodeResponse("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                + "Content-Length: 3\r\n\r\n\"\u00e9\"");
+        String text = new String(encoded, StandardCharsets.ISO_8859_1);
+        assertTrue(text.startsWith("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 4\r\n\r\n"));
+
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 4\r\n\r\n\"\u00e9\"",
+                HttpCodec.readResponse(new ByteArrayInputStream(encoded)));
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 4\r\n\r\n",
+                new String(HttpCodec.headOnly(encoded), StandardCharsets.ISO_8859_1));
+    }
+
+    // Test reading a header from a response, with either line ending
+    @Test
+    public void testResponseHeader() {
+        String response = "HTTP/1.1 200 OK\r\nlamport-clock: 42\r\n\r\nLamport-Clock: 7";
+        assertEquals("42", HttpCodec.responseHeader(response, "Lamport-Clock"));
+        assertEquals("42", HttpCodec.responseHeader(response.replace("\r\n", "\n"), "Lamport-Clock"));
+        assertNull(HttpCodec.responseHeader("HTTP/1.1 200 OK\r\n\r\nLamport-Clock: 7", "Lamport-Clock"));
+    }
+}
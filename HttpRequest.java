@@ -0,0 +1,390 @@
+import java.util.Arrays;
+
+public class HttpRequest {
+    // Returned by parse() when more input is needed, or when the input is not a request
+    public static final int INCOMPLETE = -1;
+    public static final int MALFORMED = -2;
+
+    // Methods are shared constants, so parsing a request line does not allocate them
+    public static final String GET = "GET";
+    public static final String PUT = "PUT";
+    public static final String POST = "POST";
+    public static final String HEAD = "HEAD";
+    private static final String[] KNOWN_METHODS = { GET, PUT, POST, HEAD };
+
+    // Upper bound on the number of headers accepted in one request
+    private static final int MAX_HEADERS = 100;
+
+    private String source;
+    private String method;
+    private String target;
+    private String version;
+    private String[] headerNames = new String[16];
+    private String[] headerValues = new String[16];
+    private int headerCount;
+    private int bodyStart;
+    private int bodyEnd;
+
+    /**
+     * Clears the request so it can be reused for the next one on a connection.
+     * The header arrays are kept, so a connection only allocates them once.
+     */
+    public void reset() {
+        source = null;
+        method = null;
+        target = null;
+        version = null;
+        Arrays.fill(headerNames, 0, headerCount, null);
+        Arrays.fill(headerValues, 0, headerCount, null);
+        headerCount = 0;
+        bodyStart = 0;
+        bodyEnd = 0;
+    }
+
+    /**
+     * Parses a request that arrived as one complete message, such as a writeUTF
+     * frame. The end of the message ends the headers and, without a
+     * Content-Length header, the body.
+     *
+     * @param message The request message.
+     * @return true if the message is an HTTP request, otherwise the request is
+     *         left empty.
+     */
+    public boolean parseMessage(String message) {
+        if (parse(message, 0, true) < 0) {
+            reset();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a message opens with the request line of a known method,
+     * after any blank lines. Such a message is meant as HTTP even when it does
+     * not parse, and is not taken as a bare record.
+     *
+     * @param message The received message.
+     * @return true if the message starts like an HTTP request.
+     */
+    public static boolean startsLikeRequest(String message) {
+        int position = 0;
+        while (position < message.length() && (message.charAt(position) == '\r' || message.charAt(position) == '\n')) {
+            position++;
+        }
+        for (String known : KNOWN_METHODS) {
+            if (message.startsWith(known + " ", position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the request starting at the given offset. Blank lines before the
+     * request line are skipped, lines may end in CRLF or a bare LF, and a line
+     * that starts with '{' or '[' where a header is expected is taken as the
+     * start of the body, which older content servers send without a blank line
+     * in between. The body is framed by Content-Length.
+     *
+     * @param input    The received text, which may hold more than one request.
+     * @param offset   The index at which the request starts.
+     * @param complete Whether the input ends where the request ends, so the
+     *                 request can be parsed without a blank line after the
+     *                 headers or a Content-Length header.
+     * @return The index after the request, INCOMPLETE if more input is needed,
+     *         or MALFORMED if the input is not a valid request.
+     */
+    public int parse(String input, int offset, boolean complete) {
+        int end = input.length();
+        int position = parseHead(input, offset, complete);
+        if (position < 0) {
+            return position;
+        }
+
+        // The body is framed by Content-Length, a complete message may also just end
+        long length;
+        try {
+            length = getContentLength();
+        } catch (NumberFormatException e) {
+            return MALFORMED;
+        }
+        if (length < 0) {
+            bodyEnd = complete ? end : bodyStart;
+            return bodyEnd;
+        }
+        if (end - bodyStart < length) {
+            return complete ? MALFORMED : INCOMPLETE;
+        }
+        bodyEnd = bodyStart + (int) length;
+        return bodyEnd;
+    }
+
+    /**
+     * Parses the request line and headers only, for callers that read the body
+     * themselves and hand it over with setBody().
+     *
+     * @param input    The received text.
+     * @param offset   The index at which the request starts.
+     * @param complete Whether the input ends where the headers end.
+     * @return The index at which the body starts, INCOMPLETE if more input is
+     *         needed, or MALFORMED if the input is not a valid request.
+     */
+    public int parseHead(String input, int offset, boolean complete) {
+        reset();
+        source = input;
+        int end = input.length();
+
+        // Skip empty lines before the request line
+        int position = offset;
+        while (position < end && (input.charAt(position) == '\r' || input.charAt(position) == '\n')) {
+            position++;
+        }
+
+        // Request line: method SP target SP version
+        int lineEnd = input.indexOf('\n', position);
+        if (lineEnd == -1) {
+            if (!complete) {
+                return INCOMPLETE;
+            }
+            lineEnd = end;
+        }
+        int firstSpace = input.indexOf(' ', position);
+        int secondSpace = firstSpace == -1 ? -1 : input.indexOf(' ', firstSpace + 1);
+        if (firstSpace <= position || secondSpace == -1 || secondSpace >= lineEnd || secondSpace == firstSpace + 1) {
+            return MALFORMED;
+        }
+        for (int i = position; i < firstSpace; i++) {
+            if (!isTokenChar(input.charAt(i))) {
+                return MALFORMED;
+            }
+        }
+        int versionEnd = trimLine(input, secondSpace + 1, lineEnd);
+        if (!input.startsWith("HTTP/", secondSpace + 1) || versionEnd <= secondSpace + 1) {
+            return MALFORMED;
+        }
+        method = knownMethod(input, position, firstSpace);
+        target = input.substring(firstSpace + 1, secondSpace);
+        version = input.substring(secondSpace + 1, versionEnd);
+        position = Math.min(lineEnd + 1, end);
+
+        // Header lines up to a blank line, the start of an unseparated body or the end of a message
+        while (true) {
+            if (position == end) {
+                if (!complete) {
+                    return INCOMPLETE;
+                }
+                break;
+            }
+            char first = input.charAt(position);
+            if (first == '{' || first == '[') {
+                break;
+            }
+
+            int lineStart = position;
+            lineEnd = input.indexOf('\n', lineStart);
+            if (lineEnd == -1) {
+                if (!complete) {
+                    return INCOMPLETE;
+                }
+                lineEnd = end;
+            }
+            position = Math.min(lineEnd + 1, end);
+            int contentEnd = trimLine(input, lineStart, lineEnd);
+            if (contentEnd == lineStart) {
+                break;
+            }
+            if (!addHeader(input, lineStart, contentEnd)) {
+                return MALFORMED;
+            }
+        }
+        bodyStart = position;
+        bodyEnd = position;
+        return position;
+    }
+
+    /**
+     * Replaces the body with one that was read separately, e.g. decoded from the
+     * raw bytes that followed the headers.
+     *
+     * @param body The request body.
+     */
+    public void setBody(String body) {
+        source = body;
+        bodyStart = 0;
+        bodyEnd = body.length();
+    }
+
+    /**
+     * Adds a "Name: value" header line.
+     *
+     * @return false if the line is not a valid header.
+     */
+    private boolean addHeader(String input, int start, int end) {
+        int colon = input.indexOf(':', start);
+        if (colon <= start || colon >= end || headerCount == MAX_HEADERS) {
+            return false;
+        }
+        for (int i = start; i < colon; i++) {
+            if (!isTokenChar(input.charAt(i))) {
+                return false;
+            }
+        }
+
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+        }
+        headerNames[headerCount] = input.substring(start, colon);
+        headerValues[headerCount] = input.substring(colon + 1, end).trim();
+        headerCount++;
+        return true;
+    }
+
+    /**
+     * Returns the method of the request, e.g. GET or PUT.
+     *
+     * @return The method, or null if no request has been parsed.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the request target, e.g. /weather.
+     *
+     * @return The target as sent.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the protocol version, e.g. HTTP/1.1.
+     *
+     * @return The version as sent.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the value of a header. Header names are case-insensitive.
+     *
+     * @param name The header name.
+     * @return The value of the first header with that name, or null if there is
+     *         none.
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNames[i].equalsIgnoreCase(name)) {
+                return headerValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of a numeric header, such as Lamport-Clock.
+     *
+     * @param name         The header name.
+     * @param defaultValue The value to return if the header is absent.
+     * @return The header value.
+     * @throws NumberFormatException If the header is present but not a number.
+     */
+    public long getLongHeader(String name, long defaultValue) {
+        String value = getHeader(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Returns the length of the body announced by the Content-Length header.
+     *
+     * @return The body length, or -1 if there is no Content-Length header.
+     * @throws NumberFormatException If the header is not a valid length.
+     */
+    public long getContentLength() {
+        String value = getHeader("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        long length = Long.parseLong(value);
+        if (length < 0) {
+            throw new NumberFormatException("Negative Content-Length: " + value);
+        }
+        return length;
+    }
+
+    /**
+     * Checks whether an HTTP/1.1 connection stays open after this request, which
+     * it does unless the client sends "Connection: close". Messages sent as
+     * writeUTF frames only keep the connection with an explicit keep-alive, see
+     * isKeepAlive().
+     *
+     * @return true if the connection should stay open after the response.
+     */
+    public boolean isPersistent() {
+        String connection = getHeader("Connection");
+        if (connection != null) {
+            return !connection.toLowerCase().contains("close");
+        }
+        return "HTTP/1.1".equals(version);
+    }
+
+    /**
+     * Checks whether the request asks for the connection to be kept open with a
+     * "Connection: keep-alive" header.
+     *
+     * @return true if the connection should stay open after the response.
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        return connection != null && connection.toLowerCase().contains("keep-alive");
+    }
+
+    /**
+     * Returns the text the request was parsed from. Together with the body
+     * offsets this lets the body be read in place.
+     *
+     * @return The parsed text.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public int getBodyStart() {
+        return bodyStart;
+    }
+
+    public int getBodyEnd() {
+        return bodyEnd;
+    }
+
+    /**
+     * Returns a copy of the body.
+     *
+     * @return The body, empty if the request has none.
+     */
+    public String getBody() {
+        return source == null ? "" : source.substring(bodyStart, bodyEnd);
+    }
+
+    private static int trimLine(String input, int start, int end) {
+        while (end > start && (input.charAt(end - 1) == '\r' || input.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static String knownMethod(String input, int start, int end) {
+        for (String known : KNOWN_METHODS) {
+            if (known.length() == end - start && input.startsWith(known, start)) {
+                return known;
+            }
+        }
+        return input.substring(start, end);
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c > ' ' && c < 127 && "()<>@,;:\\\"/[]?={}".indexOf(c) == -1;
+    }
+}
@@ -0,0 +1,96 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class HttpRequestTest {
+
+    // Test parsing the request line, headers and Content-Length framed body
+    @Test
+    public void testParsePut() {
+        String json = "{\"id\":\"IDS60901\"}";
+        String message = ContentServer.buildPutRequest(json, 7, true);
+        HttpRequest request = new HttpRequest();
+
+        assertTrue(request.parseMessage(message));
+        assertSame(HttpRequest.PUT, request.getMethod());
+        assertEquals("/weather_data.txt", request.getTarget());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("text/Json", request.getHeader("content-type"));
+        assertEquals(7, request.getLongHeader("Lamport-Clock", -1));
+        assertTrue(request.isKeepAlive());
+        assertEquals(json, request.getBody());
+    }
+
+    // Test that a body sent straight after the headers, without a blank line, is still found
+    @Test
+    public void testBodyWithoutBlankLine() {
+        HttpRequest request = new HttpRequest();
+
+        assertTrue(request.parseMessage("\r\nPUT /weather_data.txt HTTP/1.1\r\nContent-Length: 10\r\n"
+                + "Lamport-Clock: 0\r\n{\"id\":\"1\"}"));
+        assertEquals("{\"id\":\"1\"}", request.getBody());
+        assertFalse(request.isKeepAlive());
+    }
+
+    // Test incremental parsing of pipelined requests from a stream
+    @Test
+    public void testParseIncrementally() {
+        String first = "PUT /weather_data.txt HTTP/1.1\nContent-Length: 2\n\n{}";
+        String second = "GET /weather HTTP/1.1\r\nConnection: keep-alive\r\n\r\n";
+        String input = first + second;
+        HttpRequest request = new HttpRequest();
+
+        // Every prefix of the first request is incomplete
+        for (int i = 0; i < first.length(); i++) {
+            assertEquals(HttpRequest.INCOMPLETE, request.parse(first.substring(0, i), 0, false));
+        }
+
+        int next = request.parse(input, 0, false);
+        assertEquals(first.length(), next);
+        assertEquals("{}", request.getBody());
+
+        assertEquals(input.length(), request.parse(input, next, false));
+        assertSame(HttpRequest.GET, request.getMethod());
+        assertTrue(request.isKeepAlive());
+        assertEquals("", request.getBody());
+    }
+
+    // Test that the same structure can be reused without leaking headers between requests
+    @Test
+    public void testReuse() {
+        HttpRequest request = new HttpRequest();
+        StringBuilder manyHeaders = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 40; i++) {
+            manyHeaders.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+        }
+
+        assertTrue(request.parseMessage(manyHeaders.append("\r\n").toString()));
+        assertEquals("39", request.getHeader("x-header-39"));
+
+        assertTrue(request.parseMessage("GET /weather HTTP/1.1\r\n\r\n"));
+        assertNull(request.getHeader("X-Header-0"));
+    }
+
+    // Test rejection of messages that are not valid requests
+    @Test
+    public void testMalformed() {
+        HttpRequest request = new HttpRequest();
+
+        assertFalse(request.parseMessage("Heartbeat"));
+        assertNull(request.getMethod());
+        assertFalse(request.parseMessage("Invalid Data\r\n"));
+        assertFalse(request.parseMessage("GET /weather\r\n\r\n"));
+        assertFalse(request.parseMessage("PUT / HTTP/1.1\r\nContent-Length: 100\r\n\r\n{}"));
+        assertFalse(request.parseMessage("PUT / HTTP/1.1\r\nContent-Length: ten\r\n\r\n{}"));
+        assertFalse(request.parseMessage("PUT / HTTP/1.1\r\nnot a header\r\n\r\n{}"));
+    }
+
+    // Test telling requests that fail to parse apart from bare records
+    @Test
+    public void testStartsLikeRequest() {
+        assertTrue(HttpRequest.startsLikeRequest("\r\nPUT /weather.json HTTP/1.1\r\nContent-Length: 100\r\n\r\n{}"));
+        assertTrue(HttpRequest.startsLikeRequest("GET /weather\r\n\r\n"));
+        assertFalse(HttpRequest.startsLikeRequest("{\"id\":\"IDS60901\"}"));
+        assertFalse(HttpRequest.startsLikeRequest("Invalid Data\r\n"));
+        assertFalse(HttpRequest.startsLikeRequest("PUTTING"));
+    }
+}
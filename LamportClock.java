@@ -1,20 +1,61 @@
+import java.util.concurrent.atomic.AtomicLong;
+
 public class LamportClock {
-    private int value = 0;
+    // Lock-free, so a clock shared by every request handler never becomes a hot lock
+    private final AtomicLong value = new AtomicLong();
 
     /**
      * Increments the Lamport clock value by 1.
      */
-    public synchronized void increment() {
-        value++;
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    /**
+     * Increments the Lamport clock value by 1 and returns the new value, as one
+     * atomic step.
+     *
+     * @return The Lamport time of the new event.
+     */
+    public long tick() {
+        return value.incrementAndGet();
+    }
+
+    /**
+     * Reserves a range of consecutive Lamport times, e.g. for a sender that
+     * stamps a whole batch of requests at once. The clock ends at the last
+     * time of the range.
+     *
+     * @param count The number of times to reserve, at least 1.
+     * @return The first time of the range, the others follow it.
+     */
+    public long reserve(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Cannot reserve " + count + " Lamport times");
+        }
+        return value.getAndAdd(count) + 1;
     }
 
     /**
      * Updates the Lamport clock value based on the received value.
      *
      * @param receivedValue The received Lamport clock value.
+     * @return The clock value after the update.
      */
-    public synchronized void update(int receivedValue) {
-        value = Math.max(value, receivedValue + 1);
+    public long update(long receivedValue) {
+        if (receivedValue < 0 || receivedValue == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid Lamport clock value: " + receivedValue);
+        }
+
+        // Only write when the clock has to move, so updates from behind do not contend
+        long current;
+        do {
+            current = value.get();
+            if (current > receivedValue) {
+                return current;
+            }
+        } while (!value.compareAndSet(current, receivedValue + 1));
+        return receivedValue + 1;
     }
 
     /**
@@ -22,7 +63,7 @@ public class LamportClock {
      *
      * @return The current Lamport clock value.
      */
-    public synchronized int getValue() {
-        return value;
+    public long getValue() {
+        return value.get();
     }
-}
\ No newline at end of file
+}
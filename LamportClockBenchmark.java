@@ -0,0 +1,115 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LamportClockBenchmark {
+    /**
+     * The clock as it was before it became lock-free, kept for comparison.
+     */
+    private static class SynchronizedClock {
+        private int value = 0;
+
+        public synchronized void increment() {
+            value++;
+        }
+
+        public synchronized void update(int receivedValue) {
+            value = Math.max(value, receivedValue + 1);
+        }
+
+        public synchronized int getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Has 1 to 64 threads share one clock, as the request handlers of the server
+     * do, and prints the operations per second of the synchronized and the
+     * lock-free clock. Every operation stamps an event and merges a received
+     * time, like a handled PUT. Each thread count runs for the given duration
+     * after a warm up; the best of several rounds is reported.
+     *
+     * Usage: java LamportClockBenchmark [millis] [rounds]
+     */
+    public static void main(String args[]) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int[] threadCounts = { 1, 2, 4, 8, 16, 32, 64 };
+
+        System.out.println("duration=" + millis + "ms rounds=" + rounds + " cpus="
+                + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %16s %16s%n", "threads", "synchronized/s", "lock-free/s");
+        for (int threads : threadCounts) {
+            SynchronizedClock synchronizedClock = new SynchronizedClock();
+            LamportClock lockFreeClock = new LamportClock();
+            Operation synchronizedTick = received -> {
+                long time;
+                synchronized (synchronizedClock) {
+                    synchronizedClock.increment();
+                    time = synchronizedClock.getValue();
+                }
+                synchronizedClock.update(received);
+                return time;
+            };
+            Operation lockFreeTick = received -> {
+                long time = lockFreeClock.tick();
+                lockFreeClock.update(received);
+                return time;
+            };
+
+            double synchronizedRate = 0;
+            double lockFreeRate = 0;
+            run(threads, millis / 4, synchronizedTick);
+            run(threads, millis / 4, lockFreeTick);
+            for (int round = 0; round < rounds; round++) {
+                synchronizedRate = Math.max(synchronizedRate, run(threads, millis, synchronizedTick));
+                lockFreeRate = Math.max(lockFreeRate, run(threads, millis, lockFreeTick));
+            }
+            System.out.printf("%-8d %16.0f %16.0f%n", threads, synchronizedRate, lockFreeRate);
+        }
+    }
+
+    private interface Operation {
+        long run(int received);
+    }
+
+    /**
+     * Runs the operation on the given number of threads for the duration.
+     *
+     * @return The operations completed per second over all threads.
+     */
+    private static double run(int threads, long millis, Operation operation) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] sink = new long[threads];
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                long total = 0;
+                // Received times trail the clock, as most merges of a busy server do not move it
+                while ((count & 1023) != 0 || System.nanoTime() < deadline[0]) {
+                    total += operation.run((int) count);
+                    count++;
+                }
+                sink[index] = total;
+                operations.add(count);
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1_000_000;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -1,4 +1,6 @@
 import static org.junit.Assert.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -45,4 +47,55 @@ public class LamportClockTest {
         clock.update(3);
         assertEquals(4, clock.getValue());
     }
+
+    // Test the tick method, which increments and returns the new value in one step.
+    @Test
+    public void testTick() {
+        assertEquals(1, clock.tick());
+        assertEquals(2, clock.tick());
+        assertEquals(2, clock.getValue());
+    }
+
+    // Test reserving a range of times, which leaves the clock at the last time of the range.
+    @Test
+    public void testReserve() {
+        clock.update(9);
+        assertEquals(11, clock.reserve(5));
+        assertEquals(15, clock.getValue());
+        assertEquals(16, clock.tick());
+    }
+
+    // Test that the clock goes past a value beyond the int range without overflowing.
+    @Test
+    public void testLongValues() {
+        clock.update(Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE + 1L, clock.getValue());
+        clock.update(5);
+        assertEquals(Integer.MAX_VALUE + 1L, clock.getValue());
+    }
+
+    // Test concurrent ticks and updates
+    // Ensure no tick is lost and every time handed out is unique
+    @Test
+    public void testConcurrentTicks() throws InterruptedException {
+        int threadCount = 8;
+        int ticksPerThread = 10000;
+        Set<Long> times = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < ticksPerThread; i++) {
+                    times.add(clock.tick());
+                    clock.update(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount * ticksPerThread, times.size());
+        assertTrue(clock.getValue() >= threadCount * ticksPerThread);
+    }
 }
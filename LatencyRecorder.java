@@ -0,0 +1,60 @@
+import java.util.Arrays;
+
+public class LatencyRecorder {
+    // Recorded latency samples in nanoseconds
+    private long[] samples = new long[1024];
+    private int count = 0;
+    private boolean sorted = true;
+
+    /**
+     * Records a single latency sample. A recorder is meant to be owned by one
+     * thread, use merge() to combine the recorders of several threads.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    /**
+     * Adds all samples of another recorder to this one.
+     *
+     * @param other The recorder to merge in.
+     */
+    public void merge(LatencyRecorder other) {
+        for (int i = 0; i < other.count; i++) {
+            record(other.samples[i]);
+        }
+    }
+
+    /**
+     * Returns the latency at the given percentile.
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return The latency in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Returns the number of recorded samples.
+     *
+     * @return The sample count.
+     */
+    public int getCount() {
+        return count;
+    }
+}
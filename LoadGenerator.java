@@ -0,0 +1,519 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+    // Most simulated clients sleep between requests, so a small stack lets thousands of them run
+    private static final long CLIENT_STACK_BYTES = 256 * 1024;
+
+    // A request sent this long after its scheduled time counts as sent late
+    private static final long LATE_NANOS = 10_000_000;
+
+    // How long a client waits for a response before giving up on the connection
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final String host;
+    private final int port;
+    private final boolean frames;
+    private final int contentServers;
+    private final int stations;
+
+    // Outcomes of measured requests, e.g. "PUT 201", "GET 304" or "PUT io-error"
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final Stats putStats = new Stats();
+    private final Stats getStats = new Stats();
+    private final LongAdder reconnects = new LongAdder();
+
+    // Clients keep their connections open until the server's metrics at the end of the run have been read
+    private final CountDownLatch scraped = new CountDownLatch(1);
+
+    // Set once every client thread is waiting, before they are released
+    private volatile long startNanos;
+    private volatile long measureFromNanos;
+    private volatile long endNanos;
+
+    /**
+     * What was measured for one kind of request.
+     */
+    private static final class Stats {
+        // Latency from the time a request was scheduled to be sent until its response arrived
+        final Metrics.Histogram latency = new Metrics.Histogram();
+        final LongAdder scheduled = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder late = new LongAdder();
+        final LongAccumulator maxLag = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * A keep-alive connection of one simulated client.
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final InputStream input;
+        private final DataInputStream inputData;
+        private final OutputStream output;
+        private final boolean frames;
+        private boolean used;
+
+        Connection(String host, int port, boolean frames) throws IOException {
+            this.socket = new Socket(host, port);
+            this.frames = frames;
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            input = new BufferedInputStream(socket.getInputStream());
+            inputData = new DataInputStream(input);
+            output = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Sends an encoded request and waits for its response.
+         *
+         * @param request The request, a writeUTF frame or raw HTTP.
+         * @return The response.
+         * @throws IOException If the connection failed or timed out.
+         */
+        String exchange(byte[] request) throws IOException {
+            output.write(request);
+            output.flush();
+            String response = frames ? inputData.readUTF() : HttpCodec.readResponse(input);
+            used = true;
+            return response;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+    }
+
+    /**
+     * Builds the next request of a simulated client and takes in its response.
+     */
+    private interface Client {
+        byte[] nextRequest() throws IOException;
+
+        void received(String response);
+    }
+
+    private LoadGenerator(String host, int port, boolean frames, int contentServers, int stations) {
+        this.host = host;
+        this.port = port;
+        this.frames = frames;
+        this.contentServers = contentServers;
+        this.stations = stations;
+    }
+
+    /**
+     * Simulates many content servers and GET clients against an
+     * AggregationServer and prints throughput, latency percentiles, response
+     * codes and the server's own resource use.
+     *
+     * The load is open-loop: every client sends its requests on a fixed
+     * schedule, whether or not earlier responses have arrived, and a request's
+     * latency is measured from the time it was scheduled rather than the time
+     * it was actually sent. A stalled server therefore shows up as the delay
+     * every waiting request saw, instead of as a single slow request
+     * (coordinated omission). Each client keeps one keep-alive connection, as a
+     * content server does, so a client that falls behind sends its overdue
+     * requests back to back until it has caught up.
+     *
+     * Without --port a server is started in a separate JVM with a temporary
+     * data directory, room for every simulated station and the given
+     * --server-options.
+     *
+     * Usage: java LoadGenerator [--port=N] [--host=localhost] [--content-servers=1000]
+     * [--stations=5] [--put-rate=1] [--pollers=50] [--get-rate=2] [--get-target=/weather]
+     * [--seconds=30] [--warmup=5] [--frames] [--server-options="--core=nio ..."]
+     */
+    public static void main(String args[]) throws Exception {
+        Map<String, String> options = AggregationServer.parseOptions(args);
+        int contentServers = Integer.parseInt(options.getOrDefault("content-servers", "1000"));
+        int stations = Integer.parseInt(options.getOrDefault("stations", "5"));
+        double putRate = Double.parseDouble(options.getOrDefault("put-rate", "1"));
+        int pollers = Integer.parseInt(options.getOrDefault("pollers", "50"));
+        double getRate = Double.parseDouble(options.getOrDefault("get-rate", "2"));
+        String getTarget = options.getOrDefault("get-target", "/weather");
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "30"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "5"));
+        boolean frames = options.containsKey("frames");
+        String host = options.getOrDefault("host", "localhost");
+
+        ServerProcess server = null;
+        Path dataDir = null;
+        try {
+            int port;
+            if (options.containsKey("port")) {
+                port = Integer.parseInt(options.get("port"));
+            } else {
+                List<String> serverOptions = new ArrayList<>();
+                for (String option : options.getOrDefault("server-options", "").trim().split("\\s+")) {
+                    if (!option.isEmpty()) {
+                        serverOptions.add(option);
+                    }
+                }
+                // Keep every simulated station, not just the most recently updated ones
+                if (serverOptions.stream().noneMatch(option -> option.startsWith("--retained-updates="))) {
+                    serverOptions.add("--retained-updates=" + (long) contentServers * stations);
+                }
+                if (serverOptions.stream().noneMatch(option -> option.startsWith("--data-dir="))) {
+                    dataDir = Files.createTempDirectory("load-generator");
+                    serverOptions.add("--data-dir=" + dataDir);
+                }
+                server = ServerProcess.start(ServerProcess.freePort(), serverOptions.toArray(new String[0]));
+                port = server.getPort();
+                host = "localhost";
+            }
+
+            System.out.printf(Locale.ROOT,
+                    "server=%s:%d protocol=%s content-servers=%d stations=%d put-rate=%.2f/s pollers=%d "
+                            + "get-rate=%.2f/s get-target=%s warmup=%ds duration=%ds%n",
+                    host, port, frames ? "frames" : "http", contentServers, stations, putRate, pollers, getRate,
+                    getTarget, warmup, seconds);
+            LoadGenerator load = new LoadGenerator(host, port, frames, contentServers, stations);
+            load.run(putRate, pollers, getRate, getTarget, warmup, seconds);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+            if (dataDir != null) {
+                try (var paths = Files.walk(dataDir)) {
+                    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs every simulated client for the warmup and the measured duration,
+     * then prints the report.
+     */
+    private void run(double putRate, int pollers, double getRate, String getTarget, long warmup, long seconds)
+            throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+        for (int c = 0; c < contentServers; c++) {
+            int contentServer = c;
+            long phase = (long) (1e9 / putRate * c / contentServers);
+            threads.add(new Thread(null, () -> runClient("PUT", putStats, putRate, phase,
+                    contentServerClient(contentServer), go), "content-server-" + c, CLIENT_STACK_BYTES));
+        }
+        for (int p = 0; p < pollers; p++) {
+            long phase = (long) (1e9 / getRate * p / pollers);
+            threads.add(new Thread(null, () -> runClient("GET", getStats, getRate, phase, pollerClient(getTarget), go),
+                    "poller-" + p, CLIENT_STACK_BYTES));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // Release every client at once, with a common schedule
+        startNanos = System.nanoTime() + 100_000_000;
+        measureFromNanos = startNanos + warmup * 1_000_000_000L;
+        endNanos = measureFromNanos + seconds * 1_000_000_000L;
+        go.countDown();
+
+        sleepUntil(measureFromNanos);
+        Map<String, Double> before = scrapeMetrics();
+        sleepUntil(endNanos);
+        Map<String, Double> after = scrapeMetrics();
+        scraped.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(seconds, before, after);
+    }
+
+    /**
+     * Sends a client's requests on its schedule until the run ends. Only
+     * requests scheduled after the warmup are measured.
+     *
+     * @param method The method reported for the client's requests.
+     * @param stats  Where the measured requests are recorded.
+     * @param rate   The requests per second the client sends.
+     * @param phase  The offset of the client's schedule, so clients are spread
+     *               evenly over an interval instead of sending at once.
+     * @param client The client that builds the requests.
+     * @param go     Released when every client has started.
+     */
+    private void runClient(String method, Stats stats, double rate, long phase, Client client, CountDownLatch go) {
+        try {
+            go.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+        long interval = Math.max(1, (long) (1e9 / rate));
+        Connection connection = null;
+        try {
+            for (long intended = startNanos + phase; intended < endNanos; intended += interval) {
+                boolean measured = intended >= measureFromNanos;
+                if (measured) {
+                    stats.scheduled.increment();
+                }
+                long now = System.nanoTime();
+                if (now >= endNanos) {
+                    // The client fell so far behind that the run ended before this request was sent
+                    if (measured) {
+                        count(method, "unsent", stats);
+                    }
+                    continue;
+                }
+                while (now < intended) {
+                    LockSupport.parkNanos(intended - now);
+                    now = System.nanoTime();
+                }
+                long lag = now - intended;
+
+                String outcome;
+                try {
+                    byte[] request = client.nextRequest();
+                    String response;
+                    try {
+                        if (connection == null) {
+                            connection = new Connection(host, port, frames);
+                        }
+                        response = connection.exchange(request);
+                    } catch (IOException e) {
+                        // The server closes keep-alive connections that stay idle, retry once on a new one
+                        boolean stale = connection != null && connection.used && !(e instanceof SocketTimeoutException);
+                        if (connection != null) {
+                            connection.close();
+                            connection = null;
+                        }
+                        if (!stale) {
+                            throw e;
+                        }
+                        reconnects.increment();
+                        connection = new Connection(host, port, frames);
+                        response = connection.exchange(request);
+                    }
+                    client.received(response);
+                    int status = Metrics.statusOf(response);
+                    outcome = status == 0 ? "invalid" : String.valueOf(status);
+                } catch (SocketTimeoutException e) {
+                    outcome = "timeout";
+                } catch (IOException e) {
+                    outcome = "io-error";
+                }
+                // The server closes a connection it turns away, and a failed one cannot be trusted
+                if ((outcome.equals("503") || !Character.isDigit(outcome.charAt(0))) && connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+
+                if (measured) {
+                    stats.latency.record(System.nanoTime() - intended);
+                    stats.maxLag.accumulate(lag);
+                    if (lag > LATE_NANOS) {
+                        stats.late.increment();
+                    }
+                    if (!outcome.equals("timeout") && !outcome.equals("io-error")) {
+                        stats.completed.increment();
+                    }
+                    count(method, outcome, stats);
+                }
+            }
+        } finally {
+            try {
+                scraped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private void count(String method, String outcome, Stats stats) {
+        outcomes.computeIfAbsent(method + " " + outcome, key -> new LongAdder()).increment();
+        if (!outcome.matches("[23]\\d\\d")) {
+            stats.errors.increment();
+        }
+    }
+
+    /**
+     * A content server that owns its stations and updates them in turn, one
+     * record per PUT, stamped with its own Lamport clock.
+     */
+    private Client contentServerClient(int contentServer) {
+        LamportClock clock = new LamportClock();
+        return new Client() {
+            private int next;
+
+            @Override
+            public byte[] nextRequest() throws IOException {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                String json = "{\"id\":\"" + stationId(contentServer, next++ % stations)
+                        + "\",\"name\":\"Load " + contentServer + "\",\"state\":\"SA\",\"air_temp\":\""
+                        + random.nextInt(-5, 40) + "." + random.nextInt(10) + "\",\"rel_hum\":\""
+                        + random.nextInt(10, 100) + "\"}";
+                long time = clock.tick();
+                return frames ? FrameCodec.encode(ContentServer.buildPutRequest(json, time, true))
+                        : ContentServer.buildHttpPutRequest(json, time, true);
+            }
+
+            @Override
+            public void received(String response) {
+                ContentServer.receiveClock(response, clock);
+            }
+        };
+    }
+
+    /**
+     * A GET client that polls the target and, like GETClient --poll, sends the
+     * ETag of its last response so an unchanged one is answered with a 304. A
+     * "{station}" in the target is replaced by a random simulated station.
+     */
+    private Client pollerClient(String target) {
+        LamportClock clock = new LamportClock();
+        return new Client() {
+            private String etag;
+
+            @Override
+            public byte[] nextRequest() throws IOException {
+                String requestTarget = target;
+                if (target.contains("{station}")) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    requestTarget = target.replace("{station}",
+                            stationId(random.nextInt(contentServers), random.nextInt(stations)));
+                    etag = null;
+                }
+                String request = "GET " + requestTarget + " HTTP/1.1\r\nHost: " + host + ":" + port
+                        + "\r\nLamport-Clock: " + clock.getValue() + "\r\n"
+                        + (etag != null ? "If-None-Match: " + etag + "\r\n" : "")
+                        + (frames ? "Connection: keep-alive\r\n" : "") + "\r\n";
+                clock.increment();
+                return frames ? FrameCodec.encode(request) : request.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public void received(String response) {
+                ContentServer.receiveClock(response, clock);
+                if (Metrics.statusOf(response) == 200) {
+                    etag = HttpCodec.responseHeader(response, "ETag");
+                }
+            }
+        };
+    }
+
+    private static String stationId(int contentServer, int station) {
+        return "LOAD" + contentServer + "-" + station;
+    }
+
+    /**
+     * Reads the server's /metrics on a connection of its own.
+     *
+     * @return The value of every metric by name and labels, or an empty map if
+     *         the server did not answer.
+     */
+    private Map<String, Double> scrapeMetrics() {
+        Map<String, Double> values = new HashMap<>();
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /metrics HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            output.flush();
+            String response = HttpCodec.readResponse(new BufferedInputStream(socket.getInputStream()));
+            String body = response.substring(response.indexOf("\r\n\r\n") + 4);
+            for (String line : body.split("\n")) {
+                int space = line.lastIndexOf(' ');
+                if (line.startsWith("#") || space == -1) {
+                    continue;
+                }
+                try {
+                    values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+                } catch (NumberFormatException e) {
+                    // Not a sample line
+                }
+            }
+        } catch (IOException | StringIndexOutOfBoundsException e) {
+            System.out.println("Could not read the server's metrics: " + e);
+        }
+        return values;
+    }
+
+    /**
+     * Prints what the clients measured and what the server reported over the
+     * measured part of the run.
+     */
+    private void report(long seconds, Map<String, Double> before, Map<String, Double> after) {
+        System.out.println();
+        System.out.printf("%-6s %11s %12s %8s %9s %9s %9s %9s %10s %10s %8s %12s%n", "method", "scheduled/s",
+                "completed/s", "errors", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)", "requests",
+                "late", "max lag(ms)");
+        report("PUT", putStats, seconds);
+        report("GET", getStats, seconds);
+        System.out.println("Latency is measured from the time each request was scheduled. Late requests were sent "
+                + "more than " + LATE_NANOS / 1_000_000 + "ms after their scheduled time.");
+
+        System.out.println();
+        System.out.println("Responses:");
+        new TreeMap<>(outcomes).forEach((outcome, count) -> System.out.printf("  %-16s %10d%n", outcome, count.sum()));
+        System.out.printf("  %-16s %10d%n", "reconnects", reconnects.sum());
+
+        System.out.println();
+        if (before.isEmpty() || after.isEmpty()) {
+            System.out.println("Server resource use: not available");
+            return;
+        }
+        System.out.println("Server resource use:");
+        double cpu = after.getOrDefault("process_cpu_seconds", 0.0) - before.getOrDefault("process_cpu_seconds", 0.0);
+        System.out.printf(Locale.ROOT, "  cpu                %10.2f s (%.0f%% of one core)%n", cpu,
+                100 * cpu / seconds);
+        System.out.printf(Locale.ROOT, "  gc                 %10.2f s%n",
+                after.getOrDefault("jvm_gc_seconds", 0.0) - before.getOrDefault("jvm_gc_seconds", 0.0));
+        System.out.printf(Locale.ROOT, "  heap used          %10.1f MB%n",
+                after.getOrDefault("jvm_heap_used_bytes", 0.0) / (1024 * 1024));
+        printGauge(after, "jvm_threads", "threads");
+        printGauge(after, "process_open_fds", "open fds");
+        printGauge(after, "aggregation_connections_active", "connections");
+        printGauge(after, "aggregation_store_stations", "stations");
+        System.out.printf(Locale.ROOT, "  write-ahead log    %10.1f MB%n",
+                after.getOrDefault("aggregation_wal_bytes", 0.0) / (1024 * 1024));
+        printGauge(after, "aggregation_log_dropped", "log dropped");
+        System.out.printf(Locale.ROOT, "  server PUT p99     %10.3f ms (since start)%n",
+                1000 * after.getOrDefault("aggregation_put_seconds{quantile=\"0.99\"}", 0.0));
+        System.out.printf(Locale.ROOT, "  server GET p99     %10.3f ms (since start)%n",
+                1000 * after.getOrDefault("aggregation_get_seconds{quantile=\"0.99\"}", 0.0));
+    }
+
+    private static void report(String method, Stats stats, long seconds) {
+        System.out.printf(Locale.ROOT, "%-6s %11.1f %12.1f %8d", method, stats.scheduled.sum() / (double) seconds,
+                stats.completed.sum() / (double) seconds, stats.errors.sum());
+        for (double quantile : QUANTILES) {
+            System.out.printf(Locale.ROOT, " %9.2f", stats.latency.quantile(quantile) / 1e6);
+        }
+        System.out.printf(Locale.ROOT, " %10.2f %10d %8d %12.2f%n", stats.latency.getMax() / 1e6,
+                stats.latency.getCount(), stats.late.sum(), stats.maxLag.get() / 1e6);
+    }
+
+    private static void printGauge(Map<String, Double> metrics, String name, String label) {
+        Double value = metrics.get(name);
+        if (value != null) {
+            System.out.printf(Locale.ROOT, "  %-18s %10.0f%n", label, value);
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            Thread.sleep(Math.max(1, (deadline - now) / 1_000_000));
+        }
+    }
+}
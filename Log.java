@@ -0,0 +1,306 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class Log {
+    // Events that may wait to be written before new ones are dropped
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    // The longest message written for a single event, longer ones are cut short
+    public static final int MAX_MESSAGE_LENGTH = 500;
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Log DEFAULT = new Log(null, DEFAULT_CAPACITY);
+
+    private final PrintStream output;
+    private final RingBuffer<Event> events;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writerThread;
+    private volatile boolean writerIdle;
+    private volatile Level level = Level.INFO;
+    private volatile int sampleRate = 1;
+
+    /**
+     * An event as it waits in the ring buffer. Everything but the message is
+     * captured by the thread that logs it, formatting is left to the writer.
+     */
+    private static final class Event {
+        final Level level;
+        final long time;
+        final String threadName;
+        final String message;
+        final Throwable error;
+
+        Event(Level level, String message, Throwable error) {
+            this.level = level;
+            this.time = System.currentTimeMillis();
+            this.threadName = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    /**
+     * A bounded ring buffer for many producers and a single consumer. Every
+     * slot carries a sequence number that tells producers whether the slot is
+     * free for them and the consumer whether it holds an element, so offering
+     * and polling take one compare-and-set at most and never lock. A full
+     * buffer rejects new elements instead of making producers wait.
+     */
+    static final class RingBuffer<E> {
+        private final int mask;
+        private final AtomicReferenceArray<E> elements;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head; // Only written by the consumer
+
+        /**
+         * Creates a ring buffer.
+         *
+         * @param capacity The capacity, rounded up to a power of two.
+         */
+        RingBuffer(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+            mask = size - 1;
+            elements = new AtomicReferenceArray<>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * Adds an element, from any thread.
+         *
+         * @return false if the buffer is full.
+         */
+        boolean offer(E element) {
+            long position;
+            int slot;
+            while (true) {
+                position = tail.get();
+                slot = (int) position & mask;
+                long sequence = sequences.get(slot);
+                if (sequence == position) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        break;
+                    }
+                } else if (sequence < position) {
+                    // The slot still holds the element from one lap ago
+                    return false;
+                }
+                // Another producer claimed the position first, try the next one
+            }
+            elements.set(slot, element);
+            sequences.set(slot, position + 1);
+            return true;
+        }
+
+        /**
+         * Takes the oldest element. Must only be called by the consumer thread.
+         *
+         * @return The element, or null if the buffer is empty.
+         */
+        E poll() {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                return null;
+            }
+            E element = elements.get(slot);
+            elements.set(slot, null);
+            sequences.set(slot, head + mask + 1);
+            head++;
+            return element;
+        }
+
+        boolean isEmpty() {
+            return tail.get() == head;
+        }
+    }
+
+    /**
+     * Creates a log and starts its writer thread.
+     *
+     * @param output   The stream events are written to, or null for whatever
+     *                 System.out is at the time of writing.
+     * @param capacity The number of events that may wait to be written.
+     */
+    public Log(PrintStream output, int capacity) {
+        this.output = output;
+        this.events = new RingBuffer<>(capacity);
+        writerThread = new Thread(this::runWriter, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-flush"));
+    }
+
+    /**
+     * Returns the log shared by the whole process.
+     *
+     * @return The default log, writing to System.out.
+     */
+    public static Log get() {
+        return DEFAULT;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets how many per-request events share one that is logged.
+     *
+     * @param sampleRate 1 to log every request, N to log one in N.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    public boolean isEnabled(Level eventLevel) {
+        return eventLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Decides whether a per-request event is logged: debug logging must be on
+     * and the request must be among the sampled ones. Callers check this before
+     * building the message, so requests that are not logged cost nothing more.
+     *
+     * @return true if the event should be logged with debug().
+     */
+    public boolean isRequestSampled() {
+        if (!isEnabled(Level.DEBUG)) {
+            return false;
+        }
+        int rate = sampleRate;
+        return rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    /**
+     * Queues an event for the writer thread. The caller never waits: if the
+     * writer has fallen too far behind, the event is dropped and counted.
+     *
+     * @param eventLevel The level of the event.
+     * @param message    The message.
+     * @param error      An exception whose stack trace is written with the
+     *                   message, or null.
+     */
+    public void log(Level eventLevel, String message, Throwable error) {
+        if (!isEnabled(eventLevel)) {
+            return;
+        }
+        if (!events.offer(new Event(eventLevel, message, error))) {
+            dropped.increment();
+            return;
+        }
+        if (writerIdle) {
+            writerIdle = false;
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Returns the number of events dropped because the writer fell behind.
+     *
+     * @return The dropped event count.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until every event queued so far has been written.
+     */
+    public void flush() {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!events.isEmpty() && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(100_000);
+        }
+        synchronized (this) {
+            // Waits for the batch the writer may still be printing
+        }
+    }
+
+    /**
+     * Writer thread: drains the ring buffer in batches, formats every event and
+     * writes each batch with one print, then sleeps until an event arrives.
+     */
+    private void runWriter() {
+        StringBuilder batch = new StringBuilder(16384);
+        while (true) {
+            synchronized (this) {
+                Event event;
+                while ((event = events.poll()) != null) {
+                    format(event, batch);
+                    if (event.error != null || batch.length() > 8192) {
+                        write(batch, event.error);
+                    }
+                }
+                if (batch.length() > 0) {
+                    write(batch, null);
+                }
+            }
+
+            // Recheck after announcing the writer is idle, an event may have been queued in between
+            writerIdle = true;
+            if (events.isEmpty()) {
+                LockSupport.parkNanos(this, 100_000_000);
+            }
+            writerIdle = false;
+        }
+    }
+
+    private void write(StringBuilder batch, Throwable error) {
+        PrintStream stream = output != null ? output : System.out;
+        stream.print(batch);
+        if (error != null) {
+            error.printStackTrace(stream);
+        }
+        stream.flush();
+        batch.setLength(0);
+    }
+
+    private static void format(Event event, StringBuilder batch) {
+        batch.append(Instant.ofEpochMilli(event.time)).append(' ').append(event.level);
+        for (int i = event.level.name().length(); i < 6; i++) {
+            batch.append(' ');
+        }
+        batch.append('[').append(event.threadName).append("] ");
+        String message = event.message;
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            batch.append(message, 0, MAX_MESSAGE_LENGTH).append("... (").append(message.length())
+                    .append(" chars)");
+        } else {
+            batch.append(message);
+        }
+        batch.append(System.lineSeparator());
+    }
+}
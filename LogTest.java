@@ -0,0 +1,119 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LogTest {
+
+    // Test that elements from concurrent producers all arrive, each producer's in order
+    @Test
+    public void testRingBufferManyProducers() throws InterruptedException {
+        Log.RingBuffer<long[]> buffer = new Log.RingBuffer<>(64);
+        int producers = 4;
+        int perProducer = 20_000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!buffer.offer(new long[] { producer, i })) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        long[] next = new long[producers];
+        long received = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received < (long) producers * perProducer && System.currentTimeMillis() < deadline) {
+            long[] element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) element[0]]++, element[1]);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals((long) producers * perProducer, received);
+        assertTrue(buffer.isEmpty());
+    }
+
+    // Test that a full buffer rejects elements until the consumer makes room
+    @Test
+    public void testRingBufferFull() {
+        Log.RingBuffer<String> buffer = new Log.RingBuffer<>(3);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer("e" + i));
+        }
+        assertFalse(buffer.offer("e4"));
+        assertEquals("e0", buffer.poll());
+        assertTrue(buffer.offer("e4"));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals("e" + i, buffer.poll());
+        }
+        assertNull(buffer.poll());
+    }
+
+    // Test levels, sampling and the format of written events
+    @Test
+    public void testWritesEventsAboveLevel() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Log log = new Log(new PrintStream(bytes, true, StandardCharsets.UTF_8), 16);
+        log.debug("not written");
+        assertFalse(log.isRequestSampled());
+        log.info("started");
+        log.error("failed", new IOException("disk full"));
+        StringBuilder longMessage = new StringBuilder();
+        while (longMessage.length() < 2 * Log.MAX_MESSAGE_LENGTH) {
+            longMessage.append("payload ");
+        }
+        log.warn(longMessage.toString());
+
+        log.setLevel(Log.Level.DEBUG);
+        assertTrue(log.isRequestSampled());
+        log.debug("request");
+        log.flush();
+
+        String[] lines = bytes.toString(StandardCharsets.UTF_8).split(System.lineSeparator());
+        assertTrue(lines[0], lines[0].endsWith(" INFO  [" + Thread.currentThread().getName() + "] started"));
+        assertTrue(lines[1], lines[1].endsWith("] failed"));
+        assertTrue(lines[2], lines[2].contains("IOException: disk full"));
+        String output = bytes.toString(StandardCharsets.UTF_8);
+        assertFalse(output.contains("not written"));
+        assertTrue(output.contains("... (" + longMessage.length() + " chars)"));
+        assertTrue(output.contains(" DEBUG [" + Thread.currentThread().getName() + "] request"));
+        assertEquals(0, log.getDropped());
+    }
+
+    // Test that a writer that cannot keep up makes the log drop events instead of blocking callers
+    @Test
+    public void testDropsEventsWhenWriterIsBlocked() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream blocked = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        Log log = new Log(new PrintStream(blocked, true), 4);
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            log.info("event " + i);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(log.getDropped() > 0);
+        release.countDown();
+    }
+}
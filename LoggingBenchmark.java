@@ -0,0 +1,106 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+
+public class LoggingBenchmark {
+    /**
+     * Handles PUTs in-process on several threads, as the server's request
+     * handlers do, and prints the PUTs handled per second with each way of
+     * logging them:
+     * - println: every request printed to System.out on the handler thread,
+     *   as the server did before the asynchronous log.
+     * - info: the default, per-request events are not logged.
+     * - debug/100: one in 100 requests logged through the asynchronous log.
+     * - debug: every request logged through the asynchronous log.
+     * System.out is a file with the same buffering as the JVM's own stdout, so
+     * every println is a write to the file.
+     *
+     * Usage: java LoggingBenchmark [threads] [puts] [rounds]
+     */
+    public static void main(String args[]) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int puts = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Path dataDir = Files.createTempDirectory("logging-benchmark");
+        File logFile = File.createTempFile("logging-benchmark", ".log");
+        PrintStream console = System.out;
+        try {
+            AggregationServer.openStorage(dataDir.toFile(), WriteAheadLog.Durability.ASYNC,
+                    WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+            AggregationServer.setRetainedUpdates(0);
+
+            // Each thread sends its own stations, without a clock so no PUT is stale in later rounds
+            List<List<String>> requests = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<String> threadRequests = new ArrayList<>(puts);
+                for (int i = 0; i < puts; i++) {
+                    threadRequests.add(ContentServer.buildPutRequest("{\"id\":\"LOG" + t + "-" + (i % 500)
+                            + "\",\"name\":\"Benchmark\",\"air_temp\":\"" + (i % 40) + ".5\",\"rel_hum\":\"60\"}",
+                            -1, true));
+                }
+                requests.add(threadRequests);
+            }
+
+            console.println("threads=" + threads + " puts=" + puts + " rounds=" + rounds + " cpus="
+                    + Runtime.getRuntime().availableProcessors());
+            console.printf("%-10s %12s %10s%n", "logging", "PUTs/s", "dropped");
+            System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(logFile), 128), true));
+            String[] modes = { "println", "info", "debug/100", "debug" };
+            Log log = Log.get();
+            for (String mode : modes) {
+                log.setLevel(mode.startsWith("debug") ? Log.Level.DEBUG : Log.Level.INFO);
+                log.setSampleRate(mode.equals("debug/100") ? 100 : 1);
+                long droppedBefore = log.getDropped();
+                boolean println = mode.equals("println");
+
+                run(requests, println);
+                double best = 0;
+                for (int round = 0; round < rounds; round++) {
+                    best = Math.max(best, run(requests, println));
+                }
+                log.flush();
+                console.printf("%-10s %12.0f %10d%n", mode, best, log.getDropped() - droppedBefore);
+            }
+        } finally {
+            System.setOut(console);
+            Log.get().setLevel(Log.Level.INFO);
+            AggregationServer.getWriteAheadLog().close();
+            logFile.delete();
+            try (var paths = Files.walk(dataDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Sends every thread's PUTs through the request handler at once.
+     *
+     * @return The PUTs handled per second over all threads.
+     */
+    private static double run(List<List<String>> requests, boolean println) throws InterruptedException {
+        Thread[] workers = new Thread[requests.size()];
+        long start = System.nanoTime();
+        for (int t = 0; t < workers.length; t++) {
+            List<String> threadRequests = requests.get(t);
+            workers[t] = new Thread(() -> {
+                HttpRequest request = new HttpRequest();
+                Socket clientSocket = new Socket();
+                for (String message : threadRequests) {
+                    if (println) {
+                        System.out.println("Received message from client: " + message);
+                    }
+                    AggregationServer.respond(message, request, "benchmark", clientSocket);
+                }
+            });
+            workers[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < workers.length; t++) {
+            workers[t].join();
+            total += requests.get(t).size();
+        }
+        return total / ((System.nanoTime() - start) / 1e9);
+    }
+}
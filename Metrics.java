@@ -0,0 +1,389 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+    // Methods responses are counted under, anything else is counted as OTHER
+    private static final String[] METHODS = { HttpRequest.GET, HttpRequest.HEAD, HttpRequest.PUT, HttpRequest.POST,
+            "OTHER" };
+    private static final int OTHER = METHODS.length - 1;
+
+    // Quantiles reported for every histogram
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+
+    // Responses by method and status code, e.g. responses[2][201] counts PUTs answered with 201
+    private final LongAdder[][] responses = new LongAdder[METHODS.length][600];
+
+    private final Histogram getTime = new Histogram();
+    private final Histogram putTime = new Histogram();
+    private final Histogram parseTime = new Histogram();
+    private final Histogram storageWriteTime = new Histogram();
+    private final Histogram cleanupTime = new Histogram();
+
+    /**
+     * A latency histogram with log-linear buckets: every power of two is split
+     * into SUB_BUCKETS equal buckets, so any value is recorded with a relative
+     * error below 1/SUB_BUCKETS while the whole range of a long fits in a few
+     * thousand counters. Recording is a single atomic increment, and threads
+     * record into separate stripes so they do not contend on the same counters.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray[] stripes;
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public Histogram() {
+            int stripeCount = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()));
+            stripes = new AtomicLongArray[stripeCount];
+            for (int i = 0; i < stripeCount; i++) {
+                stripes[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        /**
+         * Records a value.
+         *
+         * @param value The value, e.g. a latency in nanoseconds. Negative values
+         *              are recorded as 0.
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+            stripe.incrementAndGet(bucketOf(value));
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Records the time elapsed since a System.nanoTime() reading.
+         *
+         * @param startNanos The reading taken at the start.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return shift * SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        // The highest value that falls into a bucket
+        static long highestValueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (bucket - shift * SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        // The counts of every bucket, summed over the stripes
+        private long[] snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += stripe.get(i);
+                }
+            }
+            return counts;
+        }
+
+        /**
+         * Returns the number of recorded values.
+         *
+         * @return The count.
+         */
+        public long getCount() {
+            long count = 0;
+            for (long bucketCount : snapshot()) {
+                count += bucketCount;
+            }
+            return count;
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns the value at the given quantile, to within the precision of
+         * its bucket.
+         *
+         * @param quantile The quantile between 0 and 1.
+         * @return The value, or 0 if nothing was recorded.
+         */
+        public long quantile(double quantile) {
+            return quantiles(snapshot(), new double[] { quantile })[0];
+        }
+
+        private long[] quantiles(long[] counts, double[] quantiles) {
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            long[] values = new long[quantiles.length];
+            if (count == 0) {
+                return values;
+            }
+            int bucket = 0;
+            long seen = counts[0];
+            for (int i = 0; i < quantiles.length; i++) {
+                long rank = Math.max(1, (long) Math.ceil(quantiles[i] * count));
+                while (seen < rank) {
+                    seen += counts[++bucket];
+                }
+                // The top bucket may reach past the largest value actually recorded
+                values[i] = Math.min(highestValueOf(bucket), getMax());
+            }
+            return values;
+        }
+
+        /**
+         * Writes the histogram as a summary in the Prometheus text format, with
+         * values converted from nanoseconds to seconds.
+         */
+        private void write(StringBuilder text, String name, String help) {
+            long[] counts = snapshot();
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            long[] values = quantiles(counts, QUANTILES);
+
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (int i = 0; i < QUANTILES.length; i++) {
+                text.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                        .append(seconds(values[i])).append('\n');
+            }
+            text.append(name).append("_sum ").append(seconds(getSum())).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+            text.append(name).append("_max ").append(seconds(getMax())).append('\n');
+        }
+    }
+
+    public Metrics() {
+        for (LongAdder[] methodResponses : responses) {
+            for (int status = 100; status < methodResponses.length; status++) {
+                methodResponses[status] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Counts an accepted connection.
+     */
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    /**
+     * Counts a connection that has been closed.
+     */
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * Counts a connection turned away because the server was busy.
+     */
+    public void connectionRejected() {
+        connectionsRejected.increment();
+    }
+
+    /**
+     * Counts a response by method and status code, and records how long a GET
+     * or PUT took to answer.
+     *
+     * @param method     The request method, or null for a message that is not
+     *                   an HTTP request.
+     * @param response   The response text.
+     * @param startNanos The System.nanoTime() reading taken when the request
+     *                   arrived.
+     */
+    public void response(String method, String response, long startNanos) {
+        int methodIndex = methodIndex(method);
+        if (methodIndex <= 1) {
+            getTime.recordSince(startNanos);
+        } else if (methodIndex <= 3) {
+            putTime.recordSince(startNanos);
+        }
+        int status = statusOf(response);
+        if (status != 0) {
+            responses[methodIndex][status].increment();
+        }
+    }
+
+    private static int methodIndex(String method) {
+        // Methods are interned by HttpRequest, so they can be compared by reference
+        for (int i = 0; i < OTHER; i++) {
+            if (METHODS[i] == method) {
+                return i;
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * Reads the status code of a response.
+     *
+     * @param response The response text.
+     * @return The status code, or 0 if the text is not an HTTP response.
+     */
+    public static int statusOf(String response) {
+        if (response == null || response.length() < 12 || !response.startsWith("HTTP/1.1 ")) {
+            return 0;
+        }
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            char c = response.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            status = status * 10 + (c - '0');
+        }
+        return status >= 100 ? status : 0;
+    }
+
+    /**
+     * Returns the number of responses sent for a method with a status code.
+     *
+     * @param method The request method, e.g. HttpRequest.PUT.
+     * @param status The status code.
+     * @return The response count.
+     */
+    public long getResponseCount(String method, int status) {
+        return status >= 100 && status < 600 ? responses[methodIndex(method)][status].sum() : 0;
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    public long getActiveConnections() {
+        return connectionsAccepted.sum() - connectionsClosed.sum();
+    }
+
+    public Histogram getGetTime() {
+        return getTime;
+    }
+
+    public Histogram getPutTime() {
+        return putTime;
+    }
+
+    public Histogram getParseTime() {
+        return parseTime;
+    }
+
+    public Histogram getStorageWriteTime() {
+        return storageWriteTime;
+    }
+
+    public Histogram getCleanupTime() {
+        return cleanupTime;
+    }
+
+    /**
+     * Adds the resource use of this process to a map of gauges: CPU time, heap,
+     * threads, garbage collection and open file descriptors. Values the JVM
+     * does not provide on this platform are left out.
+     *
+     * @param gauges The gauges to add to, by metric name.
+     */
+    public static void addProcessGauges(Map<String, Number> gauges) {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long cpuNanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            if (cpuNanos >= 0) {
+                gauges.put("process_cpu_seconds", cpuNanos / 1e9);
+            }
+        }
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            gauges.put("process_open_fds",
+                    ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount());
+        }
+        gauges.put("jvm_heap_used_bytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        gauges.put("jvm_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMillis += Math.max(0, collector.getCollectionTime());
+        }
+        gauges.put("jvm_gc_seconds", gcMillis / 1000.0);
+    }
+
+    /**
+     * Renders every metric in the Prometheus text format.
+     *
+     * @param gauges Further values sampled at the time of the request, by
+     *               metric name.
+     * @return The metrics text.
+     */
+    public String render(Map<String, Number> gauges) {
+        StringBuilder text = new StringBuilder(8192);
+        counter(text, "aggregation_connections_accepted_total", "Connections accepted.",
+                connectionsAccepted.sum());
+        counter(text, "aggregation_connections_rejected_total", "Connections turned away while busy.",
+                connectionsRejected.sum());
+        text.append("# HELP aggregation_connections_active Connections currently open.\n");
+        text.append("# TYPE aggregation_connections_active gauge\n");
+        text.append("aggregation_connections_active ").append(getActiveConnections()).append('\n');
+
+        text.append("# HELP aggregation_responses_total Responses sent, by request method and status code.\n");
+        text.append("# TYPE aggregation_responses_total counter\n");
+        for (int method = 0; method < METHODS.length; method++) {
+            for (int status = 100; status < 600; status++) {
+                long count = responses[method][status].sum();
+                if (count > 0) {
+                    text.append("aggregation_responses_total{method=\"").append(METHODS[method])
+                            .append("\",status=\"").append(status).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        getTime.write(text, "aggregation_get_seconds", "Time to answer a GET.");
+        putTime.write(text, "aggregation_put_seconds", "Time to answer a PUT, including the storage write.");
+        parseTime.write(text, "aggregation_parse_seconds", "Time to parse the JSON body of a PUT.");
+        storageWriteTime.write(text, "aggregation_storage_write_seconds",
+                "Time to append records to the write-ahead log.");
+        cleanupTime.write(text, "aggregation_cleanup_seconds",
+                "Time to remove stale stations or compact the write-ahead log.");
+
+        for (Map.Entry<String, Number> gauge : gauges.entrySet()) {
+            text.append("# TYPE ").append(gauge.getKey()).append(" gauge\n");
+            text.append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
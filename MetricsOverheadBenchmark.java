@@ -0,0 +1,130 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsOverheadBenchmark {
+    private static final String PUT_RESPONSE = "HTTP/1.1 200 OK\r\nLamport-Clock: 1\r\n\r\nData received and processed.";
+
+    /**
+     * Measures what the metrics cost a PUT. First the instrumentation the
+     * server adds to a PUT (the clock readings, three histogram records and a
+     * status counter) is run on its own from 1 to 8 threads sharing one
+     * Metrics instance, and its cost per PUT is printed. Then PUTs are handled
+     * in-process against a write-ahead log without fsync, and the cost of a
+     * whole PUT is printed next to the share the instrumentation takes of it.
+     *
+     * Usage: java MetricsOverheadBenchmark [millis] [puts]
+     */
+    public static void main(String args[]) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        int puts = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+
+        System.out.println("duration=" + millis + "ms puts=" + puts + " cpus="
+                + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %18s %14s%n", "threads", "instrumented/s", "ns/PUT");
+        Metrics metrics = new Metrics();
+        double singleThreadNanos = 0;
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            run(threads, millis / 4, metrics);
+            double rate = 0;
+            for (int round = 0; round < 3; round++) {
+                rate = Math.max(rate, run(threads, millis, metrics));
+            }
+            // The cost of a PUT is the CPU time it takes, and only as many threads as cores run at once
+            double nanos = Math.min(threads, Runtime.getRuntime().availableProcessors()) * 1e9 / rate;
+            if (threads == 1) {
+                singleThreadNanos = nanos;
+            }
+            System.out.printf("%-8d %18.0f %14.1f%n", threads, rate, nanos);
+        }
+
+        double putNanos = measurePuts(puts);
+        System.out.printf("in-process PUT: %.0f ns, of which metrics %.1f ns (%.2f%%)%n", putNanos,
+                singleThreadNanos, 100 * singleThreadNanos / putNanos);
+    }
+
+    /**
+     * Runs the instrumentation of one PUT in a loop on the given number of
+     * threads for the duration.
+     *
+     * @return The PUTs instrumented per second over all threads.
+     */
+    private static double run(int threads, long millis, Metrics metrics) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    long requestStart = System.nanoTime();
+                    metrics.getParseTime().recordSince(System.nanoTime());
+                    metrics.getStorageWriteTime().recordSince(System.nanoTime());
+                    metrics.response(HttpRequest.PUT, PUT_RESPONSE, requestStart);
+                    count++;
+                }
+                operations.add(count);
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * Handles PUTs of 1000 stations in-process, as the server's request
+     * handlers do, and returns the best average time of one PUT.
+     */
+    private static double measurePuts(int puts) throws IOException {
+        Path dataDir = Files.createTempDirectory("metrics-benchmark");
+        PrintStream console = System.out;
+        try {
+            AggregationServer.openStorage(dataDir.toFile(), WriteAheadLog.Durability.ASYNC,
+                    WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+            AggregationServer.setRetainedUpdates(0);
+            // Sent without a clock, so the server stamps every PUT and none is stale in later rounds
+            List<String> requests = new ArrayList<>(puts);
+            for (int i = 0; i < puts; i++) {
+                requests.add(ContentServer.buildPutRequest("{\"id\":\"METRIC" + (i % 1000) + "\",\"air_temp\":\""
+                        + (i % 40) + ".5\",\"rel_hum\":\"60\"}", -1, true));
+            }
+
+            // The server prints every request, which is measured along with the rest
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            HttpRequest request = new HttpRequest();
+            Socket clientSocket = new Socket();
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 4; round++) {
+                long start = System.nanoTime();
+                for (String message : requests) {
+                    AggregationServer.respond(message, request, "benchmark", clientSocket);
+                }
+                // The first round warms up and is not counted
+                if (round > 0) {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            }
+            return (double) best / puts;
+        } finally {
+            System.setOut(console);
+            AggregationServer.getWriteAheadLog().close();
+            try (var paths = Files.walk(dataDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
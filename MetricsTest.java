@@ -0,0 +1,89 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    // Test that every value is recorded within the precision of its bucket
+    @Test
+    public void testHistogramPrecision() {
+        long[] values = { 0, 1, 31, 32, 33, 1000, 123_456, 10_000_000_007L, Long.MAX_VALUE };
+        for (long value : values) {
+            int bucket = Metrics.Histogram.bucketOf(value);
+            long highest = Metrics.Histogram.highestValueOf(bucket);
+            assertTrue(value + " above its bucket", value <= highest);
+            assertTrue(value + " too far from " + highest, highest - value <= value / 32);
+            if (value > 0) {
+                assertTrue(Metrics.Histogram.bucketOf(value - 1) <= bucket);
+            }
+        }
+    }
+
+    // Test quantiles, count, sum and max of a histogram
+    @Test
+    public void testHistogramQuantiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        assertEquals(0, histogram.quantile(0.5));
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500_000, histogram.getSum());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_000, histogram.quantile(0.5), 500_000 / 32.0);
+        assertEquals(990_000, histogram.quantile(0.99), 990_000 / 32.0);
+        assertEquals(1_000_000, histogram.quantile(1.0));
+    }
+
+    // Test that responses are counted by method and status code
+    @Test
+    public void testCountsResponses() {
+        Metrics metrics = new Metrics();
+        long start = System.nanoTime();
+        metrics.response(HttpRequest.PUT, "HTTP/1.1 201 Created\r\n\r\nData received and stored.", start);
+        metrics.response(HttpRequest.PUT, "HTTP/1.1 201 Created\r\n\r\nData received and stored.", start);
+        metrics.response(HttpRequest.GET, "HTTP/1.1 404 Not Found\r\n\r\nNo weather data available.", start);
+        metrics.response(null, "Heartbeat acknowledged.", start);
+        metrics.connectionAccepted();
+        metrics.connectionAccepted();
+        metrics.connectionClosed();
+
+        assertEquals(2, metrics.getResponseCount(HttpRequest.PUT, 201));
+        assertEquals(1, metrics.getResponseCount(HttpRequest.GET, 404));
+        assertEquals(2, metrics.getPutTime().getCount());
+        assertEquals(1, metrics.getGetTime().getCount());
+        assertEquals(1, metrics.getActiveConnections());
+
+        String text = metrics.render(Collections.singletonMap("aggregation_store_stations", 7));
+        assertTrue(text, text.contains("aggregation_responses_total{method=\"PUT\",status=\"201\"} 2\n"));
+        assertTrue(text, text.contains("aggregation_connections_active 1\n"));
+        assertTrue(text, text.contains("aggregation_put_seconds_count 2\n"));
+        assertTrue(text, text.contains("aggregation_store_stations 7\n"));
+        assertFalse(text, text.contains("status=\"0\""));
+    }
+
+    // Test reading the status code of a response
+    @Test
+    public void testStatusOf() {
+        assertEquals(304, Metrics.statusOf("HTTP/1.1 304 Not Modified\r\n\r\n"));
+        assertEquals(0, Metrics.statusOf("Heartbeat acknowledged."));
+        assertEquals(0, Metrics.statusOf("HTTP/1.1 2x0 OK"));
+        assertEquals(0, Metrics.statusOf(null));
+    }
+
+    // Test that the server serves its metrics at GET /metrics
+    @Test
+    public void testServerMetricsEndpoint() throws IOException {
+        AggregationServer.respond("GET /weather?id=METRICS01 HTTP/1.1\r\n\r\n", "test", null);
+        byte[] frame = AggregationServer.respond("GET /metrics HTTP/1.1\r\n\r\n", "test", null);
+        String response = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response, response.contains("aggregation_responses_total{method=\"GET\",status=\"404\"} "));
+        assertTrue(response, response.contains("\naggregation_store_stations "));
+        assertTrue(response, response.contains("\naggregation_get_seconds{quantile=\"0.99\"} "));
+        assertTrue(response, response.contains("\njvm_heap_used_bytes "));
+        assertTrue(response, response.contains("\njvm_threads "));
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class NioAggregationServer implements Runnable, Closeable {
+    private static final long IDLE_TIMEOUT = 15000; // Close connections idle for 15 seconds
+    private static final long IDLE_CHECK_INTERVAL = 1000; // Check for idle connections every second
+    private static final int INITIAL_READ_BUFFER = 1024;
+
+    // Wire protocol of a connection, detected from its first bytes
+    private static final int PROTOCOL_UNKNOWN = 0;
+    private static final int PROTOCOL_FRAMES = 1;
+    private static final int PROTOCOL_HTTP = 2;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+
+    // Connections with responses waiting to be registered for writing by the selector thread
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * State kept for every open client connection. Only the selector thread
+     * touches the buffers, workers hand back responses through the write queue.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final String serverId;
+        final SelectionKey key;
+        final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        final HttpRequest request = new HttpRequest();
+        int protocol = PROTOCOL_UNKNOWN;
+        long lastActiveTime = System.currentTimeMillis();
+        boolean busy;
+        volatile boolean closeAfterWrite;
+
+        Connection(SocketChannel channel, String serverId, SelectionKey key) {
+            this.channel = channel;
+            this.serverId = serverId;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Opens the server channel and the worker pool. Call run() to start serving.
+     *
+     * @param port        The port to listen on, or 0 for any free port.
+     * @param workerCount The number of threads that process complete requests.
+     * @throws IOException If the server channel could not be opened.
+     */
+    public NioAggregationServer(int port, int workerCount) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port), 4096);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return The local port number.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Runs the selector loop until the server is closed. Accepting, reading and
+     * writing all happen on this thread, only complete requests are handed to
+     * the worker pool.
+     */
+    @Override
+    public void run() {
+        Log.get().info("Aggregation Server (NIO) started on port " + getPort());
+        long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_INTERVAL;
+
+        try {
+            while (running) {
+                selector.select(IDLE_CHECK_INTERVAL);
+                registerPendingWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptConnections();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                readFrames(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                writeResponses(connection);
+                            }
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        if (key.attachment() != null) {
+                            closeConnection((Connection) key.attachment());
+                        }
+                    }
+                }
+
+                long currentTime = System.currentTimeMillis();
+                if (currentTime >= nextIdleCheck) {
+                    closeIdleConnections(currentTime);
+                    nextIdleCheck = currentTime + IDLE_CHECK_INTERVAL;
+                }
+            }
+        } catch (IOException e) {
+            Log.get().error("Selector loop failed", e);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Accepts every connection that is waiting and registers it for reading.
+     */
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            String serverId = AggregationServer.registerConnection(channel.socket());
+
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, serverId, key));
+        }
+    }
+
+    /**
+     * Reads whatever is available and dispatches a request once a complete
+     * request has arrived.
+     */
+    private void readFrames(Connection connection) throws IOException {
+        if (connection.channel.read(connection.readBuffer) == -1) {
+            closeConnection(connection);
+            return;
+        }
+        connection.lastActiveTime = System.currentTimeMillis();
+        dispatchNextFrame(connection);
+    }
+
+    /**
+     * Dispatches the next complete request in the read buffer to a worker, or
+     * waits for more bytes if there is none. Requests are writeUTF frames or raw
+     * HTTP, whichever the connection started with. Pipelined requests of a
+     * keep-alive connection stay in the buffer until the previous response has
+     * been written, so responses go out in request order.
+     */
+    private void dispatchNextFrame(Connection connection) throws IOException {
+        Runnable task = null;
+        connection.readBuffer.flip();
+        try {
+            if (connection.protocol == PROTOCOL_UNKNOWN) {
+                connection.protocol = detectProtocol(connection.readBuffer);
+            }
+            if (connection.protocol == PROTOCOL_FRAMES) {
+                String message = FrameCodec.nextFrame(connection.readBuffer);
+                if (message != null) {
+                    task = () -> processRequest(connection, message);
+                }
+            } else if (connection.protocol == PROTOCOL_HTTP
+                    && HttpCodec.nextRequest(connection.readBuffer, connection.request)) {
+                task = () -> processHttpRequest(connection);
+            }
+        } catch (HttpCodec.RequestTooLargeException e) {
+            rejectRequest(connection, "HTTP/1.1 413 Payload Too Large\r\n\r\n" + e.getMessage());
+            return;
+        } catch (ProtocolException e) {
+            rejectRequest(connection, "HTTP/1.1 400 Bad Request\r\n\r\n" + e.getMessage());
+            return;
+        } finally {
+            connection.readBuffer.compact();
+        }
+
+        if (task != null) {
+            // Stop reading until the response has been written, like the blocking handler
+            connection.busy = true;
+            connection.key.interestOps(0);
+            workers.execute(task);
+        } else {
+            if (!connection.readBuffer.hasRemaining()) {
+                growReadBuffer(connection);
+            }
+            connection.busy = false;
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Tells from the first bytes of a connection whether it sends raw HTTP or
+     * writeUTF frames.
+     *
+     * @return The protocol, or PROTOCOL_UNKNOWN until enough bytes have arrived.
+     */
+    private static int detectProtocol(ByteBuffer buffer) {
+        byte[] first = new byte[HttpCodec.DETECT_BYTES];
+        int length = Math.min(buffer.remaining(), first.length);
+        buffer.duplicate().get(first, 0, length);
+        if (length < 2) {
+            return PROTOCOL_UNKNOWN;
+        }
+        if (!HttpCodec.isHttp(first, length)) {
+            return PROTOCOL_FRAMES;
+        }
+        if (length < HttpCodec.DETECT_BYTES) {
+            return PROTOCOL_UNKNOWN;
+        }
+        return PROTOCOL_HTTP;
+    }
+
+    /**
+     * Answers a raw HTTP request that cannot be processed and closes the
+     * connection once the answer has been written.
+     */
+    private void rejectRequest(Connection connection, String response) {
+        connection.writeQueue.add(ByteBuffer.wrap(HttpCodec.encodeResponse(response)));
+        connection.closeAfterWrite = true;
+        connection.busy = true;
+        connection.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Doubles the read buffer of a connection, up to the largest request its
+     * protocol allows.
+     */
+    private void growReadBuffer(Connection connection) throws IOException {
+        int capacity = connection.readBuffer.capacity();
+        int maxCapacity = connection.protocol == PROTOCOL_HTTP ? HttpCodec.MAX_REQUEST_BYTES
+                : FrameCodec.MAX_FRAME_BYTES;
+        if (capacity >= maxCapacity) {
+            throw new IOException("Request larger than " + maxCapacity + " bytes");
+        }
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(capacity * 2L, maxCapacity));
+        connection.readBuffer.flip();
+        larger.put(connection.readBuffer);
+        connection.readBuffer = larger;
+    }
+
+    /**
+     * Runs on a worker thread: processes one request and queues the response
+     * for the selector thread to write.
+     */
+    private void processRequest(Connection connection, String message) {
+        byte[] frame = AggregationServer.respond(message, connection.request, connection.serverId,
+                connection.channel.socket());
+
+        queueResponse(connection, frame, !connection.request.isKeepAlive());
+    }
+
+    /**
+     * Runs on a worker thread: processes one raw HTTP request and queues the
+     * response for the selector thread to write.
+     */
+    private void processHttpRequest(Connection connection) {
+        byte[] response = AggregationServer.respondHttp(connection.request, connection.serverId,
+                connection.channel.socket());
+        queueResponse(connection, response, !connection.request.isPersistent());
+    }
+
+    /**
+     * Hands a response to the selector thread for writing.
+     */
+    private void queueResponse(Connection connection, byte[] response, boolean closeAfterWrite) {
+        // Wrap rather than copy, cached responses are shared and only ever read
+        connection.writeQueue.add(ByteBuffer.wrap(response));
+        connection.closeAfterWrite = closeAfterWrite;
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Switches connections with queued responses to write interest. Only the
+     * selector thread may change interest ops without blocking.
+     */
+    private void registerPendingWrites() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the queued responses as the socket accepts.
+     */
+    private void writeResponses(Connection connection) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = connection.writeQueue.peek()) != null) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return; // The socket is full, wait for the next write event
+            }
+            connection.writeQueue.poll();
+        }
+        connection.lastActiveTime = System.currentTimeMillis();
+
+        if (connection.closeAfterWrite) {
+            closeConnection(connection);
+        } else {
+            // Keep-alive: carry on with any request that was pipelined behind this one
+            dispatchNextFrame(connection);
+        }
+    }
+
+    /**
+     * Closes connections that have not sent a complete request in time.
+     */
+    private void closeIdleConnections(long currentTime) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (!connection.busy && currentTime - connection.lastActiveTime > IDLE_TIMEOUT) {
+                    closeConnection(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a client connection and forgets about it.
+     */
+    private void closeConnection(Connection connection) {
+        connection.key.cancel();
+        AggregationServer.unregisterConnection(connection.channel.socket());
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            Log.get().error("Failed to close connection", e);
+        }
+    }
+
+    /**
+     * Stops the selector loop and releases the server channel and workers.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeQuietly() {
+        workers.shutdown();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                closeConnection((Connection) key.attachment());
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            Log.get().error("Failed to close the server channel", e);
+        }
+    }
+}
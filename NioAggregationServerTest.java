@@ -0,0 +1,150 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioAggregationServerTest {
+    private NioAggregationServer server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new NioAggregationServer(0, 2);
+        serverThread = new Thread(server);
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.close();
+        serverThread.join(5000);
+    }
+
+    // Test that a PUT from a content server is stored and returned by a GET
+    // Ensure the existing writeUTF framing still works against the NIO core
+    @Test
+    public void testPutThenGet() throws IOException {
+        String json = "{\"id\":\"NIO01\",\"air_temp\":\"13.3\"}";
+        String putResponse = exchange("PUT /weather_data.txt HTTP/1.1\r\nContent-Type: text/Json\r\nContent-Length: "
+                + json.length() + "\r\nLamport-Clock: 0\r\n" + json);
+        assertTrue(putResponse, putResponse.startsWith("HTTP/1.1 201") || putResponse.startsWith("HTTP/1.1 200"));
+
+        String getResponse = exchange("GET /weather HTTP/1.1\r\nHost: localhost\r\nLamport-Clock: 0\r\n\r\n");
+        assertTrue(getResponse.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(getResponse.contains("NIO01"));
+    }
+
+    // Test that pipelined keep-alive requests are all answered in order
+    @Test
+    public void testPipelinedKeepAlive() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort());
+                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
+            // Send every request before reading any response
+            for (int i = 0; i < 3; i++) {
+                String json = "{\"id\":\"KEEP" + i + "\"}";
+                outputData.writeUTF(ContentServer.buildPutRequest(json, i, true));
+            }
+            outputData.writeUTF("GET /weather HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+            outputData.flush();
+
+            assertTrue(inputData.readUTF().startsWith("HTTP/1.1 201"));
+            assertTrue(inputData.readUTF().startsWith("HTTP/1.1 200"));
+            assertTrue(inputData.readUTF().startsWith("HTTP/1.1 200"));
+            assertTrue(inputData.readUTF().contains("KEEP2"));
+        }
+    }
+
+    // Test that a request trickling in byte by byte is still answered
+    @Test
+    public void testSlowClientIsAnswered() throws IOException, InterruptedException {
+        byte[] frame = FrameCodec.encode("Heartbeat");
+        try (Socket socket = new Socket("localhost", server.getPort());
+                DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
+            OutputStream outputStream = socket.getOutputStream();
+            for (byte b : frame) {
+                outputStream.write(b);
+                outputStream.flush();
+                Thread.sleep(5);
+            }
+            assertEquals("Heartbeat acknowledged.", inputData.readUTF());
+        }
+    }
+
+    // Test that many idle connections can be held open at the same time
+    // while other clients are still served
+    @Test
+    public void testManyIdleConnections() throws IOException {
+        List<Socket> idleSockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 500; i++) {
+                idleSockets.add(new Socket("localhost", server.getPort()));
+            }
+            assertEquals("Heartbeat acknowledged.", exchange("Heartbeat"));
+        } finally {
+            for (Socket socket : idleSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    // Test raw HTTP requests on a persistent connection, with a body larger than a frame can hold
+    // Ensure the connection is detected as raw HTTP and both requests are answered
+    @Test
+    public void testRawHttpLargeBody() throws IOException {
+        StringBuilder json = new StringBuilder("{\"id\":\"RAW01\",\"note\":\"");
+        while (json.length() < 100_000) {
+            json.append("temp\u00e9rature ");
+        }
+        json.append("\"}");
+
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+
+            output.write(ContentServer.buildHttpPutRequest(json.toString(), 0, true));
+            output.write("GET /weather HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+            output.flush();
+
+            String putResponse = HttpCodec.readResponse(input);
+            assertTrue(putResponse, putResponse.startsWith("HTTP/1.1 201") || putResponse.startsWith("HTTP/1.1 200"));
+            String getResponse = HttpCodec.readResponse(input);
+            assertTrue(getResponse.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(getResponse.endsWith(json.toString()));
+        }
+    }
+
+    // Test that a GET naming the current ETag is answered with a 304 and no body
+    @Test
+    public void testConditionalGet() throws IOException {
+        String json = "{\"id\":\"ETAG01\"}";
+        exchange(ContentServer.buildPutRequest(json, 1, false));
+
+        String getResponse = exchange("GET /weather?id=ETAG01 HTTP/1.1\r\n\r\n");
+        String etag = HttpCodec.responseHeader(getResponse, "ETag");
+        assertNotNull(getResponse, etag);
+
+        String notModified = exchange("GET /weather?id=ETAG01 HTTP/1.1\r\nIf-None-Match: " + etag + "\r\n\r\n");
+        assertTrue(notModified, notModified.startsWith("HTTP/1.1 304"));
+        assertTrue(notModified.endsWith("\r\n\r\n"));
+
+        // Once the station changes the old tag no longer matches
+        exchange(ContentServer.buildPutRequest("{\"id\":\"ETAG01\",\"n\":2}", 2, false));
+        String changed = exchange("GET /weather?id=ETAG01 HTTP/1.1\r\nIf-None-Match: " + etag + "\r\n\r\n");
+        assertTrue(changed, changed.startsWith("HTTP/1.1 200") && changed.contains("\"n\":2"));
+    }
+
+    // Send one request on a new connection and return the response
+    private String exchange(String request) throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort());
+                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
+            outputData.writeUTF(request);
+            outputData.flush();
+            return inputData.readUTF();
+        }
+    }
+}
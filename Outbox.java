@@ -0,0 +1,101 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Outbox {
+    private final int capacity;
+
+    // The latest record waiting to be sent for every station, oldest station first
+    private final LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Creates an outbox.
+     *
+     * @param capacity The largest number of stations that may wait to be sent.
+     */
+    public Outbox(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Adds a station's record. A record that waits for the same station is
+     * replaced, so only the latest update of a station is ever sent. Once
+     * capacity stations are waiting, records of further stations are dropped.
+     *
+     * @param stationId The station id.
+     * @param record    The JSON record.
+     * @return false if the record was dropped because the outbox is full.
+     */
+    public synchronized boolean offer(String stationId, String record) {
+        if (pending.containsKey(stationId)) {
+            pending.put(stationId, record);
+            coalesced.increment();
+            return true;
+        }
+        if (pending.size() >= capacity) {
+            dropped.increment();
+            return false;
+        }
+        pending.put(stationId, record);
+        return true;
+    }
+
+    /**
+     * Returns the records of the stations that have waited longest, without
+     * removing them. They are removed by acknowledge() once the server has
+     * them.
+     *
+     * @param maxRecords The largest number of records returned.
+     * @param maxChars   The largest total length of the records returned. The
+     *                   first record is returned whatever its length.
+     * @return The records by station id, oldest first.
+     */
+    public synchronized Map<String, String> peek(int maxRecords, int maxChars) {
+        Map<String, String> records = new LinkedHashMap<>();
+        int chars = 0;
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            chars += entry.getValue().length() + 1;
+            if (records.size() == maxRecords || !records.isEmpty() && chars > maxChars) {
+                break;
+            }
+            records.put(entry.getKey(), entry.getValue());
+        }
+        return records;
+    }
+
+    /**
+     * Removes records that were sent. A station whose record was replaced while
+     * the old one was being sent keeps the newer record.
+     *
+     * @param records The records as returned by peek().
+     */
+    public synchronized void acknowledge(Map<String, String> records) {
+        for (Map.Entry<String, String> record : records.entrySet()) {
+            pending.remove(record.getKey(), record.getValue());
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of records dropped because the outbox was full.
+     *
+     * @return The dropped record count.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of records that replaced an unsent record of the same
+     * station.
+     *
+     * @return The coalesced record count.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+}
@@ -0,0 +1,58 @@
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Test;
+
+public class OutboxTest {
+
+    // Test that updates of a waiting station replace each other and keep its place in line
+    @Test
+    public void testCoalescesStations() {
+        Outbox outbox = new Outbox(10);
+        outbox.offer("A", "a1");
+        outbox.offer("B", "b1");
+        outbox.offer("A", "a2");
+        assertEquals(2, outbox.size());
+        assertEquals(1, outbox.getCoalesced());
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("A", "a2");
+        expected.put("B", "b1");
+        assertEquals(expected, outbox.peek(10, Integer.MAX_VALUE));
+        assertEquals(Collections.singletonMap("A", "a2"), outbox.peek(1, Integer.MAX_VALUE));
+    }
+
+    // Test that a full outbox drops records of new stations but still takes updates of waiting ones
+    @Test
+    public void testDropsNewStationsWhenFull() {
+        Outbox outbox = new Outbox(2);
+        assertTrue(outbox.offer("A", "a1"));
+        assertTrue(outbox.offer("B", "b1"));
+        assertFalse(outbox.offer("C", "c1"));
+        assertTrue(outbox.offer("B", "b2"));
+        assertEquals(1, outbox.getDropped());
+        assertEquals(2, outbox.size());
+    }
+
+    // Test that acknowledging a sent batch keeps records that replaced it in the meantime
+    @Test
+    public void testAcknowledgeKeepsNewerRecords() {
+        Outbox outbox = new Outbox(10);
+        outbox.offer("A", "a1");
+        outbox.offer("B", "b1");
+        Map<String, String> batch = outbox.peek(10, Integer.MAX_VALUE);
+        outbox.offer("A", "a2");
+        outbox.acknowledge(batch);
+        assertEquals(Collections.singletonMap("A", "a2"), outbox.peek(10, Integer.MAX_VALUE));
+    }
+
+    // Test that a batch stops at the character limit but always holds at least one record
+    @Test
+    public void testPeekLimitsCharacters() {
+        Outbox outbox = new Outbox(10);
+        outbox.offer("A", "0123456789");
+        outbox.offer("B", "0123456789");
+        assertEquals(1, outbox.peek(10, 15).size());
+        assertEquals(1, outbox.peek(10, 5).size());
+        assertEquals(2, outbox.peek(10, 22).size());
+    }
+}
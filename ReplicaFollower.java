@@ -0,0 +1,245 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+public class ReplicaFollower implements Runnable, Closeable {
+    // Pause before trying the next endpoint after a connection failed
+    public static final long RETRY_DELAY = 500;
+
+    // Most records applied together, and written to the replica's log in one append
+    private static final int MAX_BATCH = 1000;
+
+    private final List<InetSocketAddress> endpoints;
+    private final long promoteAfter;
+    private final WeatherStore weatherStore;
+    private final Consumer<List<WriteAheadLog.Record>> applier;
+    private final Runnable promoter;
+
+    private volatile boolean closed;
+    private volatile Socket socket;
+    private volatile InetSocketAddress primary;
+    private volatile long appliedSequence;
+    private volatile long lagMillis;
+    private volatile long lastHeartbeatTime;
+
+    /**
+     * Creates a follower that tails the update stream of a primary.
+     *
+     * @param endpoints    The replication endpoints to follow, tried in order.
+     *                     Listing a second replica lets this one fail over to
+     *                     it once it has been promoted.
+     * @param promoteAfter Milliseconds without contact to any endpoint after
+     *                     which the follower promotes its server, or 0 to only
+     *                     promote on request.
+     * @param weatherStore The replica's store.
+     * @param applier      Applies a batch of received PUT and DELETE records.
+     * @param promoter     Promotes the server to primary.
+     */
+    public ReplicaFollower(List<InetSocketAddress> endpoints, long promoteAfter, WeatherStore weatherStore,
+            Consumer<List<WriteAheadLog.Record>> applier, Runnable promoter) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No replication endpoint given");
+        }
+        this.endpoints = new ArrayList<>(endpoints);
+        this.promoteAfter = promoteAfter;
+        this.weatherStore = weatherStore;
+        this.applier = applier;
+        this.promoter = promoter;
+    }
+
+    /**
+     * Parses a comma separated list of host:port endpoints.
+     *
+     * @param value The list, e.g. "localhost:4600,localhost:4601".
+     * @return The endpoints.
+     */
+    public static List<InetSocketAddress> parseEndpoints(String value) {
+        List<InetSocketAddress> endpoints = new ArrayList<>();
+        for (String endpoint : value.split(",")) {
+            endpoint = endpoint.trim();
+            int colonIndex = endpoint.lastIndexOf(':');
+            if (colonIndex <= 0) {
+                throw new IllegalArgumentException("Expected host:port, got: " + endpoint);
+            }
+            endpoints.add(InetSocketAddress.createUnresolved(endpoint.substring(0, colonIndex),
+                    Integer.parseInt(endpoint.substring(colonIndex + 1))));
+        }
+        return endpoints;
+    }
+
+    /**
+     * Follows the endpoints until closed, reconnecting whenever a stream ends.
+     * If no endpoint can be reached for promoteAfter milliseconds, the server is
+     * promoted and the follower stops.
+     */
+    @Override
+    public void run() {
+        long lastContact = System.currentTimeMillis();
+        int next = 0;
+        while (!closed) {
+            InetSocketAddress endpoint = endpoints.get(next);
+            next = (next + 1) % endpoints.size();
+            try {
+                follow(new InetSocketAddress(endpoint.getHostString(), endpoint.getPort()));
+            } catch (IOException e) {
+                if (!closed && primary != null) {
+                    Log.get().warn("Lost replication stream from " + endpoint + ": " + e.getMessage());
+                }
+            } finally {
+                if (primary != null) {
+                    lastContact = System.currentTimeMillis();
+                }
+                primary = null;
+            }
+
+            if (!closed && promoteAfter > 0 && System.currentTimeMillis() - lastContact >= promoteAfter) {
+                Log.get().info("No primary reachable for " + promoteAfter + " ms, promoting this replica.");
+                promoter.run();
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the stream of one endpoint: a snapshot of every station, closed by
+     * a heartbeat, followed by live updates and heartbeats.
+     */
+    private void follow(InetSocketAddress endpoint) throws IOException {
+        try (Socket s = new Socket()) {
+            socket = s;
+            if (closed) {
+                return;
+            }
+            s.connect(endpoint, (int) RETRY_DELAY * 2);
+            // A primary that sends nothing, not even heartbeats, counts as lost
+            s.setSoTimeout((int) ReplicationPublisher.HEARTBEAT_INTERVAL * 3);
+            primary = endpoint;
+            Log.get().info("Following primary " + endpoint);
+
+            DataInputStream input = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            Set<String> snapshotStations = new HashSet<>();
+            boolean inSnapshot = true;
+            List<WriteAheadLog.Record> batch = new ArrayList<>();
+            while (!closed) {
+                // Apply everything that has already arrived as one batch
+                do {
+                    WriteAheadLog.Record record = WriteAheadLog.readRecord(input);
+                    if (record.getType() == WriteAheadLog.TYPE_HEARTBEAT) {
+                        apply(batch);
+                        if (inSnapshot) {
+                            dropMissingStations(snapshotStations);
+                            inSnapshot = false;
+                        }
+                        heartbeat(record);
+                    } else {
+                        if (inSnapshot) {
+                            snapshotStations.add(record.getStationId());
+                        }
+                        batch.add(record);
+                    }
+                } while (input.available() > 0 && batch.size() < MAX_BATCH);
+                apply(batch);
+            }
+        } finally {
+            socket = null;
+        }
+    }
+
+    private void apply(List<WriteAheadLog.Record> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        applier.accept(new ArrayList<>(batch));
+        long highest = appliedSequence;
+        for (WriteAheadLog.Record record : batch) {
+            highest = Math.max(highest, record.getSequence());
+        }
+        appliedSequence = highest;
+        batch.clear();
+    }
+
+    /**
+     * Removes the stations the replica holds but the primary's snapshot did not,
+     * e.g. ones that expired on the primary while the replica was disconnected.
+     */
+    private void dropMissingStations(Set<String> snapshotStations) {
+        List<WriteAheadLog.Record> deletes = new ArrayList<>();
+        long currentTime = System.currentTimeMillis();
+        for (WeatherStore.StationHistory station : weatherStore.stations()) {
+            WeatherStore.StationRecord latestRecord = station.latest();
+            if (!snapshotStations.contains(latestRecord.getStationId())) {
+                deletes.add(new WriteAheadLog.Record(WriteAheadLog.TYPE_DELETE, latestRecord.getSequence(),
+                        currentTime, latestRecord.getStationId(), latestRecord.getServerId(), ""));
+            }
+        }
+        if (!deletes.isEmpty()) {
+            applier.accept(deletes);
+        }
+    }
+
+    /**
+     * Everything the primary published before a heartbeat has been applied by
+     * the time it is read, so the heartbeat's age is the replication lag.
+     */
+    private void heartbeat(WriteAheadLog.Record record) {
+        long currentTime = System.currentTimeMillis();
+        appliedSequence = Math.max(appliedSequence, record.getSequence());
+        lagMillis = Math.max(0, currentTime - record.getTimestamp());
+        lastHeartbeatTime = currentTime;
+    }
+
+    /**
+     * Builds the replication status reported by a replica.
+     *
+     * @return The status as a JSON object.
+     */
+    public String status() {
+        InetSocketAddress current = primary;
+        long heartbeatAge = lastHeartbeatTime == 0 ? -1 : System.currentTimeMillis() - lastHeartbeatTime;
+        return "{\"role\":\"replica\",\"primary\":" + (current == null ? "null"
+                : "\"" + current.getHostString() + ":" + current.getPort() + "\"")
+                + ",\"connected\":" + (current != null) + ",\"appliedSequence\":" + appliedSequence
+                + ",\"lagMillis\":" + lagMillis + ",\"heartbeatAgeMillis\":" + heartbeatAge + "}";
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Returns the replication lag: how long the last heartbeat took from the
+     * primary to being read here, after every update sent before it had been
+     * applied.
+     *
+     * @return The lag in milliseconds.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public boolean isConnected() {
+        return primary != null;
+    }
+
+    /**
+     * Stops following. The server keeps the state applied so far.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
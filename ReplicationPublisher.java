@@ -0,0 +1,197 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicationPublisher implements Closeable {
+    // How often an idle stream carries a heartbeat, which replicas use to measure their lag
+    public static final long HEARTBEAT_INTERVAL = 1000;
+
+    // Records that may wait for a slow replica before it is dropped and has to resynchronise
+    public static final int QUEUE_CAPACITY = 10_000;
+
+    private final ServerSocket serverSocket;
+    private final WeatherStore weatherStore;
+    private final Set<Replica> replicas = ConcurrentHashMap.newKeySet();
+    private final AtomicLong publishedSequence = new AtomicLong();
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replication-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    /**
+     * A connected replica with its own queue of encoded records and a thread
+     * that writes them, so a slow replica never holds up the servers' writers.
+     */
+    private final class Replica implements Runnable {
+        private final Socket socket;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        private Replica(Socket socket) {
+            this.socket = socket;
+        }
+
+        private void offer(byte[] encoded) {
+            if (!queue.offer(encoded)) {
+                Log.get().warn("Replica " + socket.getRemoteSocketAddress() + " fell behind, disconnecting it.");
+                disconnect();
+            }
+        }
+
+        private void disconnect() {
+            replicas.remove(this);
+            queue.clear();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        @Override
+        public void run() {
+            try (OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+                // Registered before the snapshot is taken, so no update falls between the two
+                for (WeatherStore.StationHistory station : weatherStore.stations()) {
+                    output.write(WriteAheadLog.encode(toLogRecord(station.latest())));
+                }
+                // A heartbeat straight after the snapshot tells the replica it is complete
+                output.write(WriteAheadLog.encode(heartbeat()));
+                output.flush();
+
+                while (!closed && !socket.isClosed()) {
+                    byte[] encoded = queue.poll(HEARTBEAT_INTERVAL * 2, TimeUnit.MILLISECONDS);
+                    if (encoded == null) {
+                        continue;
+                    }
+                    output.write(encoded);
+                    // Write out whatever else is queued before flushing, so a burst goes out as one write
+                    while ((encoded = queue.poll()) != null) {
+                        output.write(encoded);
+                    }
+                    output.flush();
+                }
+            } catch (IOException e) {
+                Log.get().info("Replica disconnected: " + socket.getRemoteSocketAddress());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect();
+            }
+        }
+    }
+
+    /**
+     * Starts accepting replica connections on a port.
+     *
+     * @param port         The port replicas connect to.
+     * @param weatherStore The store whose contents are sent to new replicas.
+     * @throws IOException If the port could not be opened.
+     */
+    public ReplicationPublisher(int port, WeatherStore weatherStore) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.weatherStore = weatherStore;
+
+        Thread acceptThread = new Thread(this::acceptReplicas, "replication-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        heartbeats.scheduleAtFixedRate(() -> {
+            byte[] encoded = WriteAheadLog.encode(heartbeat());
+            for (Replica replica : replicas) {
+                replica.offer(encoded);
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void acceptReplicas() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Log.get().info("Replica connected: " + socket.getRemoteSocketAddress());
+                Replica replica = new Replica(socket);
+                replicas.add(replica);
+                Thread senderThread = new Thread(replica, "replication-sender");
+                senderThread.setDaemon(true);
+                senderThread.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.get().error("Failed to accept replica: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends records that were just written to the log to every replica. A
+     * replica whose queue is full is disconnected; it reconnects and catches up
+     * from a fresh snapshot.
+     *
+     * @param records The logged records, in log order.
+     */
+    public void publish(List<WriteAheadLog.Record> records) {
+        for (WriteAheadLog.Record record : records) {
+            publishedSequence.accumulateAndGet(record.getSequence(), Math::max);
+        }
+        if (replicas.isEmpty()) {
+            return;
+        }
+
+        // Encode once, however many replicas there are
+        List<byte[]> encoded = new ArrayList<>(records.size());
+        for (WriteAheadLog.Record record : records) {
+            encoded.add(WriteAheadLog.encode(record));
+        }
+        for (Replica replica : replicas) {
+            for (byte[] bytes : encoded) {
+                replica.offer(bytes);
+            }
+        }
+    }
+
+    /**
+     * Builds a heartbeat carrying the highest sequence published so far and
+     * the current time.
+     */
+    private WriteAheadLog.Record heartbeat() {
+        return new WriteAheadLog.Record(WriteAheadLog.TYPE_HEARTBEAT, publishedSequence.get(),
+                System.currentTimeMillis(), "", "", "");
+    }
+
+    /**
+     * Converts a station record into the log record that replicates it.
+     *
+     * @param record The station record.
+     * @return The PUT log record.
+     */
+    public static WriteAheadLog.Record toLogRecord(WeatherStore.StationRecord record) {
+        return new WriteAheadLog.Record(WriteAheadLog.TYPE_PUT, record.getSequence(), record.getReceivedTime(),
+                record.getStationId(), record.getServerId(), record.getJson(), record.getLamportTime());
+    }
+
+    /**
+     * Returns the number of connected replicas.
+     *
+     * @return The replica count.
+     */
+    public int replicaCount() {
+        return replicas.size();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        heartbeats.shutdownNow();
+        serverSocket.close();
+        for (Replica replica : replicas) {
+            replica.disconnect();
+        }
+    }
+}
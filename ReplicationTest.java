@@ -0,0 +1,92 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.Comparator;
+
+public class ReplicationTest {
+
+    // Test a primary and a replica running as separate processes on localhost
+    // Ensure the replica serves the primary's updates, refuses writes, and takes over once the primary dies
+    @Test
+    public void testReplicaFollowsAndTakesOver() throws Exception {
+        Path primaryDir = Files.createTempDirectory("replication-primary");
+        Path replicaDir = Files.createTempDirectory("replication-replica");
+        int replicationPort = ServerProcess.freePort();
+        try (ServerProcess primary = ServerProcess.start(ServerProcess.freePort(), "--data-dir=" + primaryDir,
+                "--replication-port=" + replicationPort)) {
+            String response = exchange(primary.getPort(),
+                    ContentServer.buildPutRequest("{\"id\":\"REPL1\",\"air_temp\":\"10\"}", 5, false));
+            assertTrue(response, response.startsWith("HTTP/1.1 20"));
+
+            try (ServerProcess replica = ServerProcess.start(ServerProcess.freePort(),
+                    "--data-dir=" + replicaDir, "--replica-of=localhost:" + replicationPort,
+                    "--promote-after=1500")) {
+                // Records stored before the replica connected arrive with the snapshot
+                awaitResponse(replica.getPort(), "/weather?id=REPL1", "\"air_temp\":\"10\"");
+
+                // Later updates arrive on the live stream
+                exchange(primary.getPort(),
+                        ContentServer.buildPutRequest("{\"id\":\"REPL2\",\"air_temp\":\"20\"}", 6, false));
+                exchange(primary.getPort(),
+                        ContentServer.buildPutRequest("{\"id\":\"REPL1\",\"air_temp\":\"11\"}", 7, false));
+                awaitResponse(replica.getPort(), "/weather?id=REPL2", "\"air_temp\":\"20\"");
+                awaitResponse(replica.getPort(), "/weather?id=REPL1", "\"air_temp\":\"11\"");
+
+                response = exchange(replica.getPort(),
+                        ContentServer.buildPutRequest("{\"id\":\"REPL3\"}", 8, false));
+                assertTrue(response, response.startsWith("HTTP/1.1 503"));
+                awaitResponse(replica.getPort(), "/replication", "\"connected\":true");
+                assertTrue(exchange(replica.getPort(), "GET /replication HTTP/1.1\r\n\r\n")
+                        .contains("\"role\":\"replica\""));
+
+                // Once the primary is gone the replica promotes itself and accepts updates
+                primary.kill();
+                awaitResponse(replica.getPort(), "/replication", "\"role\":\"primary\"");
+                response = exchange(replica.getPort(),
+                        ContentServer.buildPutRequest("{\"id\":\"REPL3\",\"air_temp\":\"30\"}", 9, false));
+                assertTrue(response, response.startsWith("HTTP/1.1 20"));
+                assertTrue(exchange(replica.getPort(), "GET /weather?id=REPL1 HTTP/1.1\r\n\r\n")
+                        .contains("\"air_temp\":\"11\""));
+            }
+        } finally {
+            deleteRecursively(primaryDir);
+            deleteRecursively(replicaDir);
+        }
+    }
+
+    // Poll a GET until its response contains the expected text
+    private static String awaitResponse(int port, String target, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        String response = "";
+        while (System.currentTimeMillis() < deadline) {
+            response = exchange(port, "GET " + target + " HTTP/1.1\r\n\r\n");
+            if (response.contains(expected)) {
+                return response;
+            }
+            Thread.sleep(50);
+        }
+        fail("Expected " + expected + " from " + target + ", last response: " + response);
+        return response;
+    }
+
+    // Send one request on a new connection and return the response
+    private static String exchange(int port, String request) throws IOException {
+        try (Socket socket = new Socket("localhost", port);
+                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
+            outputData.writeUTF(request);
+            outputData.flush();
+            return inputData.readUTF();
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
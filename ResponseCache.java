@@ -0,0 +1,172 @@
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class ResponseCache {
+    // Upper bound on the number of distinct views cached at once
+    private static final int MAX_VIEWS = 1024;
+
+    private final ConcurrentHashMap<String, CachedResponse> views = new ConcurrentHashMap<>();
+
+    /**
+     * An immutable, fully built response together with its encoded forms, tagged
+     * with the store version it was built from.
+     */
+    public static final class CachedResponse {
+        private final long version;
+        private final String text;
+        private final byte[] frame;
+        private final byte[] http;
+        private final String etag;
+        private final CachedResponse notModified;
+
+        /**
+         * Builds a response. A 200 response with a body is given an ETag, a
+         * hash of the body, so clients that already hold the same body can be
+         * answered with a 304 instead.
+         *
+         * @param version The store version the response was built from.
+         * @param text    The response text.
+         */
+        public CachedResponse(long version, String text) {
+            int separator = text.indexOf("\r\n\r\n");
+            if (text.startsWith("HTTP/1.1 200") && separator != -1) {
+                String body = text.substring(separator + 4);
+                this.etag = "\"" + hash(body) + "\"";
+                String clock = HttpCodec.responseHeader(text, "Lamport-Clock");
+                text = text.substring(0, separator) + "\r\nETag: " + etag + text.substring(separator);
+                this.notModified = new CachedResponse(version, "HTTP/1.1 304 Not Modified\r\nETag: " + etag
+                        + (clock == null ? "" : "\r\nLamport-Clock: " + clock) + "\r\n\r\n");
+            } else {
+                this.etag = null;
+                this.notModified = null;
+            }
+            this.version = version;
+            this.text = text;
+            this.frame = encodeFrame(text);
+            this.http = HttpCodec.encodeResponse(text);
+        }
+
+        // The first 128 bits of the body's SHA-256, as hex
+        private static String hash(String body) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder(32);
+                for (int i = 0; i < 16; i++) {
+                    hex.append(Character.forDigit(digest[i] >> 4 & 0xF, 16))
+                            .append(Character.forDigit(digest[i] & 0xF, 16));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        private static byte[] encodeFrame(String text) {
+            try {
+                return FrameCodec.encode(text);
+            } catch (UTFDataFormatException e) {
+                // Too large for a frame, it can still be sent as raw HTTP
+                return null;
+            }
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Returns the encoded frame. The array is shared between all readers and
+         * must not be modified.
+         *
+         * @return The response encoded as a writeUTF frame, or null if it is
+         *         longer than a frame can hold.
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+
+        /**
+         * Returns the response encoded as raw HTTP. The array is shared between
+         * all readers and must not be modified.
+         *
+         * @return The encoded response.
+         */
+        public byte[] getHttp() {
+            return http;
+        }
+
+        /**
+         * Returns the entity tag of the response body.
+         *
+         * @return The quoted ETag, or null if the response has none.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Answers a conditional request: if the If-None-Match header names this
+         * response's ETag (or is "*"), the client already holds the body and
+         * gets a 304 Not Modified without it.
+         *
+         * @param ifNoneMatch The If-None-Match header, may be null.
+         * @return The 304 response, or this response if the condition fails.
+         */
+        public CachedResponse conditional(String ifNoneMatch) {
+            if (ifNoneMatch == null || etag == null) {
+                return this;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // Weak comparison, as for GET: W/"x" matches "x"
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    return notModified;
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Returns the cached response for a view if it was built from the current
+     * store version, otherwise builds it and atomically swaps it in. Once a
+     * write bumps the store version, the next read of every view rebuilds it.
+     *
+     * @param view    The key of the view, e.g. "latest".
+     * @param version The current store version.
+     * @param builder Builds the response text when the cache is out of date.
+     * @return The response for the view.
+     */
+    public CachedResponse get(String view, long version, Supplier<String> builder) {
+        CachedResponse cached = views.get(view);
+        if (cached != null && cached.getVersion() == version) {
+            return cached;
+        }
+
+        CachedResponse rebuilt = new CachedResponse(version, builder.get());
+        if (views.size() >= MAX_VIEWS) {
+            views.clear();
+        }
+        // Never replace a response built from a newer version by an older one
+        views.merge(view, rebuilt, (current, fresh) -> current.getVersion() > fresh.getVersion() ? current : fresh);
+        return rebuilt;
+    }
+
+    /**
+     * Drops every cached view.
+     */
+    public void clear() {
+        views.clear();
+    }
+}
@@ -0,0 +1,77 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+    // Test that a view is built once and then served from the cache
+    @Test
+    public void testCachedUntilVersionChanges() throws IOException {
+        ResponseCache cache = new ResponseCache();
+        AtomicInteger builds = new AtomicInteger();
+
+        ResponseCache.CachedResponse first = cache.get("latest", 1, () -> "body" + builds.incrementAndGet());
+        ResponseCache.CachedResponse second = cache.get("latest", 1, () -> "body" + builds.incrementAndGet());
+        assertSame(first, second);
+        assertEquals(1, builds.get());
+
+        // A write bumps the version, so the next read rebuilds the view
+        ResponseCache.CachedResponse third = cache.get("latest", 2, () -> "body" + builds.incrementAndGet());
+        assertEquals("body2", third.getText());
+        assertEquals(2, builds.get());
+    }
+
+    // Test that the cached frame is exactly what writeUTF would send
+    @Test
+    public void testFrameMatchesText() throws IOException {
+        ResponseCache.CachedResponse response = new ResponseCache().get("latest", 0, () -> "HTTP/1.1 200 OK\r\n\r\n{}");
+
+        DataInputStream inputData = new DataInputStream(new ByteArrayInputStream(response.getFrame()));
+        assertEquals(response.getText(), inputData.readUTF());
+    }
+
+    // Test that views are cached independently of each other
+    @Test
+    public void testViewsAreSeparate() throws IOException {
+        ResponseCache cache = new ResponseCache();
+        cache.get("a", 1, () -> "A");
+
+        assertEquals("B", cache.get("b", 1, () -> "B").getText());
+        assertEquals("A", cache.get("a", 1, () -> "unused").getText());
+    }
+
+    // Test that a 200 response is tagged with a hash of its body and answered with a 304 when the tag matches
+    @Test
+    public void testConditional() throws IOException {
+        ResponseCache.CachedResponse response = new ResponseCache.CachedResponse(1,
+                "HTTP/1.1 200 OK\r\nLamport-Clock: 5\r\n\r\n{\"id\":\"A\"}");
+        String etag = response.getETag();
+        assertNotNull(etag);
+        assertEquals(etag, HttpCodec.responseHeader(response.getText(), "ETag"));
+        assertTrue(response.getText().endsWith("\r\n\r\n{\"id\":\"A\"}"));
+
+        // The same body gets the same tag, whatever version it was built from
+        assertEquals(etag, new ResponseCache.CachedResponse(9,
+                "HTTP/1.1 200 OK\r\nLamport-Clock: 8\r\n\r\n{\"id\":\"A\"}").getETag());
+
+        ResponseCache.CachedResponse notModified = response.conditional(etag);
+        assertTrue(notModified.getText().startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertEquals(etag, HttpCodec.responseHeader(notModified.getText(), "ETag"));
+        assertEquals("5", HttpCodec.responseHeader(notModified.getText(), "Lamport-Clock"));
+        assertSame(notModified, response.conditional("\"other\", W/" + etag));
+        assertSame(notModified, response.conditional("*"));
+
+        assertSame(response, response.conditional(null));
+        assertSame(response, response.conditional("\"other\""));
+    }
+
+    // Test that error responses are not tagged
+    @Test
+    public void testErrorsHaveNoETag() {
+        ResponseCache.CachedResponse response = new ResponseCache.CachedResponse(1,
+                "HTTP/1.1 404 Not Found\r\n\r\nNo weather data available.");
+        assertNull(response.getETag());
+        assertSame(response, response.conditional("*"));
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class ServerProcess implements Closeable {
+    private final Process process;
+    private final int port;
+
+    private ServerProcess(Process process, int port) {
+        this.process = process;
+        this.port = port;
+    }
+
+    /**
+     * Starts an AggregationServer in a separate JVM, using the same classpath as
+     * the current one, and waits until it accepts connections.
+     *
+     * @param port    The port the server should listen on.
+     * @param options Extra options passed to the server, e.g. --executor=pool.
+     * @return The running server process.
+     * @throws IOException If the server could not be started in time.
+     */
+    public static ServerProcess start(int port, String... options) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("AggregationServer");
+        command.add(String.valueOf(port));
+        command.addAll(Arrays.asList(options));
+
+        // Discard the server's console output so it can never block on a full pipe
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        ServerProcess server = new ServerProcess(process, port);
+        server.awaitReady(10000);
+        return server;
+    }
+
+    /**
+     * Finds a free port on the local machine.
+     *
+     * @return A port number that was free at the time of the call.
+     * @throws IOException If no port could be bound.
+     */
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Waits until the server accepts connections.
+     *
+     * @param timeoutMillis The maximum time to wait in milliseconds.
+     * @throws IOException If the server did not come up in time.
+     */
+    private void awaitReady(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Server exited with code " + process.exitValue());
+            }
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 200);
+                return;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for server", interrupted);
+                }
+            }
+        }
+        close();
+        throw new IOException("Server did not start on port " + port);
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Kills the server immediately, without giving it a chance to shut down
+     * cleanly (like a crash).
+     */
+    public void kill() {
+        process.destroyForcibly();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        kill();
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class ShardIngestBenchmark {
+    /**
+     * Starts 1, 2, 4 ... AggregationServer shards as separate processes on
+     * localhost, routes the same set of station records to them through a
+     * ShardRouter, and prints the records stored per second for every shard
+     * count. Each shard is sent its records over its own connection, all shards
+     * at once, so with enough cores throughput should grow close to linearly.
+     *
+     * Usage: java ShardIngestBenchmark [records] [maxShards] [rounds]
+     */
+    public static void main(String args[]) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int maxShards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        List<String> jsonRecords = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            jsonRecords.add(String.format("{\"id\":\"SHARD%05d\",\"name\":\"Benchmark\",\"state\":\"SA\","
+                    + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"%d.5\",\"rel_hum\":\"60\"}",
+                    i % 10_000, i % 40));
+        }
+
+        System.out.println("records=" + records + " rounds=" + rounds + " cores="
+                + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %14s %10s%n", "shards", "records/s", "speedup");
+
+        double baseline = 0;
+        for (int shardCount = 1; shardCount <= maxShards; shardCount *= 2) {
+            List<ServerProcess> servers = new ArrayList<>();
+            List<Path> dataDirs = new ArrayList<>();
+            try {
+                List<String> shards = new ArrayList<>();
+                for (int i = 0; i < shardCount; i++) {
+                    Path dataDir = Files.createTempDirectory("shard-benchmark");
+                    dataDirs.add(dataDir);
+                    ServerProcess server = ServerProcess.start(ServerProcess.freePort(), "--data-dir=" + dataDir,
+                            "--retained-updates=0");
+                    servers.add(server);
+                    shards.add("localhost:" + server.getPort());
+                }
+
+                // Route once up front, the measurement is of the shards, not of hashing
+                Map<String, List<String>> partitions = new ShardRouter(shards).partition(jsonRecords);
+                Map<String, List<String>> bodies = new HashMap<>();
+                for (Map.Entry<String, List<String>> partition : partitions.entrySet()) {
+                    bodies.put(partition.getKey(), ContentServer.buildBatches(partition.getValue(), 100, 60000));
+                }
+
+                // Warm up the shards before the timed rounds
+                send(bodies);
+
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < rounds; round++) {
+                    long start = System.nanoTime();
+                    send(bodies);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                double throughput = records / (best / 1e9);
+                if (shardCount == 1) {
+                    baseline = throughput;
+                }
+                System.out.printf("%-8d %14.0f %9.2fx%n", shardCount, throughput, throughput / baseline);
+            } finally {
+                for (ServerProcess server : servers) {
+                    server.close();
+                }
+                for (Path dataDir : dataDirs) {
+                    deleteRecursively(dataDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends every shard its batches on a thread of its own and waits for all
+     * of them to be acknowledged.
+     */
+    private static void send(Map<String, List<String>> bodies) throws Exception {
+        // The content server prints every response, which would dominate the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<Thread> senders = new ArrayList<>();
+        List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+        try {
+            for (Map.Entry<String, List<String>> shard : bodies.entrySet()) {
+                Thread sender = new Thread(() -> {
+                    int port = Integer.parseInt(shard.getKey().split(":")[1]);
+                    try (Socket s = new Socket("localhost", port)) {
+                        List<String> responses = ContentServer.sendPipelinedBodies(s, shard.getValue(),
+                                new LamportClock());
+                        if (responses.size() != shard.getValue().size()) {
+                            throw new IOException("Only " + responses.size() + " of " + shard.getValue().size()
+                                    + " requests answered by " + shard.getKey());
+                        }
+                    } catch (IOException e) {
+                        failures.add(e);
+                    }
+                });
+                sender.start();
+                senders.add(sender);
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+        } finally {
+            System.setOut(console);
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
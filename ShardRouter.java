@@ -0,0 +1,264 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ShardRouter {
+    // Points each shard gets on the hash ring, enough to spread stations evenly over a handful of shards
+    public static final int VIRTUAL_NODES = 160;
+
+    // Ring position -> shard address (host:port)
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> shards = new ArrayList<>();
+    // Sends the requests of scatter GETs, threads are kept between GETs and grow with the shards in flight
+    private final ExecutorService executor = Executors.newCachedThreadPool(task -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(task);
+        thread.setName("shard-router");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a router over a set of AggregationServer shards.
+     *
+     * @param shards The shard addresses, each host:port.
+     */
+    public ShardRouter(List<String> shards) {
+        for (String shard : shards) {
+            addShard(shard);
+        }
+    }
+
+    /**
+     * Parses a comma separated list of shard addresses.
+     *
+     * @param value The list, e.g. "localhost:4567,localhost:4568".
+     * @return The router.
+     */
+    public static ShardRouter parse(String value) {
+        List<String> shards = new ArrayList<>();
+        for (String shard : value.split(",")) {
+            if (!shard.trim().isEmpty()) {
+                shards.add(shard.trim());
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shard given");
+        }
+        return new ShardRouter(shards);
+    }
+
+    /**
+     * Adds a shard to the ring. Only the stations whose ring positions now fall
+     * to the new shard move, about 1/N of them with N shards.
+     *
+     * @param shard The shard address, host:port.
+     */
+    public synchronized void addShard(String shard) {
+        if (shards.contains(shard)) {
+            return;
+        }
+        shards.add(shard);
+        // Every digest yields four ring positions
+        for (int i = 0; i < VIRTUAL_NODES / 4; i++) {
+            byte[] digest = md5(shard + "#" + i);
+            for (int j = 0; j < 4; j++) {
+                ring.put(toLong(digest, j * 4), shard);
+            }
+        }
+    }
+
+    /**
+     * Removes a shard from the ring. Its stations move to the shards that
+     * follow its positions, every other station stays where it is.
+     *
+     * @param shard The shard address.
+     */
+    public synchronized void removeShard(String shard) {
+        if (shards.remove(shard)) {
+            ring.values().removeIf(shard::equals);
+        }
+    }
+
+    /**
+     * Returns the shard that holds a station.
+     *
+     * @param stationId The station id.
+     * @return The shard address.
+     */
+    public synchronized String shardFor(String stationId) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("No shards");
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(toLong(md5(stationId), 0));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Returns the shards in the order they were added.
+     *
+     * @return The shard addresses.
+     */
+    public synchronized List<String> getShards() {
+        return new ArrayList<>(shards);
+    }
+
+    /**
+     * Groups JSON records by the shard that holds their station, keeping their
+     * order within each shard. Records without an id go to the first shard,
+     * which rejects them as it would without sharding.
+     *
+     * @param jsonRecords The JSON records.
+     * @return The records of every shard that received any.
+     */
+    public Map<String, List<String>> partition(List<String> jsonRecords) {
+        Map<String, List<String>> partitions = new LinkedHashMap<>();
+        for (String jsonRecord : jsonRecords) {
+            StationJson stationJson = StationJson.parse(jsonRecord);
+            String shard = stationJson == null || stationJson.getId().isEmpty() ? getShards().get(0)
+                    : shardFor(stationJson.getId());
+            partitions.computeIfAbsent(shard, key -> new ArrayList<>()).add(jsonRecord);
+        }
+        return partitions;
+    }
+
+    /**
+     * Answers a GET across the shards. A query by station id goes to the shard
+     * holding the station; any other query is sent to every shard at once and
+     * the responses are gathered into one: the arrays of a bbox or since query
+     * are concatenated, and for the latest update the response of the shard
+     * with the highest Lamport clock is used.
+     *
+     * @param target       The request target, e.g. /weather?bbox=-35,138,-34,139.
+     * @param lamportClock The clock used to timestamp the requests, advanced
+     *                     past every shard's clock.
+     * @return The gathered response.
+     * @throws IOException If a shard could not be queried.
+     */
+    public String get(String target, LamportClock lamportClock) throws IOException {
+        WeatherQuery query = WeatherQuery.parse(target);
+        if (query != null && query.getId() != null) {
+            return receive(exchange(shardFor(query.getId()), target, lamportClock), lamportClock);
+        }
+
+        // Scatter: one request per shard, all in flight together
+        List<String> shardList = getShards();
+        List<Future<String>> futures = new ArrayList<>();
+        try {
+            for (String shard : shardList) {
+                futures.add(executor.submit(() -> exchange(shard, target, lamportClock)));
+            }
+
+            // Gather
+            List<String> responses = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    responses.add(receive(futures.get(i).get(), lamportClock));
+                } catch (ExecutionException e) {
+                    throw new IOException("Shard " + shardList.get(i) + " failed: " + e.getCause().getMessage(),
+                            e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while querying shards");
+                }
+            }
+            return gather(query, responses);
+        } finally {
+            // Stop the requests still in flight after a shard failed
+            for (Future<String> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Merges the responses of every shard to the same query.
+     *
+     * @param query     The parsed query, null if it was malformed.
+     * @param responses The shard responses, in shard order.
+     * @return The merged response.
+     */
+    static String gather(WeatherQuery query, List<String> responses) {
+        long clock = 0;
+        String latest = null;
+        long latestClock = -1;
+        StringBuilder body = new StringBuilder("[");
+        for (String response : responses) {
+            long responseClock = parseClock(response);
+            clock = Math.max(clock, responseClock);
+            if (!response.startsWith("HTTP/1.1 200")) {
+                if (response.startsWith("HTTP/1.1 404")) {
+                    continue; // This shard has no data, the others may
+                }
+                return response; // E.g. an invalid query, which every shard rejects alike
+            }
+
+            int bodyStart = response.indexOf("\r\n\r\n");
+            String responseBody = bodyStart == -1 ? "" : response.substring(bodyStart + 4).trim();
+            if (query == null || query.isLatest() || query.getId() != null) {
+                if (responseClock > latestClock) {
+                    latest = response;
+                    latestClock = responseClock;
+                }
+            } else if (responseBody.length() > 2) {
+                body.append(body.length() == 1 ? "" : ",").append(responseBody, 1, responseBody.length() - 1);
+            }
+        }
+
+        if (query == null || query.isLatest() || query.getId() != null) {
+            return latest != null ? latest
+                    : responses.isEmpty() ? "HTTP/1.1 404 Not Found\r\n\r\nNo weather data available."
+                            : responses.get(0);
+        }
+        body.append(']');
+        return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nLamport-Clock: " + clock
+                + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    /**
+     * Sends a GET to one shard as raw HTTP, which has no 64KB limit on the
+     * response, and reads the response.
+     */
+    private static String exchange(String shard, String target, LamportClock lamportClock) throws IOException {
+        String host = shard.split(":")[0];
+        int port = Integer.parseInt(shard.split(":")[1]);
+        try (Socket socket = new Socket(host, port)) {
+            String request = "GET " + target + " HTTP/1.1\r\nHost: " + shard + "\r\nLamport-Clock: "
+                    + lamportClock.tick() + "\r\nConnection: close\r\n\r\n";
+            OutputStream output = socket.getOutputStream();
+            output.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            output.flush();
+            return HttpCodec.readResponse(new BufferedInputStream(socket.getInputStream()));
+        }
+    }
+
+    private static String receive(String response, LamportClock lamportClock) {
+        long clock = parseClock(response);
+        if (clock >= 0) {
+            lamportClock.update(clock);
+        }
+        return response;
+    }
+
+    private static long parseClock(String response) {
+        String value = HttpCodec.responseHeader(response, "Lamport-Clock");
+        return value != null && value.matches("\\d{1,18}") ? Long.parseLong(value) : -1;
+    }
+
+    private static byte[] md5(String key) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    // Reads four bytes of a digest as an unsigned ring position
+    private static long toLong(byte[] digest, int offset) {
+        return (digest[offset + 3] & 0xFFL) << 24 | (digest[offset + 2] & 0xFFL) << 16
+                | (digest[offset + 1] & 0xFFL) << 8 | digest[offset] & 0xFFL;
+    }
+}
@@ -0,0 +1,155 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class ShardRouterTest {
+
+    private static final List<String> SHARDS = Arrays.asList("localhost:4567", "localhost:4568", "localhost:4569");
+
+    // Test that stations are spread evenly and always routed to the same shard
+    @Test
+    public void testShardForIsStableAndBalanced() {
+        ShardRouter router = new ShardRouter(SHARDS);
+        ShardRouter other = ShardRouter.parse("localhost:4567, localhost:4568,localhost:4569");
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30000; i++) {
+            String stationId = "IDS" + i;
+            String shard = router.shardFor(stationId);
+            assertEquals(shard, other.shardFor(stationId));
+            counts.merge(shard, 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced shard with " + count + " stations", count > 7000 && count < 13000);
+        }
+    }
+
+    // Test that adding a shard only moves stations to the new shard, about 1/N of them
+    @Test
+    public void testAddShardMovesFewStations() {
+        ShardRouter router = new ShardRouter(SHARDS);
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            before.put("IDS" + i, router.shardFor("IDS" + i));
+        }
+
+        router.addShard("localhost:4570");
+        int moved = 0;
+        for (Map.Entry<String, String> station : before.entrySet()) {
+            String shard = router.shardFor(station.getKey());
+            if (!shard.equals(station.getValue())) {
+                assertEquals("localhost:4570", shard);
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved + " stations", moved > 3000 && moved < 7000);
+
+        // Removing it again puts every station back where it was
+        router.removeShard("localhost:4570");
+        for (Map.Entry<String, String> station : before.entrySet()) {
+            assertEquals(station.getValue(), router.shardFor(station.getKey()));
+        }
+    }
+
+    // Test grouping records by shard
+    @Test
+    public void testPartition() {
+        ShardRouter router = new ShardRouter(SHARDS);
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add("{\"id\":\"IDS" + i + "\",\"n\":" + i + "}");
+        }
+        records.add("{\"name\":\"no id\"}");
+
+        Map<String, List<String>> partitions = router.partition(records);
+        int total = 0;
+        for (Map.Entry<String, List<String>> partition : partitions.entrySet()) {
+            for (String record : partition.getValue()) {
+                StationJson stationJson = StationJson.parse(record);
+                if (!stationJson.getId().isEmpty()) {
+                    assertEquals(partition.getKey(), router.shardFor(stationJson.getId()));
+                }
+            }
+            total += partition.getValue().size();
+        }
+        assertEquals(101, total);
+        assertTrue(partitions.get(SHARDS.get(0)).contains("{\"name\":\"no id\"}"));
+    }
+
+    // Test merging the responses of every shard to one query
+    @Test
+    public void testGather() {
+        String array1 = "HTTP/1.1 200 OK\r\nLamport-Clock: 7\r\n\r\n[{\"id\":\"A\"},{\"id\":\"B\"}]";
+        String empty = "HTTP/1.1 200 OK\r\nLamport-Clock: 9\r\n\r\n[]";
+        String array2 = "HTTP/1.1 200 OK\r\nLamport-Clock: 3\r\n\r\n[{\"id\":\"C\"}]";
+        String gathered = ShardRouter.gather(WeatherQuery.parse("/weather?since=2023"),
+                Arrays.asList(array1, empty, array2));
+        assertTrue(gathered, gathered.startsWith("HTTP/1.1 200 OK"));
+        assertEquals("9", HttpCodec.responseHeader(gathered, "Lamport-Clock"));
+        assertTrue(gathered, gathered.endsWith("\r\n\r\n[{\"id\":\"A\"},{\"id\":\"B\"},{\"id\":\"C\"}]"));
+
+        // The latest update comes from the shard with the highest clock
+        String latest1 = "HTTP/1.1 200 OK\r\nLamport-Clock: 4\r\n\r\n{\"id\":\"A\"}";
+        String latest2 = "HTTP/1.1 200 OK\r\nLamport-Clock: 6\r\n\r\n{\"id\":\"B\"}";
+        String missing = "HTTP/1.1 404 Not Found\r\n\r\nNo weather data available.";
+        assertEquals(latest2, ShardRouter.gather(WeatherQuery.LATEST, Arrays.asList(latest1, missing, latest2)));
+        assertEquals(missing, ShardRouter.gather(WeatherQuery.LATEST, Arrays.asList(missing, missing)));
+
+        // An error from a shard is passed on as it is
+        String invalid = "HTTP/1.1 400 Bad Request\r\n\r\nInvalid query.";
+        assertEquals(invalid, ShardRouter.gather(null, Arrays.asList(invalid, invalid)));
+    }
+
+    // Test that scatter GETs share the router's daemon threads instead of starting a pool each
+    @Test
+    public void testScatterReusesThreads() throws Exception {
+        try (ServerSocket shard1 = serve("{\"id\":\"A\"}"); ServerSocket shard2 = serve("{\"id\":\"B\"}")) {
+            ShardRouter router = new ShardRouter(Arrays.asList("localhost:" + shard1.getLocalPort(),
+                    "localhost:" + shard2.getLocalPort()));
+            int gets = 20;
+            for (int i = 0; i < gets; i++) {
+                String response = router.get("/weather?since=2023", new LamportClock());
+                assertTrue(response, response.endsWith("[{\"id\":\"A\"},{\"id\":\"B\"}]"));
+            }
+
+            int threads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("shard-router")) {
+                    assertTrue(thread.isDaemon());
+                    threads++;
+                }
+            }
+            assertTrue("Threads: " + threads, threads > 0 && threads < gets);
+        }
+    }
+
+    // Starts a fake shard that answers every GET with the same array
+    private static ServerSocket serve(String record) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        // Skip the request head
+                    }
+                    String body = "[" + record + "]";
+                    socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nLamport-Clock: 1\r\nContent-Length: "
+                            + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1));
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return serverSocket;
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class StationIndex {
+    // Size of a grid cell in degrees of latitude and longitude
+    public static final double CELL_SIZE = 1.0;
+
+    // Orders entries by observation time, then by station id so equal times stay distinct
+    private static final Comparator<Entry> BY_TIME = Comparator.comparing((Entry entry) -> entry.time)
+            .thenComparing(entry -> entry.record == null ? "" : entry.record.getStationId());
+
+    private final ConcurrentHashMap<String, Entry> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<String, Entry>> grid = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Entry> byTime = new ConcurrentSkipListSet<>(BY_TIME);
+
+    /**
+     * The indexed attributes of a station's latest record, extracted once when
+     * the record is stored.
+     */
+    private static final class Entry {
+        private final WeatherStore.StationRecord record;
+        private final double lat;
+        private final double lon;
+        private final String time;
+
+        private Entry(WeatherStore.StationRecord record, double lat, double lon, String time) {
+            this.record = record;
+            this.lat = lat;
+            this.lon = lon;
+            this.time = time;
+        }
+
+        private boolean hasPosition() {
+            return lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180;
+        }
+    }
+
+    /**
+     * Indexes a record as the latest of its station, replacing the previous one.
+     * Updates of the same station must not run concurrently, which the store
+     * guarantees by calling this while it updates the station's entry.
+     *
+     * @param record The station's new latest record.
+     */
+    public void update(WeatherStore.StationRecord record) {
+        String json = record.getJson();
+        StationJson stationJson = StationJson.parse(json, 0, json.length());
+        Entry entry = stationJson == null ? new Entry(record, Double.NaN, Double.NaN, null)
+                : new Entry(record, stationJson.getNumber("lat"), stationJson.getNumber("lon"),
+                        stationJson.getLocalDateTimeFull());
+
+        Entry previous = byId.put(record.getStationId(), entry);
+        if (previous != null) {
+            unlink(previous);
+        }
+        if (entry.hasPosition()) {
+            // Added inside compute so a concurrent removal cannot drop the cell in between
+            grid.compute(cellKey(entry.lat, entry.lon), (key, cell) -> {
+                ConcurrentHashMap<String, Entry> stations = cell == null ? new ConcurrentHashMap<>() : cell;
+                stations.put(record.getStationId(), entry);
+                return stations;
+            });
+        }
+        if (entry.time != null) {
+            byTime.add(entry);
+        }
+    }
+
+    /**
+     * Removes a station from the index.
+     *
+     * @param stationId The station id.
+     */
+    public void remove(String stationId) {
+        Entry previous = byId.remove(stationId);
+        if (previous != null) {
+            unlink(previous);
+        }
+    }
+
+    /**
+     * Removes an entry from the grid and time indexes.
+     */
+    private void unlink(Entry entry) {
+        String stationId = entry.record.getStationId();
+        if (entry.hasPosition()) {
+            grid.computeIfPresent(cellKey(entry.lat, entry.lon), (key, cell) -> {
+                cell.remove(stationId, entry);
+                return cell.isEmpty() ? null : cell;
+            });
+        }
+        if (entry.time != null) {
+            byTime.remove(entry);
+        }
+    }
+
+    /**
+     * Finds the latest records of the stations that match a query, using the
+     * most selective index: the id, then the bounding box, then the time.
+     *
+     * @param query The query, which must not be the plain latest query.
+     * @return The matching records, ordered by observation time for a since
+     *         query. Records found by bounding box are not sorted, sorting
+     *         thousands of them costs more than finding them.
+     */
+    public List<WeatherStore.StationRecord> find(WeatherQuery query) {
+        List<WeatherStore.StationRecord> results = new ArrayList<>();
+        if (query.getId() != null) {
+            Entry entry = byId.get(query.getId());
+            if (entry != null && matches(entry, query)) {
+                results.add(entry.record);
+            }
+            return results;
+        }
+
+        if (query.hasBox()) {
+            for (Entry entry : entriesInBox(query.getBox())) {
+                if (matches(entry, query)) {
+                    results.add(entry.record);
+                }
+            }
+            return results;
+        }
+
+        // Every entry from the first one at or after the since time
+        Entry from = new Entry(null, Double.NaN, Double.NaN, query.getSince());
+        for (Entry entry : byTime.tailSet(from, true)) {
+            results.add(entry.record);
+        }
+        return results;
+    }
+
+    /**
+     * Collects the entries in the grid cells that overlap a box. A box that
+     * covers more cells than are occupied is answered by scanning the occupied
+     * cells instead, so a query for the whole world stays cheap.
+     */
+    private List<Entry> entriesInBox(double[] box) {
+        long minLatCell = cell(Math.max(box[0], -90));
+        long maxLatCell = cell(Math.min(box[2], 90));
+        long minLonCell = cell(Math.max(box[1], -180));
+        long maxLonCell = cell(Math.min(box[3], 180));
+        List<Entry> entries = new ArrayList<>();
+        if (minLatCell > maxLatCell || minLonCell > maxLonCell) {
+            return entries;
+        }
+
+        long cellCount = (maxLatCell - minLatCell + 1) * (maxLonCell - minLonCell + 1);
+        if (cellCount > grid.size()) {
+            for (Map.Entry<Long, ConcurrentHashMap<String, Entry>> cell : grid.entrySet()) {
+                long latCell = cell.getKey() >> 32;
+                long lonCell = (int) (long) cell.getKey();
+                if (latCell >= minLatCell && latCell <= maxLatCell && lonCell >= minLonCell && lonCell <= maxLonCell) {
+                    entries.addAll(cell.getValue().values());
+                }
+            }
+        } else {
+            for (long latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+                for (long lonCell = minLonCell; lonCell <= maxLonCell; lonCell++) {
+                    ConcurrentHashMap<String, Entry> cell = grid.get(latCell << 32 | lonCell & 0xffffffffL);
+                    if (cell != null) {
+                        entries.addAll(cell.values());
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static boolean matches(Entry entry, WeatherQuery query) {
+        return (!query.hasBox() || entry.hasPosition() && query.inBox(entry.lat, entry.lon))
+                && query.isSince(entry.time);
+    }
+
+    private static long cell(double degrees) {
+        return (long) Math.floor(degrees / CELL_SIZE);
+    }
+
+    private static long cellKey(double lat, double lon) {
+        return cell(lat) << 32 | cell(lon) & 0xffffffffL;
+    }
+
+    /**
+     * Returns the number of indexed stations.
+     *
+     * @return The station count.
+     */
+    public int size() {
+        return byId.size();
+    }
+}
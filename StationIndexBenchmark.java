@@ -0,0 +1,60 @@
+import java.util.*;
+
+public class StationIndexBenchmark {
+    /**
+     * Fills a store with stations spread over Australia and times each kind of
+     * indexed GET query: by id, by a small and a continent sized bounding box,
+     * and by a recent since time. Each query is warmed up and then timed over
+     * several rounds; the best round is reported.
+     *
+     * Usage: java StationIndexBenchmark [stations] [iterations] [rounds]
+     */
+    public static void main(String args[]) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        WeatherStore store = new WeatherStore();
+        Random random = new Random(42);
+        for (int i = 0; i < stations; i++) {
+            String id = String.format("IDS%05d", i);
+            store.put(id, String.format("{\"id\":\"%s\",\"lat\":\"%.3f\",\"lon\":\"%.3f\","
+                    + "\"local_date_time_full\":\"202307%02d%02d0000\",\"air_temp\":\"13.3\"}", id,
+                    -44 + random.nextDouble() * 34, 113 + random.nextDouble() * 41, 1 + i % 28, i % 24), "bench");
+        }
+
+        WeatherQuery[] queries = {
+                WeatherQuery.parse("/weather?id=IDS" + String.format("%05d", stations / 2)),
+                WeatherQuery.parse("/weather?bbox=-35.5,138,-34.5,139"),
+                WeatherQuery.parse("/weather?bbox=-44,113,-10,154"),
+                WeatherQuery.parse("/weather?since=20230728"),
+        };
+        String[] names = { "id", "bbox-small", "bbox-all", "since" };
+
+        System.out.println("stations=" + stations + " iterations=" + iterations + " rounds=" + rounds);
+        System.out.printf("%-12s %10s %12s%n", "query", "results", "us/op");
+        for (int q = 0; q < queries.length; q++) {
+            WeatherQuery query = queries[q];
+            int results = store.find(query).size();
+
+            // Warm up so the lookup is compiled before it is measured
+            long sink = 0;
+            for (int i = 0; i < iterations; i++) {
+                sink += store.find(query).size();
+            }
+
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += store.find(query).size();
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%-12s %10d %12.2f%n", names[q], results, best / 1000.0 / iterations);
+            if (sink == 42) {
+                System.out.println(); // Keeps the results live so the loop is not optimised away
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StationIndexTest {
+    private WeatherStore store;
+
+    // Create a store with three stations around Adelaide and one in Darwin
+    @Before
+    public void setUp() {
+        store = new WeatherStore();
+        put("ADL1", "-34.9", "138.6", "20230715160000");
+        put("ADL2", "-34.5", "138.9", "20230715163000");
+        put("ADL3", "-35.1", "138.5", "20230715150000");
+        put("DRW1", "-12.4", "130.8", "20230715170000");
+    }
+
+    private void put(String id, String lat, String lon, String time) {
+        store.put(id, "{\"id\":\"" + id + "\",\"lat\":\"" + lat + "\",\"lon\":\"" + lon
+                + "\",\"local_date_time_full\":\"" + time + "\"}", "server1");
+    }
+
+    private static List<String> ids(List<WeatherStore.StationRecord> records) {
+        List<String> ids = new ArrayList<>();
+        for (WeatherStore.StationRecord record : records) {
+            ids.add(record.getStationId());
+        }
+        return ids;
+    }
+
+    // Test the lookup of a single station by id
+    @Test
+    public void testFindById() {
+        assertEquals(Arrays.asList("ADL2"), ids(store.find(WeatherQuery.parse("/weather?id=ADL2"))));
+        assertTrue(store.find(WeatherQuery.parse("/weather?id=NONE")).isEmpty());
+    }
+
+    // Test that a bounding box returns the stations inside it, edges included
+    @Test
+    public void testFindInBox() {
+        assertEquals(new HashSet<>(Arrays.asList("ADL1", "ADL2", "ADL3")),
+                new HashSet<>(ids(store.find(WeatherQuery.parse("/weather?bbox=-36,138,-34,139")))));
+        assertEquals(Arrays.asList("ADL1"), ids(store.find(WeatherQuery.parse("/weather?bbox=-34.9,138.6,-35,138.6"))));
+        assertEquals(4, store.find(WeatherQuery.parse("/weather?bbox=-90,-180,90,180")).size());
+        assertTrue(store.find(WeatherQuery.parse("/weather?bbox=10,10,20,20")).isEmpty());
+    }
+
+    // Test that a since query returns the stations observed at or after the time, oldest first
+    @Test
+    public void testFindSince() {
+        assertEquals(Arrays.asList("ADL1", "ADL2", "DRW1"),
+                ids(store.find(WeatherQuery.parse("/weather?since=20230715160000"))));
+        assertEquals(4, store.find(WeatherQuery.parse("/weather?since=20230715")).size());
+        assertEquals(Arrays.asList("ADL2"),
+                ids(store.find(WeatherQuery.parse("/weather?bbox=-36,138,-34,139&since=20230715161000"))));
+    }
+
+    // Test that the indexes follow updates and removals of a station
+    @Test
+    public void testIndexFollowsUpdates() {
+        put("ADL3", "-12.5", "130.9", "20230715180000");
+        assertEquals(new HashSet<>(Arrays.asList("ADL1", "ADL2")),
+                new HashSet<>(ids(store.find(WeatherQuery.parse("/weather?bbox=-36,138,-34,139")))));
+        assertEquals(Arrays.asList("DRW1", "ADL3"),
+                ids(store.find(WeatherQuery.parse("/weather?since=20230715170000"))));
+
+        store.remove("DRW1");
+        assertEquals(Arrays.asList("ADL3"), ids(store.find(WeatherQuery.parse("/weather?bbox=-13,130,-12,131"))));
+        assertTrue(store.remove("ADL3"));
+        assertTrue(store.find(WeatherQuery.parse("/weather?since=20230715170000")).isEmpty());
+    }
+
+    // Test parsing of query targets
+    // Ensure malformed parameters are rejected and equal queries share a view key
+    @Test
+    public void testParseQuery() {
+        assertTrue(WeatherQuery.parse("/weather").isLatest());
+        assertTrue(WeatherQuery.parse("/weather?format=json").isLatest());
+        assertEquals("IDS 60901", WeatherQuery.parse("/weather?id=IDS%2060901").getId());
+        assertNull(WeatherQuery.parse("/weather?bbox=1,2,3"));
+        assertNull(WeatherQuery.parse("/weather?bbox=a,b,c,d"));
+        assertNull(WeatherQuery.parse("/weather?since=yesterday"));
+        assertEquals(WeatherQuery.parse("/weather?bbox=-34,139,-36,138").viewKey(),
+                WeatherQuery.parse("/weather?bbox=-36,138,-34,139").viewKey());
+    }
+}
@@ -0,0 +1,436 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class StationJson {
+    // Numeric fields of the station record schema, extracted while validating
+    public static final String[] NUMERIC_FIELDS = { "lat", "lon", "air_temp", "apparent_t", "dewpt", "press",
+            "rel_hum", "wind_spd_kmh", "wind_spd_kt" };
+
+    private final String data;
+    private final int jsonStart;
+    private final int jsonEnd;
+    private final String id;
+    private final String localDateTimeFull;
+
+    // Offsets of each numeric field's value in data, -1 if the field is absent
+    private final int[] numberStart;
+    private final int[] numberEnd;
+
+    // Only set for irregular records that were parsed by org.json
+    private final JSONObject fallback;
+
+    private StationJson(String data, int jsonStart, int jsonEnd, String id, String localDateTimeFull,
+            int[] numberStart, int[] numberEnd, JSONObject fallback) {
+        this.data = data;
+        this.jsonStart = jsonStart;
+        this.jsonEnd = jsonEnd;
+        this.id = id;
+        this.localDateTimeFull = localDateTimeFull;
+        this.numberStart = numberStart;
+        this.numberEnd = numberEnd;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Validates the JSON record that follows the Lamport-Clock header of a
+     * content server message and extracts its fields in a single pass, without
+     * building a JSONObject.
+     *
+     * The fast path accepts a flat object of string, number, boolean and null
+     * values without escape sequences, which is what the content server sends.
+     * Anything else (nested values, escapes, repeated schema fields, trailing
+     * text) is handed to org.json, so the outcome is the same as parsing every
+     * record with JSONObject.
+     *
+     * @param data The data received from the content server.
+     * @return The validated record, or null if the message holds no valid JSON.
+     */
+    public static StationJson parse(String data) {
+        int jsonStart = data.indexOf("{", data.indexOf("Lamport-Clock:"));
+        if (jsonStart == -1) {
+            return null;
+        }
+        return parse(data, jsonStart, data.length());
+    }
+
+    /**
+     * Validates a request body that holds a JSON record and extracts its fields,
+     * reading the record in place rather than copying the body out first.
+     *
+     * @param data  The text holding the body.
+     * @param start The index of the first character of the body.
+     * @param end   The index after the last character of the body.
+     * @return The validated record, or null if the body is not a valid JSON
+     *         object.
+     */
+    public static StationJson parse(String data, int start, int end) {
+        int jsonStart = skipWhitespace(data, start, end);
+        if (jsonStart == end || data.charAt(jsonStart) != '{') {
+            return null;
+        }
+
+        StationJson record = parseFlat(data, jsonStart, end, true);
+        return record != null ? record : parseFallback(data, jsonStart, end);
+    }
+
+    /**
+     * Validates a request body that holds a JSON array of records, as sent in a
+     * batch, and extracts the fields of every record. Regular records are read
+     * in place like single ones; an irregular array is handed to org.json.
+     *
+     * @param data  The text holding the body.
+     * @param start The index of the first character of the body.
+     * @param end   The index after the last character of the body.
+     * @return One entry per array element, null for an element that is not an
+     *         object, or null if the body is not a valid JSON array.
+     */
+    public static List<StationJson> parseArray(String data, int start, int end) {
+        int position = skipWhitespace(data, start, end);
+        if (position == end || data.charAt(position) != '[') {
+            return null;
+        }
+
+        List<StationJson> records = new ArrayList<>();
+        position = skipWhitespace(data, position + 1, end);
+        if (position < end && data.charAt(position) == ']') {
+            return skipWhitespace(data, position + 1, end) == end ? records : parseArrayFallback(data, start, end);
+        }
+        while (position < end && data.charAt(position) == '{') {
+            StationJson record = parseFlat(data, position, end, false);
+            if (record == null) {
+                return parseArrayFallback(data, start, end);
+            }
+            records.add(record);
+
+            // Either another element or the end of the array, followed only by whitespace
+            position = skipWhitespace(data, record.jsonEnd, end);
+            if (position < end && data.charAt(position) == ']') {
+                return skipWhitespace(data, position + 1, end) == end ? records : parseArrayFallback(data, start, end);
+            }
+            if (position == end || data.charAt(position) != ',') {
+                break;
+            }
+            position = skipWhitespace(data, position + 1, end);
+        }
+        return parseArrayFallback(data, start, end);
+    }
+
+    /**
+     * Parses an irregular array of records with org.json. Records parsed this
+     * way are stored as org.json serializes them.
+     *
+     * @return The records, or null if the JSON is invalid.
+     */
+    private static List<StationJson> parseArrayFallback(String data, int start, int end) {
+        JSONArray jsonArray;
+        try {
+            jsonArray = new JSONArray(data.substring(start, end));
+        } catch (Exception e) {
+            return null;
+        }
+
+        List<StationJson> records = new ArrayList<>(jsonArray.length());
+        for (int i = 0; i < jsonArray.length(); i++) {
+            JSONObject jsonObject = jsonArray.optJSONObject(i);
+            if (jsonObject == null) {
+                records.add(null);
+                continue;
+            }
+            String json = jsonObject.toString();
+            records.add(new StationJson(json, 0, json.length(), jsonObject.optString("id", "").trim(),
+                    jsonObject.has("local_date_time_full") ? jsonObject.optString("local_date_time_full") : null,
+                    null, null, jsonObject));
+        }
+        return records;
+    }
+
+    /**
+     * Scans a flat JSON object starting at the opening brace.
+     *
+     * @param wholeInput Whether only whitespace may follow the object, rather
+     *                   than further array elements.
+     * @return The record, or null if the input is not a regular flat object.
+     */
+    private static StationJson parseFlat(String data, int jsonStart, int end, boolean wholeInput) {
+        int[] numberStart = null;
+        int[] numberEnd = null;
+        String id = null;
+        String localDateTimeFull = null;
+
+        int position = skipWhitespace(data, jsonStart + 1, end);
+        if (position < end && data.charAt(position) == '}') {
+            position = skipWhitespace(data, position + 1, end);
+        } else {
+            while (true) {
+                // Member name
+                if (position >= end || data.charAt(position) != '"') {
+                    return null;
+                }
+                int keyStart = position + 1;
+                int keyEnd = endOfString(data, keyStart, end);
+                if (keyEnd == -1) {
+                    return null;
+                }
+                position = skipWhitespace(data, keyEnd + 1, end);
+                if (position >= end || data.charAt(position) != ':') {
+                    return null;
+                }
+
+                // Member value
+                position = skipWhitespace(data, position + 1, end);
+                if (position >= end) {
+                    return null;
+                }
+                int valueStart = position;
+                boolean isString = data.charAt(position) == '"';
+                int valueEnd;
+                if (isString) {
+                    int closingQuote = endOfString(data, position + 1, end);
+                    if (closingQuote == -1) {
+                        return null;
+                    }
+                    valueEnd = closingQuote + 1;
+                } else {
+                    valueEnd = endOfLiteral(data, position, end);
+                    if (valueEnd == -1) {
+                        return null;
+                    }
+                }
+
+                // Pull out the fields of the schema, a repeated one is left to org.json
+                int keyLength = keyEnd - keyStart;
+                if (isKey(data, keyStart, keyLength, "id")) {
+                    if (id != null || !isString) {
+                        return null;
+                    }
+                    id = data.substring(valueStart + 1, valueEnd - 1).trim();
+                } else if (isKey(data, keyStart, keyLength, "local_date_time_full")) {
+                    if (localDateTimeFull != null) {
+                        return null;
+                    }
+                    localDateTimeFull = isString ? data.substring(valueStart + 1, valueEnd - 1)
+                            : data.substring(valueStart, valueEnd);
+                } else {
+                    for (int field = 0; field < NUMERIC_FIELDS.length; field++) {
+                        if (isKey(data, keyStart, keyLength, NUMERIC_FIELDS[field])) {
+                            if (numberStart == null) {
+                                numberStart = newOffsets();
+                                numberEnd = new int[NUMERIC_FIELDS.length];
+                            }
+                            if (numberStart[field] != -1) {
+                                return null;
+                            }
+                            numberStart[field] = isString ? valueStart + 1 : valueStart;
+                            numberEnd[field] = isString ? valueEnd - 1 : valueEnd;
+                            break;
+                        }
+                    }
+                }
+
+                // Either another member or the end of the object
+                position = skipWhitespace(data, valueEnd, end);
+                if (position >= end) {
+                    return null;
+                }
+                char separator = data.charAt(position);
+                position = skipWhitespace(data, position + 1, end);
+                if (separator == '}') {
+                    break;
+                }
+                if (separator != ',') {
+                    return null;
+                }
+            }
+        }
+
+        // Only whitespace may follow the object
+        int jsonEnd = position;
+        while (data.charAt(jsonEnd - 1) <= ' ') {
+            jsonEnd--;
+        }
+        if (wholeInput && position != end) {
+            return null;
+        }
+
+        if (numberStart == null) {
+            numberStart = newOffsets();
+            numberEnd = numberStart;
+        }
+        return new StationJson(data, jsonStart, jsonEnd, id == null ? "" : id, localDateTimeFull,
+                numberStart, numberEnd, null);
+    }
+
+    /**
+     * Parses an irregular record with org.json.
+     *
+     * @return The record, or null if the JSON is invalid.
+     */
+    private static StationJson parseFallback(String data, int jsonStart, int end) {
+        JSONObject jsonObject;
+        try {
+            jsonObject = new JSONObject(data.substring(jsonStart, end));
+        } catch (Exception e) {
+            return null;
+        }
+
+        // Trim the record the same way the fast path does
+        int jsonEnd = end;
+        while (jsonEnd > jsonStart && data.charAt(jsonEnd - 1) <= ' ') {
+            jsonEnd--;
+        }
+        return new StationJson(data, jsonStart, jsonEnd, jsonObject.optString("id", "").trim(),
+                jsonObject.has("local_date_time_full") ? jsonObject.optString("local_date_time_full") : null,
+                null, null, jsonObject);
+    }
+
+    /**
+     * Returns the station id of the record.
+     *
+     * @return The trimmed station id, or an empty string if there is none.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the full local date and time of the observation.
+     *
+     * @return The local_date_time_full field, or null if it is absent.
+     */
+    public String getLocalDateTimeFull() {
+        return localDateTimeFull;
+    }
+
+    /**
+     * Returns the value of one of the numeric schema fields. The content server
+     * sends every value as a string, so numbers in quotes are accepted too.
+     *
+     * @param field One of NUMERIC_FIELDS.
+     * @return The value, or NaN if the field is absent or not a number.
+     */
+    public double getNumber(String field) {
+        if (fallback != null) {
+            return fallback.optDouble(field, Double.NaN);
+        }
+        for (int i = 0; i < NUMERIC_FIELDS.length; i++) {
+            if (NUMERIC_FIELDS[i].equals(field)) {
+                if (numberStart[i] == -1) {
+                    return Double.NaN;
+                }
+                try {
+                    return Double.parseDouble(data.substring(numberStart[i], numberEnd[i]));
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Not a numeric field: " + field);
+    }
+
+    /**
+     * Returns the record's JSON exactly as it was sent, without surrounding
+     * whitespace.
+     *
+     * @return The JSON text.
+     */
+    public String getJson() {
+        return data.substring(jsonStart, jsonEnd);
+    }
+
+    private static int[] newOffsets() {
+        int[] offsets = new int[NUMERIC_FIELDS.length];
+        Arrays.fill(offsets, -1);
+        return offsets;
+    }
+
+    private static boolean isKey(String data, int keyStart, int keyLength, String key) {
+        return keyLength == key.length() && data.regionMatches(keyStart, key, 0, keyLength);
+    }
+
+    private static int skipWhitespace(String data, int position, int end) {
+        while (position < end) {
+            char c = data.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Finds the closing quote of a string without escapes.
+     *
+     * @return The index of the closing quote, or -1 if the string is irregular.
+     */
+    private static int endOfString(String data, int position, int end) {
+        while (position < end) {
+            char c = data.charAt(position);
+            if (c == '"') {
+                return position;
+            }
+            if (c == '\\' || c < 0x20) {
+                return -1;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end of a number, true, false or null.
+     *
+     * @return The index after the literal, or -1 if it is not one of those.
+     */
+    private static int endOfLiteral(String data, int position, int end) {
+        for (String literal : new String[] { "true", "false", "null" }) {
+            if (position + literal.length() <= end && data.startsWith(literal, position)) {
+                return position + literal.length();
+            }
+        }
+
+        // -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+        int i = position;
+        if (i < end && data.charAt(i) == '-') {
+            i++;
+        }
+        if (i < end && data.charAt(i) == '0') {
+            i++;
+        } else {
+            int digits = skipDigits(data, i, end);
+            if (digits == i) {
+                return -1;
+            }
+            i = digits;
+        }
+        if (i < end && data.charAt(i) == '.') {
+            int digits = skipDigits(data, i + 1, end);
+            if (digits == i + 1) {
+                return -1;
+            }
+            i = digits;
+        }
+        if (i < end && (data.charAt(i) == 'e' || data.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (data.charAt(i) == '+' || data.charAt(i) == '-')) {
+                i++;
+            }
+            int digits = skipDigits(data, i, end);
+            if (digits == i) {
+                return -1;
+            }
+            i = digits;
+        }
+        return i;
+    }
+
+    private static int skipDigits(String data, int position, int end) {
+        while (position < end && data.charAt(position) >= '0' && data.charAt(position) <= '9') {
+            position++;
+        }
+        return position;
+    }
+}
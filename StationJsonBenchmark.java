@@ -0,0 +1,69 @@
+import org.json.JSONObject;
+
+public class StationJsonBenchmark {
+    /**
+     * Compares validating a PUT by a JSONObject round trip, as the server used
+     * to, with the single-pass StationJson scanner. Each path is warmed up and
+     * then timed over several rounds; the best round is reported.
+     *
+     * Usage: java StationJsonBenchmark [iterations] [rounds]
+     */
+    public static void main(String args[]) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        String message = ContentServer.buildPutRequest("{\"id\":\"IDS60901\","
+                + "\"name\":\"Adelaide (West Terrace /  ngayirdapira)\",\"state\":\"SA\",\"time_zone\":\"CST\","
+                + "\"lat\":\"-34.9\",\"lon\":\"138.6\",\"local_date_time\":\"15/04:00pm\","
+                + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"13.3\",\"apparent_t\":\"9.5\","
+                + "\"cloud\":\"Partly cloudy\",\"dewpt\":\"5.7\",\"press\":\"1023.9\",\"rel_hum\":\"60\","
+                + "\"wind_dir\":\"S\",\"wind_spd_kmh\":\"15\",\"wind_spd_kt\":\"8\"}", 0, false);
+
+        System.out.println("iterations=" + iterations + " rounds=" + rounds + " bytes=" + message.length());
+        System.out.printf("%-12s %12s %12s%n", "path", "ns/op", "ops/s");
+        report("JSONObject", iterations, rounds, () -> jsonObjectPath(message));
+        report("StationJson", iterations, rounds, () -> stationJsonPath(message));
+    }
+
+    /**
+     * The previous path: locate the record, parse it into a JSONObject and
+     * serialize it again.
+     */
+    private static int jsonObjectPath(String message) {
+        JSONObject jsonObject = new JSONObject(message.substring(message.indexOf("{", message.indexOf("Lamport-Clock:"))));
+        String stationId = jsonObject.optString("id", "").trim();
+        return stationId.length() + jsonObject.toString().length();
+    }
+
+    private static int stationJsonPath(String message) {
+        StationJson stationJson = StationJson.parse(message);
+        return stationJson.getId().length() + stationJson.getJson().length();
+    }
+
+    private interface Operation {
+        int run();
+    }
+
+    private static void report(String name, int iterations, int rounds, Operation operation) {
+        // Warm up so both paths are compiled before they are measured
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += operation.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += operation.run();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        double nanosPerOp = (double) best / iterations;
+        System.out.printf("%-12s %12.1f %12.0f%n", name, nanosPerOp, 1e9 / nanosPerOp);
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.List;
+import static org.junit.Assert.*;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class StationJsonTest {
+    private static final String RECORD = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\","
+            + "\"state\":\"SA\",\"lat\":\"-34.9\",\"lon\":\"138.6\",\"local_date_time_full\":\"20230715160000\","
+            + "\"air_temp\":\"13.3\",\"press\":1023.9,\"rel_hum\":60,\"cloud\":\"Partly cloudy\"}";
+
+    // Test extracting the schema fields from a record as the content server sends it
+    @Test
+    public void testParseContentServerRecord() {
+        StationJson stationJson = StationJson.parse(ContentServer.buildPutRequest(RECORD, 3, false));
+
+        assertNotNull(stationJson);
+        assertEquals("IDS60901", stationJson.getId());
+        assertEquals("20230715160000", stationJson.getLocalDateTimeFull());
+        assertEquals(-34.9, stationJson.getNumber("lat"), 0);
+        assertEquals(13.3, stationJson.getNumber("air_temp"), 0);
+        assertEquals(1023.9, stationJson.getNumber("press"), 0);
+        assertEquals(60, stationJson.getNumber("rel_hum"), 0);
+        assertTrue(Double.isNaN(stationJson.getNumber("dewpt")));
+        assertEquals(RECORD, stationJson.getJson());
+    }
+
+    // Test that the record is returned as sent, without surrounding whitespace
+    @Test
+    public void testJsonIsTrimmed() {
+        StationJson stationJson = StationJson.parse("Lamport-Clock: 1\r\n { \"id\" : \" A1 \" } \r\n");
+
+        assertEquals("{ \"id\" : \" A1 \" }", stationJson.getJson());
+        assertEquals("A1", stationJson.getId());
+    }
+
+    // Test that every input is accepted or rejected exactly as JSONObject would
+    @Test
+    public void testMatchesJsonObject() {
+        String[] inputs = {
+                "{}",
+                "{\"id\":\"1\"}",
+                "{\"id\":123}",
+                "{\"id\":\"1\",\"nested\":{\"a\":[1,2]}}",
+                "{\"id\":\"a\\\"b\"}",
+                "{\"id\":\"1\",\"id\":\"2\"}",
+                "{\"id\":\"1\",}",
+                "{\"id\":\"1\"",
+                "{\"id\" \"1\"}",
+                "{\"id\":\"1\"} trailing",
+                "{\"id\":\"1\",\"lat\":-3.4e2,\"ok\":true,\"none\":null}",
+                "{\"id\":\"1\",\"lat\":01}",
+                "{id:unquoted}",
+                "{\"id\":\"line\nbreak\"}",
+        };
+
+        for (String input : inputs) {
+            String message = "Lamport-Clock: 0\r\n" + input;
+            JSONObject expected;
+            try {
+                expected = new JSONObject(input);
+            } catch (Exception e) {
+                expected = null;
+            }
+
+            StationJson stationJson = StationJson.parse(message);
+            if (expected == null) {
+                assertNull(input, stationJson);
+            } else {
+                assertNotNull(input, stationJson);
+                assertEquals(input, expected.optString("id", "").trim(), stationJson.getId());
+                assertEquals(input, input.trim(), stationJson.getJson());
+            }
+        }
+    }
+
+    // Test that a message without any JSON is rejected
+    @Test
+    public void testNoJson() {
+        assertNull(StationJson.parse("Invalid Data"));
+    }
+
+    // Test parsing a batch of records sent as a JSON array
+    // Ensure regular records keep their text and irregular elements are reported as null
+    @Test
+    public void testParseArray() {
+        String body = " [{\"id\":\"A\",\"air_temp\":\"13.3\"},\n {\"id\":\"B\"}] ";
+        List<StationJson> records = StationJson.parseArray(body, 0, body.length());
+        assertNotNull(records);
+        assertEquals(2, records.size());
+        assertEquals("A", records.get(0).getId());
+        assertEquals("{\"id\":\"A\",\"air_temp\":\"13.3\"}", records.get(0).getJson());
+        assertEquals("{\"id\":\"B\"}", records.get(1).getJson());
+
+        String irregular = "[{\"id\":\"C\",\"nested\":{\"a\":1}},42]";
+        records = StationJson.parseArray(irregular, 0, irregular.length());
+        assertNotNull(records);
+        assertEquals(2, records.size());
+        assertEquals("C", records.get(0).getId());
+        assertEquals(1, new JSONObject(records.get(0).getJson()).getJSONObject("nested").getInt("a"));
+        assertNull(records.get(1));
+
+        assertTrue(StationJson.parseArray("[]", 0, 2).isEmpty());
+        assertNull(StationJson.parseArray("[{\"id\":\"A\"}", 0, 11));
+        assertNull(StationJson.parseArray("{\"id\":\"A\"}", 0, 10));
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SubscriptionFanoutBenchmark {
+    /**
+     * Connects a number of subscribers to an AggregationServer, sends a burst
+     * of updates and prints how many were pushed to the subscribers per second
+     * and how long each took from being sent to being received. Updates a
+     * subscriber was too slow for are skipped by the server, the number skipped
+     * is printed as well.
+     *
+     * Usage: java SubscriptionFanoutBenchmark [subscribers] [updates]
+     */
+    public static void main(String args[]) throws Exception {
+        int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Path dataDir = Files.createTempDirectory("fanout-benchmark");
+        List<Socket> sockets = new ArrayList<>();
+        try (ServerProcess server = ServerProcess.start(ServerProcess.freePort(), "--data-dir=" + dataDir,
+                "--retained-updates=0", "--durability=async")) {
+            // Every subscriber reads on its own thread and records the latency of each update
+            CountDownLatch subscribed = new CountDownLatch(subscribers);
+            CountDownLatch finished = new CountDownLatch(subscribers);
+            AtomicLong delivered = new AtomicLong();
+            List<LatencyRecorder> recorders = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < subscribers; i++) {
+                Socket socket = new Socket("localhost", server.getPort());
+                sockets.add(socket);
+                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                outputData.writeUTF("GET /subscribe HTTP/1.1\r\n\r\n");
+                outputData.flush();
+
+                Thread reader = new Thread(() -> {
+                    LatencyRecorder recorder = new LatencyRecorder();
+                    try {
+                        DataInputStream inputData = new DataInputStream(
+                                new BufferedInputStream(socket.getInputStream()));
+                        if (!inputData.readUTF().startsWith("HTTP/1.1 200")) {
+                            return;
+                        }
+                        subscribed.countDown();
+                        while (true) {
+                            String frame = inputData.readUTF();
+                            int sentIndex = frame.indexOf("\"sent\":");
+                            if (sentIndex == -1) {
+                                continue; // A heartbeat
+                            }
+                            long sent = Long.parseLong(frame.substring(sentIndex + 7, frame.indexOf('}', sentIndex)));
+                            recorder.record(System.nanoTime() - sent);
+                            delivered.incrementAndGet();
+                            if (frame.contains("\"FANEND\"")) {
+                                break;
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Disconnected, by the server or at the end of the run
+                    } finally {
+                        recorders.add(recorder);
+                        finished.countDown();
+                    }
+                });
+                reader.setDaemon(true);
+                reader.start();
+            }
+            if (!subscribed.await(60, TimeUnit.SECONDS)) {
+                throw new IOException("Only " + (subscribers - subscribed.getCount()) + " subscribers connected");
+            }
+
+            long start = System.nanoTime();
+            PrintStream console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try (Socket s = new Socket("localhost", server.getPort())) {
+                // Ten stations, so each subscriber may skip updates of a station it has not received yet
+                List<String> bodies = new ArrayList<>();
+                for (int i = 0; i < updates; i++) {
+                    String stationId = i == updates - 1 ? "FANEND" : "FAN" + (i % 10);
+                    bodies.add("{\"id\":\"" + stationId + "\",\"n\":" + i + ",\"sent\":" + System.nanoTime() + "}");
+                }
+                ContentServer.sendPipelinedBodies(s, bodies, new LamportClock());
+            } finally {
+                System.setOut(console);
+            }
+            if (!finished.await(120, TimeUnit.SECONDS)) {
+                System.out.println("Not every subscriber received the last update in time.");
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            LatencyRecorder all = new LatencyRecorder();
+            synchronized (recorders) {
+                for (LatencyRecorder recorder : recorders) {
+                    all.merge(recorder);
+                }
+            }
+            long expected = (long) subscribers * updates;
+            System.out.println("subscribers=" + subscribers + " updates=" + updates);
+            System.out.printf("%12s %12s %14s %10s %10s %10s%n", "delivered", "skipped", "deliveries/s", "p50(ms)",
+                    "p99(ms)", "max(ms)");
+            System.out.printf("%12d %12d %14.0f %10.2f %10.2f %10.2f%n", delivered.get(), expected - delivered.get(),
+                    delivered.get() / seconds, all.percentile(50) / 1e6, all.percentile(99) / 1e6,
+                    all.percentile(100) / 1e6);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            try (var paths = Files.walk(dataDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+public class SubscriptionHub {
+    // How long an idle subscription waits before it is sent a heartbeat
+    public static final long HEARTBEAT_INTERVAL = 5000;
+
+    // Stations that may be waiting for a slow subscriber before it is disconnected
+    public static final int MAX_PENDING = 10_000;
+
+    // A subscriber that takes longer than this to accept a write has stopped reading and is disconnected
+    public static final long WRITE_TIMEOUT = 15000;
+
+    // Closes the connections of subscribers whose writes do not finish in time
+    private static final ScheduledExecutorService writeWatchdog = createWriteWatchdog();
+
+    private final Set<Subscriber> allStations = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Set<Subscriber>> byStation = new ConcurrentHashMap<>();
+
+    /**
+     * An update as it is pushed to subscribers. The same update is handed to
+     * every subscriber, so each wire form is encoded once however many
+     * subscribers it goes to.
+     */
+    public static final class Update {
+        private final WriteAheadLog.Record record;
+        private final String json;
+        private byte[] frame;
+        private byte[] event;
+
+        private Update(WriteAheadLog.Record record) {
+            this.record = record;
+            // A removed station is announced by its id, so subscribers can drop it too
+            this.json = record.getType() == WriteAheadLog.TYPE_DELETE
+                    ? "{\"id\":" + JSONObject.quote(record.getStationId()) + ",\"deleted\":true}"
+                    : record.getJson();
+        }
+
+        /**
+         * Returns the JSON pushed for the update: the station's record, or
+         * {"id":...,"deleted":true} once the station has been removed.
+         *
+         * @return The JSON.
+         */
+        public String getJson() {
+            return json;
+        }
+
+        /**
+         * Returns the update encoded as a writeUTF frame.
+         *
+         * @return The frame, or null if the update does not fit in one.
+         */
+        public synchronized byte[] getFrame() {
+            if (frame == null) {
+                try {
+                    frame = FrameCodec.encode(json);
+                } catch (UTFDataFormatException e) {
+                    frame = new byte[0];
+                }
+            }
+            return frame.length == 0 ? null : frame;
+        }
+
+        /**
+         * Returns the update encoded as a text/event-stream event.
+         *
+         * @return The event bytes.
+         */
+        public synchronized byte[] getEvent() {
+            if (event == null) {
+                event = ("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+            }
+            return event;
+        }
+    }
+
+    /**
+     * A subscriber's queue of updates waiting to be pushed. Updates are kept
+     * per station, so a subscriber that reads slower than updates arrive skips
+     * the intermediate updates of a station instead of falling further behind,
+     * and the writers that publish never wait for it.
+     */
+    public static final class Subscriber {
+        private final String stationId;
+        private final Closeable connection;
+        private final LinkedHashMap<String, Update> pending = new LinkedHashMap<>();
+        private long conflated;
+        private boolean closed;
+
+        private Subscriber(String stationId, Closeable connection) {
+            this.stationId = stationId;
+            this.connection = connection;
+        }
+
+        /**
+         * Queues an update, replacing an older one of the same station that
+         * has not been sent yet.
+         *
+         * @return false if the subscriber is closed, e.g. because too many
+         *         stations are waiting.
+         */
+        private synchronized boolean offer(Update update) {
+            if (closed) {
+                return false;
+            }
+            WriteAheadLog.Record record = update.record;
+            Update previous = pending.get(record.getStationId());
+            if (previous != null) {
+                conflated++;
+                if (previous.record.getSequence() > record.getSequence()) {
+                    return true; // A newer update of the station is already waiting
+                }
+                // Moved to the end, the station's update is now the most recent one
+                pending.remove(record.getStationId());
+            }
+            pending.put(record.getStationId(), update);
+            if (pending.size() > MAX_PENDING) {
+                closed = true;
+            }
+            notifyAll();
+            return !closed;
+        }
+
+        /**
+         * Waits for updates and takes every one that is waiting.
+         *
+         * @param timeoutMillis The longest time to wait.
+         * @return The updates in the order they arrived, empty if none arrived
+         *         in time or the subscriber was closed.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        public synchronized List<Update> take(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (pending.isEmpty() && !closed && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (closed) {
+                return Collections.emptyList();
+            }
+            List<Update> updates = new ArrayList<>(pending.values());
+            pending.clear();
+            return updates;
+        }
+
+        /**
+         * Returns the station this subscriber follows.
+         *
+         * @return The station id, or null for every station.
+         */
+        public String getStationId() {
+            return stationId;
+        }
+
+        /**
+         * Returns the number of updates that were replaced by a newer update of
+         * the same station before they could be sent.
+         *
+         * @return The number of skipped updates.
+         */
+        public synchronized long getConflated() {
+            return conflated;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private static ScheduledExecutorService createWriteWatchdog() {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(task);
+            thread.setName("subscription-write-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Almost every write finishes in time, so cancelled deadlines are dropped at once
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    }
+
+    /**
+     * Registers a subscriber for the updates of one station or of all stations.
+     *
+     * @param stationId The station id, or null for every station.
+     * @return The subscriber.
+     */
+    public Subscriber subscribe(String stationId) {
+        return subscribe(stationId, null);
+    }
+
+    /**
+     * Registers a subscriber for the updates of one station or of all stations,
+     * whose connection is closed once it is removed. A writer blocked on a
+     * client that stopped reading then fails at once instead of waiting for
+     * the network to give up.
+     *
+     * @param stationId  The station id, or null for every station.
+     * @param connection The subscriber's connection, or null.
+     * @return The subscriber.
+     */
+    public Subscriber subscribe(String stationId, Closeable connection) {
+        Subscriber subscriber = new Subscriber(stationId, connection);
+        if (stationId == null) {
+            allStations.add(subscriber);
+        } else {
+            byStation.computeIfAbsent(stationId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        return subscriber;
+    }
+
+    /**
+     * Removes a subscriber and wakes it up if it is waiting.
+     *
+     * @param subscriber The subscriber.
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        subscriber.close();
+        if (subscriber.stationId == null) {
+            allStations.remove(subscriber);
+        } else {
+            byStation.computeIfPresent(subscriber.stationId, (id, subscribers) -> {
+                subscribers.remove(subscriber);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+        if (subscriber.connection != null) {
+            try {
+                subscriber.connection.close();
+            } catch (IOException e) {
+                // The connection is gone either way
+            }
+        }
+    }
+
+    /**
+     * Starts the deadline of a write to a subscriber. If the write has not
+     * finished in time the subscriber is removed and its connection closed,
+     * which ends the blocked write.
+     *
+     * @param subscriber    The subscriber being written to.
+     * @param timeoutMillis How long the write may take.
+     * @return The deadline, to be cancelled once the write has finished.
+     */
+    public ScheduledFuture<?> startWrite(Subscriber subscriber, long timeoutMillis) {
+        return writeWatchdog.schedule(() -> unsubscribe(subscriber), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues logged records for the subscribers of their stations: a PUT as
+     * the station's new data, a DELETE as the removal of the station.
+     * Subscribers that have fallen too far behind are removed and their
+     * connections closed.
+     *
+     * @param records The logged records.
+     */
+    public void publish(List<WriteAheadLog.Record> records) {
+        if (allStations.isEmpty() && byStation.isEmpty()) {
+            return;
+        }
+        for (WriteAheadLog.Record record : records) {
+            if (record.getType() != WriteAheadLog.TYPE_PUT && record.getType() != WriteAheadLog.TYPE_DELETE) {
+                continue;
+            }
+            Update update = new Update(record);
+            for (Subscriber subscriber : allStations) {
+                if (!subscriber.offer(update)) {
+                    unsubscribe(subscriber);
+                }
+            }
+            Set<Subscriber> stationSubscribers = byStation.get(record.getStationId());
+            if (stationSubscribers != null) {
+                for (Subscriber subscriber : stationSubscribers) {
+                    if (!subscriber.offer(update)) {
+                        unsubscribe(subscriber);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a station's current state for a new subscriber, so it does not
+     * have to wait for the next update.
+     *
+     * @param subscriber The subscriber.
+     * @param record     The station's latest record.
+     */
+    public void offerCurrent(Subscriber subscriber, WeatherStore.StationRecord record) {
+        if (!subscriber.offer(new Update(ReplicationPublisher.toLogRecord(record)))) {
+            unsubscribe(subscriber);
+        }
+    }
+
+    /**
+     * Returns the number of registered subscribers.
+     *
+     * @return The subscriber count.
+     */
+    public int size() {
+        int size = allStations.size();
+        for (Set<Subscriber> subscribers : byStation.values()) {
+            size += subscribers.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,159 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SubscriptionHubTest {
+
+    private static List<String> take(SubscriptionHub.Subscriber subscriber, long timeoutMillis) throws Exception {
+        List<String> updates = new ArrayList<>();
+        for (SubscriptionHub.Update update : subscriber.take(timeoutMillis)) {
+            updates.add(update.getJson());
+        }
+        return updates;
+    }
+
+    private static WriteAheadLog.Record put(long sequence, String stationId, String json) {
+        return new WriteAheadLog.Record(WriteAheadLog.TYPE_PUT, sequence, 0, stationId, "test", json);
+    }
+
+    // Test that subscribers only receive the stations they follow
+    @Test
+    public void testFilterByStation() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub();
+        SubscriptionHub.Subscriber all = hub.subscribe(null);
+        SubscriptionHub.Subscriber one = hub.subscribe("IDS1");
+        assertEquals(2, hub.size());
+
+        hub.publish(Arrays.asList(put(1, "IDS1", "{\"id\":\"IDS1\"}"), put(2, "IDS2", "{\"id\":\"IDS2\"}"),
+                new WriteAheadLog.Record(WriteAheadLog.TYPE_DELETE, 1, 0, "IDS1", "test", "")));
+        // The removal of IDS1 replaces its update that was still waiting
+        assertEquals(Arrays.asList("{\"id\":\"IDS2\"}", "{\"id\":\"IDS1\",\"deleted\":true}"), take(all, 0));
+        assertEquals(Collections.singletonList("{\"id\":\"IDS1\",\"deleted\":true}"), take(one, 0));
+        assertTrue(take(one, 10).isEmpty());
+
+        hub.unsubscribe(one);
+        hub.unsubscribe(all);
+        assertEquals(0, hub.size());
+        assertTrue(one.isClosed());
+    }
+
+    // Test that a slow subscriber only gets the latest update of each station
+    @Test
+    public void testConflatesSlowSubscriber() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub();
+        SubscriptionHub.Subscriber subscriber = hub.subscribe(null);
+        hub.publish(Collections.singletonList(put(1, "IDS1", "a1")));
+        hub.publish(Collections.singletonList(put(2, "IDS2", "b2")));
+        hub.publish(Collections.singletonList(put(3, "IDS1", "a3")));
+        // Published late, but older than what is waiting
+        hub.publish(Collections.singletonList(put(2, "IDS1", "a2")));
+
+        assertEquals(Arrays.asList("b2", "a3"), take(subscriber, 0));
+        assertEquals(2, subscriber.getConflated());
+    }
+
+    // Test that a subscriber with too many stations waiting is disconnected without blocking the publisher
+    @Test
+    public void testDropsSubscriberThatFallsBehind() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub();
+        SubscriptionHub.Subscriber subscriber = hub.subscribe(null);
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        for (int i = 0; i <= SubscriptionHub.MAX_PENDING; i++) {
+            records.add(put(i + 1, "IDS" + i, "{}"));
+        }
+        hub.publish(records);
+
+        assertTrue(subscriber.isClosed());
+        assertTrue(take(subscriber, 1000).isEmpty());
+        assertEquals(0, hub.size());
+    }
+
+    // Test that a removed subscriber's connection is closed, when it falls behind or a write does not finish in time
+    @Test
+    public void testClosesConnectionOfRemovedSubscriber() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub();
+        CountDownLatch behindClosed = new CountDownLatch(1);
+        hub.subscribe(null, behindClosed::countDown);
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        for (int i = 0; i <= SubscriptionHub.MAX_PENDING; i++) {
+            records.add(put(i + 1, "IDS" + i, "{}"));
+        }
+        hub.publish(records);
+        assertEquals(0, behindClosed.getCount());
+
+        // A write that finishes in time leaves the subscriber alone, a stuck one gets it disconnected
+        CountDownLatch stuckClosed = new CountDownLatch(1);
+        SubscriptionHub.Subscriber stuck = hub.subscribe("IDS1", stuckClosed::countDown);
+        hub.startWrite(stuck, 10000).cancel(false);
+        assertFalse(stuck.isClosed());
+        hub.startWrite(stuck, 50);
+        assertTrue(stuckClosed.await(10, TimeUnit.SECONDS));
+        assertTrue(stuck.isClosed());
+        assertEquals(0, hub.size());
+    }
+
+    // Test a subscription against a server process, over frames and over raw HTTP
+    @Test
+    public void testServerPushesUpdates() throws Exception {
+        Path dataDir = Files.createTempDirectory("subscription-test");
+        try (ServerProcess server = ServerProcess.start(ServerProcess.freePort(), "--data-dir=" + dataDir)) {
+            send(server.getPort(), "{\"id\":\"SUB1\",\"n\":0}", 1);
+
+            BlockingQueue<String> frameUpdates = new LinkedBlockingQueue<>();
+            BlockingQueue<String> httpUpdates = new LinkedBlockingQueue<>();
+            try (Socket frameSocket = new Socket("localhost", server.getPort());
+                    Socket httpSocket = new Socket("localhost", server.getPort())) {
+                GETClient.sendGetRequest(new DataOutputStream(frameSocket.getOutputStream()), "localhost",
+                        server.getPort(), "/subscribe?id=SUB1", new LamportClock());
+                GETClient.sendHttpGetRequest(httpSocket.getOutputStream(), "localhost", server.getPort(),
+                        "/subscribe", new LamportClock());
+                startReader(() -> GETClient.readUpdateFrames(
+                        new DataInputStream(frameSocket.getInputStream()), frameUpdates::add));
+                startReader(() -> GETClient.readEventStream(
+                        new BufferedReader(new InputStreamReader(httpSocket.getInputStream())), httpUpdates::add));
+
+                // The current data comes first, then every update as it is stored
+                assertEquals("{\"id\":\"SUB1\",\"n\":0}", frameUpdates.poll(10, TimeUnit.SECONDS));
+                assertEquals("{\"id\":\"SUB1\",\"n\":0}", httpUpdates.poll(10, TimeUnit.SECONDS));
+                send(server.getPort(), "{\"id\":\"SUB2\",\"n\":1}", 2);
+                send(server.getPort(), "{\"id\":\"SUB1\",\"n\":2}", 3);
+                assertEquals("{\"id\":\"SUB1\",\"n\":2}", frameUpdates.poll(10, TimeUnit.SECONDS));
+                assertEquals("{\"id\":\"SUB2\",\"n\":1}", httpUpdates.poll(10, TimeUnit.SECONDS));
+                assertEquals("{\"id\":\"SUB1\",\"n\":2}", httpUpdates.poll(10, TimeUnit.SECONDS));
+                assertTrue(frameUpdates.isEmpty());
+            }
+        } finally {
+            try (var paths = Files.walk(dataDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void send(int port, String json, long lamportTime) throws IOException {
+        try (Socket socket = new Socket("localhost", port);
+                DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+                DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
+            outputData.writeUTF(ContentServer.buildPutRequest(json, lamportTime, false));
+            outputData.flush();
+            assertTrue(inputData.readUTF().startsWith("HTTP/1.1 20"));
+        }
+    }
+
+    private static void startReader(Callable<Boolean> reader) {
+        Thread thread = new Thread(() -> {
+            try {
+                reader.call();
+            } catch (Exception e) {
+                // The socket was closed at the end of the test
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,174 @@
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+public class WeatherQuery {
+    // A GET without any of the query parameters asks for the most recent update
+    public static final WeatherQuery LATEST = new WeatherQuery(null, null, null);
+
+    private final String id;
+    private final double[] bbox; // minLat, minLon, maxLat, maxLon
+    private final String since;
+
+    private WeatherQuery(String id, double[] bbox, String since) {
+        this.id = id;
+        this.bbox = bbox;
+        this.since = since;
+    }
+
+    /**
+     * Parses the query of a GET target, e.g. "/weather?id=IDS60901",
+     * "/weather?bbox=-35,138,-34,139" or "/weather?since=20230715160000". The
+     * parameters may be combined, in which case a station has to match all of
+     * them. Unknown parameters are ignored.
+     *
+     * @param target The request target.
+     * @return The query, LATEST if the target has no query parameters, or null
+     *         if a parameter is malformed.
+     */
+    public static WeatherQuery parse(String target) {
+        int queryStart = target == null ? -1 : target.indexOf('?');
+        if (queryStart == -1) {
+            return LATEST;
+        }
+
+        String id = null;
+        double[] bbox = null;
+        String since = null;
+        for (String parameter : target.substring(queryStart + 1).split("&")) {
+            int equalsIndex = parameter.indexOf('=');
+            if (equalsIndex == -1) {
+                continue;
+            }
+            String name = parameter.substring(0, equalsIndex);
+            String value;
+            try {
+                value = URLDecoder.decode(parameter.substring(equalsIndex + 1), StandardCharsets.UTF_8).trim();
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+
+            if (name.equals("id")) {
+                if (value.isEmpty()) {
+                    return null;
+                }
+                id = value;
+            } else if (name.equals("bbox")) {
+                bbox = parseBox(value);
+                if (bbox == null) {
+                    return null;
+                }
+            } else if (name.equals("since")) {
+                if (value.isEmpty() || !value.chars().allMatch(Character::isDigit)) {
+                    return null;
+                }
+                since = value;
+            }
+        }
+        return id == null && bbox == null && since == null ? LATEST : new WeatherQuery(id, bbox, since);
+    }
+
+    /**
+     * Parses "lat1,lon1,lat2,lon2" into the corners of a box. The corners may
+     * be given in any order.
+     *
+     * @return The box as minLat, minLon, maxLat, maxLon, or null if malformed.
+     */
+    private static double[] parseBox(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            return null;
+        }
+        double[] corners = new double[4];
+        try {
+            for (int i = 0; i < 4; i++) {
+                corners[i] = Double.parseDouble(parts[i].trim());
+                if (Double.isNaN(corners[i]) || Double.isInfinite(corners[i])) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new double[] { Math.min(corners[0], corners[2]), Math.min(corners[1], corners[3]),
+                Math.max(corners[0], corners[2]), Math.max(corners[1], corners[3]) };
+    }
+
+    /**
+     * Checks whether this is the plain GET for the most recent update.
+     *
+     * @return true if no query parameter was given.
+     */
+    public boolean isLatest() {
+        return id == null && bbox == null && since == null;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean hasBox() {
+        return bbox != null;
+    }
+
+    /**
+     * Returns the bounding box.
+     *
+     * @return The box as minLat, minLon, maxLat, maxLon, or null if the query
+     *         has no bbox.
+     */
+    public double[] getBox() {
+        return bbox == null ? null : bbox.clone();
+    }
+
+    public String getSince() {
+        return since;
+    }
+
+    /**
+     * Checks whether a station position lies inside the bounding box, edges
+     * included. Without a bbox every position matches.
+     *
+     * @param lat The latitude of the station.
+     * @param lon The longitude of the station.
+     * @return true if the position matches.
+     */
+    public boolean inBox(double lat, double lon) {
+        return bbox == null || lat >= bbox[0] && lat <= bbox[2] && lon >= bbox[1] && lon <= bbox[3];
+    }
+
+    /**
+     * Checks whether an observation time is at or after the since parameter.
+     * Times are local_date_time_full values, which sort as text, so a shorter
+     * value such as "20230715" matches the whole of that day onwards.
+     *
+     * @param localDateTimeFull The observation time, may be null.
+     * @return true if the time matches.
+     */
+    public boolean isSince(String localDateTimeFull) {
+        return since == null || localDateTimeFull != null && localDateTimeFull.compareTo(since) >= 0;
+    }
+
+    /**
+     * Returns a key that is the same for equal queries however they were
+     * written, for caching the response of each view.
+     *
+     * @return The cache key of the view.
+     */
+    public String viewKey() {
+        if (isLatest()) {
+            return "latest";
+        }
+        StringBuilder key = new StringBuilder();
+        if (id != null) {
+            key.append("id=").append(id);
+        }
+        if (bbox != null) {
+            key.append("&bbox=").append(bbox[0]).append(',').append(bbox[1]).append(',').append(bbox[2]).append(',')
+                    .append(bbox[3]);
+        }
+        if (since != null) {
+            key.append("&since=").append(since);
+        }
+        return key.toString();
+    }
+}
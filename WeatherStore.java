@@ -0,0 +1,439 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class WeatherStore {
+    // Number of updates kept per station by default
+    public static final int DEFAULT_HISTORY_SIZE = 20;
+
+    private final int historySize;
+    private final ConcurrentHashMap<String, StationHistory> stations = new ConcurrentHashMap<>();
+    private final AtomicReference<StationRecord> latest = new AtomicReference<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+    private final StationIndex index = new StationIndex();
+
+    /**
+     * A single weather update for a station. Records are immutable, so they can
+     * be handed to readers without copying.
+     */
+    public static final class StationRecord {
+        private final String stationId;
+        private final String json;
+        private final String serverId;
+        private final long receivedTime;
+        private final long sequence;
+        private final long lamportTime;
+
+        public StationRecord(String stationId, String json, String serverId, long receivedTime, long sequence) {
+            this(stationId, json, serverId, receivedTime, sequence, 0);
+        }
+
+        public StationRecord(String stationId, String json, String serverId, long receivedTime, long sequence,
+                long lamportTime) {
+            this.stationId = stationId;
+            this.json = json;
+            this.serverId = serverId;
+            this.receivedTime = receivedTime;
+            this.sequence = sequence;
+            this.lamportTime = lamportTime;
+        }
+
+        public String getStationId() {
+            return stationId;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public String getServerId() {
+            return serverId;
+        }
+
+        public long getReceivedTime() {
+            return receivedTime;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getLamportTime() {
+            return lamportTime;
+        }
+
+        /**
+         * Checks whether this update wins over another update of the same
+         * station. Updates are ordered by Lamport time and then by the id of
+         * the source that sent them. An update with the same time and source is
+         * a resend of the same event, which replaces the copy held.
+         *
+         * @param other The update currently held.
+         * @return true if this update should replace the other.
+         */
+        public boolean supersedes(StationRecord other) {
+            if (lamportTime != other.lamportTime) {
+                return lamportTime > other.lamportTime;
+            }
+            return String.valueOf(serverId).compareTo(String.valueOf(other.serverId)) >= 0;
+        }
+    }
+
+    /**
+     * An immutable snapshot of a station's latest record and its most recent
+     * updates. Writers replace the whole snapshot, so a reader always sees a
+     * consistent view without taking a lock.
+     */
+    public static final class StationHistory {
+        private final StationRecord[] records; // Oldest first, the last entry is the latest
+
+        private StationHistory(StationRecord[] records) {
+            this.records = records;
+        }
+
+        /**
+         * Returns a new snapshot with the record appended, dropping the oldest
+         * record once the history is full.
+         */
+        private StationHistory append(StationRecord record, int historySize) {
+            int kept = Math.min(records.length, historySize - 1);
+            StationRecord[] appended = new StationRecord[kept + 1];
+            System.arraycopy(records, records.length - kept, appended, 0, kept);
+            appended[kept] = record;
+            return new StationHistory(appended);
+        }
+
+        /**
+         * Returns the snapshot as it was before the latest record was
+         * appended, or null if that record is the only one.
+         */
+        private StationHistory withoutLatest() {
+            return records.length == 1 ? null
+                    : new StationHistory(Arrays.copyOf(records, records.length - 1));
+        }
+
+        /**
+         * Returns the most recent record of the station.
+         *
+         * @return The latest record.
+         */
+        public StationRecord latest() {
+            return records[records.length - 1];
+        }
+
+        /**
+         * Returns the retained records of the station, oldest first.
+         *
+         * @return An unmodifiable list of records.
+         */
+        public List<StationRecord> history() {
+            return Collections.unmodifiableList(Arrays.asList(records));
+        }
+    }
+
+    /**
+     * Creates a store keeping the default number of updates per station.
+     */
+    public WeatherStore() {
+        this(DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * Creates a store keeping the given number of updates per station.
+     *
+     * @param historySize The number of updates retained per station.
+     */
+    public WeatherStore(int historySize) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("History size must be at least 1");
+        }
+        this.historySize = historySize;
+    }
+
+    /**
+     * Stores a new update for a station. Writes to different stations proceed
+     * in parallel, writes to the same station only contend on that station's
+     * map entry.
+     *
+     * @param stationId The station id from the JSON payload.
+     * @param json      The JSON payload.
+     * @param serverId  The unique ID of the connection that sent the update.
+     * @return The stored record.
+     */
+    public StationRecord put(String stationId, String json, String serverId) {
+        StationRecord record = new StationRecord(stationId, json, serverId, System.currentTimeMillis(),
+                sequence.incrementAndGet());
+        apply(record, false);
+        return record;
+    }
+
+    /**
+     * Stores a new update for a station unless the station already holds an
+     * update that supersedes it, e.g. when a delayed or retried PUT arrives
+     * after a newer one. The check is made while the station's entry is being
+     * updated, so concurrent updates need no further locking.
+     *
+     * @param stationId   The station id from the JSON payload.
+     * @param json        The JSON payload.
+     * @param serverId    The unique ID of the source that sent the update.
+     * @param lamportTime The Lamport time the update was sent at.
+     * @return The stored record, or null if a newer update is already held.
+     */
+    public StationRecord putIfNewer(String stationId, String json, String serverId, long lamportTime) {
+        StationRecord record = new StationRecord(stationId, json, serverId, System.currentTimeMillis(),
+                sequence.incrementAndGet(), lamportTime);
+        return apply(record, true) ? record : null;
+    }
+
+    /**
+     * Puts back a record recovered from storage, keeping its original sequence
+     * number and receive time. New updates are numbered after the highest
+     * sequence restored.
+     *
+     * @param record The recovered record.
+     */
+    public void restore(StationRecord record) {
+        sequence.accumulateAndGet(record.getSequence(), Math::max);
+        apply(record, false);
+    }
+
+    /**
+     * Applies a record received from another server, keeping its sequence
+     * number and receive time, unless the station already holds an update that
+     * supersedes it. Replicas apply the primary's updates this way, so a record
+     * sent twice or out of order is resolved in Lamport order.
+     *
+     * @param record The received record.
+     * @return true if the record was applied.
+     */
+    public boolean restoreIfNewer(StationRecord record) {
+        sequence.accumulateAndGet(record.getSequence(), Math::max);
+        return apply(record, true);
+    }
+
+    /**
+     * Adds a record to its station's snapshot and publishes it.
+     *
+     * @param conditional Whether the record is dropped if it does not supersede
+     *                    the station's latest record.
+     * @return true if the record was applied.
+     */
+    private boolean apply(StationRecord record, boolean conditional) {
+        String stationId = record.getStationId();
+        boolean[] superseded = new boolean[1];
+        stations.compute(stationId, (id, history) -> {
+            if (conditional && history != null && !record.supersedes(history.latest())) {
+                superseded[0] = true;
+                return history;
+            }
+
+            // Index the record while holding the station's entry, so updates of a station are indexed in order
+            index.update(record);
+            return history == null
+                    ? new StationHistory(new StationRecord[] { record })
+                    : history.append(record, historySize);
+        });
+        if (superseded[0]) {
+            return false;
+        }
+
+        // Publish the record as the overall latest unless a newer one got there first
+        StationRecord current;
+        do {
+            current = latest.get();
+        } while ((current == null || current.getSequence() < record.getSequence())
+                && !latest.compareAndSet(current, record));
+
+        // Bump the version only once the update is visible to readers
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes a station and all of its records.
+     *
+     * @param stationId The station id.
+     * @return true if the station was held in the store.
+     */
+    public boolean remove(String stationId) {
+        boolean[] removed = new boolean[1];
+        stations.computeIfPresent(stationId, (id, history) -> {
+            index.remove(stationId);
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0]) {
+            afterRemove(stationId);
+        }
+        return removed[0];
+    }
+
+    /**
+     * Removes a station, but only if the given record is still its latest. An
+     * update that arrives concurrently therefore always survives the removal.
+     *
+     * @param record The record expected to be the station's latest.
+     * @return true if the station was removed.
+     */
+    public boolean removeIfLatest(StationRecord record) {
+        boolean[] removed = new boolean[1];
+        stations.computeIfPresent(record.getStationId(), (id, history) -> {
+            if (history.latest() == record) {
+                index.remove(id);
+                removed[0] = true;
+                return null;
+            }
+            return history;
+        });
+        if (removed[0]) {
+            afterRemove(record.getStationId());
+        }
+        return removed[0];
+    }
+
+    /**
+     * Takes back a record that could not be made durable, provided it is still
+     * its station's latest. The station returns to the update it held before,
+     * or is removed if it held none.
+     *
+     * @param record The record to take back.
+     * @return true if the record was taken back.
+     */
+    public boolean rollback(StationRecord record) {
+        boolean[] rolledBack = new boolean[1];
+        stations.computeIfPresent(record.getStationId(), (id, history) -> {
+            if (history.latest() != record) {
+                return history;
+            }
+            rolledBack[0] = true;
+            StationHistory previous = history.withoutLatest();
+            if (previous == null) {
+                index.remove(id);
+            } else {
+                index.update(previous.latest());
+            }
+            return previous;
+        });
+        if (rolledBack[0]) {
+            afterRemove(record.getStationId());
+        }
+        return rolledBack[0];
+    }
+
+    /**
+     * Removes a station if its latest record is no newer than the given
+     * sequence number, i.e. if the station has not been updated since the
+     * removal was decided on another server.
+     *
+     * @param stationId The station id.
+     * @param sequence  The sequence number of the record that was removed.
+     * @return true if the station was removed.
+     */
+    public boolean removeUpTo(String stationId, long sequence) {
+        boolean[] removed = new boolean[1];
+        stations.computeIfPresent(stationId, (id, history) -> {
+            if (history.latest().getSequence() <= sequence) {
+                index.remove(id);
+                removed[0] = true;
+                return null;
+            }
+            return history;
+        });
+        if (removed[0]) {
+            afterRemove(stationId);
+        }
+        return removed[0];
+    }
+
+    /**
+     * Fixes up the overall latest record after a station has been removed.
+     */
+    private void afterRemove(String stationId) {
+        // If the overall latest record belonged to the station, fall back to the newest remaining one
+        StationRecord current = latest.get();
+        while (current != null && current.getStationId().equals(stationId)) {
+            StationRecord replacement = null;
+            for (StationHistory history : stations.values()) {
+                StationRecord candidate = history.latest();
+                if (replacement == null || candidate.getSequence() > replacement.getSequence()) {
+                    replacement = candidate;
+                }
+            }
+            if (latest.compareAndSet(current, replacement)) {
+                break;
+            }
+            current = latest.get();
+        }
+
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns the snapshot of a station.
+     *
+     * @param stationId The station id.
+     * @return The station's snapshot, or null if the station is unknown.
+     */
+    public StationHistory get(String stationId) {
+        return stations.get(stationId);
+    }
+
+    /**
+     * Returns the most recent record received from any station.
+     *
+     * @return The latest record, or null if the store is empty.
+     */
+    public StationRecord latest() {
+        return latest.get();
+    }
+
+    /**
+     * Returns the snapshots of all stations.
+     *
+     * @return An unmodifiable view of every station's snapshot.
+     */
+    public Collection<StationHistory> stations() {
+        return Collections.unmodifiableCollection(stations.values());
+    }
+
+    /**
+     * Finds the latest records of the stations that match a query, using the
+     * indexes kept by id, position and observation time.
+     *
+     * @param query The query, which must not be the plain latest query.
+     * @return The matching records.
+     */
+    public List<StationRecord> find(WeatherQuery query) {
+        return index.find(query);
+    }
+
+    /**
+     * Returns the number of stations held in the store.
+     *
+     * @return The station count.
+     */
+    public int size() {
+        return stations.size();
+    }
+
+    /**
+     * Returns the highest sequence number handed out or restored so far.
+     *
+     * @return The last sequence number, 0 if the store never held a record.
+     */
+    public long lastSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Returns a number that increases with every update, so callers can tell
+     * whether anything has changed since they last looked.
+     *
+     * @return The store version.
+     */
+    public long version() {
+        return version.get();
+    }
+}
@@ -0,0 +1,155 @@
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WeatherStoreTest {
+    private WeatherStore store;
+
+    // Create a new store keeping 3 updates per station before each test
+    @Before
+    public void setUp() {
+        store = new WeatherStore(3);
+    }
+
+    // Test that each station keeps its own latest record
+    @Test
+    public void testPutAndGetByStation() {
+        store.put("A", "{\"id\":\"A\",\"air_temp\":\"1\"}", "server1");
+        store.put("B", "{\"id\":\"B\",\"air_temp\":\"2\"}", "server2");
+
+        assertEquals(2, store.size());
+        assertEquals("{\"id\":\"A\",\"air_temp\":\"1\"}", store.get("A").latest().getJson());
+        assertEquals("server2", store.get("B").latest().getServerId());
+        assertNull(store.get("C"));
+    }
+
+    // Test that the overall latest record is the last one received
+    @Test
+    public void testLatestAcrossStations() {
+        assertNull(store.latest());
+
+        store.put("A", "{\"id\":\"A\"}", "server1");
+        store.put("B", "{\"id\":\"B\"}", "server1");
+        assertEquals("B", store.latest().getStationId());
+
+        store.put("A", "{\"id\":\"A\"}", "server1");
+        assertEquals("A", store.latest().getStationId());
+    }
+
+    // Test that the history of a station is bounded, dropping the oldest updates
+    @Test
+    public void testHistoryIsBounded() {
+        for (int i = 1; i <= 5; i++) {
+            store.put("A", "{\"id\":\"A\",\"n\":" + i + "}", "server1");
+        }
+
+        List<WeatherStore.StationRecord> history = store.get("A").history();
+        assertEquals(3, history.size());
+        assertEquals("{\"id\":\"A\",\"n\":3}", history.get(0).getJson());
+        assertEquals("{\"id\":\"A\",\"n\":5}", store.get("A").latest().getJson());
+    }
+
+    // Test that a snapshot taken by a reader does not change under later writes
+    @Test
+    public void testSnapshotIsImmutable() {
+        store.put("A", "{\"id\":\"A\",\"n\":1}", "server1");
+        WeatherStore.StationHistory snapshot = store.get("A");
+
+        store.put("A", "{\"id\":\"A\",\"n\":2}", "server1");
+        assertEquals("{\"id\":\"A\",\"n\":1}", snapshot.latest().getJson());
+        assertEquals(1, snapshot.history().size());
+    }
+
+    // Test restoring recovered records
+    // Ensure sequence numbers carry on after the highest restored one
+    @Test
+    public void testRestoreKeepsSequence() {
+        store.restore(new WeatherStore.StationRecord("A", "{\"id\":\"A\"}", "server1", 1000, 41));
+        store.restore(new WeatherStore.StationRecord("B", "{\"id\":\"B\"}", "server1", 1000, 7));
+
+        assertEquals("A", store.latest().getStationId());
+        assertEquals(1000, store.get("A").latest().getReceivedTime());
+        assertEquals(42, store.put("C", "{\"id\":\"C\"}", "server1").getSequence());
+    }
+
+    // Test removing a station
+    // Ensure the overall latest falls back to the newest remaining station
+    @Test
+    public void testRemove() {
+        store.put("A", "{\"id\":\"A\"}", "server1");
+        store.put("B", "{\"id\":\"B\"}", "server1");
+        long version = store.version();
+
+        assertTrue(store.remove("B"));
+        assertNull(store.get("B"));
+        assertEquals("A", store.latest().getStationId());
+        assertTrue(store.version() > version);
+
+        assertTrue(store.remove("A"));
+        assertNull(store.latest());
+        assertFalse(store.remove("A"));
+    }
+
+    // Test concurrent writers on shared and separate stations
+    // Ensure no update is lost and the version counts every update
+    @Test
+    public void testConcurrentWrites() throws InterruptedException {
+        int threadCount = 8;
+        int updatesPerThread = 10000;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            String ownStation = "station" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < updatesPerThread; i++) {
+                    store.put(ownStation, "{\"id\":\"" + ownStation + "\",\"n\":" + i + "}", "server");
+                    store.put("shared", "{\"id\":\"shared\"}", "server");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount + 1, store.size());
+        assertEquals(2L * threadCount * updatesPerThread, store.version());
+        for (int t = 0; t < threadCount; t++) {
+            String expected = "{\"id\":\"station" + t + "\",\"n\":" + (updatesPerThread - 1) + "}";
+            assertEquals(expected, store.get("station" + t).latest().getJson());
+        }
+        assertEquals(3, store.get("shared").history().size());
+    }
+
+    // Test that updates are ordered by Lamport time and then by source
+    // Ensure a delayed stale update cannot overwrite a newer one
+    @Test
+    public void testPutIfNewer() {
+        assertNotNull(store.putIfNewer("A", "{\"id\":\"A\",\"n\":5}", "server1", 5));
+        assertNull(store.putIfNewer("A", "{\"id\":\"A\",\"n\":3}", "server2", 3));
+        assertEquals("{\"id\":\"A\",\"n\":5}", store.get("A").latest().getJson());
+
+        // Equal times are decided by the source id, a resend from the same source replaces its copy
+        assertNull(store.putIfNewer("A", "{\"id\":\"A\",\"n\":0}", "server0", 5));
+        assertNotNull(store.putIfNewer("A", "{\"id\":\"A\",\"n\":9}", "server9", 5));
+        assertNotNull(store.putIfNewer("A", "{\"id\":\"A\",\"n\":9}", "server9", 5));
+        assertEquals(5, store.get("A").latest().getLamportTime());
+        assertEquals("server9", store.get("A").latest().getServerId());
+    }
+
+    // Test that a record that could not be logged is taken back
+    // Ensure the station returns to its previous update, or is removed if it had none
+    @Test
+    public void testRollback() {
+        WeatherStore.StationRecord first = store.put("A", "{\"id\":\"A\",\"n\":1}", "server1");
+        WeatherStore.StationRecord second = store.put("A", "{\"id\":\"A\",\"n\":2}", "server1");
+        assertFalse(store.rollback(first));
+        assertTrue(store.rollback(second));
+        assertSame(first, store.get("A").latest());
+        assertSame(first, store.latest());
+
+        assertTrue(store.rollback(first));
+        assertNull(store.get("A"));
+        assertNull(store.latest());
+    }
+}
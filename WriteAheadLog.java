@@ -0,0 +1,619 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog implements Closeable {
+    // Record types
+    public static final byte TYPE_PUT = 1;
+    public static final byte TYPE_DELETE = 2;
+    public static final byte TYPE_HEARTBEAT = 3; // Only sent on replication streams, never logged
+
+    // Segment files are named wal-<number>.log, numbers increase with age
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_BYTES = 8; // Length and CRC32 of every record
+    private static final long ASYNC_SYNC_INTERVAL = 1000; // Async mode forces the log to disk every second
+    public static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * When appended records are forced to disk.
+     *
+     * - SYNC:  every record is forced before its append returns.
+     * - BATCH: records are group committed, appends wait for the batch fsync.
+     * - ASYNC: appends return immediately, the log is forced once a second.
+     */
+    public enum Durability {
+        SYNC, BATCH, ASYNC
+    }
+
+    /**
+     * A single entry of the log. A PUT carries a station's record, a DELETE
+     * marks the station as removed.
+     */
+    public static final class Record {
+        private final byte type;
+        private final long sequence;
+        private final long timestamp;
+        private final String stationId;
+        private final String serverId;
+        private final String json;
+        private final long lamportTime;
+
+        public Record(byte type, long sequence, long timestamp, String stationId, String serverId, String json) {
+            this(type, sequence, timestamp, stationId, serverId, json, 0);
+        }
+
+        public Record(byte type, long sequence, long timestamp, String stationId, String serverId, String json,
+                long lamportTime) {
+            this.type = type;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.stationId = stationId;
+            this.serverId = serverId;
+            this.json = json;
+            this.lamportTime = lamportTime;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getStationId() {
+            return stationId;
+        }
+
+        public String getServerId() {
+            return serverId;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        /**
+         * Returns the Lamport time the update was sent at.
+         *
+         * @return The Lamport time, 0 for records logged before it was recorded.
+         */
+        public long getLamportTime() {
+            return lamportTime;
+        }
+    }
+
+    /**
+     * A batch of encoded records waiting for the writer thread.
+     */
+    private static final class PendingWrite {
+        final List<byte[]> encodedRecords;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        PendingWrite(List<byte[]> encodedRecords) {
+            this.encodedRecords = encodedRecords;
+        }
+    }
+
+    private final File directory;
+    private final Durability durability;
+    private final long segmentBytes;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private final Object compactionLock = new Object();
+    private final AtomicInteger sealedSegments = new AtomicInteger();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread compactorThread = new Thread(runnable, "wal-compactor");
+        compactorThread.setDaemon(true);
+        return compactorThread;
+    });
+    private volatile boolean running = true;
+
+    // Only written by the writer thread once the log is open
+    private FileChannel activeChannel;
+    private volatile long activeNumber;
+    private long activeSize;
+    private long lastSyncTime;
+
+    /**
+     * Opens the log in the given directory, starting a new active segment after
+     * any existing ones.
+     *
+     * @param directory    The directory holding the segment files.
+     * @param durability   When appended records are forced to disk.
+     * @param segmentBytes The size after which a new segment is started.
+     * @throws IOException If the directory or segment could not be created.
+     */
+    public WriteAheadLog(File directory, Durability durability, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create data directory: " + directory);
+        }
+
+        List<Long> existing = segmentNumbers();
+        sealedSegments.set(existing.size());
+        openSegment(existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1);
+
+        writerThread = new Thread(this::runWriter, "wal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Appends a single record.
+     *
+     * @param record The record to append.
+     * @throws IOException If the record could not be written.
+     */
+    public void append(Record record) throws IOException {
+        appendAll(Collections.singletonList(record));
+    }
+
+    /**
+     * Appends several records as one write. Depending on the durability mode
+     * this waits until they have been forced to disk.
+     *
+     * @param records The records to append, in order.
+     * @throws IOException If the records could not be written.
+     */
+    public void appendAll(List<Record> records) throws IOException {
+        List<byte[]> encodedRecords = new ArrayList<>(records.size());
+        for (Record record : records) {
+            encodedRecords.add(encode(record));
+        }
+
+        if (!running) {
+            throw new IOException("Write-ahead log is closed");
+        }
+        PendingWrite pending = new PendingWrite(encodedRecords);
+        queue.add(pending);
+
+        if (durability != Durability.ASYNC) {
+            awaitWrite(pending);
+        }
+    }
+
+    /**
+     * Waits for the writer thread to finish a pending write.
+     */
+    private static void awaitWrite(PendingWrite pending) throws IOException {
+        try {
+            pending.written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write to the log", e.getCause());
+        }
+    }
+
+    /**
+     * Writer thread: drains everything queued, writes it in one go and forces it
+     * according to the durability mode, so concurrent appends share one fsync.
+     */
+    private void runWriter() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(ASYNC_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    syncIfDue();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                writeBatch(batch);
+                for (PendingWrite pending : batch) {
+                    pending.written.complete(null);
+                }
+            } catch (IOException e) {
+                for (PendingWrite pending : batch) {
+                    pending.written.completeExceptionally(e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        // Anything that raced with close() is failed rather than left waiting forever
+        PendingWrite late;
+        while ((late = queue.poll()) != null) {
+            late.written.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+    }
+
+    /**
+     * Writes a batch of pending writes to the active segment.
+     */
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        for (PendingWrite pending : batch) {
+            for (byte[] encoded : pending.encodedRecords) {
+                if (activeSize > 0 && activeSize + encoded.length > segmentBytes) {
+                    rollSegment();
+                }
+                writeFully(activeChannel, ByteBuffer.wrap(encoded));
+                activeSize += encoded.length;
+                if (durability == Durability.SYNC) {
+                    activeChannel.force(false);
+                }
+            }
+        }
+
+        if (durability == Durability.BATCH) {
+            activeChannel.force(false);
+        } else if (durability == Durability.ASYNC) {
+            syncIfDue();
+        }
+    }
+
+    /**
+     * Forces the active segment if the async sync interval has passed.
+     */
+    private void syncIfDue() {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - lastSyncTime >= ASYNC_SYNC_INTERVAL) {
+            try {
+                activeChannel.force(false);
+            } catch (IOException e) {
+                Log.get().error("Error syncing write-ahead log: " + e.getMessage());
+            }
+            lastSyncTime = currentTime;
+        }
+    }
+
+    /**
+     * Seals the active segment and starts the next one.
+     */
+    private void rollSegment() throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+        openSegment(activeNumber + 1);
+
+        // Compact in the background whenever a roll leaves more than one sealed segment
+        if (sealedSegments.incrementAndGet() >= 2) {
+            try {
+                compactor.execute(() -> {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        Log.get().error("Error compacting write-ahead log: " + e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The log is closing, the segments are compacted when it is next opened
+            }
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        activeNumber = number;
+        activeChannel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSize = activeChannel.size();
+    }
+
+    /**
+     * Rewrites all sealed segments into a single segment that only holds the
+     * latest record of each station, dropping stations whose latest record is a
+     * delete. The active segment is never touched, so appends carry on while
+     * compaction runs.
+     *
+     * @return The number of records dropped.
+     * @throws IOException If the segments could not be read or written.
+     */
+    public int compact() throws IOException {
+        // Checked without touching the file system, so this is cheap to call often
+        if (sealedSegments.get() < 2) {
+            return 0;
+        }
+
+        synchronized (compactionLock) {
+            List<Long> sealed = new ArrayList<>();
+            for (long number : segmentNumbers()) {
+                if (number < activeNumber) {
+                    sealed.add(number);
+                }
+            }
+            if (sealed.size() < 2) {
+                return 0; // Nothing worth compacting yet
+            }
+
+            // Later records win, so reading oldest first leaves the latest per station
+            Map<String, Record> latest = new LinkedHashMap<>();
+            int total = 0;
+            for (long number : sealed) {
+                for (Record record : readSegment(segmentFile(number))) {
+                    latest.remove(record.getStationId());
+                    latest.put(record.getStationId(), record);
+                    total++;
+                }
+            }
+
+            // Write the survivors to a temporary file, then swap it in for the oldest segment
+            File compacted = segmentFile(sealed.get(0));
+            File temporary = new File(directory, compacted.getName() + ".compacting");
+            try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Record record : latest.values()) {
+                    if (record.getType() == TYPE_PUT) {
+                        writeFully(channel, ByteBuffer.wrap(encode(record)));
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(temporary.toPath(), compacted.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            for (int i = 1; i < sealed.size(); i++) {
+                Files.deleteIfExists(segmentFile(sealed.get(i)).toPath());
+            }
+            sealedSegments.addAndGet(1 - sealed.size());
+
+            int kept = 0;
+            for (Record record : latest.values()) {
+                if (record.getType() == TYPE_PUT) {
+                    kept++;
+                }
+            }
+            return total - kept;
+        }
+    }
+
+    /**
+     * Reads every record in the log, oldest first. Segments are read and decoded
+     * in parallel, records are then handed to the consumer one at a time in log
+     * order.
+     *
+     * @param consumer Receives each record.
+     * @return The number of segments read.
+     * @throws IOException If a segment could not be read.
+     */
+    public int replay(Consumer<Record> consumer) throws IOException {
+        synchronized (compactionLock) {
+            List<CompletableFuture<List<Record>>> segments = new ArrayList<>();
+            for (long number : segmentNumbers()) {
+                File segment = segmentFile(number);
+                segments.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return readSegment(segment);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+
+            for (CompletableFuture<List<Record>> segment : segments) {
+                List<Record> records;
+                try {
+                    records = segment.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw e;
+                }
+                for (Record record : records) {
+                    consumer.accept(record);
+                }
+            }
+            return segments.size();
+        }
+    }
+
+    /**
+     * Checks whether the log holds any records at all.
+     *
+     * @return true if every segment is empty.
+     */
+    public boolean isEmpty() {
+        for (long number : segmentNumbers()) {
+            if (segmentFile(number).length() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the records of one segment. Reading stops at the first torn or
+     * corrupt record, which can only be the tail written during a crash.
+     *
+     * @param segment The segment file.
+     * @return The records in the segment, in order.
+     * @throws IOException If the segment could not be read.
+     */
+    public static List<Record> readSegment(File segment) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream inputData = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment), 64 * 1024))) {
+            while (true) {
+                try {
+                    records.add(readRecord(inputData));
+                } catch (EOFException | StreamCorruptedException e) {
+                    // The end of the segment, or a torn record left by a crash
+                    break;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reads one encoded record from a stream, such as a segment file or a
+     * replication connection.
+     *
+     * @param inputData The stream positioned at the start of a record.
+     * @return The record.
+     * @throws EOFException             If the stream ends before a whole record.
+     * @throws StreamCorruptedException If the record fails its length or
+     *                                  checksum check.
+     * @throws IOException              If reading fails.
+     */
+    public static Record readRecord(DataInputStream inputData) throws IOException {
+        int length = inputData.readInt();
+        long checksum = inputData.readInt() & 0xFFFFFFFFL;
+        if (length <= 0 || length > 16 * 1024 * 1024) {
+            throw new StreamCorruptedException("Invalid record length " + length);
+        }
+
+        byte[] payload = new byte[length];
+        inputData.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != checksum) {
+            throw new StreamCorruptedException("Record checksum mismatch");
+        }
+        return decode(payload);
+    }
+
+    /**
+     * Encodes a record as length, CRC32 and payload, the form in which it is
+     * written to a segment and sent to replicas.
+     *
+     * @param record The record.
+     * @return The encoded record.
+     */
+    public static byte[] encode(Record record) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(128 + record.getJson().length());
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(record.getType());
+            payload.writeLong(record.getSequence());
+            payload.writeLong(record.getTimestamp());
+            payload.writeUTF(record.getStationId());
+            payload.writeUTF(record.getServerId());
+            byte[] json = record.getJson().getBytes(StandardCharsets.UTF_8);
+            payload.writeInt(json.length);
+            payload.write(json);
+            payload.writeLong(record.getLamportTime());
+            payload.flush();
+
+            byte[] body = payloadBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            ByteBuffer encoded = ByteBuffer.allocate(RECORD_HEADER_BYTES + body.length);
+            encoded.putInt(body.length);
+            encoded.putInt((int) crc.getValue());
+            encoded.put(body);
+            return encoded.array();
+        } catch (IOException e) {
+            // Writing to a byte array cannot fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes the payload of a record.
+     */
+    private static Record decode(byte[] payload) throws IOException {
+        DataInputStream inputData = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = inputData.readByte();
+        long sequence = inputData.readLong();
+        long timestamp = inputData.readLong();
+        String stationId = inputData.readUTF();
+        String serverId = inputData.readUTF();
+        byte[] json = new byte[inputData.readInt()];
+        inputData.readFully(json);
+
+        // Records logged by older versions end after the JSON
+        long lamportTime = inputData.available() >= 8 ? inputData.readLong() : 0;
+        return new Record(type, sequence, timestamp, stationId, serverId, new String(json, StandardCharsets.UTF_8),
+                lamportTime);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the numbers of the segment files on disk, oldest first.
+     */
+    private List<Long> segmentNumbers() {
+        List<Long> numbers = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(
+                                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of our segments
+                    }
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Returns the size of the log on disk, over every segment.
+     *
+     * @return The size in bytes.
+     */
+    public long sizeBytes() {
+        long size = 0;
+        for (long number : segmentNumbers()) {
+            size += segmentFile(number).length();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the directory holding the segment files.
+     *
+     * @return The log directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes everything still queued, forces it to disk and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        // Closing a closed log has no effect, as for any Closeable
+        if (!running) {
+            return;
+        }
+
+        // Wake the writer with an empty write rather than interrupting it, an interrupt
+        // would close the channel in the middle of a write
+        running = false;
+        compactor.shutdown();
+        queue.add(new PendingWrite(Collections.emptyList()));
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        activeChannel.force(true);
+        activeChannel.close();
+    }
+}
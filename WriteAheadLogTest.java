@@ -0,0 +1,128 @@
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteAheadLogTest {
+    private File directory;
+
+    // Create an empty log directory before each test
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("wal-test").toFile();
+    }
+
+    // Remove the log directory after each test
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // Test that appended records are replayed in order in every durability mode
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        for (WriteAheadLog.Durability durability : WriteAheadLog.Durability.values()) {
+            File modeDirectory = new File(directory, durability.name());
+            try (WriteAheadLog log = new WriteAheadLog(modeDirectory, durability, WriteAheadLog.DEFAULT_SEGMENT_BYTES)) {
+                log.append(put(1, "A", "{\"id\":\"A\"}"));
+                log.appendAll(Arrays.asList(put(2, "B", "{\"id\":\"B\"}"), put(3, "A", "{\"id\":\"A\",\"n\":2}")));
+            }
+
+            try (WriteAheadLog log = new WriteAheadLog(modeDirectory, durability, WriteAheadLog.DEFAULT_SEGMENT_BYTES)) {
+                List<WriteAheadLog.Record> records = replay(log);
+                assertEquals(durability.name(), 3, records.size());
+                assertEquals("A", records.get(0).getStationId());
+                assertEquals("{\"id\":\"A\",\"n\":2}", records.get(2).getJson());
+                assertEquals(3, records.get(2).getSequence());
+            }
+            for (File file : modeDirectory.listFiles()) {
+                file.delete();
+            }
+            modeDirectory.delete();
+        }
+    }
+
+    // Test that segments roll over and compaction keeps only the latest record per station
+    @Test
+    public void testCompactionKeepsLatestPerStation() throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.BATCH, 256)) {
+            for (int i = 1; i <= 40; i++) {
+                String stationId = "S" + (i % 4);
+                log.append(put(i, stationId, "{\"id\":\"" + stationId + "\",\"n\":" + i + "}"));
+            }
+            // Station S0 was removed after its last update
+            log.append(new WriteAheadLog.Record(WriteAheadLog.TYPE_DELETE, 41, 0, "S0", "server", ""));
+            log.append(put(42, "S9", "{\"id\":\"S9\"}"));
+
+            // Segments are also compacted in the background as they roll over
+            log.compact();
+            assertTrue("Expected the compacted segment and the active one", directory.list().length <= 2);
+
+            // The latest record of every station survives, the deleted station does not
+            Map<String, String> latest = new HashMap<>();
+            for (WriteAheadLog.Record record : replay(log)) {
+                if (record.getType() == WriteAheadLog.TYPE_PUT) {
+                    latest.put(record.getStationId(), record.getJson());
+                } else {
+                    latest.remove(record.getStationId());
+                }
+            }
+            assertEquals("{\"id\":\"S1\",\"n\":37}", latest.get("S1"));
+            assertEquals("{\"id\":\"S3\",\"n\":39}", latest.get("S3"));
+            assertFalse(latest.containsKey("S0"));
+        }
+    }
+
+    // Test that the Lamport time of a record survives the log
+    @Test
+    public void testLamportTimeRoundTrip() throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024 * 1024)) {
+            log.append(new WriteAheadLog.Record(WriteAheadLog.TYPE_PUT, 1, 0, "A", "server", "{\"id\":\"A\"}", 17));
+            log.append(put(2, "B", "{\"id\":\"B\"}"));
+
+            List<WriteAheadLog.Record> records = replay(log);
+            assertEquals(17, records.get(0).getLamportTime());
+            assertEquals(0, records.get(1).getLamportTime());
+        }
+    }
+
+    // Test that a torn record at the end of a segment is ignored
+    @Test
+    public void testTornTailIsIgnored() throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024 * 1024)) {
+            log.append(put(1, "A", "{\"id\":\"A\"}"));
+            log.append(put(2, "B", "{\"id\":\"B\"}"));
+        }
+
+        // Cut the last record short, as a crash part way through a write would
+        File segment = directory.listFiles()[0];
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        Files.write(segment.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+
+        List<WriteAheadLog.Record> records = WriteAheadLog.readSegment(segment);
+        assertEquals(1, records.size());
+        assertEquals("A", records.get(0).getStationId());
+    }
+
+    // Create a PUT record for a station
+    private static WriteAheadLog.Record put(long sequence, String stationId, String json) {
+        return new WriteAheadLog.Record(WriteAheadLog.TYPE_PUT, sequence, System.currentTimeMillis(), stationId,
+                "server", json);
+    }
+
+    // Read every record of a log
+    private static List<WriteAheadLog.Record> replay(WriteAheadLog log) throws IOException {
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        log.replay(records::add);
+        return records;
+    }
+}